@@ -1,13 +1,16 @@
 package globingular.core;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * The Badges class creates goals and calculates progress towards them.
+ * Progress is kept up to date by listening to changes in the {@link CountryCollector},
+ * while the totals to compare against are precomputed by its immutable {@link World}.
  */
-public class Badges {
+public class Badges implements Listener<Visit> {
 
     /**
      * CountryCollector, manages which countries has been visited.
@@ -15,12 +18,48 @@ public class Badges {
     private final CountryCollector collector;
 
     /**
-     * Constructor that initializes with a CountryCollector.
+     * The countries counted as visited. Kept up to date with {@link #collector}.
+     */
+    private final Set<Country> visitedCountries = new HashSet<>();
+
+    /**
+     * Number of countries visited by region. Regions without visited countries are not present.
+     */
+    private final Map<String, Integer> visitedCountByRegion = new HashMap<>();
+
+    /**
+     * Sum of the population of every visited country.
+     */
+    private long visitedPopulation;
+
+    /**
+     * Constructor that initializes with a CountryCollector,
+     * and starts listening to it for changes.
      *
      * @param collector - A CountryCollector that holds visited countries
      */
     public Badges(final CountryCollector collector) {
         this.collector = collector;
+        for (Country country : collector.getVisitedCountries()) {
+            this.addVisitedCountry(country);
+        }
+        collector.addListener(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Keeps progress up to date when a country is visited for the first time,
+     * or when the last visit to a country is removed.
+     */
+    @Override
+    public void notifyListener(final ChangeEvent<Visit> event) {
+        Country country = event.getElement().getCountry();
+        boolean visited = this.collector.isVisited(country);
+        if (visited && !this.visitedCountries.contains(country)) {
+            this.addVisitedCountry(country);
+        } else if (!visited && this.visitedCountries.contains(country)) {
+            this.removeVisitedCountry(country);
+        }
     }
 
     /**
@@ -44,10 +83,8 @@ public class Badges {
      * @return number between 0 and 1, representing a percentage.
      */
     public Double getContinentBadge(final String region) {
-        long visited = this.collector.getVisitedCountries().stream().
-                filter(c -> c.getRegion().equals(region)).count();
-        long continent  = this.collector.getWorld().getCountries().stream().
-                filter(c -> c.getRegion().equals(region)).count();
+        long visited = this.visitedCountByRegion.getOrDefault(region, 0);
+        long continent = this.collector.getWorld().getNumberOfCountriesInRegion(region);
 
         return (double) visited / continent;
     }
@@ -58,18 +95,9 @@ public class Badges {
      * @return number between 0 and 1, representing a percentage.
      */
     public Double getWorldPopulationBadge() {
-        Set<Country> visitedCountries = this.collector.getVisitedCountries();
-        long visitedPopulation = 0;
-        for (Country country : visitedCountries) {
-           visitedPopulation += country.getPopulation();
-        }
-        Set<Country> world = this.collector.getWorld().getCountries();
-        long totalPopulation = 0;
-        for (Country country : world) {
-            totalPopulation += country.getPopulation();
-        }
+        long totalPopulation = this.collector.getWorld().getTotalPopulation();
 
-        return (double) visitedPopulation / totalPopulation;
+        return (double) this.visitedPopulation / totalPopulation;
     }
 
     /**
@@ -91,4 +119,26 @@ public class Badges {
         return map;
     }
 
+    /**
+     * Count the given country as visited towards every badge.
+     *
+     * @param country The newly visited country
+     */
+    private void addVisitedCountry(final Country country) {
+        this.visitedCountries.add(country);
+        this.visitedCountByRegion.merge(country.getRegion(), 1, Integer::sum);
+        this.visitedPopulation += country.getPopulation();
+    }
+
+    /**
+     * Stop counting the given country as visited towards every badge.
+     *
+     * @param country The country no longer visited
+     */
+    private void removeVisitedCountry(final Country country) {
+        this.visitedCountries.remove(country);
+        // Returning null from the remapping function removes the entry
+        this.visitedCountByRegion.computeIfPresent(country.getRegion(), (k, v) -> v == 1 ? null : v - 1);
+        this.visitedPopulation -= country.getPopulation();
+    }
 }
@@ -74,6 +74,15 @@ public class ChangeEvent<T> {
         return this.status == Status.REMOVED;
     }
 
+    /**
+     * Get the status of the change.
+     *
+     * @return the status, representing whether the element was added, updated or removed
+     */
+    public Status getStatus() {
+        return status;
+    }
+
     /**
      * Get the element part of the change.
      * 
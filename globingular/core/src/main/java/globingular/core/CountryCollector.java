@@ -1,12 +1,14 @@
 package globingular.core;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * <p>CountryCollector class aggregates visits to various countries.</p>
@@ -18,27 +20,58 @@ import java.util.stream.Collectors;
  * <li>Getting number of visits and visited countries</li>
  * </ul>
  * </p>
+ *
+ * <p>A CountryCollector may be shared between threads. Every change is made while holding the lock of the
+ * CountryCollector itself, so changes never interleave, and listeners are notified of them in order.
+ * Callers may synchronize on the CountryCollector to make several changes at once.
+ * Reading never locks, and sees every change that has completed. A change in progress may be seen partially,
+ * e.g. a visit may be included in {@link #getVisits()} before its country is included in
+ * {@link #getVisitedCountries()}.</p>
+ *
+ * <p>Every change increases the {@link #getVersion() version} by one, and the latest
+ * {@value #CHANGE_LOG_CAPACITY} changes are kept, so that a copy of the CountryCollector can be brought up to date
+ * with only the changes it's missing, see {@link #getChangesSince(long)}.</p>
  */
 
 public class CountryCollector implements Observable<Visit> {
 
+    /**
+     * Maximum number of changes kept for {@link #getChangesSince(long)}.
+     */
+    public static final int CHANGE_LOG_CAPACITY = 256;
+
     /**
      * Main set, containing all country-visits.
      */
-    private final Set<Visit> visits = new HashSet<>();
+    private final Set<Visit> visits = ConcurrentHashMap.newKeySet();
     /**
-     * Set containing only the countries visited.
+     * Index of all country-visits by the country visited.
+     * Kept up to date with {@link #visits}, and never contains empty sets,
+     * so that the keys are exactly the countries visited.
+     * The sets are concurrent, so that they can be read without locking, and changed in place.
+     * A set is only added to the index once it holds its first visit, and removed from it instead of
+     * removing its last visit.
+     */
+    private final Map<Country, Set<Visit>> visitsByCountry = new ConcurrentHashMap<>();
+    /**
+     * Index of all dated country-visits by the date range they span.
      * Kept up to date with {@link #visits}.
      */
-    private final Set<Country> visitedCountries = new HashSet<>();
+    private final VisitIntervalTree visitsByDate = new VisitIntervalTree();
     /**
      * The World this instance collects countries from.
      */
     private final World world;
     /**
-     * Collection holding all added listeners.
+     * Collection holding all added listeners. Listeners are notified in the order they were added,
+     * so that e.g. {@link CountryStatistics} are up to date before listeners added later read them.
+     * Copied on change, so that listeners can be added and removed while notifying.
      */
     private final Collection<Listener<Visit>> listeners;
+    /**
+     * The version of this CountryCollector, and its latest changes.
+     */
+    private final VisitChangeLog changeLog = new VisitChangeLog(CHANGE_LOG_CAPACITY);
 
     /**
      * Create a new CountryCollector using the provided World as its source of existing countries.
@@ -47,7 +80,7 @@ public class CountryCollector implements Observable<Visit> {
      */
     public CountryCollector(final World world) {
         this.world = world;
-        this.listeners = new HashSet<>();
+        this.listeners = new CopyOnWriteArraySet<>();
     }
 
     /**
@@ -88,20 +121,25 @@ public class CountryCollector implements Observable<Visit> {
     }
 
     /**
-     * Register a country-visit.
+     * Register a country-visit. Registering a visit already registered changes nothing,
+     * so listeners aren't notified and the version stays the same.
      * 
      * @param visit The visit object to register
-     * @return      True, if the visit was added
+     * @return      True, if the visit is registered
      * 
      * @throws IllegalArgumentException If the given visited country does not exist in this instance's world
      */
-    public boolean registerVisit(final Visit visit) {
+    public synchronized boolean registerVisit(final Visit visit) {
         // Check to make sure the Visit includes a valid Country
         throwExceptionIfInvalidCountry(visit.getCountry());
-        // Add the given Visit to visits
-        this.visits.add(visit);
-        // Keep visitedCountries up to date
-        this.visitedCountries.add(visit.getCountry());
+        // Add the given Visit to visits, and stop if it already was
+        if (!this.visits.add(visit)) {
+            return true;
+        }
+        // Keep visitsByCountry up to date
+        this.addToCountryIndex(visit);
+        // Keep visitsByDate up to date
+        this.visitsByDate.add(visit);
         // Notify listeners about addition
         this.notifyListeners(new ChangeEvent<>(ChangeEvent.Status.ADDED, visit));
         // Return true if success
@@ -116,46 +154,46 @@ public class CountryCollector implements Observable<Visit> {
      * 
      * @throws IllegalArgumentException If the given country does not exist in this instance's world
      */
-    public boolean removeAllVisitsToCountry(final Country country) throws IllegalArgumentException {
+    public synchronized boolean removeAllVisitsToCountry(final Country country) throws IllegalArgumentException {
         // Check to make sure the given Country is valid
         throwExceptionIfInvalidCountry(country);
-        // Retrieve all visits to the given Country
-        Iterator<Visit> iterator = this.getVisitsToCountry(country).iterator();
+        // Retrieve a copy of all visits to the given Country, as the set in the index changes while removing
+        List<Visit> countryVisits = new ArrayList<>(this.visitsByCountry.getOrDefault(country, Set.of()));
         // Loop through all visits
-        while (iterator.hasNext()) {
-            // Retrieve visit
-            Visit visit = iterator.next();
-            // Remove retrieved visit
+        for (Visit visit : countryVisits) {
+            // Remove visit
             this.visits.remove(visit);
-            // Remove country before notifying listeners, if no more visits to remove
-            if (!iterator.hasNext()) {
-                // Keep visitedCountries up to date
-                this.visitedCountries.remove(country);
-            }
+            // Keep visitsByCountry up to date, which removes the country along with the last visit
+            this.removeFromCountryIndex(visit);
+            // Keep visitsByDate up to date
+            this.visitsByDate.remove(visit);
             // Notify listeners about removal of visit
             this.notifyListeners(new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit));
         }
         // Return true if success
-        return this.visitedCountries.contains(country);
+        return this.visitsByCountry.containsKey(country);
     }
 
     /**
-     * Remove the given visit from the log.
+     * Remove the given visit from the log. Removing a visit not registered changes nothing,
+     * so listeners aren't notified and the version stays the same.
      * 
      * @param visit The visit-object to remove
      * @return      True if the visit was removed or was not registered
      * 
      * @throws IllegalArgumentException If the given country does not exist in this instance's world
      */
-    public boolean removeVisit(final Visit visit) throws IllegalArgumentException {
+    public synchronized boolean removeVisit(final Visit visit) throws IllegalArgumentException {
         // Check to make sure the given Visit contains a valid Country
         throwExceptionIfInvalidCountry(visit.getCountry());
-        // Remove the given Visit from visits
-        this.visits.remove(visit);
-        // Keep visitedCountries up to date
-        if (this.visits.stream().noneMatch(v -> v.getCountry() == visit.getCountry())) {
-            this.visitedCountries.remove(visit.getCountry());
+        // Remove the given Visit from visits, and stop if it wasn't registered
+        if (!this.visits.remove(visit)) {
+            return true;
         }
+        // Keep visitsByCountry up to date
+        this.removeFromCountryIndex(visit);
+        // Keep visitsByDate up to date
+        this.visitsByDate.remove(visit);
         // Notify listeners about removal
         this.notifyListeners(new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit));
         // Return true if success
@@ -174,7 +212,7 @@ public class CountryCollector implements Observable<Visit> {
         // Check to make sure the given Country is valid
         throwExceptionIfInvalidCountry(country);
         // Retrieve and return
-        return this.visitedCountries.contains(country);
+        return this.visitsByCountry.containsKey(country);
     }
 
     /**
@@ -187,8 +225,26 @@ public class CountryCollector implements Observable<Visit> {
     public Collection<Visit> getVisitsToCountry(final Country country) {
         // Check to make sure the given Country is valid
         throwExceptionIfInvalidCountry(country);
-        // Return visits to the given Country
-        return this.visits.stream().filter(v -> v.getCountry() == country).collect(Collectors.toList());
+        // Return a copy of the visits to the given Country
+        return new ArrayList<>(this.visitsByCountry.getOrDefault(country, Set.of()));
+    }
+
+    /**
+     * Get a list containing all visits overlapping the given date range, ordered by arrival.
+     * Both ends of the range are inclusive, and visits without dates are never included.
+     *
+     * @param from The first date of the range
+     * @param to   The last date of the range
+     * @return A list containing all (current) Visits overlapping the given date range
+     *
+     * @throws IllegalArgumentException If either date is null, or if {@code to} comes before {@code from}
+     */
+    public List<Visit> getVisitsOverlapping(final LocalDate from, final LocalDate to)
+            throws IllegalArgumentException {
+        if (from == null || to == null || to.isBefore(from)) {
+            throw new IllegalArgumentException("Both from and to must be given, and to must not come before from!");
+        }
+        return this.visitsByDate.findOverlapping(from, to);
     }
 
     /**
@@ -206,7 +262,7 @@ public class CountryCollector implements Observable<Visit> {
      * @return Unmodifiable set containing the visited countries
      */
     public Set<Country> getVisitedCountries() {
-        return Collections.unmodifiableSet(this.visitedCountries);
+        return Collections.unmodifiableSet(this.visitsByCountry.keySet());
     }
 
     /**
@@ -224,7 +280,77 @@ public class CountryCollector implements Observable<Visit> {
      * @return Returns number of countries visited
      */
     public int numberOfCountriesVisited() {
-        return this.visitedCountries.size();
+        return this.visitsByCountry.size();
+    }
+
+    /**
+     * Get the version of this CountryCollector, the number of changes made to it.
+     * Starts at 0 unless restored, see {@link #restoreVersion(long)}.
+     *
+     * @return The current version
+     */
+    public long getVersion() {
+        return this.changeLog.getVersion();
+    }
+
+    /**
+     * Set the version of this CountryCollector, e.g. the version it was saved at after loading it,
+     * or a version newer than the CountryCollector it replaces. Changes made before can no longer be retrieved.
+     * Listeners are not notified, as the visits don't change.
+     *
+     * @param version The version to continue from
+     */
+    public synchronized void restoreVersion(final long version) {
+        this.changeLog.reset(version);
+    }
+
+    /**
+     * Get the changes made since the given version, in the order they were made.
+     * Replaying them on a copy of this CountryCollector at that version brings it up to the current version.
+     *
+     * @param version The version to get changes since
+     * @return The changes, empty if the version is current, or {@code null} if the changes are no longer kept,
+     *         or the version is newer than the current one. A full copy is needed then.
+     */
+    public List<ChangeEvent<Visit>> getChangesSince(final long version) {
+        return this.changeLog.getChangesSince(version);
+    }
+
+    /**
+     * Add the given visit to {@link #visitsByCountry}, adding a set of visits to its country if it's the first.
+     * Must only be called while holding the lock of this CountryCollector.
+     *
+     * @param visit The visit to add to the index
+     */
+    private void addToCountryIndex(final Visit visit) {
+        Set<Visit> countryVisits = this.visitsByCountry.get(visit.getCountry());
+        if (countryVisits == null) {
+            // Filled before added, so that the index never holds an empty set
+            Set<Visit> newCountryVisits = ConcurrentHashMap.newKeySet();
+            newCountryVisits.add(visit);
+            this.visitsByCountry.put(visit.getCountry(), newCountryVisits);
+        } else {
+            countryVisits.add(visit);
+        }
+    }
+
+    /**
+     * Remove the given visit from {@link #visitsByCountry}, removing its country instead
+     * if this was the last visit to it.
+     * Must only be called while holding the lock of this CountryCollector.
+     *
+     * @param visit The visit to remove from the index
+     */
+    private void removeFromCountryIndex(final Visit visit) {
+        Set<Visit> countryVisits = this.visitsByCountry.get(visit.getCountry());
+        if (countryVisits == null || !countryVisits.contains(visit)) {
+            return;
+        }
+        if (countryVisits.size() == 1) {
+            this.visitsByCountry.remove(visit.getCountry());
+        } else {
+            countryVisits.remove(visit);
+        }
     }
 
     /**
@@ -277,11 +403,14 @@ public class CountryCollector implements Observable<Visit> {
     }
 
     /**
-     * Notify all registered listeners.
+     * Log a change, and notify all registered listeners of it.
+     * Must only be called while holding the lock of this CountryCollector.
      * 
      * @param event A ChangeEvent to pass to listeners
      */
     private void notifyListeners(final ChangeEvent<Visit> event) {
+        // Log the change first, so that listeners see the new version
+        this.changeLog.add(event);
         // Notify all listeners
         this.listeners.forEach(l -> l.notifyListener(event));
     }
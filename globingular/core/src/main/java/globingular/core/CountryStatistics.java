@@ -4,11 +4,15 @@ import java.text.NumberFormat;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 /**
  * The CountryStatistics class creates statistics about visited countries.
+ * The statistics are kept up to date by listening to changes in the {@link CountryCollector},
+ * so that reading them doesn't require looking through every visited country.
  */
-public class CountryStatistics {
+public class CountryStatistics implements Listener<Visit> {
 
     /**
      * CountryCollector that holds the data needed for statistics.
@@ -21,16 +25,56 @@ public class CountryStatistics {
     private final NumberFormat statisticFormat = NumberFormat.getInstance();
 
     /**
-     * Constructor that initializes with a CountryCollector.
-     * 
+     * The countries visited, ordered by population, with the most populated last.
+     * Kept up to date with {@link #countryCollector}.
+     */
+    private final NavigableSet<Country> visitedCountriesByPopulation = new TreeSet<>(
+            Comparator.comparingLong(Country::getPopulation).thenComparing(Country::getCountryCode));
+
+    /**
+     * Number of countries visited by region. Regions without visited countries are not present.
+     */
+    private final Map<String, Long> visitedCountByRegion = new HashMap<>();
+
+    /**
+     * Number of countries visited by the first letter of their short name.
+     * Letters without visited countries are not present.
+     */
+    private final Map<String, Long> visitedCountByFirstLetter = new HashMap<>();
+
+    /**
+     * Constructor that initializes with a CountryCollector,
+     * and starts listening to it for changes.
+     *
      * @param countryCollector - A CountryCollector that holds visited countries
      */
     public CountryStatistics(final CountryCollector countryCollector) {
         this.countryCollector = countryCollector;
+        for (Country country : countryCollector.getVisitedCountries()) {
+            this.addVisitedCountry(country);
+        }
+        countryCollector.addListener(this);
     }
+
+    /**
+     * {@inheritDoc}
+     * Keeps the statistics up to date when a country is visited for the first time,
+     * or when the last visit to a country is removed.
+     */
+    @Override
+    public void notifyListener(final ChangeEvent<Visit> event) {
+        Country country = event.getElement().getCountry();
+        boolean visited = this.countryCollector.isVisited(country);
+        if (visited && !this.visitedCountriesByPopulation.contains(country)) {
+            this.addVisitedCountry(country);
+        } else if (!visited && this.visitedCountriesByPopulation.contains(country)) {
+            this.removeVisitedCountry(country);
+        }
+    }
+
     /**
      * Gets the number of visited countries from a countryCollector.
-     * 
+     *
      * @return string representing the number of visited countries
      */
     public String getNumberOfVisitedCountries() {
@@ -39,53 +83,40 @@ public class CountryStatistics {
 
     /**
      * Gets the most populated country visited.
-     * 
+     *
      * @return a country name and the population as a string
      */
     public String getMostPopulatedVisitedCountry() {
-        Country country = this.countryCollector
-                .getVisitedCountries()
-                .stream()
-                .max(Comparator.comparingLong(Country::getPopulation))
-                .orElse(null);
-
-        if (country == null) {
+        if (this.visitedCountriesByPopulation.isEmpty()) {
             return "-";
         }
+        Country country = this.visitedCountriesByPopulation.last();
         return country.getShortName() + " (" + statisticFormat.format(country.getPopulation()) + ")";
     }
 
     /**
      * Gets the number of visited countries in a region.
-     * 
+     *
      * @param region a string representation of the region
      * @return the number of countries visited on that region
      */
     public Long getNumberOfCountriesVisitedInRegion(final String region) {
-        return this.countryCollector
-            .getVisitedCountries()
-            .stream()
-            .filter(c -> c.getRegion().equals(region.toUpperCase()))
-            .count();
+        return this.visitedCountByRegion.getOrDefault(region.toUpperCase(), 0L);
     }
 
     /**
      * Gets countries that start with a specific letter.
-     * 
+     *
      * @param letter a character
      * @return the number of countries visited that start with this letter
      */
     public Long getNumberOfCountriesVisitedThatStartWithLetter(final char letter) {
-        return this.countryCollector
-            .getVisitedCountries()
-            .stream()
-            .filter(c -> c.getShortName().startsWith(String.valueOf(letter).toUpperCase()))
-            .count();
+        return this.visitedCountByFirstLetter.getOrDefault(String.valueOf(letter).toUpperCase(), 0L);
     }
 
     /**
      * Map with all the statistics.
-     * 
+     *
      * @return map of strings
      */
     public Map<String, String> getAllStatistics() {
@@ -106,4 +137,32 @@ public class CountryStatistics {
 
         return map;
     }
+
+    /**
+     * Count the given country as visited in every statistic.
+     *
+     * @param country The newly visited country
+     */
+    private void addVisitedCountry(final Country country) {
+        this.visitedCountriesByPopulation.add(country);
+        this.visitedCountByRegion.merge(country.getRegion(), 1L, Long::sum);
+        if (!country.getShortName().isEmpty()) {
+            this.visitedCountByFirstLetter.merge(country.getShortName().substring(0, 1), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Stop counting the given country as visited in every statistic.
+     *
+     * @param country The country no longer visited
+     */
+    private void removeVisitedCountry(final Country country) {
+        this.visitedCountriesByPopulation.remove(country);
+        // Returning null from the remapping function removes the entry
+        this.visitedCountByRegion.computeIfPresent(country.getRegion(), (k, v) -> v == 1L ? null : v - 1L);
+        if (!country.getShortName().isEmpty()) {
+            this.visitedCountByFirstLetter.computeIfPresent(country.getShortName().substring(0, 1),
+                    (k, v) -> v == 1L ? null : v - 1L);
+        }
+    }
 }
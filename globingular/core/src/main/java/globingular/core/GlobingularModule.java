@@ -1,38 +1,135 @@
 package globingular.core;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A GlobingularModule contains appstates saved on a per user basis, using only usernames without any authentication.
+ * <p>A GlobingularModule contains appstates saved on a per user basis,
+ * using only usernames without any authentication.</p>
+ *
+ * <p>The module may be bounded to a maximum number of appstates, in which case it works as a cache,
+ * evicting an appstate not used recently when full. A bounded module should therefore only be used
+ * when every appstate is also saved elsewhere, so that evicted appstates can be loaded again.</p>
+ *
+ * <p>Which appstate to evict is picked by the CLOCK policy, approximating least recently used: appstates are
+ * kept in a ring in the order they were stored, and retrieving one only marks it as used. Evicting moves a hand
+ * around the ring, giving marked appstates a second chance by clearing their mark, and evicting the first
+ * unmarked one. Each eviction therefore costs a constant amount of work on average, however many appstates
+ * are held.</p>
+ *
+ * <p>An appstate is in use while the lock of its user is held, see {@link #getLock(String)}, and is then never
+ * evicted. Changes should be made holding the lock, to the appstate retrieved or loaded while holding it,
+ * so that they're never made to an appstate evicted meanwhile, while a newer one is loaded.</p>
+ *
+ * <p>A module can safely be shared between threads. Retrieving appstates never locks,
+ * while storing appstates in a bounded module briefly locks the ring.</p>
  */
 public class GlobingularModule {
     /**
-     * The main map of the class, holding the username and appstates ({@link CountryCollector}).
+     * Maximum size used for modules that are not bounded.
      */
-    private final Map<String, CountryCollector> countryCollectorsByUsername;
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
 
     /**
-     * Initialize a new GlobingularModule with default parameters.
+     * Number of locks that users are spread over, see {@link #getLock(String)}.
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * The main map of the class, holding the username and appstates ({@link CountryCollector}),
+     * along with when they were last used.
+     */
+    private final Map<String, CacheEntry> countryCollectorsByUsername = new ConcurrentHashMap<>();
+
+    /**
+     * The maximum number of appstates held at once.
+     */
+    private final int maximumSize;
+
+    /**
+     * The ring of appstates for the CLOCK policy, with the hand at its head, only used by bounded modules.
+     * May also hold entries already removed or replaced, which are dropped when the hand reaches them.
+     * Only accessed while holding {@link #evictionLock}.
+     */
+    private final ArrayDeque<CacheEntry> clock = new ArrayDeque<>();
+
+    /**
+     * Lock held while accessing {@link #clock}, so that concurrent insertions don't evict more appstates
+     * than needed.
+     */
+    private final Object evictionLock = new Object();
+
+    /**
+     * Number of lookups that found an appstate.
+     */
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * Number of lookups that didn't find an appstate.
+     */
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * Number of appstates evicted to keep within {@link #maximumSize}.
+     */
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Locks held while using the appstate of a user, see {@link #getLock(String)}. Users share locks,
+     * to keep their number bounded, while most users don't wait for each other.
+     */
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * Initialize a new GlobingularModule with default parameters, without any bound on its size.
      */
     public GlobingularModule() {
-        this.countryCollectorsByUsername = new HashMap<>();
+        this(UNBOUNDED);
+    }
+
+    /**
+     * Initialize a new GlobingularModule holding at most {@code maximumSize} appstates,
+     * evicting an appstate not used recently when full.
+     *
+     * @param maximumSize The maximum number of appstates to hold, or {@link #UNBOUNDED}
+     *
+     * @throws IllegalArgumentException If maximumSize isn't positive
+     */
+    public GlobingularModule(final int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
     }
 
     /**
      * Retrieve a {@link CountryCollector} stored for the provided username.
      * Returns {@code null} if there is no CountryCollector stored for the provided username.
-     * 
+     *
      * @param username The username to retrieve a countryCollector for
      * @return The countryCollector for the provided username. Returns {@code null} if no such countryCollector exists
      */
     public CountryCollector getCountryCollector(final String username) {
-        return this.countryCollectorsByUsername.get(username.toLowerCase());
+        CacheEntry entry = this.countryCollectorsByUsername.get(username.toLowerCase());
+        if (entry == null) {
+            this.missCount.increment();
+            return null;
+        }
+        this.hitCount.increment();
+        entry.referenced = true;
+        return entry.countryCollector;
     }
 
     /**
      * Store a {@link CountryCollector} to a username.
-     * 
+     *
      * @param username The username to save the countryCollector as
      * @param countryCollector The countryCollector to save
      * present countryCollector for the provided username
@@ -40,10 +137,35 @@ public class GlobingularModule {
      */
     public boolean putCountryCollector(final String username,
             final CountryCollector countryCollector) {
-        this.countryCollectorsByUsername.put(username.toLowerCase(), countryCollector);
+        String key = username.toLowerCase();
+        CacheEntry entry = new CacheEntry(key, countryCollector);
+        this.countryCollectorsByUsername.put(key, entry);
+        this.addAndEvictIfFull(entry);
         return true;
     }
 
+    /**
+     * Store a {@link CountryCollector} to a username, unless one is already stored for it.
+     * Useful for storing an appstate loaded from elsewhere, without overwriting a newer one
+     * stored while it was loading.
+     *
+     * @param username The username to save the countryCollector as
+     * @param countryCollector The countryCollector to save
+     * @return The countryCollector now stored for the username, either the one given or the one already stored
+     */
+    public CountryCollector putCountryCollectorIfAbsent(final String username,
+            final CountryCollector countryCollector) {
+        String key = username.toLowerCase();
+        CacheEntry entry = new CacheEntry(key, countryCollector);
+        CacheEntry present = this.countryCollectorsByUsername.putIfAbsent(key, entry);
+        if (present != null) {
+            present.referenced = true;
+            return present.countryCollector;
+        }
+        this.addAndEvictIfFull(entry);
+        return countryCollector;
+    }
+
     /**
      * Remove {@link CountryCollector} stored with given username.
      *
@@ -57,7 +179,8 @@ public class GlobingularModule {
 
     /**
      * Check if the provided username is available.
-     * 
+     * Note that for a bounded module, this only tells whether an appstate is currently held.
+     *
      * @param username The username to check if is available
      * @return True if this username is not in use
      */
@@ -65,9 +188,67 @@ public class GlobingularModule {
         return !this.countryCollectorsByUsername.containsKey(username.toLowerCase());
     }
 
+    /**
+     * Get the lock to hold while using the appstate of the given user, e.g. while changing and saving it.
+     * The appstate should be retrieved, or loaded and stored, after taking the lock, so that it's the one
+     * currently stored. While the lock is held the appstate isn't evicted, so that no other appstate is loaded
+     * for the user and changed separately. The lock is reentrant, and shared with some other users.
+     *
+     * @param username The username to get the lock for
+     * @return The lock
+     */
+    public Lock getLock(final String username) {
+        return this.lockFor(username.toLowerCase());
+    }
+
+    /**
+     * Get the maximum number of appstates held at once.
+     *
+     * @return The maximum size, or {@link #UNBOUNDED}
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * Get the number of appstates currently held.
+     *
+     * @return The number of appstates
+     */
+    public int size() {
+        return this.countryCollectorsByUsername.size();
+    }
+
+    /**
+     * Get the number of calls to {@link #getCountryCollector(String)} that found an appstate.
+     *
+     * @return The number of hits
+     */
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    /**
+     * Get the number of calls to {@link #getCountryCollector(String)} that didn't find an appstate.
+     *
+     * @return The number of misses
+     */
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    /**
+     * Get the number of appstates evicted to keep within the maximum size.
+     *
+     * @return The number of evictions
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
     /**
      * Check if the provided username is valid.
-     * 
+     *
      * @param username The username to check validity of
      * @return True if this username is valid (lowercase alphanumeric)
      */
@@ -77,4 +258,95 @@ public class GlobingularModule {
         }
         return username.matches("[a-z0-9]+");
     }
+
+    /**
+     * Add a newly stored appstate to the {@link #clock} of a bounded module, and evict appstates until the module
+     * is within its maximum size. Entries already removed or replaced are dropped from the ring once they make up
+     * half of it, so that it doesn't grow while the module isn't full. Appstates in use are passed over, and if
+     * every appstate is, the module is left above its maximum size until the next one is stored.
+     *
+     * @param entry The entry stored
+     */
+    private void addAndEvictIfFull(final CacheEntry entry) {
+        if (this.maximumSize == UNBOUNDED) {
+            return;
+        }
+        synchronized (this.evictionLock) {
+            this.clock.addLast(entry);
+            if (this.clock.size() > 2 * this.countryCollectorsByUsername.size()) {
+                this.clock.removeIf(stale -> !this.isStored(stale));
+            }
+            int passedInUse = 0;
+            while (this.countryCollectorsByUsername.size() > this.maximumSize) {
+                CacheEntry hand = this.clock.pollFirst();
+                if (hand == null) {
+                    // Every entry in the map is being added to the ring by another thread, which will evict
+                    return;
+                }
+                if (this.lockFor(hand.username).isLocked()) {
+                    // In use, so kept, but without spinning while every entry is in use
+                    this.clock.addLast(hand);
+                    if (++passedInUse >= this.clock.size()) {
+                        return;
+                    }
+                } else if (hand.referenced) {
+                    // Used since the hand last passed, so given a second chance
+                    hand.referenced = false;
+                    this.clock.addLast(hand);
+                } else if (this.countryCollectorsByUsername.remove(hand.username, hand)) {
+                    // Only counted if not already removed or replaced by another thread
+                    this.evictionCount.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the lock of the given user, see {@link #getLock(String)}.
+     *
+     * @param username The username, in lowercase
+     * @return The lock, shared with some other users
+     */
+    private ReentrantLock lockFor(final String username) {
+        return this.locks[Math.floorMod(username.hashCode(), this.locks.length)];
+    }
+
+    /**
+     * Check whether the given entry is still the one stored for its username.
+     *
+     * @param entry The entry to check
+     * @return True if stored, false if removed or replaced
+     */
+    private boolean isStored(final CacheEntry entry) {
+        return this.countryCollectorsByUsername.get(entry.username) == entry;
+    }
+
+    /**
+     * A stored appstate, along with whether it was used since the {@link #clock}'s hand last passed it.
+     */
+    private static final class CacheEntry {
+        /**
+         * The username the appstate is stored for, in lowercase.
+         */
+        private final String username;
+        /**
+         * The stored appstate.
+         */
+        private final CountryCollector countryCollector;
+        /**
+         * Whether the appstate was retrieved since stored, or since the {@link #clock}'s hand last passed it.
+         */
+        private volatile boolean referenced;
+
+        /**
+         * Create a new entry for the given appstate, not yet marked as used.
+         *
+         * @param username         The username the appstate is stored for, in lowercase
+         * @param countryCollector The appstate to store
+         */
+        private CacheEntry(final String username, final CountryCollector countryCollector) {
+            this.username = username;
+            this.countryCollector = countryCollector;
+        }
+    }
 }
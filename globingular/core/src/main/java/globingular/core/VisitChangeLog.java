@@ -0,0 +1,96 @@
+package globingular.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>Version and bounded log of the changes made to a {@link CountryCollector}.</p>
+ *
+ * <p>Every change increases the version by exactly one, so the changes since a version are the last
+ * {@code getVersion() - version} changes logged. Only the latest {@link #capacity} changes are kept,
+ * so memory stays bounded however many changes are made, and older versions can no longer be caught up from.</p>
+ *
+ * <p>Safe to use from several threads at once. The version and the changes are always read and changed together.</p>
+ */
+final class VisitChangeLog {
+
+    /**
+     * Maximum number of changes kept.
+     */
+    private final int capacity;
+    /**
+     * The latest changes, oldest first.
+     */
+    private final Deque<ChangeEvent<Visit>> changes = new ArrayDeque<>();
+    /**
+     * The number of changes made, including those no longer kept.
+     */
+    private long version;
+
+    /**
+     * Initialize an empty change log at version 0.
+     *
+     * @param capacity Maximum number of changes kept
+     */
+    VisitChangeLog(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the current version, the number of changes made.
+     *
+     * @return The current version
+     */
+    synchronized long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Log the given change, increasing the version by one, and forgetting the oldest change if full.
+     *
+     * @param event The change made
+     */
+    synchronized void add(final ChangeEvent<Visit> event) {
+        this.version++;
+        this.changes.addLast(event);
+        if (this.changes.size() > this.capacity) {
+            this.changes.removeFirst();
+        }
+    }
+
+    /**
+     * Set the version, forgetting every change logged, e.g. when restoring the version a collector was saved at.
+     *
+     * @param newVersion The version to continue from
+     */
+    synchronized void reset(final long newVersion) {
+        this.version = newVersion;
+        this.changes.clear();
+    }
+
+    /**
+     * Get the changes made since the given version, oldest first.
+     *
+     * @param since The version to get changes since
+     * @return The changes, empty if the version is current,
+     *         or {@code null} if some of them are no longer kept, or the version is newer than the current one
+     */
+    synchronized List<ChangeEvent<Visit>> getChangesSince(final long since) {
+        long missing = this.version - since;
+        if (missing < 0 || missing > this.changes.size()) {
+            return null;
+        }
+        List<ChangeEvent<Visit>> result = new ArrayList<>((int) missing);
+        // Walk back from the newest change, as only the last ones are wanted
+        Iterator<ChangeEvent<Visit>> newestFirst = this.changes.descendingIterator();
+        for (long i = 0; i < missing; i++) {
+            result.add(newestFirst.next());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
@@ -0,0 +1,286 @@
+package globingular.core;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>Interval tree indexing dated {@link Visit}s by the date range they span.</p>
+ *
+ * <p>Implemented as a self-balancing (AVL) binary search tree ordered by arrival,
+ * where every node is augmented with the latest departure found in its subtree.
+ * This allows finding every visit overlapping a date range in O(log n + k),
+ * where k is the number of visits found.
+ * Visits without dates are not indexed, as they don't span any date range.</p>
+ *
+ * <p>Nodes are immutable, and changes copy the O(log n) nodes on the path to the change instead,
+ * before replacing the root. Reading therefore never needs to lock, as every search
+ * works on the tree as it was when the search started. Changes must not be made by several threads at once.</p>
+ */
+final class VisitIntervalTree {
+
+    /**
+     * Total ordering of the indexed visits, by arrival first.
+     * Departure and country code separate different visits with the same arrival.
+     */
+    private static final Comparator<Visit> VISIT_ORDER = Comparator.comparing(Visit::getArrival)
+            .thenComparing(Visit::getDeparture)
+            .thenComparing(v -> v.getCountry().getCountryCode());
+
+    /**
+     * The root node of the tree, {@code null} if the tree is empty.
+     */
+    private volatile Node root;
+
+    /**
+     * Add the given visit to the index. Visits without dates are ignored.
+     *
+     * @param visit The visit to add
+     */
+    void add(final Visit visit) {
+        if (visit.getArrival() != null) {
+            this.root = insert(this.root, visit);
+        }
+    }
+
+    /**
+     * Remove the given visit from the index, if present.
+     *
+     * @param visit The visit to remove
+     */
+    void remove(final Visit visit) {
+        if (visit.getArrival() != null) {
+            this.root = delete(this.root, visit);
+        }
+    }
+
+    /**
+     * Get the number of visits in the index.
+     *
+     * @return The number of dated visits indexed
+     */
+    int size() {
+        Node currentRoot = this.root;
+        return currentRoot == null ? 0 : currentRoot.size;
+    }
+
+    /**
+     * Find every indexed visit overlapping the given date range, both ends inclusive.
+     *
+     * @param from The first date of the range
+     * @param to   The last date of the range
+     * @return     The overlapping visits, ordered by arrival
+     */
+    List<Visit> findOverlapping(final LocalDate from, final LocalDate to) {
+        List<Visit> result = new ArrayList<>();
+        // Search the tree as it is now, unaffected by later changes
+        collectOverlapping(this.root, from, to, result);
+        return result;
+    }
+
+    /**
+     * Recursively collect all visits in the given subtree overlapping the date range, in order.
+     *
+     * @param node   The root of the subtree to search
+     * @param from   The first date of the range
+     * @param to     The last date of the range
+     * @param result The list to add overlapping visits to
+     */
+    private static void collectOverlapping(final Node node, final LocalDate from, final LocalDate to,
+                                           final List<Visit> result) {
+        // No visit in this subtree departs on or after the start of the range
+        if (node == null || node.maxDeparture.isBefore(from)) {
+            return;
+        }
+        collectOverlapping(node.left, from, to, result);
+        // This node and its entire right subtree arrive after the end of the range
+        if (node.visit.getArrival().isAfter(to)) {
+            return;
+        }
+        if (!node.visit.getDeparture().isBefore(from)) {
+            result.add(node.visit);
+        }
+        collectOverlapping(node.right, from, to, result);
+    }
+
+    /**
+     * Insert the visit into the given subtree, and return the new, rebalanced subtree.
+     * Returns the given subtree itself if the visit is already indexed.
+     *
+     * @param node  The root of the subtree
+     * @param visit The visit to insert
+     * @return      The root of the new subtree
+     */
+    private static Node insert(final Node node, final Visit visit) {
+        if (node == null) {
+            return new Node(visit, null, null);
+        }
+        int comparison = VISIT_ORDER.compare(visit, node.visit);
+        if (comparison < 0) {
+            Node left = insert(node.left, visit);
+            return left == node.left ? node : rebalance(new Node(node.visit, left, node.right));
+        } else if (comparison > 0) {
+            Node right = insert(node.right, visit);
+            return right == node.right ? node : rebalance(new Node(node.visit, node.left, right));
+        }
+        // Already indexed
+        return node;
+    }
+
+    /**
+     * Delete the visit from the given subtree, and return the new, rebalanced subtree.
+     * Returns the given subtree itself if the visit is not indexed.
+     *
+     * @param node  The root of the subtree
+     * @param visit The visit to delete
+     * @return      The root of the new subtree
+     */
+    private static Node delete(final Node node, final Visit visit) {
+        if (node == null) {
+            return null;
+        }
+        int comparison = VISIT_ORDER.compare(visit, node.visit);
+        if (comparison < 0) {
+            Node left = delete(node.left, visit);
+            return left == node.left ? node : rebalance(new Node(node.visit, left, node.right));
+        } else if (comparison > 0) {
+            Node right = delete(node.right, visit);
+            return right == node.right ? node : rebalance(new Node(node.visit, node.left, right));
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        // Replace this node with the first node of its right subtree
+        Node successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return rebalance(new Node(successor.visit, node.left, removeFirst(node.right)));
+    }
+
+    /**
+     * Remove the first node of the given subtree, and return the new, rebalanced subtree.
+     *
+     * @param node The root of the subtree
+     * @return     The root of the new subtree
+     */
+    private static Node removeFirst(final Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return rebalance(new Node(node.visit, removeFirst(node.left), node.right));
+    }
+
+    /**
+     * Rotate the given subtree if it is unbalanced.
+     *
+     * @param node The root of the subtree
+     * @return     The root of the balanced subtree
+     */
+    private static Node rebalance(final Node node) {
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                return rotateRight(new Node(node.visit, rotateLeft(node.left), node.right));
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                return rotateLeft(new Node(node.visit, node.left, rotateRight(node.right)));
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    /**
+     * Rotate the given subtree to the left.
+     *
+     * @param node The root of the subtree
+     * @return     The root of the rotated subtree
+     */
+    private static Node rotateLeft(final Node node) {
+        Node right = node.right;
+        return new Node(right.visit, new Node(node.visit, node.left, right.left), right.right);
+    }
+
+    /**
+     * Rotate the given subtree to the right.
+     *
+     * @param node The root of the subtree
+     * @return     The root of the rotated subtree
+     */
+    private static Node rotateRight(final Node node) {
+        Node left = node.left;
+        return new Node(left.visit, left.left, new Node(node.visit, left.right, node.right));
+    }
+
+    /**
+     * Get the height of the given subtree.
+     *
+     * @param node The root of the subtree, may be {@code null}
+     * @return     The height of the subtree, 0 if empty
+     */
+    private static int height(final Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * A single, immutable node in the tree, holding one visit.
+     */
+    private static final class Node {
+        /**
+         * The visit held by this node.
+         */
+        private final Visit visit;
+        /**
+         * The left subtree, holding visits ordered before this one.
+         */
+        private final Node left;
+        /**
+         * The right subtree, holding visits ordered after this one.
+         */
+        private final Node right;
+        /**
+         * The height of the subtree rooted in this node.
+         */
+        private final int height;
+        /**
+         * The number of visits in the subtree rooted in this node.
+         */
+        private final int size;
+        /**
+         * The latest departure of any visit in the subtree rooted in this node.
+         */
+        private final LocalDate maxDeparture;
+
+        /**
+         * Create a new node holding the given visit and subtrees,
+         * computing the height, size and latest departure from them.
+         *
+         * @param visit The visit to hold
+         * @param left  The left subtree, may be {@code null}
+         * @param right The right subtree, may be {@code null}
+         */
+        private Node(final Visit visit, final Node left, final Node right) {
+            this.visit = visit;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+            this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+            LocalDate max = visit.getDeparture();
+            if (left != null && left.maxDeparture.isAfter(max)) {
+                max = left.maxDeparture;
+            }
+            if (right != null && right.maxDeparture.isAfter(max)) {
+                max = right.maxDeparture;
+            }
+            this.maxDeparture = max;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package globingular.core;
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -28,6 +29,15 @@ public class World {
      * countries-set.
      */
     private final HashMap<String, Country> countriesByName = new HashMap<>();
+    /**
+     * Number of existing countries by region. Regions without countries are not present.
+     * Precomputed as the World is immutable.
+     */
+    private final Map<String, Integer> numberOfCountriesByRegion = new HashMap<>();
+    /**
+     * Sum of the population of every existing country. Precomputed as the World is immutable.
+     */
+    private final long totalPopulation;
 
     /**
      * Get an existing Country (registered to this instance) by its countryCode.
@@ -58,6 +68,25 @@ public class World {
         return countries;
     }
 
+    /**
+     * Get the number of existing countries in the given region.
+     *
+     * @param region The region to count countries in, e.g. 'OC' for Oceania
+     * @return The number of countries in the region
+     */
+    public int getNumberOfCountriesInRegion(final String region) {
+        return numberOfCountriesByRegion.getOrDefault(region, 0);
+    }
+
+    /**
+     * Get the sum of the population of every existing country.
+     *
+     * @return The total population of this World
+     */
+    public long getTotalPopulation() {
+        return totalPopulation;
+    }
+
     /**
      * Get name of the current world.
      * 
@@ -92,6 +121,7 @@ public class World {
      */
     public World(final String worldName, final Country... countries) {
         this.worldName = worldName;
+        long population = 0;
         for (final Country country : countries) {
             final Country duplicateCode = getCountryFromCode(country.getCountryCode());
             final Country duplicateName = getCountryFromName(country.getShortName());
@@ -107,8 +137,11 @@ public class World {
             }
             countriesByCode.put(country.getCountryCode().toUpperCase(), country);
             countriesByName.put(country.getShortName().toLowerCase(), country);
+            numberOfCountriesByRegion.merge(country.getRegion(), 1, Integer::sum);
+            population += country.getPopulation();
         }
         this.countries = Set.of(countries);
+        this.totalPopulation = population;
     }
 
     /**
@@ -63,5 +63,23 @@ public class BadgesTest {
         assertEquals((double)9890400/9890430,badges.getWorldPopulationBadge(), 0.00001);
     }
 
+    @Test
+    public void testBadgesAreUpdatedOnRemoval() {
+        collector.removeAllVisitsToCountry(country0);
+        collector.removeAllVisitsToCountry(country1);
+        collector.removeAllVisitsToCountry(country3);
+        collector.registerVisit(country0);
+        collector.registerVisit(country3);
+        Badges badges = new Badges(collector);
+        assertEquals(0.5, badges.getContinentBadge("AN"), 0.001);
+        assertEquals(1.0, badges.getWorldPopulationBadge(), 0.00001);
+
+        collector.removeAllVisitsToCountry(country3);
+        assertEquals((double) 30 / 9890430, badges.getWorldPopulationBadge(), 0.00001);
+        assertEquals(0.0, badges.getContinentBadge("AS"), 0.001);
 
+        collector.removeAllVisitsToCountry(country0);
+        assertEquals(0.0, badges.getContinentBadge("AN"), 0.001);
+        assertEquals(0.0, badges.getWorldPopulationBadge(), 0.00001);
+    }
 }
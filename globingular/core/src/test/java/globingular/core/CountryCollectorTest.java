@@ -10,9 +10,18 @@ import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -86,6 +95,26 @@ public class CountryCollectorTest {
         assertFalse(cc.isVisited(country3));
     }
 
+    @Test
+    public void testUnchangedVisitsKeepVersion() {
+        CountryCollector cc = new CountryCollector(world4);
+        @SuppressWarnings("unchecked")
+        Listener<Visit> listener = (Listener<Visit>) mock(Listener.class);
+        cc.registerVisit(visit2);
+        cc.addListener(listener);
+        long version = cc.getVersion();
+
+        // Registering a visit again, or removing one not registered, changes nothing
+        assertTrue(cc.registerVisit(visit2));
+        assertTrue(cc.removeVisit(visit3));
+        assertEquals(version, cc.getVersion());
+        assertTrue(cc.getChangesSince(version).isEmpty());
+        verifyNoInteractions(listener);
+
+        cc.removeVisit(visit2);
+        assertEquals(version + 1, cc.getVersion());
+    }
+
     @Test
     public void testInitiallyEmpty() {
         CountryCollector cc = new CountryCollector(world4);
@@ -145,6 +174,34 @@ public class CountryCollectorTest {
         assertFalse(cc.isVisited(country2));
     }
 
+    @Test
+    public void testRemoveOneOfMultipleVisitsToCountry() {
+        CountryCollector cc = new CountryCollector(world2);
+        cc.registerVisit(visit0);
+        cc.registerVisit(visit0_2);
+        cc.removeVisit(visit0);
+        assertTrue(cc.isVisited(country0));
+        assertEquals(1, cc.numberOfCountriesVisited());
+        assertEquals(List.of(visit0_2), cc.getVisitsToCountry(country0));
+        cc.removeVisit(visit0_2);
+        assertFalse(cc.isVisited(country0));
+        assertTrue(cc.getVisitedCountries().isEmpty());
+        assertTrue(cc.getVisitsToCountry(country0).isEmpty());
+    }
+
+    @Test
+    public void testRemoveAllOfMultipleVisitsToCountry() {
+        CountryCollector cc = new CountryCollector(world2);
+        cc.registerVisit(visit0);
+        cc.registerVisit(visit0_2);
+        cc.registerVisit(visit1);
+        cc.removeAllVisitsToCountry(country0);
+        assertFalse(cc.isVisited(country0));
+        assertTrue(cc.isVisited(country1));
+        assertEquals(Set.of(visit1), cc.getVisits());
+        assertEquals(Set.of(country1), cc.getVisitedCountries());
+    }
+
     @Test
     public void testRemoveAllVisitsToCountry() {
         CountryCollector cc = new CountryCollector(world4);
@@ -219,6 +276,27 @@ public class CountryCollectorTest {
         assertEquals(arr2, arr1, "The returned collection doesn't contain all the visits to the given country");
     }
 
+    @Test
+    public void testGetVisitsOverlapping() {
+        CountryCollector cc = new CountryCollector(world2);
+        cc.registerVisit(visit0_2);
+        cc.registerVisit(country1);
+        assertEquals(List.of(visit0_2), cc.getVisitsOverlapping(LocalDate.of(2020, 1, 31), LocalDate.of(2020, 2, 1)));
+        assertTrue(cc.getVisitsOverlapping(LocalDate.of(2020, 2, 1), LocalDate.of(2020, 2, 1)).isEmpty());
+        cc.removeAllVisitsToCountry(country0);
+        assertTrue(cc.getVisitsOverlapping(LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 1)).isEmpty());
+    }
+
+    @Test
+    public void testExceptionOnGetVisitsOverlappingInvalidRange() {
+        CountryCollector cc = new CountryCollector(world2);
+        try {
+            cc.getVisitsOverlapping(LocalDate.of(2020, 2, 1), LocalDate.of(2020, 1, 1));
+            fail("No exception thrown for date range ending before it starts");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
     @Test
     public void testGetVisitsIsUnmodifiable() {
         CountryCollector cc = new CountryCollector(world1);
@@ -267,4 +345,68 @@ public class CountryCollectorTest {
         cc.removeVisit(visit);
         verify(listener).notifyListener(eq(new ChangeEvent<>(ChangeEvent.Status.ADDED, visit)));
     }
+
+    @Test
+    public void testConcurrentChangesAndReads() throws Exception {
+        CountryCollector cc = new CountryCollector(world4);
+        List<Country> countries = List.of(country0, country1, country2, country3, country4);
+        AtomicInteger events = new AtomicInteger();
+        cc.addListener(event -> events.incrementAndGet());
+
+        int writers = 8;
+        int visitsPerWriter = 500;
+        LocalDate start = LocalDate.of(2000, 1, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        try {
+            // Readers, looking for exceptions or inconsistent results while the writers are running
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        for (Visit visit : cc.getVisitsOverlapping(start, start.plusYears(100))) {
+                            assertTrue(visit.getArrival() != null);
+                        }
+                        for (Country country : cc.getVisitedCountries()) {
+                            cc.getVisitsToCountry(country);
+                        }
+                        cc.getVisits().forEach(Visit::getCountry);
+                    }
+                    return null;
+                }));
+            }
+            // Writers, each registering its own visits, and removing every other one again
+            List<Future<?>> writerResults = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                writerResults.add(executor.submit(() -> {
+                    for (int i = 0; i < visitsPerWriter; i++) {
+                        LocalDate arrival = start.plusDays(writer * visitsPerWriter + i);
+                        Visit visit = new Visit(countries.get(i % countries.size()), arrival, arrival.plusDays(1));
+                        cc.registerVisit(visit);
+                        if (i % 2 == 1) {
+                            cc.removeVisit(visit);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : writerResults) {
+                result.get();
+            }
+            writing.set(false);
+            for (Future<?> result : readers) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        int expected = writers * visitsPerWriter / 2;
+        assertEquals(expected, cc.numberOfVisits());
+        assertEquals(expected, cc.getVisitsOverlapping(start, start.plusYears(100)).size());
+        assertEquals(expected, countries.stream().mapToInt(c -> cc.getVisitsToCountry(c).size()).sum());
+        assertEquals(countries.size(), cc.numberOfCountriesVisited());
+        assertEquals(writers * visitsPerWriter * 3 / 2, events.get());
+    }
 }
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.text.NumberFormat;
+import java.time.LocalDate;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -67,4 +68,37 @@ public class CountryStatisticsTest {
         assertEquals(1, countryStatistics.getNumberOfCountriesVisitedThatStartWithLetter('A'));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testStatisticsAreUpdatedOnRemoval() {
+        collector.removeAllVisitsToCountry(country0);
+        collector.removeAllVisitsToCountry(country1);
+        CountryStatistics countryStatistics = new CountryStatistics(collector);
+        collector.registerVisit(country0);
+        collector.registerVisit(country1);
+        collector.registerVisit(new Visit(country1, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2)));
+
+        // Removing one of two visits to a country keeps it visited
+        collector.removeVisit(new Visit(country1, null, null));
+        assertEquals(1, countryStatistics.getNumberOfCountriesVisitedInRegion("SA"));
+
+        collector.removeAllVisitsToCountry(country1);
+        assertEquals(0, countryStatistics.getNumberOfCountriesVisitedInRegion("SA"));
+        NumberFormat statisticFormat = NumberFormat.getInstance();
+        assertEquals("Andorra (" + statisticFormat.format(77543)+")", countryStatistics.getMostPopulatedVisitedCountry());
+
+        collector.removeAllVisitsToCountry(country0);
+        assertEquals(0, countryStatistics.getNumberOfCountriesVisitedThatStartWithLetter('a'));
+        assertEquals("-", countryStatistics.getMostPopulatedVisitedCountry());
+    }
+
+    @Test
+    public void testStatisticsIncludeVisitsRegisteredBeforeConstruction() {
+        collector.removeAllVisitsToCountry(country0);
+        collector.removeAllVisitsToCountry(country1);
+        collector.registerVisit(country0);
+        CountryStatistics countryStatistics = new CountryStatistics(collector);
+        assertEquals(1, countryStatistics.getNumberOfCountriesVisitedInRegion("eu"));
+        assertEquals(1, countryStatistics.getNumberOfCountriesVisitedThatStartWithLetter('A'));
+    }
+}
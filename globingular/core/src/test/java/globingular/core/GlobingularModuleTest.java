@@ -0,0 +1,145 @@
+package globingular.core;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Class that tests {@link GlobingularModule}.
+ */
+public class GlobingularModuleTest {
+    static CountryCollector cc0, cc1, cc2;
+
+    @BeforeAll
+    public static void start() {
+        World world = new World("testWorld", new Country("NO", "Norway"));
+        cc0 = new CountryCollector(world);
+        cc1 = new CountryCollector(world);
+        cc2 = new CountryCollector(world);
+    }
+
+    @Test
+    public void testPutAndGetIgnoresCase() {
+        GlobingularModule module = new GlobingularModule();
+        assertTrue(module.isUsernameAvailable("user"));
+        module.putCountryCollector("User", cc0);
+        assertFalse(module.isUsernameAvailable("user"));
+        assertSame(cc0, module.getCountryCollector("USER"));
+        module.removeCountryCollector("user");
+        assertNull(module.getCountryCollector("user"));
+        assertEquals(GlobingularModule.UNBOUNDED, module.getMaximumSize());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        GlobingularModule module = new GlobingularModule(2);
+        module.putCountryCollector("user0", cc0);
+        module.putCountryCollector("user1", cc1);
+        // Use user0, so that user1 is the least recently used
+        assertSame(cc0, module.getCountryCollector("user0"));
+        module.putCountryCollector("user2", cc2);
+
+        assertEquals(2, module.size());
+        assertEquals(1, module.getEvictionCount());
+        assertTrue(module.isUsernameAvailable("user1"));
+        assertSame(cc0, module.getCountryCollector("user0"));
+        assertSame(cc2, module.getCountryCollector("user2"));
+        assertNull(module.getCountryCollector("user1"));
+        assertEquals(3, module.getHitCount());
+        assertEquals(1, module.getMissCount());
+    }
+
+    @Test
+    public void testPutIfAbsentKeepsPresent() {
+        GlobingularModule module = new GlobingularModule(2);
+        assertSame(cc0, module.putCountryCollectorIfAbsent("user", cc0));
+        assertSame(cc0, module.putCountryCollectorIfAbsent("user", cc1));
+        assertSame(cc0, module.getCountryCollector("user"));
+    }
+
+    @Test
+    public void testUserInUseIsNotEvicted() {
+        GlobingularModule module = new GlobingularModule(1);
+        module.putCountryCollector("user0", cc0);
+        module.getLock("user0").lock();
+        module.getLock("user1").lock();
+        try {
+            // The user not in use is evicted instead, even though just stored
+            module.putCountryCollector("user2", cc1);
+            assertSame(cc0, module.getCountryCollector("user0"));
+            assertEquals(1, module.getEvictionCount());
+            // Left above its maximum size, as every user is in use
+            module.putCountryCollector("user1", cc1);
+            assertEquals(2, module.size());
+        } finally {
+            module.getLock("user1").unlock();
+            module.getLock("user0").unlock();
+        }
+        module.putCountryCollector("user2", cc1);
+        assertEquals(1, module.size());
+    }
+
+    @Test
+    public void testConstructorRejectsNonPositiveSize() {
+        assertThrows(IllegalArgumentException.class, () -> new GlobingularModule(0));
+    }
+
+    @Test
+    public void testConcurrentUsers() throws Exception {
+        GlobingularModule module = new GlobingularModule(50);
+        World world = cc0.getWorld();
+        Country country = world.getCountryFromCode("NO");
+        int threads = 8;
+        int operations = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // The shared user is kept in use by this thread while the others change it
+        module.putCountryCollector("shared", new CountryCollector(world));
+        module.getLock("shared").lock();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < operations; i++) {
+                        // Many users, causing evictions
+                        String username = "user" + ((thread * operations + i) % 200);
+                        CountryCollector cc = module.getCountryCollector(username);
+                        if (cc == null) {
+                            cc = module.putCountryCollectorIfAbsent(username, new CountryCollector(world));
+                        }
+                        // One user, shared between every thread
+                        CountryCollector shared = module.getCountryCollector("shared");
+                        shared.registerVisit(country, LocalDate.of(2000, 1, 1).plusDays(i),
+                                LocalDate.of(2000, 1, 1).plusDays(i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            module.getLock("shared").unlock();
+            executor.shutdown();
+        }
+
+        assertTrue(module.size() <= 50);
+        assertEquals(2L * threads * operations, module.getHitCount() + module.getMissCount());
+        assertTrue(module.getEvictionCount() > 0);
+        // The shared user is in use all the time, so it should never have been evicted
+        assertEquals(operations, module.getCountryCollector("shared").numberOfVisits());
+    }
+}
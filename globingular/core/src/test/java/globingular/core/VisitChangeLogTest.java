@@ -0,0 +1,67 @@
+package globingular.core;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Class that tests {@link VisitChangeLog}, and the versions of {@link CountryCollector}.
+ */
+public class VisitChangeLogTest {
+
+    @Test
+    public void testChangesSince() {
+        Visit visit = new Visit(new Country("NO", "Norway"), null, null);
+        VisitChangeLog changeLog = new VisitChangeLog(2);
+        assertEquals(0, changeLog.getVersion());
+        assertTrue(changeLog.getChangesSince(0).isEmpty());
+
+        ChangeEvent<Visit> added = new ChangeEvent<>(ChangeEvent.Status.ADDED, visit);
+        ChangeEvent<Visit> removed = new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit);
+        changeLog.add(added);
+        changeLog.add(removed);
+        changeLog.add(added);
+        assertEquals(3, changeLog.getVersion());
+        assertEquals(List.of(removed, added), changeLog.getChangesSince(1));
+        assertEquals(List.of(added), changeLog.getChangesSince(2));
+        // The first change is no longer kept, and version 4 doesn't exist yet
+        assertNull(changeLog.getChangesSince(0));
+        assertNull(changeLog.getChangesSince(4));
+
+        changeLog.reset(10);
+        assertEquals(10, changeLog.getVersion());
+        assertTrue(changeLog.getChangesSince(10).isEmpty());
+        assertNull(changeLog.getChangesSince(9));
+    }
+
+    @Test
+    public void testCountryCollectorVersion() {
+        Country country = new Country("NO", "Norway");
+        CountryCollector countryCollector = new CountryCollector(new World("testWorld", country));
+        Visit visit = new Visit(country, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+
+        countryCollector.registerVisit(visit);
+        countryCollector.removeVisit(visit);
+        assertEquals(2, countryCollector.getVersion());
+        assertEquals(List.of(new ChangeEvent<>(ChangeEvent.Status.ADDED, visit),
+                new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit)), countryCollector.getChangesSince(0));
+
+        // Replaying the changes on a copy brings it to the same version
+        CountryCollector copy = new CountryCollector(countryCollector.getWorld());
+        copy.registerVisit(visit);
+        for (ChangeEvent<Visit> event : countryCollector.getChangesSince(copy.getVersion())) {
+            copy.removeVisit(event.getElement());
+        }
+        assertEquals(countryCollector.getVersion(), copy.getVersion());
+        assertEquals(0, copy.numberOfVisits());
+
+        countryCollector.restoreVersion(7);
+        assertEquals(7, countryCollector.getVersion());
+        assertNull(countryCollector.getChangesSince(0));
+    }
+}
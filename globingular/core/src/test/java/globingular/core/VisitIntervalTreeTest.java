@@ -0,0 +1,95 @@
+package globingular.core;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Class that tests {@link VisitIntervalTree}.
+ */
+public class VisitIntervalTreeTest {
+    static Country country0, country1;
+    static LocalDate start;
+
+    @BeforeAll
+    public static void start() {
+        country0 = new Country("NO", "Norway");
+        country1 = new Country("SE", "Sweden");
+        start = LocalDate.of(2020, 1, 1);
+    }
+
+    @Test
+    public void testFindOverlapping() {
+        VisitIntervalTree tree = new VisitIntervalTree();
+        Visit january = new Visit(country0, start, start.plusDays(30));
+        Visit february = new Visit(country1, start.plusDays(31), start.plusDays(59));
+        Visit undated = new Visit(country0, null, null);
+        tree.add(february);
+        tree.add(january);
+        tree.add(undated);
+
+        assertEquals(2, tree.size());
+        assertEquals(List.of(january), tree.findOverlapping(start.plusDays(10), start.plusDays(10)));
+        assertEquals(List.of(january, february), tree.findOverlapping(start.plusDays(30), start.plusDays(31)));
+        assertEquals(List.of(february), tree.findOverlapping(start.plusDays(59), start.plusDays(100)));
+        assertTrue(tree.findOverlapping(start.minusDays(10), start.minusDays(1)).isEmpty());
+
+        tree.remove(january);
+        assertEquals(1, tree.size());
+        assertEquals(List.of(february), tree.findOverlapping(start, start.plusDays(100)));
+    }
+
+    @Test
+    public void testAddingSameVisitTwiceIndexesOnce() {
+        VisitIntervalTree tree = new VisitIntervalTree();
+        tree.add(new Visit(country0, start, start));
+        tree.add(new Visit(country0, start, start));
+        tree.add(new Visit(country1, start, start));
+        assertEquals(2, tree.size());
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(42);
+        VisitIntervalTree tree = new VisitIntervalTree();
+        List<Visit> visits = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            LocalDate arrival = start.plusDays(random.nextInt(3650));
+            Visit visit = new Visit(random.nextBoolean() ? country0 : country1, arrival,
+                    arrival.plusDays(random.nextInt(60)));
+            if (!visits.contains(visit)) {
+                visits.add(visit);
+                tree.add(visit);
+            }
+        }
+        // Remove some visits again, to exercise rebalancing on removal
+        for (int i = 0; i < 300; i++) {
+            tree.remove(visits.remove(random.nextInt(visits.size())));
+        }
+        assertEquals(visits.size(), tree.size());
+
+        for (int i = 0; i < 100; i++) {
+            LocalDate from = start.plusDays(random.nextInt(3700));
+            LocalDate to = from.plusDays(random.nextInt(100));
+            List<Visit> expected = visits.stream()
+                    .filter(v -> !v.getArrival().isAfter(to) && !v.getDeparture().isBefore(from))
+                    .sorted(Comparator.comparing(Visit::getArrival))
+                    .collect(Collectors.toList());
+            List<Visit> actual = tree.findOverlapping(from, to);
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+            for (int j = 1; j < actual.size(); j++) {
+                assertTrue(!actual.get(j).getArrival().isBefore(actual.get(j - 1).getArrival()));
+            }
+        }
+    }
+}
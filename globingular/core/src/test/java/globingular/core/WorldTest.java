@@ -31,6 +31,20 @@ public class WorldTest {
         assertEquals(country2, world.getCountryFromName(country2.getShortName()));
     }
 
+    @Test
+    public void testGetNumberOfCountriesInRegion() {
+        World world = new World(country0, country1, country2, country3);
+        assertEquals(1, world.getNumberOfCountriesInRegion("Asia"));
+        assertEquals(3, world.getNumberOfCountriesInRegion(""));
+        assertEquals(0, world.getNumberOfCountriesInRegion("EU"));
+    }
+
+    @Test
+    public void testGetTotalPopulation() {
+        assertEquals(123L, new World(country0, country1, country2).getTotalPopulation());
+        assertEquals(0L, new World().getTotalPopulation());
+    }
+
     @Test
     public void testGetCountryFromCountryCodeFail() {
         World world = new World(country0, country1, country2, country3);
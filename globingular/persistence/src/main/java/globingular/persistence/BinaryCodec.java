@@ -0,0 +1,419 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+import globingular.core.World;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Compact binary format for {@link CountryCollector}s, as an alternative to JSON.</p>
+ *
+ * <p>The format consists of:
+ * <ul>
+ * <li>{@link #MAGIC}, followed by the format version</li>
+ * <li>The version of the CountryCollector, see {@link CountryCollector#getVersion()}</li>
+ * <li>The world: either a reference to a default world, by name and fingerprint (its 32-byte content hash,
+ * see {@link PersistenceHandler#computeWorldHash(World)}), or the whole world as compact JSON</li>
+ * <li>A table of the codes of the countries visited</li>
+ * <li>The visits, each as the index of its country in the table, its arrival as days since 1970-01-01,
+ * and its departure as days since arrival</li>
+ * </ul>
+ * All numbers are written as unsigned varints, with signed numbers zigzag-encoded, and dates are offset by one
+ * so that zero can mean {@code null}. Strings are written as their UTF-8 length followed by the UTF-8 bytes.</p>
+ *
+ * <p>Visits refer to the table of country codes rather than to the world directly, so that a file still loads
+ * after the countries of a default world have changed, like JSON files referring to a default world do.</p>
+ */
+final class BinaryCodec {
+
+    /**
+     * First bytes of every file in this format. The first byte is never the first byte of a JSON document.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'G', 'L', 'C'};
+
+    /**
+     * The version of the format written.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Marks a world written as a reference to a default world.
+     */
+    private static final int WORLD_REFERENCE = 0;
+
+    /**
+     * Marks a world written in full.
+     */
+    private static final int WORLD_INLINE = 1;
+
+    /**
+     * Number of bits of a number written in each byte of a varint.
+     */
+    private static final int VARINT_BITS = 7;
+
+    /**
+     * The bits of a number written in each byte of a varint.
+     */
+    private static final int VARINT_MASK = 0x7f;
+
+    /**
+     * Set in each byte of a varint that's followed by another.
+     */
+    private static final int VARINT_CONTINUE = 0x80;
+
+    /**
+     * Number of bits of a long, the largest number read from a varint.
+     */
+    private static final int LONG_BITS = 64;
+
+    /**
+     * Number of bytes in a world fingerprint.
+     */
+    private static final int FINGERPRINT_LENGTH = 32;
+
+    /**
+     * Radix of the hexadecimal representation of world fingerprints.
+     */
+    private static final int HEX_RADIX = 16;
+
+    /**
+     * Private constructor to disallow instantiation.
+     */
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encode the given {@link CountryCollector} in this format.
+     *
+     * @param persistenceHandler The provider of default worlds, and of the writer used for worlds written in full
+     * @param countryCollector   The CountryCollector to encode
+     * @return The encoded CountryCollector
+     *
+     * @throws IOException If writing a world in full fails
+     */
+    static byte[] encode(final PersistenceHandler persistenceHandler, final CountryCollector countryCollector)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+        // Read the version before the visits, so that the visits written include every change up to it
+        writeVarint(out, countryCollector.getVersion());
+
+        World world = countryCollector.getWorld();
+        String worldHash = persistenceHandler.getDefaultWorldHash(world);
+        if (worldHash != null) {
+            writeVarint(out, WORLD_REFERENCE);
+            writeString(out, world.getWorldName());
+            out.write(hexToBytes(worldHash));
+        } else {
+            writeVarint(out, WORLD_INLINE);
+            byte[] worldJson = persistenceHandler.getCompactWriter().writeValueAsBytes(world);
+            writeVarint(out, worldJson.length);
+            out.write(worldJson);
+        }
+
+        // Table of the countries visited, in order of first visit
+        List<Visit> visits = new ArrayList<>(countryCollector.getVisits());
+        Map<Country, Integer> countryIndexes = new HashMap<>();
+        List<Country> countries = new ArrayList<>();
+        for (Visit visit : visits) {
+            if (countryIndexes.putIfAbsent(visit.getCountry(), countries.size()) == null) {
+                countries.add(visit.getCountry());
+            }
+        }
+        writeVarint(out, countries.size());
+        for (Country country : countries) {
+            writeString(out, country.getCountryCode());
+        }
+
+        writeVarint(out, visits.size());
+        for (Visit visit : visits) {
+            writeVarint(out, countryIndexes.get(visit.getCountry()));
+            LocalDate arrival = visit.getArrival();
+            writeDate(out, arrival, 0);
+            writeDate(out, visit.getDeparture(), arrival == null ? 0 : arrival.toEpochDay());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the bytes repeating across CountryCollectors of the given default {@link World} in this format,
+     * to use as a compression dictionary, see {@link Compression}: every country code as written in the table,
+     * sorted so that the order of the countries doesn't matter, followed by the header up to the table,
+     * except for the version of the CountryCollector, which differs between files.
+     *
+     * @param world The default world to encode the bytes for
+     * @return The bytes
+     */
+    static byte[] encodeDictionary(final World world) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        world.getCountries().stream().map(Country::getCountryCode).sorted()
+                .forEach(countryCode -> writeString(out, countryCode));
+        // The header comes last, as it starts every file and Deflater refers to nearer bytes more cheaply
+        out.writeBytes(MAGIC);
+        writeVarint(out, VERSION);
+        writeVarint(out, WORLD_REFERENCE);
+        writeString(out, world.getWorldName());
+        out.writeBytes(hexToBytes(PersistenceHandler.computeWorldHash(world)));
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a {@link CountryCollector} in this format, including {@link #MAGIC}.
+     *
+     * @param persistenceHandler The provider of default worlds, and of the reader used for worlds written in full
+     * @param in                 The stream to read from
+     * @return The decoded CountryCollector
+     *
+     * @throws IOException If reading fails, or if the content isn't valid in this format
+     */
+    static CountryCollector decode(final PersistenceHandler persistenceHandler, final InputStream in)
+            throws IOException {
+        if (!Arrays.equals(MAGIC, readBytes(in, MAGIC.length))) {
+            throw new IOException("Not a binary CountryCollector");
+        }
+        long formatVersion = readVarint(in);
+        if (formatVersion != VERSION) {
+            throw new IOException("Unsupported binary CountryCollector version " + formatVersion);
+        }
+        long collectorVersion = readVarint(in);
+
+        final World world;
+        long worldKind = readVarint(in);
+        if (worldKind == WORLD_REFERENCE) {
+            String worldName = readString(in);
+            String worldHash = bytesToHex(readBytes(in, FINGERPRINT_LENGTH));
+            world = persistenceHandler.getDefaultWorldFromReference(worldName, worldHash);
+            if (world == null) {
+                throw new IOException("Unknown default world " + worldName);
+            }
+        } else if (worldKind == WORLD_INLINE) {
+            byte[] worldJson = readBytes(in, readLength(in));
+            world = persistenceHandler.getObjectMapper().readValue(worldJson, World.class);
+        } else {
+            throw new IOException("Unknown world kind " + worldKind);
+        }
+        CountryCollector countryCollector = new CountryCollector(world);
+
+        Country[] countries = new Country[readLength(in)];
+        for (int i = 0; i < countries.length; i++) {
+            String countryCode = readString(in);
+            countries[i] = world.getCountryFromCode(countryCode);
+            if (countries[i] == null) {
+                throw new IOException("Unknown country code '" + countryCode + "' in world " + world.getWorldName());
+            }
+        }
+
+        int visitCount = readLength(in);
+        for (int i = 0; i < visitCount; i++) {
+            int countryIndex = readLength(in);
+            if (countryIndex >= countries.length) {
+                throw new IOException("Country index out of range: " + countryIndex);
+            }
+            LocalDate arrival = readDate(in, 0);
+            LocalDate departure = readDate(in, arrival == null ? 0 : arrival.toEpochDay());
+            try {
+                countryCollector.registerVisit(new Visit(countries[countryIndex], arrival, departure));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid visit", e);
+            }
+        }
+        // Registering the visits counted as changes, so continue from the version saved instead
+        countryCollector.restoreVersion(collectorVersion);
+        return countryCollector;
+    }
+
+    /**
+     * Check if the given stream starts with {@link #MAGIC}, without consuming any of it.
+     *
+     * @param in The stream to check, which must support {@link InputStream#mark(int)}
+     * @return True if the stream starts with {@link #MAGIC}
+     *
+     * @throws IOException If reading fails
+     */
+    static boolean startsWithMagic(final InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            return Arrays.equals(MAGIC, in.readNBytes(MAGIC.length));
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Write a date as a varint of its days since {@code base}, zigzag-encoded and offset by one,
+     * or zero if {@code null}.
+     *
+     * @param out  The stream to write to
+     * @param date The date to write, or {@code null}
+     * @param base The epoch day the date is written relative to
+     */
+    private static void writeDate(final ByteArrayOutputStream out, final LocalDate date, final long base) {
+        if (date == null) {
+            writeVarint(out, 0);
+        } else {
+            long days = date.toEpochDay() - base;
+            // Zigzag-encode, so that small negative numbers stay small
+            writeVarint(out, ((days << 1) ^ (days >> (LONG_BITS - 1))) + 1);
+        }
+    }
+
+    /**
+     * Read a date written by {@link #writeDate(ByteArrayOutputStream, LocalDate, long)}.
+     *
+     * @param in   The stream to read from
+     * @param base The epoch day the date was written relative to
+     * @return The date, or {@code null}
+     *
+     * @throws IOException If reading fails
+     */
+    private static LocalDate readDate(final InputStream in, final long base) throws IOException {
+        long value = readVarint(in);
+        if (value == 0) {
+            return null;
+        }
+        long zigzag = value - 1;
+        long days = (zigzag >>> 1) ^ -(zigzag & 1);
+        try {
+            return LocalDate.ofEpochDay(base + days);
+        } catch (DateTimeException e) {
+            throw new IOException("Date out of range", e);
+        }
+    }
+
+    /**
+     * Write a string as the varint length of its UTF-8 bytes, followed by the bytes.
+     *
+     * @param out    The stream to write to
+     * @param string The string to write
+     */
+    private static void writeString(final ByteArrayOutputStream out, final String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(ByteArrayOutputStream, String)}.
+     *
+     * @param in The stream to read from
+     * @return The string
+     *
+     * @throws IOException If reading fails
+     */
+    private static String readString(final InputStream in) throws IOException {
+        return new String(readBytes(in, readLength(in)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a non-negative number as an unsigned varint, seven bits at a time, least significant first.
+     *
+     * @param out   The stream to write to
+     * @param value The number to write
+     */
+    private static void writeVarint(final ByteArrayOutputStream out, final long value) {
+        long remaining = value;
+        while ((remaining & ~VARINT_MASK) != 0) {
+            out.write((int) (remaining & VARINT_MASK) | VARINT_CONTINUE);
+            remaining >>>= VARINT_BITS;
+        }
+        out.write((int) remaining);
+    }
+
+    /**
+     * Read an unsigned varint written by {@link #writeVarint(ByteArrayOutputStream, long)}.
+     *
+     * @param in The stream to read from
+     * @return The number read
+     *
+     * @throws IOException If reading fails, or if the varint is too long
+     */
+    private static long readVarint(final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < LONG_BITS; shift += VARINT_BITS) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of binary CountryCollector");
+            }
+            value |= (long) (b & VARINT_MASK) << shift;
+            if ((b & VARINT_CONTINUE) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read a varint used as a length or index, which must fit in an int.
+     *
+     * @param in The stream to read from
+     * @return The length or index read
+     *
+     * @throws IOException If reading fails, or if the number is too large
+     */
+    private static int readLength(final InputStream in) throws IOException {
+        long value = readVarint(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Length out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read exactly {@code length} bytes.
+     *
+     * @param in     The stream to read from
+     * @param length The number of bytes to read
+     * @return The bytes read
+     *
+     * @throws IOException If reading fails, or if the stream ends first
+     */
+    private static byte[] readBytes(final InputStream in, final int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Unexpected end of binary CountryCollector");
+        }
+        return bytes;
+    }
+
+    /**
+     * Convert a hexadecimal world fingerprint to bytes.
+     *
+     * @param hex The hexadecimal fingerprint
+     * @return The fingerprint as bytes
+     */
+    private static byte[] hexToBytes(final String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), HEX_RADIX);
+        }
+        return bytes;
+    }
+
+    /**
+     * Convert a world fingerprint to its hexadecimal representation.
+     *
+     * @param bytes The fingerprint as bytes
+     * @return The hexadecimal fingerprint
+     */
+    private static String bytesToHex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,195 @@
+package globingular.persistence;
+
+import globingular.core.CountryCollector;
+import globingular.core.GlobingularModule;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Export and import of every user of a {@link CollectorStore} as a single stream, e.g. for backups
+ * or for moving to another store.</p>
+ *
+ * <p>An archive consists of {@link #MAGIC} and the format version, followed by a record per user:
+ * the username, the length of the user's {@link CountryCollector} in the format of {@link BinaryCodec},
+ * and the encoded CountryCollector itself. The records end with an empty username.
+ * Both directions keep at most a few CountryCollectors in memory at a time, however many users there are.</p>
+ */
+public final class CollectorArchive {
+
+    /**
+     * First bytes of every archive.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'G', 'L', 'A'};
+
+    /**
+     * The version of the format written.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the buffers between archives and the streams they're read from or written to.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum length of a single encoded CountryCollector, guarding against allocating for a corrupt length.
+     */
+    private static final int MAXIMUM_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Number of records read ahead of those imported, per thread importing.
+     */
+    private static final int READ_AHEAD = 4;
+
+    /**
+     * Receives each user imported, see {@link #importArchive(PersistenceHandler, InputStream, Importer, int)}.
+     */
+    @FunctionalInterface
+    public interface Importer {
+        /**
+         * Import the given user. Called from several threads at once.
+         *
+         * @param username         The username, valid and in lowercase
+         * @param countryCollector The user's CountryCollector
+         *
+         * @throws IOException If importing fails, which stops the import
+         */
+        void accept(String username, CountryCollector countryCollector) throws IOException;
+    }
+
+    /**
+     * Private constructor to disallow instantiation.
+     */
+    private CollectorArchive() {
+    }
+
+    /**
+     * Write every user saved in the given {@link CollectorStore} to an archive, one user at a time.
+     * Users deleted while exporting are left out.
+     *
+     * @param persistenceHandler The provider of default worlds used for encoding
+     * @param collectorStore     The store to export from
+     * @param out                The stream to write to, which is flushed but not closed
+     * @return The number of users exported
+     *
+     * @throws IOException If loading a user or writing fails
+     */
+    public static int exportArchive(final PersistenceHandler persistenceHandler, final CollectorStore collectorStore,
+                                    final OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        int count = 0;
+        for (String username : collectorStore.list()) {
+            CountryCollector countryCollector = collectorStore.load(username);
+            if (countryCollector == null) {
+                continue;
+            }
+            byte[] encoded = BinaryCodec.encode(persistenceHandler, countryCollector);
+            data.writeUTF(username);
+            data.writeInt(encoded.length);
+            data.write(encoded);
+            count++;
+        }
+        data.writeUTF("");
+        data.flush();
+        return count;
+    }
+
+    /**
+     * Read every user in an archive, decoding them on several threads at once, and pass each to an
+     * {@link Importer}. Records are read ahead of the threads decoding them by a bounded number only.
+     *
+     * @param persistenceHandler The provider of default worlds used for decoding
+     * @param in                 The stream to read from, which is read to the end of the archive but not closed
+     * @param importer           Receives each user, from several threads at once
+     * @param threads            The number of threads to decode and import on
+     * @return The number of users imported
+     *
+     * @throws IOException If reading or decoding the archive fails, or the importer fails.
+     *                     Users already passed to the importer stay imported.
+     */
+    public static int importArchive(final PersistenceHandler persistenceHandler, final InputStream in,
+                                    final Importer importer, final int threads) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not an archive");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported archive version " + version);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Bounds the records read but not imported yet, to keep memory use constant
+        Semaphore readAhead = new Semaphore(threads * READ_AHEAD);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        AtomicInteger count = new AtomicInteger();
+        try {
+            for (String username = data.readUTF(); !username.isEmpty() && failure.get() == null;
+                    username = data.readUTF()) {
+                if (!GlobingularModule.isUsernameValid(username)) {
+                    throw new IOException("Invalid username in archive: " + username);
+                }
+                int length = data.readInt();
+                if (length < 0 || length > MAXIMUM_RECORD_LENGTH) {
+                    throw new IOException("Record length out of range: " + length);
+                }
+                byte[] encoded = new byte[length];
+                data.readFully(encoded);
+                readAhead.acquireUninterruptibly();
+                final String lowercase = username.toLowerCase();
+                executor.execute(() -> {
+                    try {
+                        importer.accept(lowercase, persistenceHandler.readCountryCollector(
+                                new ByteArrayInputStream(encoded)));
+                        count.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, new IOException("Failed importing " + lowercase, e));
+                    } finally {
+                        readAhead.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return count.get();
+    }
+
+    /**
+     * Wait for every task of the given executor to finish.
+     *
+     * @param executor The executor, which must be shut down
+     *
+     * @throws IOException If interrupted while waiting
+     */
+    private static void awaitTermination(final ExecutorService executor) throws IOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        }
+    }
+}
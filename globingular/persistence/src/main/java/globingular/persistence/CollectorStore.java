@@ -0,0 +1,131 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * <p>Where the {@link CountryCollector}s of users are saved, and loaded from.</p>
+ *
+ * <p>Usernames are validated by {@link globingular.core.GlobingularModule#isUsernameValid(String)},
+ * and are case-insensitive. Implementations must be safe to use from several threads at once.</p>
+ */
+public interface CollectorStore extends AutoCloseable {
+
+    /**
+     * Load the {@link CountryCollector} saved for the given username.
+     *
+     * @param username The username to load for
+     * @return The CountryCollector saved, or null if none is saved
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     * @throws IOException              If reading fails
+     */
+    CountryCollector load(String username) throws IllegalArgumentException, IOException;
+
+    /**
+     * Save the given {@link CountryCollector} for the given username, returning once durable.
+     * If countryCollector is null, deletes instead, like {@link #delete(String)}.
+     *
+     * @param username         The username to save for
+     * @param countryCollector The CountryCollector to save, or null to delete
+     * @return Whether anything was saved or deleted
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     * @throws IOException              If writing fails
+     */
+    boolean save(String username, CountryCollector countryCollector) throws IllegalArgumentException, IOException;
+
+    /**
+     * Delete the {@link CountryCollector} saved for the given username, returning once durable.
+     *
+     * @param username The username to delete for
+     * @return True if deleted, false if none was saved
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     * @throws IOException              If deleting fails
+     */
+    default boolean delete(final String username) throws IllegalArgumentException, IOException {
+        return this.save(username, null);
+    }
+
+    /**
+     * Move the {@link CountryCollector} saved for one username to another, which must not have one saved.
+     * The new save is durable before the old one is deleted, so that a failure never loses the CountryCollector.
+     *
+     * @param username    The username to move from
+     * @param newUsername The username to move to
+     * @return True if moved, false if none was saved for username
+     *
+     * @throws IllegalArgumentException If either username is not alphanumeric, or newUsername is taken
+     * @throws IOException              If reading or writing fails
+     */
+    default boolean rename(final String username, final String newUsername)
+            throws IllegalArgumentException, IOException {
+        if (this.exists(newUsername)) {
+            throw new IllegalArgumentException("Username is already taken: " + newUsername);
+        }
+        CountryCollector countryCollector = this.load(username);
+        if (countryCollector == null) {
+            return false;
+        }
+        this.save(newUsername, countryCollector);
+        return this.delete(username);
+    }
+
+    /**
+     * Check if a {@link CountryCollector} is saved for the given username.
+     *
+     * @param username The username to check
+     * @return True if saved
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     */
+    boolean exists(String username) throws IllegalArgumentException;
+
+    /**
+     * List every username with a {@link CountryCollector} saved, in lowercase.
+     *
+     * @return The usernames, in no particular order
+     *
+     * @throws IOException If listing fails
+     */
+    Set<String> list() throws IOException;
+
+    /**
+     * Save a single visit added to or removed from the {@link CountryCollector} saved for the given username,
+     * after it has been made, if this store can do that more cheaply than saving the whole CountryCollector.
+     * Must be called while still holding the lock of the CountryCollector the change was made to,
+     * so that changes are saved in the order they were made.
+     *
+     * @param username The username to save for
+     * @param event    The visit added or removed
+     * @param version  The version of the CountryCollector after the change, see {@link CountryCollector#getVersion()}
+     * @return True if saved, false if the whole CountryCollector must be saved instead
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     * @throws IOException              If writing fails
+     */
+    boolean appendVisitEvent(String username, ChangeEvent<Visit> event, long version)
+            throws IllegalArgumentException, IOException;
+
+    /**
+     * Reclaim space taken by old saves. Meant to be called periodically in the background.
+     *
+     * @return The number of files or segments compacted
+     *
+     * @throws IOException If compacting fails
+     */
+    int compact() throws IOException;
+
+    /**
+     * Release the resources held by this store. Saves already returned stay saved.
+     *
+     * @throws IOException If releasing fails
+     */
+    @Override
+    void close() throws IOException;
+}
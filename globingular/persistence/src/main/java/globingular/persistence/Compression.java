@@ -0,0 +1,201 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.World;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Compression of saved {@link globingular.core.CountryCollector}s, using {@link Deflater} with a preset
+ * dictionary.</p>
+ *
+ * <p>A compressed file consists of {@link #MAGIC} followed by a zlib stream. The dictionary holds what repeats
+ * across saved files in the {@link PersistenceHandler.StorageFormat} compressed, so there is one per format: for
+ * JSON the field names, the name and content hash of the predominant default world, and its country codes, and
+ * for the binary format its header referring to the predominant default world, and its country codes as written,
+ * see {@link BinaryCodec#encodeDictionary(World)}. Even a small file can therefore refer back to them, instead
+ * of spelling them out once before they can be repeated. The zlib stream identifies its dictionary by Adler-32
+ * checksum, see {@link #dictionaryId(byte[])}, so that files compressed with a dictionary built from another
+ * version of the default world, or for another format, can still be decompressed, given that dictionary.</p>
+ */
+final class Compression {
+
+    /**
+     * First bytes of every compressed file. The first byte is never the first byte of a JSON document.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'G', 'L', 'Z'};
+
+    /**
+     * Size of the buffer (de)compressed into at a time.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Holds the dictionaries, so that they're only built when first used.
+     */
+    private static final class Holder {
+        /**
+         * The dictionary for JSON, built from the predominant default world.
+         */
+        private static final byte[] JSON_DICTIONARY = buildDictionary(DefaultWorlds.getInstance().getPredominant(),
+                PersistenceHandler.StorageFormat.JSON);
+        /**
+         * The dictionary for the binary format, built from the predominant default world.
+         */
+        private static final byte[] BINARY_DICTIONARY = buildDictionary(
+                DefaultWorlds.getInstance().getPredominant(), PersistenceHandler.StorageFormat.BINARY);
+    }
+
+    /**
+     * Private constructor to disallow instantiation.
+     */
+    private Compression() {
+    }
+
+    /**
+     * Get the dictionary built from the predominant default {@link World} for the given format,
+     * used for compressing files in that format.
+     *
+     * @param storageFormat The format of the files compressed
+     * @return The dictionary, which must not be modified
+     */
+    static byte[] getDictionary(final PersistenceHandler.StorageFormat storageFormat) {
+        return storageFormat == PersistenceHandler.StorageFormat.BINARY
+                ? Holder.BINARY_DICTIONARY : Holder.JSON_DICTIONARY;
+    }
+
+    /**
+     * Build a dictionary from the given {@link World} for the given format. Equal for worlds with the same name
+     * and countries, regardless of the order of the countries, like {@link PersistenceHandler#computeWorldHash(World)}.
+     * Strings expected to repeat most often come last, as Deflater refers to nearer strings more cheaply.
+     *
+     * @param world         The world to build a dictionary from
+     * @param storageFormat The format of the files to compress with it
+     * @return The dictionary
+     */
+    static byte[] buildDictionary(final World world, final PersistenceHandler.StorageFormat storageFormat) {
+        if (storageFormat == PersistenceHandler.StorageFormat.BINARY) {
+            return BinaryCodec.encodeDictionary(world);
+        }
+        StringBuilder dictionary = new StringBuilder();
+        world.getCountries().stream().map(Country::getCountryCode).sorted()
+                .forEach(countryCode -> dictionary.append("    \"countryCode\" : \"").append(countryCode)
+                        .append("\",\n"));
+        dictionary.append("{\n  \"Version\" : ")
+                .append(",\n  \"WorldReference\" : {\n    \"WorldName\" : \"").append(world.getWorldName())
+                .append("\",\n    \"WorldHash\" : \"").append(PersistenceHandler.computeWorldHash(world))
+                .append("\"\n  },\n  \"Visits\" : [ {\n")
+                .append("    \"arrival\" : null,\n    \"departure\" : null\n")
+                .append("    \"arrival\" : \"20\",\n    \"departure\" : \"20\"\n  }, {\n");
+        return dictionary.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the identifier of a dictionary, as written in streams compressed with it.
+     *
+     * @param dictionary The dictionary
+     * @return The Adler-32 checksum of the dictionary
+     */
+    static int dictionaryId(final byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * Compress the given content, including {@link #MAGIC}.
+     *
+     * @param content    The content to compress
+     * @param dictionary The dictionary to compress with
+     * @return The compressed content
+     */
+    static byte[] compress(final byte[] content, final byte[] dictionary) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + MAGIC.length);
+        out.writeBytes(MAGIC);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompress content compressed by {@link #compress(byte[], byte[])}, including {@link #MAGIC}.
+     *
+     * @param in           The stream to read from, which is read to its end
+     * @param dictionaries Function giving the dictionary with an identifier, see {@link #dictionaryId(byte[])},
+     *                     or {@code null} if it's unknown
+     * @return The decompressed content
+     *
+     * @throws IOException If reading fails, or if the content isn't valid, or compressed with an unknown dictionary
+     */
+    static byte[] decompress(final InputStream in, final IntFunction<byte[]> dictionaries) throws IOException {
+        if (!Arrays.equals(MAGIC, in.readNBytes(MAGIC.length))) {
+            throw new IOException("Not compressed");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in.readAllBytes());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                out.write(buffer, 0, length);
+                if (length > 0) {
+                    continue;
+                }
+                if (inflater.needsDictionary()) {
+                    byte[] dictionary = dictionaries.apply(inflater.getAdler());
+                    if (dictionary == null) {
+                        throw new IOException("Unknown compression dictionary "
+                                + Integer.toHexString(inflater.getAdler()));
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput()) {
+                    throw new IOException("Unexpected end of compressed content");
+                } else if (!inflater.finished()) {
+                    throw new IOException("Invalid compressed content");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed content", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Check if the given stream starts with {@link #MAGIC}, without consuming any of it.
+     *
+     * @param in The stream to check, which must support {@link InputStream#mark(int)}
+     * @return True if the stream starts with {@link #MAGIC}
+     *
+     * @throws IOException If reading fails
+     */
+    static boolean startsWithMagic(final InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            return Arrays.equals(MAGIC, in.readNBytes(MAGIC.length));
+        } finally {
+            in.reset();
+        }
+    }
+}
@@ -1,67 +1,158 @@
 package globingular.persistence;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
 import globingular.core.World;
 
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * <p>CountryCollectorDeserializer deserializes a CountryCollector-object, using
  * the only method in the class, deserialize(p, ctxt),
  * to do this.</p>
+ *
+ * <p>The JSON is read directly from the token stream, registering each visit as soon as it is read.
+ * Only if the visits come before the world in the JSON, are they buffered until the world is known.
+ * The version of the CountryCollector is restored from the JSON, or 0 if not included.</p>
  */
 
 class CountryCollectorDeserializer extends JsonDeserializer<CountryCollector> {
 
+    /**
+     * Deserializer for worlds written in full, used directly so that known worlds are not parsed again.
+     */
+    private static final WorldDeserializer WORLD_DESERIALIZER = new WorldDeserializer();
+
     /**
      * Deserialize a {@link CountryCollector}-object from JSON using JsonParser.
-     * Requires the target {@link World} in the injected map ({@link PersistenceHandler#INJECTED_MAP}) in the context
-     * or defined in the JSON itself.
-     * 
+     * Requires the target {@link World} to be defined in the JSON itself, either in full, or as a reference
+     * to a default world of the {@link PersistenceHandler} set as attribute
+     * {@link PersistenceHandler#INJECTED_MAP_PERSISTENCE}.
+     *
      * @param p a JsonParser
      * @param ctxt a context for the deserialization
      * @return a {@link CountryCollector} object
-     * @throws IOException on general parsing error
-     * @throws NullPointerException on missing fields
+     * @throws IOException on general parsing error, or on missing fields
      */
     @Override
     public CountryCollector deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException {
 
-        ObjectNode node = p.readValueAsTree();
-        final World world;
+        PersistenceHandler persistenceHandler = (PersistenceHandler)
+                ctxt.getAttribute(PersistenceHandler.INJECTED_MAP_PERSISTENCE);
 
-        // Suppress warning. This should be fine, and if it's not we want it to throw an exception anyway.
-        @SuppressWarnings("unchecked")
-        Map<String, Object> injectedMap = (Map<String, Object>)
-                ctxt.findInjectableValue(PersistenceHandler.INJECTED_MAP, null, null);
+        CountryCollector countryCollector = null;
+        TokenBuffer bufferedVisits = null;
+        long version = 0;
 
-        // Retrieve World from Json
-        World tmpWorld = node.get("World").traverse(p.getCodec()).readValueAs(World.class);
+        JsonToken token = StreamingParsing.firstField(p, ctxt, CountryCollector.class);
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String fieldName = p.currentName();
+            // Move to the value of the field
+            p.nextToken();
+            switch (fieldName) {
+                case "WorldReference":
+                    // Only a reference to a default world is given, so retrieve it from persistenceHandler
+                    countryCollector = createCountryCollector(readWorldReference(p, ctxt, persistenceHandler), ctxt);
+                    break;
+                case "World":
+                    // Retrieve World from Json, unless it's named as a defaultWorld
+                    World tmpWorld = persistenceHandler == null ? ctxt.readValue(p, World.class)
+                            : WORLD_DESERIALIZER.deserialize(p, ctxt, persistenceHandler::getDefaultWorld);
 
-        // Check if tmpWorld is a defaultWorld, in which case retrieve server-version from persistenceHandler
-        PersistenceHandler persistenceHandler = (PersistenceHandler)
-                injectedMap.get(PersistenceHandler.INJECTED_MAP_PERSISTENCE);
-        world = persistenceHandler.getDefaultWorldOr(tmpWorld.getWorldName(), tmpWorld);
+                    // If tmpWorld is a defaultWorld, retrieve the server-version from persistenceHandler
+                    if (persistenceHandler != null) {
+                        tmpWorld = persistenceHandler.getDefaultWorldOr(tmpWorld.getWorldName(), tmpWorld);
+                    }
+                    countryCollector = createCountryCollector(tmpWorld, ctxt);
+                    break;
+                case "Visits":
+                    if (countryCollector != null) {
+                        StreamingParsing.readArray(p, ctxt, Visit.class, countryCollector::registerVisit);
+                    } else {
+                        // The world isn't known yet, so keep the visits until it is
+                        bufferedVisits = new TokenBuffer(p, ctxt);
+                        bufferedVisits.copyCurrentStructure(p);
+                    }
+                    break;
+                case "Version":
+                    version = p.getValueAsLong();
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        StreamingParsing.requireField(ctxt, this, countryCollector, "World");
+
+        if (bufferedVisits != null) {
+            try (JsonParser bufferParser = bufferedVisits.asParser(p.getCodec())) {
+                // Move to the start of the buffered array
+                bufferParser.nextToken();
+                StreamingParsing.readArray(bufferParser, ctxt, Visit.class, countryCollector::registerVisit);
+            }
+        }
+        // Registering the visits counted as changes, so continue from the version saved instead
+        countryCollector.restoreVersion(version);
+
+        return countryCollector;
+    }
 
-        // Insert world into injectedMap for use in further deserialization
-        injectedMap.put(PersistenceHandler.INJECTED_MAP_WORLD, world);
+    /**
+     * Create an empty {@link CountryCollector} for the given world,
+     * and set the world as a per-call attribute of the context, for use in further deserialization.
+     *
+     * @param world The world of the CountryCollector
+     * @param ctxt  The current deserialization context
+     * @return      The new CountryCollector
+     */
+    private static CountryCollector createCountryCollector(final World world, final DeserializationContext ctxt) {
+        ctxt.setAttribute(PersistenceHandler.INJECTED_MAP_WORLD, world);
+        return new CountryCollector(world);
+    }
 
-        // Parse all visits, using the injected world
-        Visit[] visits = node.get("Visits").traverse(p.getCodec()).readValueAs(Visit[].class);
+    /**
+     * Read a reference to a default world, and resolve it using the given {@link PersistenceHandler}.
+     *
+     * @param p                  The current JsonParser, positioned at the start of the reference
+     * @param ctxt               The current deserialization context
+     * @param persistenceHandler The PersistenceHandler holding the default worlds, may be {@code null}
+     * @return                   The referenced default world
+     * @throws IOException If the reference is malformed, or doesn't match any default world
+     */
+    private World readWorldReference(final JsonParser p, final DeserializationContext ctxt,
+                                     final PersistenceHandler persistenceHandler) throws IOException {
+        String worldName = null;
+        String worldHash = null;
 
-        // Create CountryCollector with the parsed World, and register visits
-        CountryCollector countryCollector = new CountryCollector(world);
-        for (Visit visit : visits) {
-            countryCollector.registerVisit(visit);
+        JsonToken token = StreamingParsing.firstField(p, ctxt, World.class);
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String fieldName = p.currentName();
+            // Move to the value of the field
+            p.nextToken();
+            switch (fieldName) {
+                case "WorldName":
+                    worldName = p.getValueAsString();
+                    break;
+                case "WorldHash":
+                    worldHash = p.getValueAsString();
+                    break;
+                default:
+                    p.skipChildren();
+            }
         }
 
-        return countryCollector;
+        StreamingParsing.requireField(ctxt, this, worldName, "WorldName");
+        StreamingParsing.requireField(ctxt, this, worldHash, "WorldHash");
+        World world = persistenceHandler == null ? null
+                : persistenceHandler.getDefaultWorldFromReference(worldName, worldHash);
+        if (world == null) {
+            ctxt.reportInputMismatch(this, "Unknown default world: %s", worldName);
+        }
+        return world;
     }
 }
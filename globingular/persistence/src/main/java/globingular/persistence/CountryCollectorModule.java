@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.module.SimpleDeserializers;
 import com.fasterxml.jackson.databind.module.SimpleSerializers;
+import globingular.core.ChangeEvent;
 import globingular.core.Country;
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
@@ -24,6 +25,13 @@ import globingular.core.World;
 
 class CountryCollectorModule extends Module {
 
+    /**
+     * The class of {@link ChangeEvent}s, typed as holding {@link Visit}s, as only those are (de)serialized.
+     */
+    @SuppressWarnings("unchecked")
+    private static final Class<ChangeEvent<Visit>> VISIT_EVENT_CLASS =
+            (Class<ChangeEvent<Visit>>) (Class<?>) ChangeEvent.class;
+
     /**
      * Container-object holding Serializers.
      */
@@ -41,10 +49,12 @@ class CountryCollectorModule extends Module {
         serializers.addSerializer(CountryCollector.class, new CountryCollectorSerializer());
         serializers.addSerializer(World.class, new WorldSerializer());
         serializers.addSerializer(Visit.class, new VisitSerializer());
+        serializers.addSerializer(VISIT_EVENT_CLASS, new VisitEventSerializer());
         deserializers.addDeserializer(CountryCollector.class, new CountryCollectorDeserializer());
         deserializers.addDeserializer(World.class, new WorldDeserializer());
         deserializers.addDeserializer(Country.class, new CountryDeserializer());
         deserializers.addDeserializer(Visit.class, new VisitDeserializer());
+        deserializers.addDeserializer(VISIT_EVENT_CLASS, new VisitEventDeserializer());
     }
 
     /**
@@ -13,6 +13,11 @@ import globingular.core.Visit;
  * <p>CountryCollectorSerializer class has one method,
  * serialize(collector, gen, serializers),
  * that serializes CountryCollector objects into JSON format.</p>
+ *
+ * <p>If the collector's World is a default world of the {@link PersistenceHandler}
+ * set as a serialization attribute, only a reference to the World is written,
+ * as the reader is expected to have the same default worlds.
+ * Otherwise the World is written in full.</p>
  */
 
 class CountryCollectorSerializer extends JsonSerializer<CountryCollector> {
@@ -26,8 +31,30 @@ class CountryCollectorSerializer extends JsonSerializer<CountryCollector> {
             throws IOException {
                 gen.writeStartObject();
 
-                gen.writeFieldName("World");
-                gen.writeObject(countryCollector.getWorld());
+                // Read the version before the visits, so that the visits written include every change up to it
+                long version = countryCollector.getVersion();
+                if (version != 0) {
+                    gen.writeFieldName("Version");
+                    gen.writeNumber(version);
+                }
+
+                PersistenceHandler persistenceHandler = (PersistenceHandler)
+                        serializers.getAttribute(PersistenceHandler.INJECTED_MAP_PERSISTENCE);
+                String worldHash = persistenceHandler == null ? null
+                        : persistenceHandler.getDefaultWorldHash(countryCollector.getWorld());
+
+                if (worldHash != null) {
+                    gen.writeFieldName("WorldReference");
+                    gen.writeStartObject();
+                    gen.writeFieldName("WorldName");
+                    gen.writeString(countryCollector.getWorld().getWorldName());
+                    gen.writeFieldName("WorldHash");
+                    gen.writeString(worldHash);
+                    gen.writeEndObject();
+                } else {
+                    gen.writeFieldName("World");
+                    gen.writeObject(countryCollector.getWorld());
+                }
 
                 gen.writeFieldName("Visits");
                 gen.writeStartArray();
@@ -1,9 +1,9 @@
 package globingular.persistence;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import globingular.core.Country;
 
 import java.io.IOException;
@@ -14,24 +14,57 @@ import java.io.IOException;
 class CountryDeserializer extends JsonDeserializer<Country> {
 
     /**
-     * Deserilize a Country from JSON.
+     * Deserilize a Country from JSON, reading directly from the token stream.
+     * Unknown fields, like provinces, are skipped.
      * @param p The relevant JsonParser
      * @param ctxt The current parsing context
      * @return The deserialized Country
-     * @throws IOException on general parsing error
-     * @throws NullPointerException on missing fields
+     * @throws IOException on general parsing error, or on missing fields
      */
     @Override
     public Country deserialize(final JsonParser p, final DeserializationContext ctxt)
             throws IOException {
-        ObjectNode countryNode = p.readValueAsTree();
-        String countryCode = countryNode.get("countryCode").asText();
-        String name = countryNode.get("shortName").asText();
-        String longname = countryNode.get("longName").asText();
-        String sovereignty = countryNode.get("sovereignty").asText();
-        String region = countryNode.get("region").asText();
-        long population = countryNode.get("population").asLong();
+        String countryCode = null;
+        String name = null;
+        String longname = null;
+        String sovereignty = null;
+        String region = null;
+        Long population = null;
 
-        return new Country(countryCode, name, longname, sovereignty, region, population);
+        JsonToken token = StreamingParsing.firstField(p, ctxt, Country.class);
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String fieldName = p.currentName();
+            // Move to the value of the field
+            p.nextToken();
+            switch (fieldName) {
+                case "countryCode":
+                    countryCode = p.getValueAsString();
+                    break;
+                case "shortName":
+                    name = p.getValueAsString();
+                    break;
+                case "longName":
+                    longname = p.getValueAsString();
+                    break;
+                case "sovereignty":
+                    sovereignty = p.getValueAsString();
+                    break;
+                case "region":
+                    region = p.getValueAsString();
+                    break;
+                case "population":
+                    population = p.getValueAsLong();
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+
+        return new Country(StreamingParsing.requireField(ctxt, this, countryCode, "countryCode"),
+                StreamingParsing.requireField(ctxt, this, name, "shortName"),
+                StreamingParsing.requireField(ctxt, this, longname, "longName"),
+                StreamingParsing.requireField(ctxt, this, sovereignty, "sovereignty"),
+                StreamingParsing.requireField(ctxt, this, region, "region"),
+                StreamingParsing.requireField(ctxt, this, population, "population"));
     }
 }
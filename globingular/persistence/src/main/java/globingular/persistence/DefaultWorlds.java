@@ -0,0 +1,465 @@
+package globingular.persistence;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import globingular.core.World;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * <p>Process-wide registry of the default {@link World}s: the predominant world shipped on the classpath,
+ * and every world defined by a JSON file in the folder given by system property {@value #FOLDER_PROPERTY}.</p>
+ *
+ * <p>The registry is created the first time it's used, and then shared by every {@link PersistenceHandler},
+ * so that creating a PersistenceHandler never loads a world. The predominant world is loaded with the registry,
+ * from its precompiled {@link WorldSnapshot} when one matching its JSON file is shipped, and otherwise parsed
+ * from JSON, and is always kept. The folder is only searched for the names of its worlds when the registry is
+ * created, and each of those worlds is loaded the first time it's asked for. At most {@link #cacheSize} of them
+ * are kept after their last use, so memory stays bounded however many worlds the folder holds, but a world is
+ * never loaded twice while anything still refers to it.</p>
+ *
+ * <p>Worlds are indexed by content hash once loaded. Every reference to a world also names it,
+ * so a world that isn't loaded yet is found by name instead.
+ * The registry is safe to use from several threads at once. Looking up a world by content hash, or the content
+ * hash of a world, takes no lock, as those indexes are immutable maps replaced whenever a world is loaded.
+ * Worlds are loaded from the folder outside the lock guarding the cache, so that loading one world doesn't hold
+ * up finding others, while each world still only has one thread loading it at a time.</p>
+ */
+final class DefaultWorlds {
+
+    /**
+     * System property naming the folder of additional default worlds, relative to {@code user.home}.
+     * No folder is searched unless set.
+     */
+    static final String FOLDER_PROPERTY = "globingular.worldsfolder";
+
+    /**
+     * System property overriding {@link #DEFAULT_CACHE_SIZE}.
+     */
+    static final String CACHE_SIZE_PROPERTY = "globingular.worldcachesize";
+
+    /**
+     * Default number of worlds from the folder kept after their last use.
+     */
+    static final int DEFAULT_CACHE_SIZE = 16;
+
+    /**
+     * File extension of the worlds in the folder.
+     */
+    private static final String WORLD_EXTENSION = ".json";
+
+    /**
+     * Load factor of {@link #recentlyUsed}, the default of {@link LinkedHashMap}.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The JSON file the predominant default {@link World} is defined in.
+     */
+    static final String PREDOMINANT_SOURCE = "/json/sampleWorld.json";
+
+    /**
+     * The snapshot precompiled from {@link #PREDOMINANT_SOURCE} while building, if any.
+     */
+    static final String PREDOMINANT_SNAPSHOT = "/worlds/sampleWorld.bin";
+
+    /**
+     * Holds the registry, so that it's only loaded when first used, and loaded once.
+     */
+    private static final class Holder {
+        /**
+         * The registry shared by the whole process.
+         */
+        private static final DefaultWorlds INSTANCE = new DefaultWorlds(loadPredominant(),
+                System.getProperty(FOLDER_PROPERTY) == null ? null
+                        : Paths.get(System.getProperty("user.home"), System.getProperty(FOLDER_PROPERTY)),
+                Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE));
+    }
+
+    /**
+     * The predominant default {@link World}.
+     */
+    private final World predominant;
+    /**
+     * The content hash of {@link #predominant}, see {@link PersistenceHandler#computeWorldHash(World)}.
+     */
+    private final String predominantHash;
+    /**
+     * The file defining each world in the folder, by world name. Never changed after construction.
+     */
+    private final Map<String, Path> filesByName;
+    /**
+     * Lock held while loading each world in the folder, by world name. Never changed after construction.
+     */
+    private final Map<String, Object> loadLocks;
+    /**
+     * Maximum number of worlds from the folder kept in {@link #recentlyUsed}.
+     */
+    private final int cacheSize;
+    /**
+     * The worlds from the folder most recently used, least recently used first.
+     */
+    private final Map<String, World> recentlyUsed;
+    /**
+     * Every world loaded from the folder by name, as long as anything refers to it.
+     * Guarded by the lock of this registry, like {@link #recentlyUsed}.
+     */
+    private final Map<String, WeakReference<World>> loadedByName = new HashMap<>();
+    /**
+     * Every world loaded from the folder by content hash, as long as anything refers to it.
+     * Immutable, and replaced while holding the lock of this registry.
+     */
+    private volatile Map<String, WeakReference<World>> loadedByHash = Map.of();
+    /**
+     * The content hash of every world loaded from the folder, as long as anything refers to it.
+     * Immutable, and replaced while holding the lock of this registry.
+     */
+    private volatile Map<WorldKey, String> hashesByWorld = Map.of();
+
+    /**
+     * Key of a {@link World} in {@link #hashesByWorld}, equal only for the very same world,
+     * and only referring to it weakly.
+     */
+    private static final class WorldKey {
+        /**
+         * The world, weakly referenced.
+         */
+        private final WeakReference<World> world;
+        /**
+         * The identity hash code of the world, kept after it's collected.
+         */
+        private final int hash;
+
+        /**
+         * Initialize a key of the given world.
+         *
+         * @param world The world
+         */
+        WorldKey(final World world) {
+            this.world = new WeakReference<>(world);
+            this.hash = System.identityHashCode(world);
+        }
+
+        /**
+         * Check whether the world of this key is still referred to.
+         *
+         * @return True if not collected yet
+         */
+        boolean isLive() {
+            return this.world.get() != null;
+        }
+
+        /**
+         * {@inheritDoc}
+         * Equal only if both refer to the very same world, which isn't collected yet.
+         */
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WorldKey)) {
+                return false;
+            }
+            World referent = this.world.get();
+            return referent != null && referent == ((WorldKey) o).world.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * Initialize a registry of the given predominant world, and the worlds in the given folder.
+     * Worlds in the folder with the same name as the predominant world, or as another world in the folder,
+     * are ignored.
+     *
+     * @param predominant The predominant default world
+     * @param folder      The folder of additional worlds, or {@code null} for none
+     * @param cacheSize   Maximum number of worlds from the folder kept after their last use
+     */
+    DefaultWorlds(final World predominant, final Path folder, final int cacheSize) {
+        this.predominant = predominant;
+        this.predominantHash = PersistenceHandler.computeWorldHash(predominant);
+        this.filesByName = findWorlds(folder);
+        this.filesByName.remove(predominant.getWorldName());
+        this.loadLocks = new HashMap<>();
+        this.filesByName.keySet().forEach(worldName -> this.loadLocks.put(worldName, new Object()));
+        this.cacheSize = cacheSize;
+        this.recentlyUsed = new LinkedHashMap<>(cacheSize, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, World> eldest) {
+                return this.size() > DefaultWorlds.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Get the registry shared by the whole process, loading it if this is the first use.
+     *
+     * @return The registry
+     */
+    static DefaultWorlds getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Get the predominant default {@link World}.
+     *
+     * @return The predominant default world
+     */
+    World getPredominant() {
+        return this.predominant;
+    }
+
+    /**
+     * Get the default {@link World} with the given name.
+     * Loads the world if it's in the folder, and not loaded yet.
+     *
+     * @param worldName The name of the world
+     * @return The world, or {@code null} if there's no default world with that name, or it fails to load
+     */
+    World getByName(final String worldName) {
+        if (Objects.equals(worldName, predominant.getWorldName())) {
+            return predominant;
+        }
+        Object loadLock = this.loadLocks.get(worldName);
+        if (loadLock == null) {
+            return null;
+        }
+        World world = this.getLoaded(worldName);
+        if (world != null) {
+            return world;
+        }
+        synchronized (loadLock) {
+            // Another thread may have loaded it while waiting for the lock
+            world = this.getLoaded(worldName);
+            return world != null ? world : this.loadFromFolder(worldName);
+        }
+    }
+
+    /**
+     * Get the default {@link World} with the given content hash.
+     *
+     * @param worldHash The content hash of the world
+     * @return The world, or {@code null} if no default world loaded has that content
+     */
+    World getByHash(final String worldHash) {
+        if (this.predominantHash.equals(worldHash)) {
+            return predominant;
+        }
+        WeakReference<World> loaded = this.loadedByHash.get(worldHash);
+        return loaded == null ? null : loaded.get();
+    }
+
+    /**
+     * Get the content hash of the given {@link World}, if it's a default world.
+     *
+     * @param world The world
+     * @return The content hash, or {@code null} if not a default world
+     */
+    String getHash(final World world) {
+        if (world == this.predominant) {
+            return this.predominantHash;
+        }
+        return world == null ? null : this.hashesByWorld.get(new WorldKey(world));
+    }
+
+    /**
+     * Get a {@link World} from the folder if it's loaded, marking it as the most recently used.
+     *
+     * @param worldName The name of the world
+     * @return The world, or {@code null} if it's not loaded
+     */
+    private synchronized World getLoaded(final String worldName) {
+        World world = this.recentlyUsed.get(worldName);
+        if (world == null) {
+            WeakReference<World> loaded = this.loadedByName.get(worldName);
+            world = loaded == null ? null : loaded.get();
+            if (world != null) {
+                this.recentlyUsed.put(worldName, world);
+            }
+        }
+        return world;
+    }
+
+    /**
+     * Load a {@link World} from the folder, and index it by name and content hash.
+     * Only the indexing is done while holding the lock of this registry.
+     * A file that fails to load, or no longer defines a world with the given name, is printed and ignored.
+     *
+     * @param worldName The name of the world
+     * @return The world, or {@code null} if it fails to load
+     */
+    private World loadFromFolder(final String worldName) {
+        final World world;
+        try {
+            world = PersistenceHandler.getUninjectedObjectMapper()
+                    .readValue(this.filesByName.get(worldName).toFile(), World.class);
+        } catch (IOException e) {
+            // Catch and print if exception
+            e.printStackTrace();
+            return null;
+        }
+        if (!worldName.equals(world.getWorldName())) {
+            System.err.println("World file " + this.filesByName.get(worldName) + " was changed, and no longer defines "
+                    + worldName);
+            return null;
+        }
+        String worldHash = PersistenceHandler.computeWorldHash(world);
+        synchronized (this) {
+            this.loadedByName.put(worldName, new WeakReference<>(world));
+            this.recentlyUsed.put(worldName, world);
+            // Replace the indexes read without the lock, leaving out worlds no longer referred to
+            Map<String, WeakReference<World>> byHash = new HashMap<>();
+            this.loadedByHash.forEach((hash, loaded) -> {
+                if (loaded.get() != null) {
+                    byHash.put(hash, loaded);
+                }
+            });
+            byHash.put(worldHash, new WeakReference<>(world));
+            this.loadedByHash = Map.copyOf(byHash);
+            Map<WorldKey, String> byWorld = new HashMap<>();
+            this.hashesByWorld.forEach((key, hash) -> {
+                if (key.isLive()) {
+                    byWorld.put(key, hash);
+                }
+            });
+            byWorld.put(new WorldKey(world), worldHash);
+            this.hashesByWorld = Map.copyOf(byWorld);
+        }
+        return world;
+    }
+
+    /**
+     * Find the name of the world defined by each JSON file in the given folder, reading only up to the name.
+     * Files that can't be read, or don't name their world before its countries, are printed and ignored.
+     *
+     * @param folder The folder to search, or {@code null}
+     * @return The file defining each world, by world name
+     */
+    private static Map<String, Path> findWorlds(final Path folder) {
+        Map<String, Path> filesByName = new HashMap<>();
+        if (folder == null || !Files.isDirectory(folder)) {
+            return filesByName;
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(WORLD_EXTENSION))::iterator) {
+                String worldName = readWorldName(file);
+                if (worldName == null) {
+                    System.err.println("Ignoring world file without a name before its countries: " + file);
+                } else if (filesByName.putIfAbsent(worldName, file) != null) {
+                    System.err.println("Ignoring world file with a name already used: " + file);
+                }
+            }
+        } catch (IOException e) {
+            // Catch and print if exception
+            e.printStackTrace();
+        }
+        return filesByName;
+    }
+
+    /**
+     * Read the name of the world defined by a JSON file, without reading the countries after it.
+     *
+     * @param file The JSON file
+     * @return The name, or {@code null} if the file can't be read, or doesn't name its world before its countries
+     */
+    private static String readWorldName(final Path file) {
+        try (JsonParser p = PersistenceHandler.getUninjectedObjectMapper().getFactory().createParser(file.toFile())) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = p.currentName();
+                // Move to the value of the field
+                p.nextToken();
+                if ("WorldName".equals(fieldName)) {
+                    return p.getValueAsString();
+                }
+                if ("Countries".equals(fieldName)) {
+                    return null;
+                }
+                p.skipChildren();
+            }
+        } catch (IOException e) {
+            // Catch and print if exception
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Read the JSON file the predominant default {@link World} is defined in.
+     *
+     * @return The content of the file
+     *
+     * @throws IOException If reading fails, or the file isn't shipped
+     */
+    static byte[] readPredominantSource() throws IOException {
+        try (InputStream in = DefaultWorlds.class.getResourceAsStream(PREDOMINANT_SOURCE)) {
+            if (in == null) {
+                throw new IOException("Missing default world " + PREDOMINANT_SOURCE);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Load the predominant default {@link World}, from its snapshot if a matching one is shipped.
+     * If loading fails, an empty world is used instead.
+     *
+     * @return The predominant default world
+     */
+    private static World loadPredominant() {
+        try (InputStream snapshot = DefaultWorlds.class.getResourceAsStream(PREDOMINANT_SNAPSHOT)) {
+            return load(readPredominantSource(), snapshot);
+        } catch (IOException e) {
+            // Catch and print if exception
+            e.printStackTrace();
+            return new World();
+        }
+    }
+
+    /**
+     * Load a {@link World} from its snapshot if it was made from the given JSON, otherwise by parsing the JSON.
+     * Does not use the object mapper of a {@link PersistenceHandler} to avoid circular dependency,
+     * and as its attributes aren't required for deserializing a World.
+     *
+     * @param source   The JSON the world is defined in
+     * @param snapshot The snapshot of the world, or {@code null} if none is shipped
+     * @return The world
+     *
+     * @throws IOException If parsing the JSON fails
+     */
+    static World load(final byte[] source, final InputStream snapshot) throws IOException {
+        if (snapshot != null) {
+            try {
+                World world = WorldSnapshot.read(new BufferedInputStream(snapshot), WorldSnapshot.digest(source));
+                if (world != null) {
+                    return world;
+                }
+            } catch (IOException e) {
+                // A broken snapshot only costs parsing the JSON instead
+                e.printStackTrace();
+            }
+        }
+        return PersistenceHandler.getUninjectedObjectMapper().readValue(source, World.class);
+    }
+}
@@ -0,0 +1,89 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * {@link CollectorStore} keeping a snapshot and a journal file per user, using {@link FileHandler}.
+ */
+public final class FileCollectorStore implements CollectorStore {
+
+    /**
+     * Size in bytes a journal must reach before it's compacted.
+     */
+    public static final long COMPACTION_THRESHOLD = 64 * 1024;
+
+    /**
+     * The {@link PersistenceHandler} used for (de)serialization.
+     */
+    private final PersistenceHandler persistenceHandler;
+
+    /**
+     * Initialize a FileCollectorStore.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for (de)serialization
+     */
+    public FileCollectorStore(final PersistenceHandler persistenceHandler) {
+        this.persistenceHandler = persistenceHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Files that can't be read are printed, and treated as not saved.
+     */
+    @Override
+    public CountryCollector load(final String username) throws IllegalArgumentException {
+        return FileHandler.loadCountryCollector(this.persistenceHandler, username);
+    }
+
+    @Override
+    public boolean save(final String username, final CountryCollector countryCollector)
+            throws IllegalArgumentException, IOException {
+        return FileHandler.saveCountryCollector(this.persistenceHandler, username, countryCollector);
+    }
+
+    @Override
+    public boolean exists(final String username) throws IllegalArgumentException {
+        return FileHandler.countryCollectorExists(username);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Searches every folder of the data folder, so it takes time proportional to the number of users.
+     */
+    @Override
+    public Set<String> list() throws IOException {
+        return FileHandler.listUsernames();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Appended to the user's journal, see {@link FileHandler#appendVisitEvent(PersistenceHandler, String,
+     * ChangeEvent, long)}.
+     */
+    @Override
+    public boolean appendVisitEvent(final String username, final ChangeEvent<Visit> event, final long version)
+            throws IllegalArgumentException, IOException {
+        return FileHandler.appendVisitEvent(this.persistenceHandler, username, event, version);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Folds journals of at least {@link #COMPACTION_THRESHOLD} bytes into their snapshots.
+     */
+    @Override
+    public int compact() throws IOException {
+        return FileHandler.compactJournals(this.persistenceHandler, COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Nothing to release, as files are only open while used.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -1,21 +1,48 @@
 package globingular.persistence;
 
+import globingular.core.ChangeEvent;
 import globingular.core.CountryCollector;
 import globingular.core.GlobingularModule;
+import globingular.core.Visit;
 import globingular.core.World;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Low-level class handling all direct access to files.
+ * <p>Low-level class handling all direct access to files.</p>
+ *
+ * <p>Each user's {@link CountryCollector} is saved as a snapshot, along with a journal of the visits added and
+ * removed since the snapshot was saved (see {@link #appendVisitEvent(PersistenceHandler, String, ChangeEvent, long)}).
+ * Loading replays the journal on the snapshot, and saving a new snapshot empties the journal.
+ * Access to the files of a user is serialized, so that appending never races with saving a snapshot.
+ * Snapshots are saved in the {@link PersistenceHandler.StorageFormat} of the given PersistenceHandler,
+ * and loaded in whichever format they were saved in, picked by their first bytes.</p>
+ *
+ * <p>Every write returns once durable, and is committed together with the writes of other users made at the
+ * same time, see {@link GroupCommitWriter}. Snapshots are replaced by renaming a complete copy over them,
+ * so that a crash never leaves a partially written snapshot.</p>
+ *
+ * <p>The files of users are spread over {@link #SHARD_DEPTH} levels of subdirectories, each with at most
+ * {@link #SHARD_FAN_OUT} subdirectories named by a hash of the username, e.g. {@code 3f/a2/username.json},
+ * so that no single directory grows large however many users there are. Files in any other layout,
+ * e.g. the flat layout used by earlier versions, are moved into place once, the first time files are accessed.</p>
  */
 public final class FileHandler {
 
@@ -29,9 +56,87 @@ public final class FileHandler {
      */
     private static final String DEFAULT_USERNAME = "default";
     /**
-     * Define which file to get standard world map {@link World} from.
+     * File extension of snapshots of CountryCollectors.
      */
-    private static final String DEFAULT_WORLD_FILENAME = "/json/sampleWorld.json";
+    private static final String SNAPSHOT_EXTENSION = ".json";
+    /**
+     * File extension of journals of changes since the snapshot, see {@link VisitJournal}.
+     */
+    private static final String JOURNAL_EXTENSION = ".journal";
+    /**
+     * Number of subdirectories in each level of the data folder. Configured with system property
+     * {@code globingular.shardfanout}.
+     */
+    static final int SHARD_FAN_OUT = Integer.getInteger("globingular.shardfanout", 256);
+    /**
+     * Number of levels of subdirectories in the data folder, 0 meaning every file is kept in the data folder itself.
+     * Configured with system property {@code globingular.sharddepth}.
+     */
+    static final int SHARD_DEPTH = Integer.getInteger("globingular.sharddepth", 2);
+    /**
+     * Whether snapshots are saved compressed, see {@link Compression}. Configured with system property
+     * {@code globingular.compress}. Compressed snapshots are loaded either way.
+     */
+    static final boolean COMPRESSED = Boolean.getBoolean("globingular.compress");
+    /**
+     * Folder in the data folder keeping every dictionary snapshots have been compressed with.
+     */
+    private static final String DICTIONARY_FOLDER = "dictionaries";
+    /**
+     * File extension of compression dictionaries.
+     */
+    private static final String DICTIONARY_EXTENSION = ".dict";
+    /**
+     * File in the data folder recording the layout its files are in, see {@link #migrateLayout(Path)}.
+     */
+    private static final String LAYOUT_FILENAME = "layout";
+    /**
+     * First shift of {@link #mixHash(int)}.
+     */
+    private static final int MIX_SHIFT_1 = 16;
+    /**
+     * Second shift of {@link #mixHash(int)}.
+     */
+    private static final int MIX_SHIFT_2 = 13;
+    /**
+     * First multiplier of {@link #mixHash(int)}.
+     */
+    private static final int MIX_MULTIPLIER_1 = 0x85ebca6b;
+    /**
+     * Second multiplier of {@link #mixHash(int)}.
+     */
+    private static final int MIX_MULTIPLIER_2 = 0xc2b2ae35;
+    /**
+     * Number of locks that access to the files of users is spread over, see {@link #lockFor(Path)}.
+     */
+    private static final int LOCK_STRIPES = 64;
+    /**
+     * Locks serializing access to the files of users. Users share locks, to keep their number bounded.
+     */
+    private static final Object[] LOCKS = new Object[LOCK_STRIPES];
+    /**
+     * Writer making writes durable, batched together with the writes of other users made at the same time.
+     */
+    private static final GroupCommitWriter WRITER = new GroupCommitWriter();
+    /**
+     * Whether the data folder is known to be in the configured layout.
+     */
+    private static volatile boolean layoutMigrated;
+    /**
+     * The identifiers of the dictionaries snapshots are compressed with, see {@link Compression#dictionaryId(byte[])},
+     * known to be saved in {@link #DICTIONARY_FOLDER}.
+     */
+    private static final Set<Integer> SAVED_DICTIONARIES = ConcurrentHashMap.newKeySet();
+
+    static {
+        if (SHARD_FAN_OUT < 1 || SHARD_DEPTH < 0) {
+            throw new IllegalArgumentException("Invalid shard fan-out or depth: "
+                    + SHARD_FAN_OUT + ", " + SHARD_DEPTH);
+        }
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
 
     /**
      * Private constructor to disallow instantiation.
@@ -45,41 +150,43 @@ public final class FileHandler {
      * @param username           The username to retrieve a countryCollector for (aka. filename).
      *                           If null is given, default filename is used.
      * @param persistenceHandler The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s
-     *                           and injected values to use for deserialization.
+     *                           and attributes to use for deserialization.
      * @return A CountryCollector instance containing data loaded from file, or null if failed.
      */
     public static CountryCollector loadCountryCollector(final PersistenceHandler persistenceHandler,
                                                         final String username) {
         CountryCollector countryCollector = null;
-        File file = pathFromUsername(username, DEFAULT_USERNAME).toFile();
-        if (file.isFile()) {
-            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
-                countryCollector = persistenceHandler.getObjectMapper().readValue(in, CountryCollector.class);
-            } catch (IOException e) {
-                // Catch and print if exception
-                e.printStackTrace();
+        Path path = pathFromUsername(username, DEFAULT_USERNAME);
+        File file = path.toFile();
+        synchronized (lockFor(path)) {
+            if (file.isFile()) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    InputStream snapshot = in;
+                    // Compressed snapshots are recognized by their first bytes, whether saved compressed or not
+                    if (Compression.startsWithMagic(in)) {
+                        snapshot = new ByteArrayInputStream(Compression.decompress(in, FileHandler::loadDictionary));
+                    }
+                    countryCollector = persistenceHandler.readCountryCollector(snapshot);
+                    // Apply the changes made since the snapshot was saved
+                    replayJournal(persistenceHandler, journalPath(path), countryCollector);
+                } catch (IOException e) {
+                    // Catch and print if exception
+                    e.printStackTrace();
+                    countryCollector = null;
+                }
             }
         }
         return countryCollector;
     }
 
     /**
-     * Load the predominant default {@link World} from file in the application package.
-     * Does not use the injected object mapper to avoid circular dependency,
-     * and as injection isn't required for deserializing a World.
+     * Get the predominant default {@link World} shipped in the application package.
+     * Loaded once per process, and shared, see {@link DefaultWorlds}.
      *
      * @return Predominant default World-instance.
      */
     static World loadPredominantDefaultWorld() {
-        World world = new World();
-        try (InputStream in = PersistenceHandler.class.getResourceAsStream(DEFAULT_WORLD_FILENAME)) {
-            world = PersistenceHandler.getUninjectedObjectMapper().readValue(in, World.class);
-        } catch (IOException e) {
-            // Catch and print if exception
-            e.printStackTrace();
-        }
-
-        return world;
+        return DefaultWorlds.getInstance().getPredominant();
     }
 
     /**
@@ -87,7 +194,7 @@ public final class FileHandler {
      * If countryCollector is null, will try to delete instead.
      *
      * @param persistenceHandler The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s
-     *                           and injected values to use for serialization.
+     *                           and attributes to use for serialization.
      * @param username         The username to save state for (and use as filename).
      *                         If null is given, default filename is used instead.
      * @param countryCollector The CountryCollector instance to save.
@@ -99,20 +206,222 @@ public final class FileHandler {
      */
     public static boolean saveCountryCollector(final PersistenceHandler persistenceHandler, final String username,
             final CountryCollector countryCollector) throws IllegalArgumentException, IOException {
-        // Make sure necessary directories exist before trying to write files
-        // May throw IOException
-        Files.createDirectories(DATA_FOLDER);
         // If countryCollector is null, delete file
         if (countryCollector == null) {
             return deleteCountryCollector(username);
         }
-        // Try to save
-        // Caught exception is thrown. Using try-with to ensure closing of writer.
-        try (Writer out = Files.newBufferedWriter(pathFromUsername(username, DEFAULT_USERNAME))) {
-            persistenceHandler.getObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, countryCollector);
+        Path path = pathFromUsername(username, DEFAULT_USERNAME);
+        // Make sure necessary directories exist before trying to write files
+        // May throw IOException
+        Files.createDirectories(path.getParent());
+        synchronized (lockFor(path)) {
+            byte[] content = persistenceHandler.writeCountryCollector(countryCollector);
+            if (COMPRESSED) {
+                // The dictionary is needed to load the snapshot, so it's saved first
+                byte[] dictionary = Compression.getDictionary(persistenceHandler.getStorageFormat());
+                ensureDictionarySaved(dictionary);
+                content = Compression.compress(content, dictionary);
+            }
+            // Try to save, returning once durable. Caught exception is thrown.
+            WRITER.replace(path, content);
+            // The snapshot now includes every change in the journal.
+            // Only deleted once the snapshot is durable, as records at or below its version are skipped on replay.
+            WRITER.delete(journalPath(path));
             return true;
+        }
+    }
+
+    /**
+     * Save the given dictionary snapshots are compressed with, see
+     * {@link Compression#getDictionary(PersistenceHandler.StorageFormat)}, unless already saved. Every dictionary
+     * ever used is kept, so that snapshots compressed with a dictionary built from an older version of the default
+     * world can still be loaded.
+     *
+     * @param dictionary The dictionary
+     *
+     * @throws IOException If saving fails
+     */
+    private static void ensureDictionarySaved(final byte[] dictionary) throws IOException {
+        int dictionaryId = Compression.dictionaryId(dictionary);
+        if (SAVED_DICTIONARIES.contains(dictionaryId)) {
+            return;
+        }
+        Path path = dictionaryPath(dictionaryId);
+        if (!path.toFile().isFile()) {
+            Files.createDirectories(path.getParent());
+            WRITER.replace(path, dictionary);
+        }
+        SAVED_DICTIONARIES.add(dictionaryId);
+    }
+
+    /**
+     * Load the compression dictionary with the given identifier, see {@link Compression#dictionaryId(byte[])}.
+     *
+     * @param dictionaryId The identifier of the dictionary
+     * @return The dictionary, or {@code null} if it's neither a current one nor saved
+     */
+    private static byte[] loadDictionary(final int dictionaryId) {
+        // Snapshots in either format may be loaded, whichever format is saved in
+        for (PersistenceHandler.StorageFormat storageFormat : PersistenceHandler.StorageFormat.values()) {
+            byte[] dictionary = Compression.getDictionary(storageFormat);
+            if (Compression.dictionaryId(dictionary) == dictionaryId) {
+                return dictionary;
+            }
+        }
+        Path path = dictionaryPath(dictionaryId);
+        try {
+            return path.toFile().isFile() ? Files.readAllBytes(path) : null;
         } catch (IOException e) {
-            throw e;
+            // Catch and print if exception
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get the path of the compression dictionary with the given identifier.
+     *
+     * @param dictionaryId The identifier of the dictionary
+     * @return The path of the dictionary
+     */
+    private static Path dictionaryPath(final int dictionaryId) {
+        return DATA_FOLDER.resolve(DICTIONARY_FOLDER).resolve(Integer.toHexString(dictionaryId) + DICTIONARY_EXTENSION);
+    }
+
+    /**
+     * Append a change to the journal of the {@link CountryCollector} saved for the given username,
+     * instead of saving the whole CountryCollector again. The change must already have been made
+     * to the CountryCollector, so that a snapshot saved concurrently either includes it or is followed by it,
+     * and the lock of the CountryCollector must still be held, so that records are in the order the changes were
+     * made. The record is stamped with the version, so that it's skipped when replayed on a snapshot including it,
+     * see {@link VisitJournal}.
+     * Nothing is appended if no CountryCollector is saved for the username, as there's nothing to apply it to.
+     *
+     * @param persistenceHandler The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s
+     *                           and attributes to use for serialization.
+     * @param username           The username to append a change for.
+     *                           If null is given, default filename is used instead.
+     * @param event              The visit added or removed
+     * @param version            The version of the CountryCollector after the change
+     * @return True if appended, false if no CountryCollector is saved for the username
+     *
+     * @throws IllegalArgumentException If filename is not alphanumeric, or if the event isn't an addition or removal
+     * @throws IOException              If exception is thrown upon appending
+     */
+    public static boolean appendVisitEvent(final PersistenceHandler persistenceHandler, final String username,
+            final ChangeEvent<Visit> event, final long version) throws IllegalArgumentException, IOException {
+        String record = VisitJournal.encode(persistenceHandler, event, version) + "\n";
+        Path path = pathFromUsername(username, DEFAULT_USERNAME);
+        synchronized (lockFor(path)) {
+            if (!path.toFile().isFile()) {
+                return false;
+            }
+            // Returning once durable
+            WRITER.append(journalPath(path), record.getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+    }
+
+    /**
+     * Fold the journal of the given username into a new snapshot, and empty the journal.
+     * A journal without a snapshot to apply it to is deleted.
+     *
+     * @param persistenceHandler The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s
+     *                           and attributes to use for (de)serialization.
+     * @param username           The username to compact the journal of
+     * @return True if compacted, false if there was no journal, or the snapshot or journal couldn't be read
+     *
+     * @throws IllegalArgumentException If filename is not alphanumeric
+     * @throws IOException              If exception is thrown upon saving
+     */
+    public static boolean compactJournal(final PersistenceHandler persistenceHandler, final String username)
+            throws IllegalArgumentException, IOException {
+        Path path = pathFromUsername(username, DEFAULT_USERNAME);
+        synchronized (lockFor(path)) {
+            if (!journalPath(path).toFile().isFile()) {
+                return false;
+            }
+            if (!path.toFile().isFile()) {
+                WRITER.delete(journalPath(path));
+                return true;
+            }
+            CountryCollector countryCollector = loadCountryCollector(persistenceHandler, username);
+            if (countryCollector == null) {
+                // Leave both in place, rather than losing changes
+                return false;
+            }
+            return saveCountryCollector(persistenceHandler, username, countryCollector);
+        }
+    }
+
+    /**
+     * Compact every journal at least {@code minimumSize} bytes long,
+     * see {@link #compactJournal(PersistenceHandler, String)}.
+     * Continues with the remaining journals if compacting one of them fails.
+     *
+     * @param persistenceHandler The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s
+     *                           and attributes to use for (de)serialization.
+     * @param minimumSize        The size in bytes a journal must have to be compacted
+     * @return The number of journals compacted
+     *
+     * @throws IOException If listing the journals fails
+     */
+    public static int compactJournals(final PersistenceHandler persistenceHandler, final long minimumSize)
+            throws IOException {
+        if (!DATA_FOLDER.toFile().isDirectory()) {
+            return 0;
+        }
+        ensureLayoutMigrated();
+        int compacted = 0;
+        try (Stream<Path> files = Files.walk(DATA_FOLDER, SHARD_DEPTH + 1)) {
+            List<Path> journals = files.filter(path -> path.getFileName().toString().endsWith(JOURNAL_EXTENSION))
+                    .collect(Collectors.toList());
+            for (Path journal : journals) {
+                String filename = journal.getFileName().toString();
+                String username = filename.substring(0, filename.length() - JOURNAL_EXTENSION.length());
+                try {
+                    if (Files.size(journal) >= minimumSize && compactJournal(persistenceHandler, username)) {
+                        compacted++;
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    // Catch and print if exception
+                    e.printStackTrace();
+                }
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Check if a {@link CountryCollector} is saved for the given username.
+     *
+     * @param username The username to check
+     * @return True if a snapshot is saved for the username
+     *
+     * @throws IllegalArgumentException If filename is not alphanumeric
+     */
+    public static boolean countryCollectorExists(final String username) throws IllegalArgumentException {
+        return pathFromUsername(username, DEFAULT_USERNAME).toFile().isFile();
+    }
+
+    /**
+     * List every username with a {@link CountryCollector} saved, by searching the data folder.
+     *
+     * @return The usernames, in lowercase
+     *
+     * @throws IOException If searching the data folder fails
+     */
+    public static Set<String> listUsernames() throws IOException {
+        if (!DATA_FOLDER.toFile().isDirectory()) {
+            return Set.of();
+        }
+        ensureLayoutMigrated();
+        try (Stream<Path> files = Files.walk(DATA_FOLDER, SHARD_DEPTH + 1)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(filename -> filename.endsWith(SNAPSHOT_EXTENSION))
+                    .map(filename -> filename.substring(0, filename.length() - SNAPSHOT_EXTENSION.length()))
+                    .filter(GlobingularModule::isUsernameValid)
+                    .collect(Collectors.toUnmodifiableSet());
         }
     }
 
@@ -123,13 +432,62 @@ public final class FileHandler {
      * @return         True if successfully deleted
      *
      * @throws IllegalArgumentException If filename is not alphanumeric
+     * @throws IOException              If deleting fails
+     */
+    private static boolean deleteCountryCollector(final String username) throws IllegalArgumentException,
+            IOException {
+        Path path = pathFromUsername(username, DEFAULT_USERNAME);
+        synchronized (lockFor(path)) {
+            // Delete the journal first, so that it's never left to be replayed on a future snapshot
+            WRITER.delete(journalPath(path));
+            if (path.toFile().isFile()) {
+                WRITER.delete(path);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Replay the journal at the given path on the given {@link CountryCollector}, if there is one.
+     *
+     * @param persistenceHandler The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s
+     *                           and attributes to use for deserialization.
+     * @param journal            The path of the journal
+     * @param countryCollector   The CountryCollector to replay the journal on
+     *
+     * @throws IOException If reading fails, or if the journal is malformed
      */
-    private static boolean deleteCountryCollector(final String username) throws IllegalArgumentException {
-        File file = pathFromUsername(username, DEFAULT_USERNAME).toFile();
-        if (file.isFile()) {
-            return file.delete();
+    private static void replayJournal(final PersistenceHandler persistenceHandler, final Path journal,
+            final CountryCollector countryCollector) throws IOException {
+        if (!journal.toFile().isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            VisitJournal.replay(persistenceHandler, in, countryCollector);
         }
-        return false;
+    }
+
+    /**
+     * Get the path of the journal belonging to the snapshot at the given path.
+     *
+     * @param snapshot The path of the snapshot
+     * @return The path of the journal
+     */
+    private static Path journalPath(final Path snapshot) {
+        String filename = snapshot.getFileName().toString();
+        return snapshot.resolveSibling(filename.substring(0, filename.length() - SNAPSHOT_EXTENSION.length())
+                + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * Get the lock serializing access to the files of the snapshot at the given path.
+     *
+     * @param snapshot The path of the snapshot
+     * @return The lock to synchronize on
+     */
+    private static Object lockFor(final Path snapshot) {
+        return LOCKS[Math.floorMod(snapshot.hashCode(), LOCKS.length)];
     }
 
     /**
@@ -157,6 +515,129 @@ public final class FileHandler {
         if (!GlobingularModule.isUsernameValid(username.toLowerCase())) {
             throw new IllegalArgumentException("Filename must be alphanumeric: " + username);
         }
-        return DATA_FOLDER.resolve(username.toLowerCase() + ".json");
+        ensureLayoutMigrated();
+        return shardFolder(DATA_FOLDER, username.toLowerCase()).resolve(username.toLowerCase() + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * Get the path of the snapshot saved for the given username.
+     *
+     * @param username The username, or null for the default filename
+     * @return The path of the snapshot
+     *
+     * @throws IllegalArgumentException If username is invalid
+     */
+    static Path snapshotPath(final String username) throws IllegalArgumentException {
+        return pathFromUsername(username, DEFAULT_USERNAME);
+    }
+
+    /**
+     * Get the subdirectory of the given folder that the files of the given username are kept in.
+     * The subdirectories are picked by a hash of the username, so that users are spread evenly over them.
+     *
+     * @param folder   The data folder
+     * @param username The username, in lowercase
+     * @return The folder to keep the files of the username in
+     */
+    private static Path shardFolder(final Path folder, final String username) {
+        // Mix the bits, as similar usernames have similar String hashes
+        long remaining = Integer.toUnsignedLong(mixHash(username.hashCode()));
+        String format = "%0" + Integer.toHexString(SHARD_FAN_OUT - 1).length() + "x";
+        Path shard = folder;
+        for (int level = 0; level < SHARD_DEPTH; level++) {
+            shard = shard.resolve(String.format(format, remaining % SHARD_FAN_OUT));
+            remaining /= SHARD_FAN_OUT;
+        }
+        return shard;
+    }
+
+    /**
+     * Spread the bits of the given hash over all bits of the result, using the finalizer of MurmurHash3.
+     *
+     * @param hash The hash to mix
+     * @return The mixed hash
+     */
+    private static int mixHash(final int hash) {
+        int mixed = hash ^ hash >>> MIX_SHIFT_1;
+        mixed *= MIX_MULTIPLIER_1;
+        mixed ^= mixed >>> MIX_SHIFT_2;
+        mixed *= MIX_MULTIPLIER_2;
+        return mixed ^ mixed >>> MIX_SHIFT_1;
+    }
+
+    /**
+     * Move the files in the data folder into the configured layout, unless already done by this process.
+     * Failing to move them is printed, and tried again the next time files are accessed.
+     */
+    private static void ensureLayoutMigrated() {
+        if (layoutMigrated) {
+            return;
+        }
+        synchronized (FileHandler.class) {
+            if (!layoutMigrated) {
+                try {
+                    migrateLayout(DATA_FOLDER);
+                    layoutMigrated = true;
+                } catch (IOException e) {
+                    // Catch and print if exception
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Move every snapshot and journal in the given folder that isn't where the configured layout puts it,
+     * e.g. files saved in the flat layout used by earlier versions, or with another fan-out or depth.</p>
+     *
+     * <p>The layout the files are in is recorded in a file in the folder once they've been moved,
+     * so that the folder is only searched again when the layout is changed.
+     * Files are moved by renaming them, so that each file is always found in one place or the other.
+     * A file already found in its new place isn't replaced, but left where it is.</p>
+     *
+     * @param folder The data folder to migrate
+     * @return The number of files moved
+     *
+     * @throws IOException If reading or writing the folder fails
+     */
+    static int migrateLayout(final Path folder) throws IOException {
+        String layout = "fanout=" + SHARD_FAN_OUT + "\ndepth=" + SHARD_DEPTH + "\n";
+        Path layoutFile = folder.resolve(LAYOUT_FILENAME);
+        if (!folder.toFile().isDirectory()
+                || layoutFile.toFile().isFile() && layout.equals(Files.readString(layoutFile))) {
+            return 0;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(folder)) {
+            files = walk.filter(path -> path.toFile().isFile()).collect(Collectors.toList());
+        }
+        int moved = 0;
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Path file : files) {
+            String filename = file.getFileName().toString();
+            String extension = filename.endsWith(SNAPSHOT_EXTENSION) ? SNAPSHOT_EXTENSION
+                    : filename.endsWith(JOURNAL_EXTENSION) ? JOURNAL_EXTENSION : null;
+            String username = extension == null ? null
+                    : filename.substring(0, filename.length() - extension.length());
+            // Leave files that aren't snapshots or journals of users alone
+            if (username == null || !GlobingularModule.isUsernameValid(username)) {
+                continue;
+            }
+            Path target = shardFolder(folder, username).resolve(filename);
+            if (target.equals(file) || target.toFile().exists()) {
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            directories.add(file.getParent());
+            directories.add(target.getParent());
+            moved++;
+        }
+        // Make the moves durable before recording that they're done
+        for (Path directory : directories) {
+            GroupCommitWriter.forceDirectory(directory);
+        }
+        WRITER.replace(layoutFile, layout.getBytes(StandardCharsets.UTF_8));
+        return moved;
     }
 }
@@ -0,0 +1,416 @@
+package globingular.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Makes writes to files durable in batches, shared by every thread writing at the same time (group commit).</p>
+ *
+ * <p>A replaced file is written to a temporary file and forced to disk by the thread replacing it, so that
+ * callers force their files in parallel. A single background thread then takes every write waiting when it's
+ * ready, and commits them together: temporary files are renamed over their targets, appended files are forced
+ * once no matter how many records were appended to them, and finally each directory involved is forced once,
+ * so that new, renamed and deleted files survive a crash as well. Each caller returns once the batch including
+ * its write is durable, so that under load many callers share the cost of forcing journals and directories,
+ * instead of paying for it one at a time.</p>
+ *
+ * <p>A write only fails on its own account, or when the directory it's in fails to be forced: an append
+ * that fails partway fails every later append to the same file in the batch, as they'd follow torn bytes,
+ * but writes to other files are unaffected.</p>
+ *
+ * <p>Writes are committed in the order they were submitted. Callers writing the same file at once
+ * must agree on their order themselves, e.g. by holding a lock while writing.</p>
+ */
+final class GroupCommitWriter {
+
+    /**
+     * Maximum number of writes committed in a single batch.
+     */
+    static final int MAXIMUM_BATCH_SIZE = 256;
+
+    /**
+     * Suffix of the temporary files written before being renamed over their target.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Whether directories can be forced to disk on this platform. Windows can't open directories for this,
+     * and makes their entries durable without it.
+     */
+    private static final boolean DIRECTORY_FORCE_SUPPORTED =
+            !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+
+    /**
+     * Writes waiting to be committed.
+     */
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Number of batches committed.
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * Number of writes committed.
+     */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * Initialize a GroupCommitWriter, starting its background thread.
+     * The thread doesn't keep the process alive, but callers waiting for it do.
+     */
+    GroupCommitWriter() {
+        Thread committer = new Thread(this::commitForever, "globingular-group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Durably replace the content of the given file, creating it if missing.
+     * The file is never left partially written, as it's replaced by renaming a complete copy over it.
+     * The copy is written and forced to disk on the calling thread, and only renamed as part of a batch.
+     *
+     * @param target  The file to replace
+     * @param content The new content of the file
+     *
+     * @throws IOException If writing fails
+     */
+    void replace(final Path target, final byte[] content) throws IOException {
+        try (FileChannel channel = FileChannel.open(temporaryPath(target), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, content);
+            channel.force(false);
+        }
+        this.submit(new PendingWrite(Operation.REPLACE, target, null));
+    }
+
+    /**
+     * Durably append to the given file, creating it if missing.
+     *
+     * @param target  The file to append to
+     * @param content The content to append
+     *
+     * @throws IOException If writing fails
+     */
+    void append(final Path target, final byte[] content) throws IOException {
+        this.submit(new PendingWrite(Operation.APPEND, target, content));
+    }
+
+    /**
+     * Durably delete the given file, if it exists.
+     *
+     * @param target The file to delete
+     *
+     * @throws IOException If deleting fails
+     */
+    void delete(final Path target) throws IOException {
+        this.submit(new PendingWrite(Operation.DELETE, target, null));
+    }
+
+    /**
+     * Get the number of batches committed so far.
+     *
+     * @return The number of batches
+     */
+    long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    /**
+     * Get the number of writes committed so far.
+     *
+     * @return The number of writes
+     */
+    long getWriteCount() {
+        return this.writeCount.get();
+    }
+
+    /**
+     * Queue the given write, and wait until the batch including it is durable.
+     *
+     * @param write The write to commit
+     *
+     * @throws IOException If committing the write fails, or if interrupted while waiting
+     */
+    private void submit(final PendingWrite write) throws IOException {
+        this.queue.add(write);
+        try {
+            write.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + write.target + " to be written");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed writing " + write.target, e.getCause());
+        }
+    }
+
+    /**
+     * Commit batches of waiting writes for as long as the process lives.
+     */
+    private void commitForever() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                // Wait for the first write, then include every other write waiting at that point
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, MAXIMUM_BATCH_SIZE - 1);
+                this.commit(batch);
+            } catch (InterruptedException e) {
+                // Never interrupted on purpose, keep committing for the callers waiting
+            } catch (RuntimeException e) {
+                // Don't leave callers waiting forever
+                batch.forEach(write -> write.done.completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Commit the given writes as a single batch, completing each of them when durable, or when failed.
+     * Only called by the background thread, and by tests.
+     *
+     * @param batch The writes to commit
+     */
+    void commit(final List<PendingWrite> batch) {
+        Map<Path, FileChannel> appended = new HashMap<>();
+        Map<Path, List<PendingWrite>> appendsByTarget = new HashMap<>();
+        // Failures by write, as a failed write doesn't fail other writes to the same file, except appends
+        Map<PendingWrite, IOException> failures = new HashMap<>();
+        Map<Path, IOException> tornTargets = new HashMap<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        try {
+            for (PendingWrite write : batch) {
+                try {
+                    switch (write.operation) {
+                        case REPLACE:
+                            Files.move(temporaryPath(write.target), write.target, StandardCopyOption.ATOMIC_MOVE,
+                                    StandardCopyOption.REPLACE_EXISTING);
+                            break;
+                        case APPEND:
+                            IOException torn = tornTargets.get(write.target);
+                            if (torn != null) {
+                                // Would follow the torn bytes of an earlier append
+                                throw torn;
+                            }
+                            appendNow(appended, write);
+                            appendsByTarget.computeIfAbsent(write.target, target -> new ArrayList<>()).add(write);
+                            break;
+                        default:
+                            Files.deleteIfExists(write.target);
+                    }
+                    directories.add(write.target.toAbsolutePath().getParent());
+                } catch (IOException e) {
+                    failures.put(write, e);
+                    if (write.operation == Operation.APPEND) {
+                        tornTargets.putIfAbsent(write.target, e);
+                    }
+                }
+            }
+            // Force every appended file once, however many records were appended to it
+            for (Map.Entry<Path, FileChannel> entry : appended.entrySet()) {
+                try {
+                    entry.getValue().force(false);
+                } catch (IOException e) {
+                    appendsByTarget.get(entry.getKey()).forEach(write -> failures.putIfAbsent(write, e));
+                }
+            }
+        } finally {
+            closeAll(appended.values());
+        }
+        // Force every directory once, making new, renamed and deleted files durable
+        Map<Path, IOException> directoryFailures = new HashMap<>();
+        for (Path directory : directories) {
+            try {
+                forceDirectory(directory);
+            } catch (IOException e) {
+                directoryFailures.put(directory, e);
+            }
+        }
+
+        this.batchCount.incrementAndGet();
+        this.writeCount.addAndGet(batch.size());
+        for (PendingWrite write : batch) {
+            IOException failure = failures.get(write);
+            if (failure == null) {
+                failure = directoryFailures.get(write.target.toAbsolutePath().getParent());
+            }
+            if (failure == null) {
+                write.done.complete(null);
+            } else {
+                write.done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Append the content of the given write to its target, through the channel open for it in this batch.
+     * If appending fails, the channel is closed and dropped, so that nothing else is appended through it.
+     *
+     * @param appended The channels open in this batch, by target
+     * @param write    The append to write
+     *
+     * @throws IOException If opening the file or appending fails
+     */
+    private static void appendNow(final Map<Path, FileChannel> appended, final PendingWrite write)
+            throws IOException {
+        FileChannel channel = appended.get(write.target);
+        if (channel == null) {
+            channel = FileChannel.open(write.target, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            appended.put(write.target, channel);
+        }
+        try {
+            writeFully(channel, write.content);
+        } catch (IOException e) {
+            appended.remove(write.target);
+            closeAll(List.of(channel));
+            throw e;
+        }
+    }
+
+    /**
+     * Close the given channels, ignoring failures, as they're already forced or already failed.
+     *
+     * @param channels The channels to close
+     */
+    private static void closeAll(final Iterable<FileChannel> channels) {
+        for (FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already forced, or already failed
+            }
+        }
+    }
+
+    /**
+     * Get the temporary file the given file is replaced by.
+     *
+     * @param target The file to replace
+     * @return The temporary file next to it
+     */
+    private static Path temporaryPath(final Path target) {
+        return target.resolveSibling(target.getFileName() + TEMPORARY_SUFFIX);
+    }
+
+    /**
+     * Write all of the given content to the given channel.
+     *
+     * @param channel The channel to write to
+     * @param content The content to write
+     *
+     * @throws IOException If writing fails
+     */
+    private static void writeFully(final FileChannel channel, final byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Force the entries of the given directory to disk.
+     * Does nothing on platforms that can't open directories for this, and make them durable without it,
+     * see {@link #DIRECTORY_FORCE_SUPPORTED}.
+     *
+     * A directory that doesn't exist has nothing to force.
+     *
+     * @param directory The directory to force
+     *
+     * @throws IOException If forcing fails, e.g. on an I/O error of the disk
+     */
+    static void forceDirectory(final Path directory) throws IOException {
+        if (!DIRECTORY_FORCE_SUPPORTED) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // Nothing left in it to make durable, e.g. after deleting a file that was already missing
+        }
+    }
+
+    /**
+     * The kinds of writes that can be committed.
+     */
+    enum Operation {
+        /**
+         * Replace the content of a file, by renaming the temporary file written over it.
+         */
+        REPLACE,
+        /**
+         * Append to a file.
+         */
+        APPEND,
+        /**
+         * Delete a file.
+         */
+        DELETE
+    }
+
+    /**
+     * A write waiting to be committed.
+     */
+    static final class PendingWrite {
+        /**
+         * The kind of write.
+         */
+        private final Operation operation;
+        /**
+         * The file to write.
+         */
+        private final Path target;
+        /**
+         * The content to append, or null when replacing or deleting.
+         */
+        private final byte[] content;
+        /**
+         * Completed when the write is durable, or when it has failed.
+         */
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        /**
+         * Create a new write waiting to be committed.
+         *
+         * @param operation The kind of write
+         * @param target    The file to write
+         * @param content   The content to append, or null when replacing or deleting
+         */
+        PendingWrite(final Operation operation, final Path target, final byte[] content) {
+            this.operation = operation;
+            this.target = target;
+            this.content = content;
+        }
+
+        /**
+         * Get the future completed when this write is durable, or when it has failed.
+         *
+         * @return The future
+         */
+        CompletableFuture<Void> getDone() {
+            return this.done;
+        }
+    }
+}
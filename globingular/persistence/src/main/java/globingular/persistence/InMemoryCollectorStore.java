@@ -0,0 +1,116 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.CountryCollector;
+import globingular.core.GlobingularModule;
+import globingular.core.Visit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>{@link CollectorStore} keeping every user in memory, and nothing on disk.</p>
+ *
+ * <p>Meant for tests and benchmarks, e.g. of the REST API without the cost of disk access.
+ * CountryCollectors are still serialized when saved and deserialized when loaded, like the other stores do,
+ * so that loading returns a copy, and the cost of (de)serializing is included.
+ * Everything saved is lost when the process ends.</p>
+ */
+public final class InMemoryCollectorStore implements CollectorStore {
+
+    /**
+     * The {@link PersistenceHandler} used for (de)serialization.
+     */
+    private final PersistenceHandler persistenceHandler;
+
+    /**
+     * The serialized CountryCollector of each user.
+     */
+    private final Map<String, byte[]> savedByUsername = new ConcurrentHashMap<>();
+
+    /**
+     * Initialize an empty InMemoryCollectorStore.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for (de)serialization
+     */
+    public InMemoryCollectorStore(final PersistenceHandler persistenceHandler) {
+        this.persistenceHandler = persistenceHandler;
+    }
+
+    @Override
+    public CountryCollector load(final String username) throws IllegalArgumentException, IOException {
+        byte[] saved = this.savedByUsername.get(validate(username));
+        if (saved == null) {
+            return null;
+        }
+        return this.persistenceHandler.readCountryCollector(new ByteArrayInputStream(saved));
+    }
+
+    @Override
+    public boolean save(final String username, final CountryCollector countryCollector)
+            throws IllegalArgumentException, IOException {
+        String key = validate(username);
+        if (countryCollector == null) {
+            return this.savedByUsername.remove(key) != null;
+        }
+        this.savedByUsername.put(key, this.persistenceHandler.writeCountryCollector(countryCollector));
+        return true;
+    }
+
+    @Override
+    public boolean exists(final String username) throws IllegalArgumentException {
+        return this.savedByUsername.containsKey(validate(username));
+    }
+
+    @Override
+    public Set<String> list() {
+        return Set.copyOf(this.savedByUsername.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     * Never saved by itself, as saving the whole CountryCollector in memory is cheap.
+     */
+    @Override
+    public boolean appendVisitEvent(final String username, final ChangeEvent<Visit> event, final long version)
+            throws IllegalArgumentException {
+        validate(username);
+        return false;
+    }
+
+    /**
+     * Nothing to compact, as replaced CountryCollectors are dropped at once.
+     *
+     * @return 0
+     */
+    @Override
+    public int compact() {
+        return 0;
+    }
+
+    /**
+     * Forget every user saved.
+     */
+    @Override
+    public void close() {
+        this.savedByUsername.clear();
+    }
+
+    /**
+     * Validate the given username, and return it in lowercase.
+     *
+     * @param username The username to validate
+     * @return The username in lowercase
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     */
+    private static String validate(final String username) throws IllegalArgumentException {
+        if (username == null || !GlobingularModule.isUsernameValid(username.toLowerCase())) {
+            throw new IllegalArgumentException("Username must be alphanumeric: " + username);
+        }
+        return username.toLowerCase();
+    }
+}
@@ -1,13 +1,21 @@
 package globingular.persistence;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
 import globingular.core.World;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
 
 /**
  * <p>PersistenceHandler handles file reading and writing from JSON
@@ -25,73 +33,200 @@ import java.util.Map;
 public class PersistenceHandler {
 
     /**
-     * Static key used for injecting and retrieving a map used for deserialization.
-     * The map allows for values to be added in context for further deserialization.
-     */
-    public static final String INJECTED_MAP = "_globingular_map";
-    /**
-     * Static key used for storing a reference to a {@link World} used for further deserialization.
+     * Static key of the per-call attribute holding the {@link World} used for further deserialization.
      */
     public static final String INJECTED_MAP_WORLD = "_globingular_world";
     /**
-     * Static key used for storing a reference to this {@link PersistenceHandler} in an InjectedMap.
+     * Static key of the attribute holding a reference to this {@link PersistenceHandler},
+     * set for both serialization and deserialization.
      */
     public static final String INJECTED_MAP_PERSISTENCE = "_globingular_persistence";
 
     /**
-     * Map containing default worlds shipped as part of the application.
+     * Shared objectMapper-instance with the correct modules registered, but without any attributes.
+     * See {@link #getUninjectedObjectMapper()}.
+     */
+    private static final ObjectMapper UNINJECTED_OBJECT_MAPPER = new ObjectMapper()
+            .registerModule(new CountryCollectorModule());
+
+    /**
+     * Algorithm used for computing content hashes of worlds, see {@link #computeWorldHash(World)}.
+     */
+    private static final String WORLD_HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * The formats {@link CountryCollector}s can be saved in.
+     */
+    public enum StorageFormat {
+        /**
+         * Pretty-printed JSON, readable by humans.
+         */
+        JSON,
+        /**
+         * Compact binary format, see {@link BinaryCodec}.
+         */
+        BINARY
+    }
+
+    /**
+     * The default worlds shipped as part of the application, shared by every PersistenceHandler.
+     */
+    private final DefaultWorlds defaultWorlds;
+    /**
+     * Shared objectMapper-instance with the correct modules and attributes, see {@link #getObjectMapper()}.
+     */
+    private final ObjectMapper objectMapper;
+    /**
+     * Pre-built reader for {@link CountryCollector}s, sharing configuration with {@link #objectMapper}.
+     */
+    private final ObjectReader countryCollectorReader;
+    /**
+     * Pre-built pretty-printing writer, sharing configuration with {@link #objectMapper}.
+     */
+    private final ObjectWriter prettyWriter;
+    /**
+     * Pre-built reader for {@link Visit}s, sharing configuration with {@link #objectMapper}.
+     */
+    private final ObjectReader visitReader;
+    /**
+     * Pre-built writer without any whitespace, sharing configuration with {@link #objectMapper}.
      */
-    private final Map<String, World> defaultWorlds;
+    private final ObjectWriter compactWriter;
     /**
-     * The worldName of the predominant default {@link World}.
+     * The format {@link CountryCollector}s are saved in, see {@link #writeCountryCollector(CountryCollector)}.
      */
-    private final String predominantDefaultWorldName;
+    private final StorageFormat storageFormat;
 
     /**
-     * Initialize a new PersistenceHandler with default parameters.
+     * Initialize a new PersistenceHandler with default parameters, saving {@link CountryCollector}s as JSON.
      */
     public PersistenceHandler() {
-        World world = FileHandler.loadPredominantDefaultWorld();
-        defaultWorlds = new HashMap<>();
-        predominantDefaultWorldName = world.getWorldName();
-        defaultWorlds.put(predominantDefaultWorldName, world);
+        this(StorageFormat.JSON);
+    }
+
+    /**
+     * Initialize a new PersistenceHandler saving {@link CountryCollector}s in the given format.
+     * CountryCollectors in any format can be read, regardless of the one given.
+     *
+     * @param storageFormat The format to save CountryCollectors in
+     */
+    public PersistenceHandler(final StorageFormat storageFormat) {
+        this.storageFormat = storageFormat;
+        // Loaded by the first PersistenceHandler only, and shared by the rest
+        defaultWorlds = DefaultWorlds.getInstance();
+
+        // Configure the shared mapper once. Configuration is immutable after this point,
+        // so the mapper and its readers and writers can safely be used by several threads at once.
+        objectMapper = new ObjectMapper().registerModule(new CountryCollectorModule());
+        objectMapper.setConfig(objectMapper.getSerializationConfig().withAttribute(INJECTED_MAP_PERSISTENCE, this));
+        objectMapper.setConfig(objectMapper.getDeserializationConfig().withAttribute(INJECTED_MAP_PERSISTENCE, this));
+        countryCollectorReader = objectMapper.readerFor(CountryCollector.class);
+        prettyWriter = objectMapper.writerWithDefaultPrettyPrinter();
+        visitReader = objectMapper.readerFor(Visit.class);
+        compactWriter = objectMapper.writer();
     }
 
     /**
      * Get a valid objectMapper-instance with the the correct modules registered,
-     * but without a Map injected (see {@link #getObjectMapper()}.
+     * but without any attributes set (see {@link #getObjectMapper()}.
+     * The same instance is returned on every call, and must not be reconfigured.
      *
      * @return an objectMapper instance
      */
     public static ObjectMapper getUninjectedObjectMapper() {
-        return new ObjectMapper().registerModule(new CountryCollectorModule());
+        return UNINJECTED_OBJECT_MAPPER;
     }
 
     /**
      * Get a valid objectMapper-instance with the the correct modules registered,
-     * and with a Map injected (using key {@link #INJECTED_MAP}) in its {@link InjectableValues},
-     * containing a reference to this {@link PersistenceHandler}.
-     * A new {@link ObjectMapper} with a "clean" map is generated each time,
-     * ensuring that state is not shared between unrelated (de)serializations.
-     * This Map can be used for sharing state downwards when (de)serializing objects.
-     * Particularly useful for deserializing a tree of objects in need of sharing certain context,
-     * e.g. which {@link World} the {@link globingular.core.Visit}s references.
-     * 
+     * and with a reference to this {@link PersistenceHandler} set as an attribute,
+     * using key {@link #INJECTED_MAP_PERSISTENCE}, for both serialization and deserialization.
+     * This lets serializers write default worlds as references, and deserializers resolve them.
+     * The same instance is returned on every call, and must not be reconfigured.
+     * State shared downwards while deserializing a tree of objects, e.g. which {@link World}
+     * the {@link globingular.core.Visit}s references, is instead kept in per-call attributes
+     * of the {@link com.fasterxml.jackson.databind.DeserializationContext},
+     * so that the mapper can be used by several threads at once.
+     *
      * @return an objectMapper instance
      */
     public ObjectMapper getObjectMapper() {
-        ObjectMapper mapper = getUninjectedObjectMapper();
+        return this.objectMapper;
+    }
 
-        // Create a new Map and store a reference to this PersistenceHandler
-        Map<String, Object> injectedMap = new HashMap<>();
-        injectedMap.put(PersistenceHandler.INJECTED_MAP_PERSISTENCE, this);
+    /**
+     * Get a pre-built reader for {@link CountryCollector}s, configured like {@link #getObjectMapper()}.
+     *
+     * @return an objectReader instance
+     */
+    ObjectReader getCountryCollectorReader() {
+        return this.countryCollectorReader;
+    }
 
-        // Create a new InjectableValues-instance with the injectedMap and add to the mapper
-        InjectableValues.Std injectableValues = new InjectableValues.Std();
-        injectableValues.addValue(PersistenceHandler.INJECTED_MAP, injectedMap);
-        mapper.setInjectableValues(injectableValues);
+    /**
+     * Get a pre-built pretty-printing writer, configured like {@link #getObjectMapper()}.
+     *
+     * @return an objectWriter instance
+     */
+    ObjectWriter getPrettyWriter() {
+        return this.prettyWriter;
+    }
 
-        return mapper;
+    /**
+     * Get the format {@link CountryCollector}s are saved in.
+     *
+     * @return The storage format
+     */
+    public StorageFormat getStorageFormat() {
+        return this.storageFormat;
+    }
+
+    /**
+     * Write the given {@link CountryCollector} in this instance's {@link #getStorageFormat()}.
+     *
+     * @param countryCollector The CountryCollector to write
+     * @return The written CountryCollector
+     *
+     * @throws IOException If writing fails
+     */
+    byte[] writeCountryCollector(final CountryCollector countryCollector) throws IOException {
+        if (this.storageFormat == StorageFormat.BINARY) {
+            return BinaryCodec.encode(this, countryCollector);
+        }
+        return this.prettyWriter.writeValueAsBytes(countryCollector);
+    }
+
+    /**
+     * Read a {@link CountryCollector} in any {@link StorageFormat}, picked by the first bytes of the stream.
+     *
+     * @param in The stream to read from, which must support {@link InputStream#mark(int)}
+     * @return The read CountryCollector
+     *
+     * @throws IOException If reading fails
+     */
+    CountryCollector readCountryCollector(final InputStream in) throws IOException {
+        if (BinaryCodec.startsWithMagic(in)) {
+            return BinaryCodec.decode(this, in);
+        }
+        return this.countryCollectorReader.readValue(in);
+    }
+
+    /**
+     * Get a pre-built reader for {@link Visit}s, configured like {@link #getObjectMapper()}.
+     *
+     * @return an objectReader instance
+     */
+    ObjectReader getVisitReader() {
+        return this.visitReader;
+    }
+
+    /**
+     * Get a pre-built writer without any whitespace, configured like {@link #getObjectMapper()}.
+     *
+     * @return an objectWriter instance
+     */
+    ObjectWriter getCompactWriter() {
+        return this.compactWriter;
     }
 
     /**
@@ -100,7 +235,7 @@ public class PersistenceHandler {
      * @return The default world-instance
      */
     public World getPredominantDefaultWorld() {
-        return this.getDefaultWorld(predominantDefaultWorldName);
+        return this.defaultWorlds.getPredominant();
     }
 
     /**
@@ -121,7 +256,71 @@ public class PersistenceHandler {
      * @return Return the World-instance for the world name, or {@code or} if not default
      */
     public World getDefaultWorldOr(final String worldName, final World or) {
-        return this.defaultWorlds.getOrDefault(worldName, or);
+        World world = this.defaultWorlds.getByName(worldName);
+        return world != null ? world : or;
+    }
+
+    /**
+     * Get the content hash of {@code world} if it is one of this instance's default worlds.
+     * Returns {@code null} if not, in which case the world must be serialized in full.
+     *
+     * @param world The world to check if is a default world
+     * @return The content hash of the world, or {@code null} if not a default world
+     */
+    public String getDefaultWorldHash(final World world) {
+        if (world == null) {
+            return null;
+        }
+        return this.defaultWorlds.getHash(world);
+    }
+
+    /**
+     * Resolve a reference to a default world, as written for collectors whose world is a default world.
+     * The content hash is preferred, but if no default world has that exact content,
+     * the default world with the given name is used instead.
+     *
+     * @param worldName The name of the referenced world
+     * @param worldHash The content hash of the referenced world
+     * @return The referenced default world, or {@code null} if there's no such default world
+     */
+    public World getDefaultWorldFromReference(final String worldName, final String worldHash) {
+        World world = this.defaultWorlds.getByHash(worldHash);
+        if (world != null) {
+            return world;
+        }
+        return this.getDefaultWorld(worldName);
+    }
+
+    /**
+     * Compute a content hash for the given {@link World}, which is equal for worlds with the same
+     * name and countries, regardless of the order of the countries.
+     *
+     * @param world The world to compute a content hash for
+     * @return A hexadecimal representation of the content hash
+     */
+    public static String computeWorldHash(final World world) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(WORLD_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder content = new StringBuilder();
+        content.append(world.getWorldName()).append('\n');
+        world.getCountries().stream()
+                .sorted(Comparator.comparing(Country::getCountryCode))
+                .forEach(c -> content.append(c.getCountryCode()).append('\t')
+                        .append(c.getShortName()).append('\t')
+                        .append(c.getLongName()).append('\t')
+                        .append(c.getSovereignty()).append('\t')
+                        .append(c.getRegion()).append('\t')
+                        .append(c.getPopulation()).append('\n'));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(content.toString().getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
     }
 
     /**
@@ -0,0 +1,759 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.CountryCollector;
+import globingular.core.GlobingularModule;
+import globingular.core.Visit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * <p>{@link CollectorStore} keeping every user in a few large segment files, mapped into memory,
+ * instead of a file per user.</p>
+ *
+ * <p>Saving appends a record with the user's {@link CountryCollector} to the end of the newest segment,
+ * and points the user's entry in an in-memory index to it. Deleting appends a record saying so.
+ * Loading decodes the record straight from the mapped segment, without opening a file or copying the record.
+ * When the newest segment is full, a new one is started. Opening the store reads every segment, oldest first,
+ * to rebuild the index, stopping at the first record that's incomplete or corrupt, e.g. cut off by a crash.</p>
+ *
+ * <p>Records replaced by newer ones stay in their segment until it's compacted: any segment but the newest is
+ * compacted once no more than half of it is live, by copying its live records to the newest segment and retiring
+ * it. Its deletions are copied too while an older segment still exists, as that may hold what they deleted.
+ * Records are read without holding the lock appending records, which is only taken to copy each record.
+ * A retired segment's file is deleted once no load still reads from it.</p>
+ *
+ * <p>CountryCollectors are saved in the {@link PersistenceHandler.StorageFormat} of the given PersistenceHandler,
+ * preferably binary. Single visits added or removed aren't journaled, as appending the whole CountryCollector
+ * in the binary format costs about the same.</p>
+ */
+public final class SegmentCollectorStore implements CollectorStore {
+
+    /**
+     * Default size in bytes of each segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Prefix of the filenames of segments, followed by their number.
+     */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * File extension of segments.
+     */
+    private static final String SEGMENT_EXTENSION = ".dat";
+
+    /**
+     * Length of the header of each record: the length of its body, and the CRC-32 of its body.
+     */
+    private static final int HEADER_LENGTH = 2 * Integer.BYTES;
+
+    /**
+     * Length of the body of a record, not counting the username and CountryCollector.
+     */
+    private static final int BODY_OVERHEAD = 1 + Short.BYTES;
+
+    /**
+     * Type of records saving a CountryCollector.
+     */
+    private static final byte SAVED = 1;
+
+    /**
+     * Type of records deleting a CountryCollector.
+     */
+    private static final byte DELETED = 2;
+
+    /**
+     * Number of locks that saving users is spread over, see {@link #lockFor(String)}.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The {@link PersistenceHandler} used for (de)serialization.
+     */
+    private final PersistenceHandler persistenceHandler;
+
+    /**
+     * The folder holding the segments.
+     */
+    private final Path folder;
+
+    /**
+     * Size in bytes of new segments.
+     */
+    private final int segmentSize;
+
+    /**
+     * Every segment, by number, oldest first.
+     */
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Where the latest record saved for each user is.
+     */
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    /**
+     * Locks serializing saves of the same user, from serializing the CountryCollector to updating the index.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Segments compacted, whose files aren't deleted yet, as loads may still read from them.
+     */
+    private final Set<Segment> retired = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Lock held while appending records, guarding {@link #active} and the segments' positions.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The newest segment, which records are appended to.
+     */
+    private Segment active;
+
+    /**
+     * Whether this store is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Open the store in the given folder, creating it if missing, and read its segments to build the index.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for (de)serialization
+     * @param folder             The folder holding the segments
+     * @param segmentSize        Size in bytes of new segments
+     *
+     * @throws IOException If reading the segments fails
+     */
+    public SegmentCollectorStore(final PersistenceHandler persistenceHandler, final Path folder,
+            final int segmentSize) throws IOException {
+        this.persistenceHandler = persistenceHandler;
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+        Files.createDirectories(folder);
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(folder,
+                SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+            for (Path path : paths) {
+                String filename = path.getFileName().toString();
+                long number = Long.parseLong(filename.substring(SEGMENT_PREFIX.length(),
+                        filename.length() - SEGMENT_EXTENSION.length()));
+                this.segments.put(number, Segment.map(number, path, Files.size(path)));
+            }
+        }
+        // Replay oldest first, so that newer records replace older ones in the index
+        for (Segment segment : this.segments.values()) {
+            segment.position = this.forEachRecord(segment, this::applyRecord);
+        }
+        this.active = this.segments.isEmpty() ? this.newSegment(0, segmentSize)
+                : this.segments.lastEntry().getValue();
+    }
+
+    /**
+     * Open the store in the given folder, using segments of {@link #DEFAULT_SEGMENT_SIZE} bytes.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for (de)serialization
+     * @param folder             The folder holding the segments
+     *
+     * @throws IOException If reading the segments fails
+     */
+    public SegmentCollectorStore(final PersistenceHandler persistenceHandler, final Path folder) throws IOException {
+        this(persistenceHandler, folder, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @Override
+    public CountryCollector load(final String username) throws IllegalArgumentException, IOException {
+        this.ensureOpen();
+        String key = validate(username);
+        while (true) {
+            Location location = this.index.get(key);
+            if (location == null) {
+                return null;
+            }
+            // Keep the segment's file while reading it, unless already compacted
+            if (location.segment.retain()) {
+                try {
+                    // Decoded straight from the mapped segment
+                    return this.persistenceHandler.readCountryCollector(new BufferInputStream(
+                            location.segment.buffer.slice(location.payloadOffset, location.payloadLength)));
+                } finally {
+                    this.release(location.segment);
+                }
+            }
+            // Compacted meanwhile, so the index now points to the copy
+        }
+    }
+
+    @Override
+    public boolean save(final String username, final CountryCollector countryCollector)
+            throws IllegalArgumentException, IOException {
+        String key = validate(username);
+        synchronized (this.lockFor(key)) {
+            if (countryCollector == null) {
+                if (!this.index.containsKey(key)) {
+                    return false;
+                }
+                this.append(DELETED, key, ByteBuffer.allocate(0));
+                return true;
+            }
+            this.append(SAVED, key, ByteBuffer.wrap(this.persistenceHandler.writeCountryCollector(countryCollector)));
+            return true;
+        }
+    }
+
+    @Override
+    public boolean exists(final String username) throws IllegalArgumentException {
+        this.ensureOpen();
+        return this.index.containsKey(validate(username));
+    }
+
+    /**
+     * {@inheritDoc}
+     * Read from the in-memory index.
+     */
+    @Override
+    public Set<String> list() {
+        this.ensureOpen();
+        return Set.copyOf(this.index.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     * Never saved by itself, as the whole CountryCollector is about as cheap to append.
+     */
+    @Override
+    public boolean appendVisitEvent(final String username, final ChangeEvent<Visit> event, final long version)
+            throws IllegalArgumentException {
+        validate(username);
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Compacts every segment but the newest of which no more than half is live, oldest first,
+     * so that deletions in the following ones needn't be copied if no older segment is left.
+     */
+    @Override
+    public int compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this.writeLock) {
+            this.ensureOpen();
+            for (Segment segment : this.segments.values()) {
+                if (segment != this.active && segment.liveBytes * 2 <= segment.position) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            this.compact(segment);
+        }
+        return candidates.size();
+    }
+
+    /**
+     * Compact the given segment, which isn't the newest, by copying its live records to the newest segment,
+     * and its deletions too while an older segment still exists. Then the segment is retired, and its file
+     * deleted once no load still reads from it, see {@link #release(Segment)}.
+     * The segment is read without holding the {@link #writeLock}, as nothing is appended to it anymore,
+     * and the lock is only taken to check and copy each record, so that saves aren't held up meanwhile.
+     *
+     * @param segment The segment to compact
+     *
+     * @throws IOException If writing a copy fails. The segment is then kept.
+     */
+    private void compact(final Segment segment) throws IOException {
+        List<Location> saved = new ArrayList<>();
+        Set<String> deleted = new LinkedHashSet<>();
+        this.forEachRecord(segment, (type, username, location) -> {
+            if (type == SAVED) {
+                saved.add(location);
+            } else {
+                deleted.add(username);
+            }
+        });
+        for (Location location : saved) {
+            synchronized (this.writeLock) {
+                // Only copied if still the user's latest record, which can't change while holding the lock
+                if (location.equals(this.index.get(location.username))) {
+                    this.append(SAVED, location.username,
+                            segment.buffer.slice(location.payloadOffset, location.payloadLength));
+                }
+            }
+        }
+        for (String username : deleted) {
+            synchronized (this.writeLock) {
+                // Not needed if the user has been saved since, or if nothing older may hold the user
+                if (!this.index.containsKey(username) && this.hasOlderSegment(segment)) {
+                    this.append(DELETED, username, ByteBuffer.allocate(0));
+                }
+            }
+        }
+        // The copies are durable, so the segment is no longer needed once no load reads from it
+        synchronized (this.writeLock) {
+            this.segments.remove(segment.number);
+            this.retired.add(segment);
+        }
+        this.release(segment);
+    }
+
+    /**
+     * Check whether a segment older than the given one still exists, including retired ones whose files
+     * aren't deleted yet, which would be read again if the store is opened again.
+     * Must be called while holding the {@link #writeLock}.
+     *
+     * @param segment The segment to check for
+     * @return True if an older segment exists
+     */
+    private boolean hasOlderSegment(final Segment segment) {
+        return this.segments.lowerKey(segment.number) != null
+                || this.retired.stream().anyMatch(older -> older.number < segment.number);
+    }
+
+    /**
+     * Release a reference to the given segment, deleting its file if it was retired and this was the last
+     * reference. Failing to delete is printed, and the file is then compacted again when the store is opened again.
+     *
+     * @param segment The segment to release
+     */
+    private void release(final Segment segment) {
+        if (!segment.release()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(segment.path);
+            this.retired.remove(segment);
+        } catch (IOException e) {
+            // Catch and print if exception, as the segment's records are all copied already
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Get the number of users saved.
+     *
+     * @return The number of users
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Get the number of segments.
+     *
+     * @return The number of segments
+     */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Stop accepting loads and saves. The segments are unmapped once no longer referenced.
+     */
+    @Override
+    public void close() {
+        synchronized (this.writeLock) {
+            this.closed = true;
+            this.index.clear();
+            this.segments.clear();
+        }
+    }
+
+    /**
+     * Append a record to the newest segment, starting a new one if it doesn't fit,
+     * and update the index once it's durable.
+     *
+     * @param type     {@link #SAVED} or {@link #DELETED}
+     * @param username The username of the record, in lowercase
+     * @param payload  The serialized CountryCollector, or nothing when deleting
+     *
+     * @throws IOException If writing fails
+     */
+    private void append(final byte type, final String username, final ByteBuffer payload) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = BODY_OVERHEAD + name.length + payload.remaining();
+        int recordLength = HEADER_LENGTH + bodyLength;
+        synchronized (this.writeLock) {
+            this.ensureOpen();
+            if (this.active.position + recordLength > this.active.buffer.capacity()) {
+                this.active = this.newSegment(this.active.number + 1, Math.max(this.segmentSize, recordLength));
+            }
+            Segment segment = this.active;
+            int offset = segment.position;
+            ByteBuffer body = segment.buffer.slice(offset + HEADER_LENGTH, bodyLength);
+            body.put(type).putShort((short) name.length).put(name).put(payload.duplicate());
+            CRC32 crc = new CRC32();
+            crc.update(segment.buffer.slice(offset + HEADER_LENGTH, bodyLength));
+            segment.buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+            segment.buffer.putInt(offset, bodyLength);
+            segment.buffer.force(offset, recordLength);
+            segment.position += recordLength;
+
+            this.applyRecord(type, username, new Location(segment, username, offset,
+                    offset + HEADER_LENGTH + BODY_OVERHEAD + name.length, payload.remaining()));
+        }
+    }
+
+    /**
+     * Apply a record to the index, and keep count of the bytes still live in each segment.
+     *
+     * @param type     {@link #SAVED} or {@link #DELETED}
+     * @param username The username of the record
+     * @param location Where the record is
+     */
+    private void applyRecord(final byte type, final String username, final Location location) {
+        Location replaced;
+        if (type == SAVED) {
+            replaced = this.index.put(username, location);
+            location.segment.liveBytes += location.getRecordLength();
+        } else {
+            replaced = this.index.remove(username);
+        }
+        if (replaced != null) {
+            replaced.segment.liveBytes -= replaced.getRecordLength();
+        }
+    }
+
+    /**
+     * Read every complete record in the given segment, in order.
+     *
+     * @param segment The segment to read
+     * @param visitor Called with each record
+     * @return The offset after the last complete record, where the next record is appended
+     */
+    private int forEachRecord(final Segment segment, final RecordVisitor visitor) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_LENGTH + BODY_OVERHEAD <= buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            // Stop at the end of the records, or at a record cut off or corrupted by a crash
+            if (bodyLength < BODY_OVERHEAD || bodyLength > buffer.capacity() - offset - HEADER_LENGTH) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(offset + HEADER_LENGTH, bodyLength));
+            if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+                break;
+            }
+            int bodyOffset = offset + HEADER_LENGTH;
+            byte type = buffer.get(bodyOffset);
+            int nameLength = buffer.getShort(bodyOffset + 1);
+            byte[] name = new byte[nameLength];
+            buffer.get(bodyOffset + BODY_OVERHEAD, name);
+            String username = new String(name, StandardCharsets.UTF_8);
+            int payloadOffset = bodyOffset + BODY_OVERHEAD + nameLength;
+            visitor.visit(type, username, new Location(segment, username, offset, payloadOffset,
+                    bodyLength - BODY_OVERHEAD - nameLength));
+            offset += HEADER_LENGTH + bodyLength;
+        }
+        return offset;
+    }
+
+    /**
+     * Create and map a new, empty segment.
+     *
+     * @param number   The number of the segment
+     * @param capacity The size of the segment in bytes
+     * @return The new segment
+     *
+     * @throws IOException If creating the segment fails
+     */
+    private Segment newSegment(final long number, final int capacity) throws IOException {
+        Path path = this.folder.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_EXTENSION));
+        Segment segment = Segment.map(number, path, capacity);
+        // Make sure the new segment is found after a crash
+        GroupCommitWriter.forceDirectory(this.folder);
+        this.segments.put(number, segment);
+        return segment;
+    }
+
+    /**
+     * Get the lock serializing saves of the given user.
+     *
+     * @param username The username, in lowercase
+     * @return The lock to synchronize on
+     */
+    private Object lockFor(final String username) {
+        return this.locks[Math.floorMod(username.hashCode(), this.locks.length)];
+    }
+
+    /**
+     * Throw if closed.
+     *
+     * @throws IllegalStateException If closed
+     */
+    private void ensureOpen() throws IllegalStateException {
+        if (this.closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    /**
+     * Validate the given username, and return it in lowercase.
+     *
+     * @param username The username to validate
+     * @return The username in lowercase
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     */
+    private static String validate(final String username) throws IllegalArgumentException {
+        if (username == null || !GlobingularModule.isUsernameValid(username.toLowerCase())) {
+            throw new IllegalArgumentException("Username must be alphanumeric: " + username);
+        }
+        return username.toLowerCase();
+    }
+
+    /**
+     * Called with each record read from a segment.
+     */
+    @FunctionalInterface
+    private interface RecordVisitor {
+        /**
+         * Visit a record.
+         *
+         * @param type     {@link #SAVED} or {@link #DELETED}
+         * @param username The username of the record
+         * @param location Where the record is
+         */
+        void visit(byte type, String username, Location location);
+    }
+
+    /**
+     * A segment file, mapped into memory.
+     */
+    private static final class Segment {
+        /**
+         * The number of the segment, higher for newer segments.
+         */
+        private final long number;
+        /**
+         * The path of the segment file.
+         */
+        private final Path path;
+        /**
+         * The whole segment file, mapped into memory.
+         */
+        private final MappedByteBuffer buffer;
+        /**
+         * The offset after the last record, guarded by {@link #writeLock}.
+         */
+        private int position;
+        /**
+         * Number of bytes taken by records still in the index, guarded by {@link #writeLock}.
+         */
+        private long liveBytes;
+        /**
+         * Number of references keeping the segment's file, one held by the store until the segment is retired,
+         * and one by each load reading from it.
+         */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /**
+         * Create a segment.
+         *
+         * @param number The number of the segment
+         * @param path   The path of the segment file
+         * @param buffer The segment file, mapped into memory
+         */
+        private Segment(final long number, final Path path, final MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Take a reference keeping the segment's file, unless it's already released by every holder.
+         *
+         * @return True if taken, false if the segment is retired and its file deleted or being deleted
+         */
+        private boolean retain() {
+            int count = this.references.get();
+            while (count > 0) {
+                if (this.references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+                count = this.references.get();
+            }
+            return false;
+        }
+
+        /**
+         * Release a reference taken, or the one held by the store.
+         *
+         * @return True if this was the last reference, so that the file may be deleted
+         */
+        private boolean release() {
+            return this.references.decrementAndGet() == 0;
+        }
+
+        /**
+         * Map the segment file at the given path, creating it if missing.
+         * The file stays mapped after its channel is closed.
+         *
+         * @param number   The number of the segment
+         * @param path     The path of the segment file
+         * @param capacity The size of the segment in bytes, growing the file if larger
+         * @return The mapped segment
+         *
+         * @throws IOException If mapping fails
+         */
+        private static Segment map(final long number, final Path path, final long capacity) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                return new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            }
+        }
+    }
+
+    /**
+     * Where a record is.
+     */
+    private static final class Location {
+        /**
+         * The segment holding the record.
+         */
+        private final Segment segment;
+        /**
+         * The username of the record.
+         */
+        private final String username;
+        /**
+         * The offset of the record's header in the segment.
+         */
+        private final int recordOffset;
+        /**
+         * The offset of the serialized CountryCollector in the segment.
+         */
+        private final int payloadOffset;
+        /**
+         * The length of the serialized CountryCollector.
+         */
+        private final int payloadLength;
+
+        /**
+         * Create a location.
+         *
+         * @param segment       The segment holding the record
+         * @param username      The username of the record
+         * @param recordOffset  The offset of the record's header in the segment
+         * @param payloadOffset The offset of the serialized CountryCollector in the segment
+         * @param payloadLength The length of the serialized CountryCollector
+         */
+        private Location(final Segment segment, final String username, final int recordOffset,
+                final int payloadOffset, final int payloadLength) {
+            this.segment = segment;
+            this.username = username;
+            this.recordOffset = recordOffset;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+
+        /**
+         * Get the length of the whole record, header included.
+         *
+         * @return The length in bytes
+         */
+        private int getRecordLength() {
+            return this.payloadOffset + this.payloadLength - this.recordOffset;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Location)) {
+                return false;
+            }
+            Location location = (Location) other;
+            return this.segment == location.segment && this.recordOffset == location.recordOffset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.segment.number, this.recordOffset);
+        }
+    }
+
+    /**
+     * Reads a buffer without copying it, for decoding CountryCollectors straight from a mapped segment.
+     */
+    private static final class BufferInputStream extends InputStream {
+        /**
+         * Mask turning a signed byte into an unsigned one.
+         */
+        private static final int BYTE_MASK = 0xff;
+        /**
+         * The buffer to read, from its position to its limit.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Create a stream reading the given buffer.
+         *
+         * @param buffer The buffer to read, from its position to its limit
+         */
+        private BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & BYTE_MASK : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(final int readLimit) {
+            this.buffer.mark();
+        }
+
+        @Override
+        public void reset() {
+            this.buffer.reset();
+        }
+    }
+}
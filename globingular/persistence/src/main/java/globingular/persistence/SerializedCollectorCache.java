@@ -0,0 +1,235 @@
+package globingular.persistence;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import globingular.core.CountryCollector;
+
+/**
+ * <p>Cache of {@link CountryCollector}s serialized as compact JSON, per username, so that a CountryCollector
+ * retrieved again before it changes costs a copy of its bytes instead of serializing it again.</p>
+ *
+ * <p>An entry is only used for the very CountryCollector it was serialized from, and only while that is still
+ * at the version it was serialized at, see {@link CountryCollector#getVersion()}. Every change increases the
+ * version, so a changed CountryCollector is serialized again on its next retrieval, without listening for
+ * its changes. This also covers replaced CountryCollectors, and versions restored without any change.</p>
+ *
+ * <p>The bytes held by every entry together are bounded by a budget, evicting the least recently used entries
+ * to stay within it. CountryCollectors are only referenced weakly, so entries don't keep evicted ones in
+ * memory. Safe to use from several threads at once. Serializing is done outside the lock, so that retrievals
+ * of other users aren't held up by it.</p>
+ */
+public final class SerializedCollectorCache {
+
+    /**
+     * Default budget for the bytes held by every entry together, 64 MiB.
+     */
+    public static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Initial capacity of {@link #entries}, the default of {@link LinkedHashMap}.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Load factor of {@link #entries}, the default of {@link LinkedHashMap}.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The {@link PersistenceHandler} providing the writer used to serialize.
+     */
+    private final PersistenceHandler persistenceHandler;
+    /**
+     * Budget for the bytes held by every entry together.
+     */
+    private final long maximumBytes;
+    /**
+     * The entries per username, least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    /**
+     * The bytes held by every entry together.
+     */
+    private long totalBytes;
+    /**
+     * Number of retrievals answered with cached bytes.
+     */
+    private long hitCount;
+    /**
+     * Number of retrievals that had to serialize.
+     */
+    private long missCount;
+
+    /**
+     * Bytes serialized from a {@link CountryCollector} at a given version.
+     */
+    private static final class Entry {
+        /**
+         * The CountryCollector serialized, weakly referenced.
+         */
+        private final WeakReference<CountryCollector> collector;
+        /**
+         * The version of the CountryCollector when serialized.
+         */
+        private final long version;
+        /**
+         * The serialized CountryCollector.
+         */
+        private final byte[] bytes;
+
+        /**
+         * Initialize an entry.
+         *
+         * @param collector The CountryCollector serialized
+         * @param version   The version of the CountryCollector when serialized
+         * @param bytes     The serialized CountryCollector
+         */
+        Entry(final CountryCollector collector, final long version, final byte[] bytes) {
+            this.collector = new WeakReference<>(collector);
+            this.version = version;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Check whether this entry still holds the given {@link CountryCollector} as it is.
+         *
+         * @param countryCollector The CountryCollector
+         * @param currentVersion   Its current version
+         * @return True if serialized from it, at that version
+         */
+        boolean isFor(final CountryCollector countryCollector, final long currentVersion) {
+            return this.collector.get() == countryCollector && this.version == currentVersion;
+        }
+    }
+
+    /**
+     * Initialize an empty cache holding at most the given number of bytes.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} providing the writer used to serialize
+     * @param maximumBytes       Budget for the bytes held by every entry together.
+     *                           CountryCollectors serializing to more bytes are never cached.
+     *
+     * @throws IllegalArgumentException If maximumBytes is negative
+     */
+    public SerializedCollectorCache(final PersistenceHandler persistenceHandler, final long maximumBytes)
+            throws IllegalArgumentException {
+        if (maximumBytes < 0) {
+            throw new IllegalArgumentException("Budget can't be negative: " + maximumBytes);
+        }
+        this.persistenceHandler = persistenceHandler;
+        this.maximumBytes = maximumBytes;
+    }
+
+    /**
+     * Initialize an empty cache holding at most {@link #DEFAULT_MAXIMUM_BYTES}.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} providing the writer used to serialize
+     */
+    public SerializedCollectorCache(final PersistenceHandler persistenceHandler) {
+        this(persistenceHandler, DEFAULT_MAXIMUM_BYTES);
+    }
+
+    /**
+     * Get the given user's {@link CountryCollector} serialized as compact JSON, the same way as by
+     * {@link PersistenceHandler#getObjectMapper()}. Cached bytes are returned if serialized from the same
+     * CountryCollector at the given version. Otherwise it's serialized, and cached in place of the user's
+     * previous entry. The bytes returned are shared, and must not be changed.
+     *
+     * @param username         The user the CountryCollector belongs to
+     * @param countryCollector The CountryCollector
+     * @param version          Its version, read before calling this, as changes made while serializing
+     *                         may or may not be included
+     * @return The serialized CountryCollector
+     *
+     * @throws IOException If serializing fails
+     */
+    public byte[] getSerialized(final String username, final CountryCollector countryCollector, final long version)
+            throws IOException {
+        synchronized (this) {
+            Entry entry = this.entries.get(username);
+            if (entry != null && entry.isFor(countryCollector, version)) {
+                this.hitCount++;
+                return entry.bytes;
+            }
+            this.missCount++;
+        }
+        byte[] bytes = this.persistenceHandler.getCompactWriter().writeValueAsBytes(countryCollector);
+        synchronized (this) {
+            Entry previous = this.entries.get(username);
+            // Keep an entry for a newer version, in case another request serialized it meanwhile
+            if (previous != null && previous.collector.get() == countryCollector && previous.version > version) {
+                return bytes;
+            }
+            this.remove(username);
+            if (bytes.length <= this.maximumBytes) {
+                this.entries.put(username, new Entry(countryCollector, version, bytes));
+                this.totalBytes += bytes.length;
+                this.evictToBudget();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Forget the given user's entry, if any, e.g. when the user is deleted.
+     *
+     * @param username The user
+     */
+    public synchronized void invalidate(final String username) {
+        this.remove(username);
+    }
+
+    /**
+     * Get the bytes held by every entry together.
+     *
+     * @return The bytes held
+     */
+    public synchronized long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * Get the number of retrievals answered with cached bytes.
+     *
+     * @return The number of hits
+     */
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Get the number of retrievals that had to serialize.
+     *
+     * @return The number of misses
+     */
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Remove the given user's entry, if any. Must be called while holding the lock.
+     *
+     * @param username The user
+     */
+    private void remove(final String username) {
+        Entry removed = this.entries.remove(username);
+        if (removed != null) {
+            this.totalBytes -= removed.bytes.length;
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until within budget. Must be called while holding the lock.
+     */
+    private void evictToBudget() {
+        Iterator<Map.Entry<String, Entry>> leastRecentFirst = this.entries.entrySet().iterator();
+        while (this.totalBytes > this.maximumBytes && leastRecentFirst.hasNext()) {
+            this.totalBytes -= leastRecentFirst.next().getValue().bytes.length;
+            leastRecentFirst.remove();
+        }
+    }
+}
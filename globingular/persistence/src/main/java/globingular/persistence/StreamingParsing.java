@@ -0,0 +1,91 @@
+package globingular.persistence;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * <p>Helpers shared by the deserializers in this package, for reading JSON directly from the token stream.</p>
+ *
+ * <p>Reading tokens directly avoids building an intermediate tree of {@code JsonNode}s
+ * for every object, which would otherwise be parsed once into the tree and then once again from it.</p>
+ */
+final class StreamingParsing {
+
+    /**
+     * Not to be instantiated.
+     */
+    private StreamingParsing() {
+    }
+
+    /**
+     * Move the parser to the first field of the object it is currently at.
+     * Accepts the parser being positioned on the start of the object, or already on its first field.
+     *
+     * @param p    The current JsonParser
+     * @param ctxt The current deserialization context
+     * @param type The type being deserialized, used in error messages
+     * @return     The current token, either {@link JsonToken#FIELD_NAME} or {@link JsonToken#END_OBJECT}
+     * @throws IOException If the parser is not at an object
+     */
+    static JsonToken firstField(final JsonParser p, final DeserializationContext ctxt, final Class<?> type)
+            throws IOException {
+        JsonToken token = p.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            return p.nextToken();
+        }
+        if (token == JsonToken.FIELD_NAME || token == JsonToken.END_OBJECT) {
+            return token;
+        }
+        throw ctxt.wrongTokenException(p, type, JsonToken.START_OBJECT, null);
+    }
+
+    /**
+     * Read every element of the array the parser is currently at, using the deserializer registered for
+     * the element type. The deserializer is looked up only once for the whole array.
+     * Leaves the parser at the end of the array.
+     *
+     * @param p           The current JsonParser, positioned at the start of the array
+     * @param ctxt        The current deserialization context
+     * @param elementType The type of the array elements
+     * @param consumer    Consumer receiving each element as soon as it has been read
+     * @param <T>         The type of the array elements
+     * @throws IOException If the parser is not at an array, or on general parsing error
+     */
+    static <T> void readArray(final JsonParser p, final DeserializationContext ctxt, final Class<T> elementType,
+                              final Consumer<? super T> consumer) throws IOException {
+        if (p.currentToken() != JsonToken.START_ARRAY) {
+            throw ctxt.wrongTokenException(p, elementType, JsonToken.START_ARRAY, null);
+        }
+        JsonDeserializer<Object> deserializer = ctxt.findRootValueDeserializer(ctxt.constructType(elementType));
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (p.currentToken() == JsonToken.VALUE_NULL) {
+                ctxt.reportInputMismatch(deserializer, "Unexpected null in array of %s", elementType.getSimpleName());
+            }
+            consumer.accept(elementType.cast(deserializer.deserialize(p, ctxt)));
+        }
+    }
+
+    /**
+     * Ensure that a required field has been read.
+     *
+     * @param ctxt      The current deserialization context
+     * @param src       The deserializer reading the field, used in error messages
+     * @param value     The value read, {@code null} if the field was not present
+     * @param fieldName The name of the field
+     * @param <T>       The type of the field
+     * @return          The given value
+     * @throws IOException If the value is {@code null}
+     */
+    static <T> T requireField(final DeserializationContext ctxt, final JsonDeserializer<?> src, final T value,
+                              final String fieldName) throws IOException {
+        if (value == null) {
+            ctxt.reportInputMismatch(src, "Missing required field '%s'", fieldName);
+        }
+        return value;
+    }
+}
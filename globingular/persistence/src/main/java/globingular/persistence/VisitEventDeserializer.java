@@ -0,0 +1,57 @@
+package globingular.persistence;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import globingular.core.ChangeEvent;
+import globingular.core.Visit;
+
+import java.io.IOException;
+
+/**
+ * Deserializer for {@link ChangeEvent}s of {@link Visit}s, see {@link VisitEventSerializer}.
+ */
+class VisitEventDeserializer extends JsonDeserializer<ChangeEvent<Visit>> {
+
+    /**
+     * Deserialize a ChangeEvent from JSON, reading directly from the token stream.
+     * The visit is read by the deserializer registered for {@link Visit}, see {@link VisitDeserializer}.
+     * @param p The relevant JsonParser
+     * @param ctxt The current parsing context
+     * @return The deserialized ChangeEvent
+     * @throws IOException on general parsing error, on a missing status or visit, or on an unknown status
+     */
+    @Override
+    public ChangeEvent<Visit> deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException {
+        String statusText = null;
+        Visit visit = null;
+
+        JsonToken token = StreamingParsing.firstField(p, ctxt, ChangeEvent.class);
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String fieldName = p.currentName();
+            // Move to the value of the field
+            p.nextToken();
+            switch (fieldName) {
+                case "status":
+                    statusText = p.getValueAsString();
+                    break;
+                case "visit":
+                    visit = ctxt.readValue(p, Visit.class);
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        StreamingParsing.requireField(ctxt, this, statusText, "status");
+        StreamingParsing.requireField(ctxt, this, visit, "visit");
+
+        ChangeEvent.Status status = null;
+        try {
+            status = ChangeEvent.Status.valueOf(statusText);
+        } catch (IllegalArgumentException e) {
+            ctxt.reportInputMismatch(this, "Unknown status '%s'", statusText);
+        }
+        return new ChangeEvent<>(status, visit);
+    }
+}
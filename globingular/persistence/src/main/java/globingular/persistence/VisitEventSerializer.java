@@ -0,0 +1,37 @@
+package globingular.persistence;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import globingular.core.ChangeEvent;
+import globingular.core.Visit;
+
+import java.io.IOException;
+
+/**
+ * Serializer for {@link ChangeEvent}s of {@link Visit}s, e.g. an operation in a batch of visits to add and remove.
+ */
+class VisitEventSerializer extends JsonSerializer<ChangeEvent<Visit>> {
+
+    /**
+     * Serialize a given {@link ChangeEvent} to JSON, as its status followed by its visit.
+     *
+     * @param value The ChangeEvent to serialize
+     * @param gen The current JSON generator
+     * @param serializers The active serializers
+     * @throws IOException On general generation error
+     */
+    @Override
+    public void serialize(final ChangeEvent<Visit> value, final JsonGenerator gen,
+            final SerializerProvider serializers) throws IOException {
+        gen.writeStartObject();
+
+        gen.writeFieldName("status");
+        gen.writeString(value.getStatus().name());
+
+        gen.writeFieldName("visit");
+        serializers.defaultSerializeValue(value.getElement(), gen);
+
+        gen.writeEndObject();
+    }
+}
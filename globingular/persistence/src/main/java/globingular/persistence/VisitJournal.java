@@ -0,0 +1,156 @@
+package globingular.persistence;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import globingular.core.ChangeEvent;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * <p>Encodes and replays the records of a per-user visit journal.</p>
+ *
+ * <p>Each record is a single line, describing one {@link ChangeEvent} of a {@link Visit}:
+ * {@value #ADDED} or {@value #REMOVED}, the version of the {@link CountryCollector} after the change and a space,
+ * followed by the visit as compact JSON, e.g.
+ * {@code +7 {"countryCode":"NO","arrival":"2020-01-01","departure":"2020-01-02"}}.</p>
+ *
+ * <p>Records must be appended in the order the changes were made, i.e. while holding the lock of the
+ * CountryCollector they were made to, as an addition and a removal of the same visit don't commute.
+ * Records at or below the version of the snapshot they're replayed on are already included in it, and skipped,
+ * so that a record appended after a concurrent snapshot was taken never undoes a later change in that snapshot.</p>
+ */
+final class VisitJournal {
+
+    /**
+     * First character of records of added visits.
+     */
+    static final char ADDED = '+';
+    /**
+     * First character of records of removed visits.
+     */
+    static final char REMOVED = '-';
+    /**
+     * Character separating the version of a record from its visit.
+     */
+    static final char VERSION_SEPARATOR = ' ';
+    /**
+     * Returned by {@link #replayRecord(PersistenceHandler, String, CountryCollector, long)} for records skipped.
+     */
+    private static final long SKIPPED = -1;
+
+    /**
+     * Private constructor to disallow instantiation.
+     */
+    private VisitJournal() {
+    }
+
+    /**
+     * Encode the given event as a single record, without the trailing line separator.
+     *
+     * @param persistenceHandler The provider of the writer to use for serialization
+     * @param event              The event to encode
+     * @param version            The version of the CountryCollector after the change
+     * @return The encoded record
+     *
+     * @throws IllegalArgumentException If the event is neither an addition nor a removal
+     * @throws JsonProcessingException  If serializing the visit fails
+     */
+    static String encode(final PersistenceHandler persistenceHandler, final ChangeEvent<Visit> event,
+            final long version) throws IllegalArgumentException, JsonProcessingException {
+        char operation;
+        if (event.wasAdded()) {
+            operation = ADDED;
+        } else if (event.wasRemoved()) {
+            operation = REMOVED;
+        } else {
+            throw new IllegalArgumentException("Only additions and removals can be journaled");
+        }
+        return operation + Long.toString(version) + VERSION_SEPARATOR
+                + persistenceHandler.getCompactWriter().writeValueAsString(event.getElement());
+    }
+
+    /**
+     * Replay every record read from the given reader on the given {@link CountryCollector}, skipping those at or
+     * below its version, as they're already included. It's left at the version of the last record replayed.
+     * A malformed last record is ignored, as it's left by a write that never completed.
+     *
+     * @param persistenceHandler The provider of the reader to use for deserialization
+     * @param in                 The reader to read records from
+     * @param countryCollector   The CountryCollector to replay records on, at the version of its snapshot
+     * @return The number of records replayed
+     *
+     * @throws IOException If reading fails, or if any record but the last is malformed
+     */
+    static int replay(final PersistenceHandler persistenceHandler, final BufferedReader in,
+            final CountryCollector countryCollector) throws IOException {
+        final long snapshotVersion = countryCollector.getVersion();
+        long lastVersion = snapshotVersion;
+        int replayed = 0;
+        IOException malformed = null;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (malformed != null) {
+                // The malformed record wasn't the last one
+                throw malformed;
+            }
+            try {
+                long version = replayRecord(persistenceHandler, line, countryCollector, snapshotVersion);
+                if (version != SKIPPED) {
+                    lastVersion = Math.max(lastVersion, version);
+                    replayed++;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                malformed = new IOException("Malformed journal record: " + line, e);
+            }
+        }
+        // The CountryCollector ends at the version recorded with the last change, whatever it counted while replaying
+        if (lastVersion > countryCollector.getVersion()) {
+            countryCollector.restoreVersion(lastVersion);
+        }
+        return replayed;
+    }
+
+    /**
+     * Replay a single record on the given {@link CountryCollector}, unless at or below the snapshot's version.
+     *
+     * @param persistenceHandler The provider of the reader to use for deserialization
+     * @param line               The record to replay
+     * @param countryCollector   The CountryCollector to replay the record on
+     * @param snapshotVersion    The version of the snapshot the journal is replayed on
+     * @return The version of the record, or {@link #SKIPPED} if already included in the snapshot
+     *
+     * @throws IOException              If the visit of the record is malformed
+     * @throws IllegalArgumentException If the record has an unknown operation, or an invalid visit or version
+     */
+    private static long replayRecord(final PersistenceHandler persistenceHandler, final String line,
+            final CountryCollector countryCollector, final long snapshotVersion)
+            throws IOException, IllegalArgumentException {
+        if (line.isEmpty()) {
+            throw new IllegalArgumentException("Empty record");
+        }
+        int separator = line.indexOf(VERSION_SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("No visit after version");
+        }
+        // Throws NumberFormatException, an IllegalArgumentException, if there's no valid version
+        long version = Long.parseLong(line.substring(1, separator));
+        if (version <= snapshotVersion) {
+            return SKIPPED;
+        }
+        Visit visit = persistenceHandler.getVisitReader()
+                .withAttribute(PersistenceHandler.INJECTED_MAP_WORLD, countryCollector.getWorld())
+                .readValue(line.substring(separator + 1));
+        switch (line.charAt(0)) {
+            case ADDED:
+                countryCollector.registerVisit(visit);
+                break;
+            case REMOVED:
+                countryCollector.removeVisit(visit);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + line.charAt(0));
+        }
+        return version;
+    }
+}
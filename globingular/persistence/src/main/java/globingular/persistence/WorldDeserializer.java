@@ -1,13 +1,16 @@
 package globingular.persistence;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import globingular.core.Country;
 import globingular.core.World;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
 
 /**
  * Deserializer for {@link World} objects.
@@ -15,21 +18,66 @@ import java.io.IOException;
 class WorldDeserializer extends JsonDeserializer<World> {
 
     /**
-     * Deserialize a {@link World} from JSON.
+     * Deserialize a {@link World} from JSON, reading directly from the token stream.
      *
      * @param p The current JsonParser
      * @param ctxt The current deserialization context
      * @return The deserialized World
-     * @throws IOException On general parsing error
-     * @throws NullPointerException on missing field
+     * @throws IOException On general parsing error, or on missing field
      */
     public World deserialize(final JsonParser p, final DeserializationContext ctxt)
             throws IOException {
-        ObjectNode o = p.readValueAsTree();
+        return this.deserialize(p, ctxt, worldName -> null);
+    }
+
+    /**
+     * Deserialize a {@link World} from JSON, unless it's named as a known world.
+     * If the name comes before the countries, as written by {@link WorldSerializer}, and it's the name of a known
+     * world, the countries are skipped without being parsed, and the known world is returned instead.
+     *
+     * @param p          The current JsonParser
+     * @param ctxt       The current deserialization context
+     * @param knownWorlds Function giving the known world with a name, or {@code null} if none is known
+     * @return The deserialized World, or the known World with the same name
+     * @throws IOException On general parsing error, or on missing field
+     */
+    World deserialize(final JsonParser p, final DeserializationContext ctxt,
+                      final Function<String, World> knownWorlds) throws IOException {
+        String worldName = null;
+        List<Country> countries = null;
 
-        String worldName = o.get("WorldName").asText();
-        Country[] countries = o.get("Countries").traverse(p.getCodec()).readValueAs(Country[].class);
+        JsonToken token = StreamingParsing.firstField(p, ctxt, World.class);
+        for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+            String fieldName = p.currentName();
+            // Move to the value of the field
+            p.nextToken();
+            switch (fieldName) {
+                case "WorldName":
+                    worldName = p.getValueAsString();
+                    World known = countries == null ? knownWorlds.apply(worldName) : null;
+                    if (known != null) {
+                        // Skip the rest of the object, leaving the parser at its end
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            p.nextToken();
+                            p.skipChildren();
+                        }
+                        return known;
+                    }
+                    break;
+                case "Countries":
+                    countries = new ArrayList<>();
+                    StreamingParsing.readArray(p, ctxt, Country.class, countries::add);
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        StreamingParsing.requireField(ctxt, this, countries, "Countries");
 
-        return new World(worldName.equals("null") ? null : worldName, countries);
+        // Unnamed worlds are written with a null name, older files may contain it as text
+        if ("null".equals(worldName)) {
+            worldName = null;
+        }
+        return new World(worldName, countries.toArray(new Country[0]));
     }
 }
@@ -0,0 +1,177 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.World;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * <p>Compact binary form of a default {@link World}, precompiled from its JSON file while building,
+ * so that it loads without parsing JSON.</p>
+ *
+ * <p>The format consists of {@link #MAGIC}, the format version, the SHA-256 digest of the JSON file
+ * the snapshot was made from, the world name, and every country with its fields, written with
+ * {@link DataOutputStream}. A snapshot is only used if the digest matches the JSON file shipped next to it,
+ * so that a stale snapshot is never preferred to an edited JSON file.</p>
+ *
+ * <p>Only used by this package and while building, so not part of the module's API. {@link #main(String[])}
+ * stays public, as the exec-maven-plugin looks it up as a public method, and makes it accessible itself.</p>
+ */
+final class WorldSnapshot {
+
+    /**
+     * First bytes of every snapshot.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'G', 'L', 'W'};
+
+    /**
+     * The version of the format written.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Algorithm used for the digest of the JSON file a snapshot was made from.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Private constructor to disallow instantiation.
+     */
+    private WorldSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of the given {@link World}.
+     *
+     * @param world        The world to write
+     * @param sourceDigest The digest of the JSON file the world was read from, see {@link #digest(byte[])}
+     * @param out          The stream to write to
+     *
+     * @throws IOException If writing fails
+     */
+    static void write(final World world, final byte[] sourceDigest, final OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.write(sourceDigest);
+        writeNullableString(data, world.getWorldName());
+        data.writeInt(world.getCountries().size());
+        for (Country country : world.getCountries()) {
+            writeNullableString(data, country.getCountryCode());
+            writeNullableString(data, country.getShortName());
+            writeNullableString(data, country.getLongName());
+            writeNullableString(data, country.getSovereignty());
+            writeNullableString(data, country.getRegion());
+            data.writeLong(country.getPopulation());
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a snapshot written by {@link #write(World, byte[], OutputStream)}.
+     *
+     * @param in           The stream to read from
+     * @param sourceDigest The digest of the JSON file the snapshot must have been made from
+     * @return The world, or {@code null} if the snapshot was made from another JSON file, or in another version
+     *
+     * @throws IOException If reading fails, or if the content isn't a snapshot
+     */
+    static World read(final InputStream in, final byte[] sourceDigest) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not a world snapshot");
+        }
+        if (data.readInt() != VERSION) {
+            return null;
+        }
+        byte[] digest = new byte[sourceDigest.length];
+        data.readFully(digest);
+        if (!Arrays.equals(sourceDigest, digest)) {
+            return null;
+        }
+
+        String worldName = readNullableString(data);
+        Country[] countries = new Country[data.readInt()];
+        for (int i = 0; i < countries.length; i++) {
+            countries[i] = new Country(readNullableString(data), readNullableString(data),
+                    readNullableString(data), readNullableString(data), readNullableString(data), data.readLong());
+        }
+        return new World(worldName, countries);
+    }
+
+    /**
+     * Compute the digest of a JSON file, which a snapshot made from it must match.
+     *
+     * @param source The content of the JSON file
+     * @return The digest
+     */
+    static byte[] digest(final byte[] source) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Precompile the predominant default {@link World} into a snapshot. Run while building,
+     * see the {@code world-snapshot} profile of this module's pom.xml.
+     *
+     * @param args The file to write the snapshot to
+     *
+     * @throws IOException If reading the JSON file or writing the snapshot fails
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: WorldSnapshot <output file>");
+        }
+        byte[] source = DefaultWorlds.readPredominantSource();
+        World world = PersistenceHandler.getUninjectedObjectMapper().readValue(source, World.class);
+        Path target = Paths.get(args[0]);
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(target)) {
+            write(world, digest(source), out);
+        }
+    }
+
+    /**
+     * Write a string that may be {@code null}, as whether it's present followed by the string.
+     *
+     * @param data   The stream to write to
+     * @param string The string to write, or {@code null}
+     *
+     * @throws IOException If writing fails
+     */
+    private static void writeNullableString(final DataOutputStream data, final String string) throws IOException {
+        data.writeBoolean(string != null);
+        if (string != null) {
+            data.writeUTF(string);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeNullableString(DataOutputStream, String)}.
+     *
+     * @param data The stream to read from
+     * @return The string, or {@code null}
+     *
+     * @throws IOException If reading fails
+     */
+    private static String readNullableString(final DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+}
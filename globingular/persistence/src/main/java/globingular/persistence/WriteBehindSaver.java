@@ -0,0 +1,469 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.CountryCollector;
+import globingular.core.GlobingularModule;
+import globingular.core.Visit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Saves {@link CountryCollector}s in the background, to a {@link CollectorStore}.</p>
+ *
+ * <p>Saving a CountryCollector only marks its user as dirty, and returns at once. The CountryCollector is
+ * written to the store at most {@link #getMaximumDelay()} milliseconds later, along with every change made to it
+ * in the meantime, so that a burst of changes results in a single write.</p>
+ *
+ * <p>Due writes are handed to a pool of up to {@link #WRITER_THREADS} threads, so that writes of different users
+ * are made at the same time, and can share the cost of making them durable, see {@link GroupCommitWriter}.
+ * Writes of the same user are made one at a time, so that an older state is never written after a newer one.</p>
+ *
+ * <p>When journaled, a single visit added or removed is instead saved by itself right away, if the store can
+ * do that more cheaply than saving the whole CountryCollector, see
+ * {@link CollectorStore#appendVisitEvent(String, ChangeEvent, long)}. The store is compacted in the background
+ * every {@link #COMPACTION_PERIOD} milliseconds, see {@link CollectorStore#compact()}.</p>
+ *
+ * <p>Pending saves are lost if the process dies, so {@link #close()} should be called on shutdown
+ * to write them. Before loading a CountryCollector from the store, {@link #flush(String)} should be called,
+ * so that a pending save for it isn't missed.</p>
+ */
+public class WriteBehindSaver implements AutoCloseable {
+
+    /**
+     * Default maximum number of milliseconds between saving a CountryCollector and writing it to the store.
+     */
+    public static final long DEFAULT_MAXIMUM_DELAY = 1000;
+
+    /**
+     * Number of milliseconds between compacting the store.
+     */
+    public static final long COMPACTION_PERIOD = 60_000;
+
+    /**
+     * System property overriding {@link #WRITER_THREADS}.
+     */
+    public static final String WRITER_THREADS_PROPERTY = "globingular.writerthreads";
+
+    /**
+     * Maximum number of threads writing to the store at once, twice the number of processors unless set with
+     * {@link #WRITER_THREADS_PROPERTY}. Writes mostly wait for the disk, but more threads than it can serve
+     * at once would only queue for it.
+     */
+    public static final int WRITER_THREADS = Math.max(1,
+            Integer.getInteger(WRITER_THREADS_PROPERTY, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Number of seconds a writer thread is kept while idle.
+     */
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Number of locks that writes of users are spread over, see {@link #lockFor(String)}.
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * The {@link CollectorStore} saved to.
+     */
+    private final CollectorStore collectorStore;
+
+    /**
+     * Maximum number of milliseconds between saving a CountryCollector and writing it to the store.
+     */
+    private final long maximumDelay;
+
+    /**
+     * Whether single visits added or removed are saved by themselves, when cheaper than saving the whole collector.
+     */
+    private final boolean journaled;
+
+    /**
+     * The latest CountryCollector saved for each dirty user, or an empty Optional if it should be deleted.
+     */
+    private final Map<String, Optional<CountryCollector>> pendingByUsername = new ConcurrentHashMap<>();
+
+    /**
+     * Single background thread handing pending saves to {@link #writers} when due, and compacting the store.
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Threads writing pending saves to the store, started when needed and stopped when idle.
+     */
+    private final ThreadPoolExecutor writers;
+
+    /**
+     * Locks held while writing a user to the store, so that an older state of a user is never written after
+     * a newer one. Users share locks, to keep their number bounded, while writes of most users don't wait
+     * for each other.
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Initialize a WriteBehindSaver writing to the given store at most {@code maximumDelay} milliseconds
+     * after saving.
+     *
+     * @param collectorStore The {@link CollectorStore} to save to
+     * @param maximumDelay   The maximum number of milliseconds between saving and writing to the store
+     * @param journaled      Whether single visits added or removed are saved by themselves, when cheaper
+     *
+     * @throws IllegalArgumentException If maximumDelay is negative
+     */
+    public WriteBehindSaver(final CollectorStore collectorStore, final long maximumDelay, final boolean journaled) {
+        if (maximumDelay < 0) {
+            throw new IllegalArgumentException("Maximum delay can't be negative: " + maximumDelay);
+        }
+        this.collectorStore = collectorStore;
+        this.maximumDelay = maximumDelay;
+        this.journaled = journaled;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "globingular-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Planned writes are done by close() instead, without waiting for their delay
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.scheduler.scheduleWithFixedDelay(this::compact, COMPACTION_PERIOD, COMPACTION_PERIOD,
+                TimeUnit.MILLISECONDS);
+        AtomicInteger writerCount = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, WRITER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "globingular-write-behind-" + writerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.writers.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Initialize a WriteBehindSaver writing to file at most {@code maximumDelay} milliseconds after saving,
+     * using a {@link FileCollectorStore}.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for writing to file
+     * @param maximumDelay       The maximum number of milliseconds between saving and writing to file
+     * @param journaled          Whether single visits added or removed are appended to journals
+     *
+     * @throws IllegalArgumentException If maximumDelay is negative
+     */
+    public WriteBehindSaver(final PersistenceHandler persistenceHandler, final long maximumDelay,
+            final boolean journaled) {
+        this(new FileCollectorStore(persistenceHandler), maximumDelay, journaled);
+    }
+
+    /**
+     * Initialize a WriteBehindSaver writing to file at most {@code maximumDelay} milliseconds after saving.
+     * Not journaled, as not specified.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for writing to file
+     * @param maximumDelay       The maximum number of milliseconds between saving and writing to file
+     *
+     * @throws IllegalArgumentException If maximumDelay is negative
+     */
+    public WriteBehindSaver(final PersistenceHandler persistenceHandler, final long maximumDelay) {
+        this(persistenceHandler, maximumDelay, false);
+    }
+
+    /**
+     * Initialize a WriteBehindSaver using {@link #DEFAULT_MAXIMUM_DELAY}, as none was given.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} to use for writing to file
+     */
+    public WriteBehindSaver(final PersistenceHandler persistenceHandler) {
+        this(persistenceHandler, DEFAULT_MAXIMUM_DELAY);
+    }
+
+    /**
+     * Save a {@link CountryCollector} in the background.
+     * If countryCollector is null, will delete in the background instead.
+     * If the user already has a pending save, it's replaced by this one, and written at the time already planned.
+     *
+     * @param username         The username to save state for (and use as filename)
+     * @param countryCollector The CountryCollector instance to save.
+     *                         Will delete file instead if countryCollector is null.
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     * @throws IllegalStateException    If this WriteBehindSaver is closed
+     */
+    public void saveCountryCollector(final String username, final CountryCollector countryCollector)
+            throws IllegalArgumentException, IllegalStateException {
+        // Validate now, as failing in the background can't be reported to the caller
+        if (username == null || !GlobingularModule.isUsernameValid(username.toLowerCase())) {
+            throw new IllegalArgumentException("Filename must be alphanumeric: " + username);
+        }
+        if (this.scheduler.isShutdown()) {
+            throw new IllegalStateException("Can't save after being closed");
+        }
+        final String usernameLowercase = username.toLowerCase();
+        // Only the first save in a burst plans a write, later ones are included in it
+        if (this.pendingByUsername.put(usernameLowercase, Optional.ofNullable(countryCollector)) == null) {
+            this.schedule(usernameLowercase);
+        }
+    }
+
+    /**
+     * Save a single visit added to or removed from a {@link CountryCollector}, after it has been made.
+     * Must be called while still holding the lock of the CountryCollector, taken before making the change,
+     * so that changes are journaled in the order they were made, and no other save of the CountryCollector
+     * is planned between checking for one and appending.
+     * When journaled, the change is appended to the user's journal right away, stamped with the current version,
+     * unless the whole CountryCollector is already waiting to be saved, or hasn't been saved yet.
+     * Otherwise the whole CountryCollector is saved in the background,
+     * like {@link #saveCountryCollector(String, CountryCollector)}.
+     *
+     * @param username         The username to save state for (and use as filename)
+     * @param countryCollector The CountryCollector the change was made to
+     * @param event            The visit added or removed
+     *
+     * @throws IllegalArgumentException If username is not alphanumeric
+     * @throws IllegalStateException    If this WriteBehindSaver is closed
+     * @throws IOException              If appending to the journal fails
+     */
+    public void saveVisitEvent(final String username, final CountryCollector countryCollector,
+            final ChangeEvent<Visit> event) throws IllegalArgumentException, IllegalStateException, IOException {
+        // A pending save includes the change, as it's written from the same CountryCollector
+        if (this.journaled && !this.hasPendingSave(username)
+                && this.collectorStore.appendVisitEvent(username, event, countryCollector.getVersion())) {
+            return;
+        }
+        this.saveCountryCollector(username, countryCollector);
+    }
+
+    /**
+     * Compact the store, see {@link CollectorStore#compact()}.
+     *
+     * @return The number of files or segments compacted
+     */
+    public int compact() {
+        try {
+            return this.collectorStore.compact();
+        } catch (IOException e) {
+            // Catch and print if exception, and try again next period
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Get the {@link CollectorStore} saved to, which should also be loaded from.
+     *
+     * @return The store
+     */
+    public CollectorStore getCollectorStore() {
+        return this.collectorStore;
+    }
+
+    /**
+     * Check if single visits added or removed are saved by themselves.
+     *
+     * @return True if journaled
+     */
+    public boolean isJournaled() {
+        return this.journaled;
+    }
+
+    /**
+     * Immediately write the pending save for the given user, if any.
+     * Only waits for a write of the same user already in progress, not for those of other users.
+     *
+     * @param username The username to write the pending save for
+     *
+     * @throws IOException If writing fails. The save is then no longer pending.
+     */
+    public void flush(final String username) throws IOException {
+        synchronized (this.lockFor(username.toLowerCase())) {
+            Optional<CountryCollector> pending = this.pendingByUsername.remove(username.toLowerCase());
+            if (pending != null) {
+                this.collectorStore.save(username, pending.orElse(null));
+            }
+        }
+    }
+
+    /**
+     * Immediately write every pending save, writing different users at the same time.
+     * Continues with the remaining users if writing fails for one of them.
+     *
+     * @throws IOException If writing fails for any user, after trying every user
+     */
+    public void flushAll() throws IOException {
+        // Hand every write to the writers, then wait for them all
+        List<FutureTask<Void>> flushes = new ArrayList<>();
+        for (String username : List.copyOf(this.pendingByUsername.keySet())) {
+            FutureTask<Void> flush = new FutureTask<>(() -> {
+                this.flush(username);
+                return null;
+            });
+            try {
+                this.writers.execute(flush);
+            } catch (RejectedExecutionException e) {
+                // Closed already, so written on this thread instead
+                flush.run();
+            }
+            flushes.add(flush);
+        }
+        IOException failure = null;
+        for (FutureTask<Void> flush : flushes) {
+            try {
+                flush.get();
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw new IllegalStateException("Writing failed unexpectedly", e.getCause());
+                }
+                failure = (IOException) e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing pending saves");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Check if the given user has a save not yet written to the store.
+     *
+     * @param username The username to check
+     * @return True if there is a pending save for the user
+     */
+    public boolean hasPendingSave(final String username) {
+        return this.pendingByUsername.containsKey(username.toLowerCase());
+    }
+
+    /**
+     * Get the maximum number of milliseconds between saving a CountryCollector and writing it to the store.
+     *
+     * @return The maximum delay in milliseconds
+     */
+    public long getMaximumDelay() {
+        return this.maximumDelay;
+    }
+
+    /**
+     * Stop writing in the background, and write every pending save.
+     * Waits for background writes already in progress, and writes again the saves of those that failed,
+     * as they can no longer be planned again.
+     * Further saves are rejected. Closing more than once has no further effect.
+     *
+     * @throws IOException If writing fails for any user
+     */
+    @Override
+    public void close() throws IOException {
+        // Not interrupting a write in progress, as that would leave a broken file
+        this.scheduler.shutdown();
+        IOException failure = null;
+        try {
+            this.awaitTermination(this.scheduler);
+            this.flushAll();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            this.writers.shutdown();
+            this.awaitTermination(this.writers);
+        }
+        // Saves put back by background writes failing meanwhile, written on this thread as the writers are stopped
+        try {
+            this.flushAll();
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Wait for the given executor to finish its tasks after being shut down.
+     * If interrupted, stops waiting and keeps the thread interrupted.
+     *
+     * @param executor The executor to wait for
+     */
+    private void awaitTermination(final ThreadPoolExecutor executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Plan writing the pending save of the given user on one of the {@link #writers}
+     * after {@link #maximumDelay}. If closed in the meantime, the pending save is instead written by
+     * {@link #close()}, which waits for the writers before writing the saves left pending.
+     *
+     * @param username The username to write the pending save for
+     */
+    private void schedule(final String username) {
+        try {
+            this.scheduler.schedule(() -> this.handToWriter(username), this.maximumDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed while saving, close() writes it instead
+        }
+    }
+
+    /**
+     * Hand writing the pending save of the given user to one of the {@link #writers}, when due.
+     * If they're closed meanwhile, it's written on the calling thread instead, as {@link #close()} may have
+     * written every pending save already.
+     *
+     * @param username The username to write the pending save for
+     */
+    private void handToWriter(final String username) {
+        try {
+            this.writers.execute(() -> this.flushInBackground(username));
+        } catch (RejectedExecutionException e) {
+            this.flushInBackground(username);
+        }
+    }
+
+    /**
+     * Write the pending save of the given user from one of the {@link #writers}.
+     * On failure the save is planned again, unless a newer save has been planned already.
+     *
+     * @param username The username to write the pending save for
+     */
+    private void flushInBackground(final String username) {
+        synchronized (this.lockFor(username)) {
+            Optional<CountryCollector> pending = this.pendingByUsername.remove(username);
+            if (pending == null) {
+                // Already written by flush()
+                return;
+            }
+            try {
+                this.collectorStore.save(username, pending.orElse(null));
+            } catch (IOException e) {
+                // Catch and print if exception, and try again later, or when closing if closed meanwhile
+                e.printStackTrace();
+                if (this.pendingByUsername.putIfAbsent(username, pending) == null) {
+                    this.schedule(username);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the lock held while writing the given user to the store.
+     *
+     * @param username The username, in lowercase
+     * @return The lock, shared with some other users
+     */
+    private Object lockFor(final String username) {
+        return this.locks[Math.floorMod(username.hashCode(), this.locks.length)];
+    }
+}
@@ -0,0 +1,101 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+import globingular.core.World;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link BinaryCodec}, and for {@link PersistenceHandler} picking the format to read.
+ */
+public class BinaryCodecTest {
+    static PersistenceHandler binaryPersistenceHandler;
+    static PersistenceHandler jsonPersistenceHandler;
+
+    @BeforeAll
+    public static void start() {
+        binaryPersistenceHandler = new PersistenceHandler(PersistenceHandler.StorageFormat.BINARY);
+        jsonPersistenceHandler = new PersistenceHandler();
+    }
+
+    private static CountryCollector read(final PersistenceHandler persistenceHandler, final byte[] bytes)
+            throws IOException {
+        return persistenceHandler.readCountryCollector(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void testDefaultWorldCollectorRoundTrip() throws IOException {
+        World world = binaryPersistenceHandler.getPredominantDefaultWorld();
+        CountryCollector cc = new CountryCollector(world);
+        for (int i = 0; i < 100; i++) {
+            LocalDate arrival = LocalDate.of(1950, 1, 1).plusDays(i * 400L);
+            cc.registerVisit(world.getCountryFromCode(i % 2 == 0 ? "NO" : "SE"), arrival, arrival.plusDays(i));
+        }
+        cc.registerVisit(world.getCountryFromCode("DK"));
+
+        byte[] binary = binaryPersistenceHandler.writeCountryCollector(cc);
+        byte[] json = jsonPersistenceHandler.writeCountryCollector(cc);
+        assertTrue(Arrays.equals(BinaryCodec.MAGIC, Arrays.copyOf(binary, BinaryCodec.MAGIC.length)));
+        assertTrue(binary.length * 10 < json.length);
+
+        // Read using another PersistenceHandler, to make sure the world is resolved by its fingerprint
+        PersistenceHandler other = new PersistenceHandler();
+        CountryCollector parsed = read(other, binary);
+        assertSame(other.getPredominantDefaultWorld(), parsed.getWorld());
+        assertEquals(cc.getVisits(), parsed.getVisits());
+        assertEquals(read(other, json).getVisits(), parsed.getVisits());
+        // The version is kept, rather than counting the visits registered while reading
+        assertEquals(101, parsed.getVersion());
+        assertEquals(101, read(other, json).getVersion());
+    }
+
+    @Test
+    public void testCustomWorldCollectorRoundTrip() throws IOException {
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World("testWorld", country));
+        cc.registerVisit(new Visit(country, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 1)));
+
+        cc.restoreVersion(0);
+
+        CountryCollector parsed = read(jsonPersistenceHandler, binaryPersistenceHandler.writeCountryCollector(cc));
+        assertEquals("testWorld", parsed.getWorld().getWorldName());
+        assertEquals(0, parsed.getVersion());
+        Visit visit = parsed.getVisits().iterator().next();
+        assertEquals(LocalDate.of(2020, 1, 1), visit.getArrival());
+        assertEquals(LocalDate.of(2020, 1, 1), visit.getDeparture());
+    }
+
+    @Test
+    public void testJsonIsStillRead() throws IOException {
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World("testWorld", country));
+        cc.registerVisit(country);
+
+        CountryCollector parsed = read(binaryPersistenceHandler, jsonPersistenceHandler.writeCountryCollector(cc));
+        assertEquals(1, parsed.numberOfVisits());
+    }
+
+    @Test
+    public void testTruncatedBinaryFails() throws IOException {
+        World world = binaryPersistenceHandler.getPredominantDefaultWorld();
+        CountryCollector cc = new CountryCollector(world);
+        cc.registerVisit(world.getCountryFromCode("NO"));
+        byte[] binary = binaryPersistenceHandler.writeCountryCollector(cc);
+
+        assertThrows(IOException.class, () -> read(binaryPersistenceHandler,
+                Arrays.copyOf(binary, binary.length - 1)));
+    }
+}
@@ -0,0 +1,70 @@
+package globingular.persistence;
+
+import globingular.core.CountryCollector;
+import globingular.core.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link CollectorArchive}.
+ */
+public class CollectorArchiveTest {
+    private final PersistenceHandler persistenceHandler = new PersistenceHandler();
+
+    private byte[] exportUsers(final int users) throws IOException {
+        World world = persistenceHandler.getPredominantDefaultWorld();
+        try (InMemoryCollectorStore store = new InMemoryCollectorStore(persistenceHandler)) {
+            for (int i = 0; i < users; i++) {
+                CountryCollector cc = new CountryCollector(world);
+                for (int j = 0; j < i; j++) {
+                    LocalDate arrival = LocalDate.of(2000, 1, 1).plusDays(j);
+                    cc.registerVisit(world.getCountryFromCode("NO"), arrival, arrival);
+                }
+                store.save("user" + i, cc);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(users, CollectorArchive.exportArchive(persistenceHandler, store, out));
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testExportAndImport() throws IOException {
+        byte[] archive = exportUsers(50);
+
+        Map<String, CountryCollector> imported = new ConcurrentHashMap<>();
+        assertEquals(50, CollectorArchive.importArchive(persistenceHandler, new ByteArrayInputStream(archive),
+                imported::put, 4));
+        assertEquals(50, imported.size());
+        assertEquals(49, imported.get("user49").numberOfVisits());
+        assertSame(persistenceHandler.getPredominantDefaultWorld(), imported.get("user0").getWorld());
+    }
+
+    @Test
+    public void testImportFailures() throws IOException {
+        byte[] archive = exportUsers(10);
+
+        // Cut off in the middle of a record
+        assertThrows(IOException.class, () -> CollectorArchive.importArchive(persistenceHandler,
+                new ByteArrayInputStream(Arrays.copyOf(archive, archive.length - 10)), (u, cc) -> { }, 2));
+        // Failing importer
+        assertThrows(IOException.class, () -> CollectorArchive.importArchive(persistenceHandler,
+                new ByteArrayInputStream(archive), (u, cc) -> {
+                    throw new IOException("Disk full");
+                }, 2));
+        // Not an archive
+        assertThrows(IOException.class, () -> CollectorArchive.importArchive(persistenceHandler,
+                new ByteArrayInputStream(new byte[] {'{', '}', 0, 0, 0, 0}), (u, cc) -> { }, 2));
+    }
+}
@@ -0,0 +1,88 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link Compression}.
+ */
+public class CompressionTest {
+    private final PersistenceHandler persistenceHandler = new PersistenceHandler();
+
+    @Test
+    public void testCompressAndDecompress() throws IOException {
+        World world = persistenceHandler.getPredominantDefaultWorld();
+        CountryCollector cc = new CountryCollector(world);
+        cc.registerVisit(world.getCountryFromCode("NO"), LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+        cc.registerVisit(world.getCountryFromCode("SE"), null, null);
+        byte[] content = persistenceHandler.writeCountryCollector(cc);
+        byte[] dictionary = Compression.getDictionary(PersistenceHandler.StorageFormat.JSON);
+
+        byte[] compressed = Compression.compress(content, dictionary);
+        assertTrue(Compression.startsWithMagic(new ByteArrayInputStream(compressed)));
+        // The dictionary holds the world reference and field names, so little is left to compress
+        assertTrue(compressed.length < content.length / 3, compressed.length + " of " + content.length);
+
+        int dictionaryId = Compression.dictionaryId(dictionary);
+        assertArrayEquals(content, Compression.decompress(new ByteArrayInputStream(compressed),
+                id -> id == dictionaryId ? dictionary : null));
+    }
+
+    @Test
+    public void testCompressBinaryWithItsDictionary() throws IOException {
+        PersistenceHandler binaryHandler = new PersistenceHandler(PersistenceHandler.StorageFormat.BINARY);
+        World world = binaryHandler.getPredominantDefaultWorld();
+        CountryCollector cc = new CountryCollector(world);
+        cc.registerVisit(world.getCountryFromCode("NO"), LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+        cc.registerVisit(world.getCountryFromCode("SE"), null, null);
+        byte[] content = binaryHandler.writeCountryCollector(cc);
+        byte[] dictionary = Compression.getDictionary(PersistenceHandler.StorageFormat.BINARY);
+        assertNotEquals(Compression.dictionaryId(dictionary),
+                Compression.dictionaryId(Compression.getDictionary(PersistenceHandler.StorageFormat.JSON)));
+
+        // The dictionary holds the header and world reference, so it compresses better than the JSON one
+        byte[] compressed = Compression.compress(content, dictionary);
+        int withJsonDictionary = Compression.compress(content,
+                Compression.getDictionary(PersistenceHandler.StorageFormat.JSON)).length;
+        assertTrue(compressed.length < withJsonDictionary, compressed.length + " vs " + withJsonDictionary);
+        assertTrue(compressed.length < content.length, compressed.length + " of " + content.length);
+        assertArrayEquals(content, Compression.decompress(new ByteArrayInputStream(compressed), id -> dictionary));
+    }
+
+    @Test
+    public void testDictionaryDependsOnWorld() throws IOException {
+        Country norway = new Country("NO", "Norway");
+        Country sweden = new Country("SE", "Sweden");
+        for (PersistenceHandler.StorageFormat storageFormat : PersistenceHandler.StorageFormat.values()) {
+            byte[] formatDictionary = Compression.buildDictionary(new World("w", norway, sweden), storageFormat);
+            assertArrayEquals(formatDictionary,
+                    Compression.buildDictionary(new World("w", sweden, norway), storageFormat));
+            assertNotEquals(Compression.dictionaryId(formatDictionary),
+                    Compression.dictionaryId(Compression.buildDictionary(new World("w", norway), storageFormat)));
+        }
+        byte[] dictionary = Compression.buildDictionary(new World("w", norway, sweden),
+                PersistenceHandler.StorageFormat.JSON);
+
+        // Decompressing fails without the dictionary compressed with
+        byte[] compressed = Compression.compress(new byte[] {1, 2, 3}, dictionary);
+        assertThrows(IOException.class, () -> Compression.decompress(new ByteArrayInputStream(compressed),
+                id -> null));
+        // Or if cut off
+        assertThrows(IOException.class, () -> Compression.decompress(
+                new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length - 2)), id -> dictionary));
+        assertEquals(3, Compression.decompress(new ByteArrayInputStream(compressed), id -> dictionary).length);
+    }
+}
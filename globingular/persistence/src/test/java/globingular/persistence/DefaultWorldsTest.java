@@ -0,0 +1,132 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests for {@link DefaultWorlds} and {@link WorldSnapshot}.
+ */
+public class DefaultWorldsTest {
+
+    @Test
+    public void testDefaultWorldIsSharedBetweenPersistenceHandlers() {
+        World world = new PersistenceHandler().getPredominantDefaultWorld();
+        assertNotEquals(0, world.getCountries().size());
+        assertSame(world, new PersistenceHandler(PersistenceHandler.StorageFormat.BINARY)
+                .getPredominantDefaultWorld());
+        assertSame(world, DefaultWorlds.getInstance().getByName(world.getWorldName()));
+        assertSame(world, DefaultWorlds.getInstance().getByHash(PersistenceHandler.computeWorldHash(world)));
+    }
+
+    @Test
+    public void testSnapshotLoadsSameWorldAsJson() throws IOException {
+        byte[] source = DefaultWorlds.readPredominantSource();
+        World parsed = DefaultWorlds.load(source, null);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        WorldSnapshot.write(parsed, WorldSnapshot.digest(source), snapshot);
+
+        World loaded = DefaultWorlds.load(source, new ByteArrayInputStream(snapshot.toByteArray()));
+        assertEquals(PersistenceHandler.computeWorldHash(parsed), PersistenceHandler.computeWorldHash(loaded));
+        assertEquals(parsed.getTotalPopulation(), loaded.getTotalPopulation());
+    }
+
+    @Test
+    public void testStaleOrBrokenSnapshotIsIgnored() throws IOException {
+        byte[] source = "{\"WorldName\":\"Earth\",\"Countries\":[]}".getBytes(StandardCharsets.UTF_8);
+        World stale = new World("Stale", new Country("NO", "Norway", null, null, null, 1L));
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        WorldSnapshot.write(stale, WorldSnapshot.digest("{}".getBytes(StandardCharsets.UTF_8)), snapshot);
+
+        // Made from other JSON, so not used
+        assertNull(WorldSnapshot.read(new ByteArrayInputStream(snapshot.toByteArray()), WorldSnapshot.digest(source)));
+        assertEquals("Earth", DefaultWorlds.load(source, new ByteArrayInputStream(snapshot.toByteArray()))
+                .getWorldName());
+        // Not a snapshot at all
+        assertEquals("Earth", DefaultWorlds.load(source, new ByteArrayInputStream(source)).getWorldName());
+    }
+
+    @Test
+    public void testWorldsInFolderLoadOnFirstUse() throws IOException {
+        World predominant = new World("Earth", new Country("NO", "Norway"));
+        Path folder = Files.createTempDirectory("worlds");
+        try {
+            for (String worldName : new String[] {"Arda", "Narnia", "Earth"}) {
+                Files.write(folder.resolve(worldName + ".json"), PersistenceHandler.getUninjectedObjectMapper()
+                        .writeValueAsBytes(new World(worldName, new Country("XX", worldName + "land"))));
+            }
+            Files.write(folder.resolve("broken.json"), "{".getBytes(StandardCharsets.UTF_8));
+            DefaultWorlds worlds = new DefaultWorlds(predominant, folder, 1);
+
+            // A world in the folder with the name of the predominant world is ignored
+            assertSame(predominant, worlds.getByName("Earth"));
+            assertNull(worlds.getByName("broken"));
+
+            World arda = worlds.getByName("Arda");
+            assertEquals("Ardaland", arda.getCountryFromCode("XX").getShortName());
+            String ardaHash = worlds.getHash(arda);
+            assertEquals(PersistenceHandler.computeWorldHash(arda), ardaHash);
+            assertSame(arda, worlds.getByHash(ardaHash));
+
+            // Only one world from the folder is cached, but Arda is not loaded again while still referred to
+            World narnia = worlds.getByName("Narnia");
+            assertSame(arda, worlds.getByName("Arda"));
+            assertSame(narnia, worlds.getByName("Narnia"));
+            assertNotSame(arda, narnia);
+        } finally {
+            for (File file : folder.toFile().listFiles()) {
+                file.delete();
+            }
+            folder.toFile().delete();
+        }
+    }
+
+    @Test
+    public void testLookupsByHashTakeNoLock() throws Exception {
+        World predominant = new World("Earth", new Country("NO", "Norway"));
+        Path folder = Files.createTempDirectory("worlds");
+        try {
+            Files.write(folder.resolve("Arda.json"), PersistenceHandler.getUninjectedObjectMapper()
+                    .writeValueAsBytes(new World("Arda", new Country("XX", "Ardaland"))));
+            DefaultWorlds worlds = new DefaultWorlds(predominant, folder, 1);
+            World arda = worlds.getByName("Arda");
+            String ardaHash = PersistenceHandler.computeWorldHash(arda);
+
+            // Lookups by hash are answered while another thread holds the lock guarding the cache
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                synchronized (worlds) {
+                    assertEquals(ardaHash, executor.submit(() -> worlds.getHash(arda)).get(5, TimeUnit.SECONDS));
+                    assertSame(arda, executor.submit(() -> worlds.getByHash(ardaHash)).get(5, TimeUnit.SECONDS));
+                    assertEquals(PersistenceHandler.computeWorldHash(predominant),
+                            executor.submit(() -> worlds.getHash(predominant)).get(5, TimeUnit.SECONDS));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            assertNull(worlds.getHash(new World("Arda", new Country("XX", "Ardaland"))));
+        } finally {
+            for (File file : folder.toFile().listFiles()) {
+                file.delete();
+            }
+            folder.toFile().delete();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package globingular.persistence;
 
+import globingular.core.ChangeEvent;
 import globingular.core.Country;
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
@@ -7,11 +8,22 @@ import globingular.core.World;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 /**
@@ -60,4 +72,171 @@ public class FileHandlerTest {
 
         }
     }
+
+    @Test
+    public void testAppendVisitEventsAndLoadReplaysJournal() throws IOException {
+        PersistenceHandler persistenceHandler = new PersistenceHandler();
+        String username = "testappendvisitevents";
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World(country));
+        Visit visit1 = new Visit(country, LocalDate.of(2000, 1, 1), LocalDate.of(2000, 1, 2));
+        Visit visit2 = new Visit(country, LocalDate.of(2001, 1, 1), LocalDate.of(2001, 1, 2));
+
+        // Nothing to append to before a snapshot is saved
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+        assertFalse(FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, visit1), 1));
+
+        FileHandler.saveCountryCollector(persistenceHandler, username, cc);
+        assertTrue(FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, visit1), 1));
+        assertTrue(FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, visit2), 2));
+        assertTrue(FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit1), 3));
+        Path journal = FileHandler.snapshotPath(username).resolveSibling(username + ".journal");
+        assertEquals(3, Files.readAllLines(journal).size());
+
+        CountryCollector loaded = FileHandler.loadCountryCollector(persistenceHandler, username);
+        assertEquals(Set.of(visit2), loaded.getVisits());
+        assertEquals(3, loaded.getVersion());
+
+        // A record cut off by a crash is ignored
+        Files.writeString(journal, "+{\"countryCode\":\"N", StandardOpenOption.APPEND);
+        assertEquals(Set.of(visit2), FileHandler.loadCountryCollector(persistenceHandler, username).getVisits());
+
+        // Compacting folds the journal into the snapshot
+        assertTrue(FileHandler.compactJournal(persistenceHandler, username));
+        assertFalse(Files.exists(journal));
+        assertEquals(Set.of(visit2), FileHandler.loadCountryCollector(persistenceHandler, username).getVisits());
+
+        // Deleting removes the journal as well
+        FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, visit1), 4);
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+        assertFalse(Files.exists(journal));
+        assertNull(FileHandler.loadCountryCollector(persistenceHandler, username));
+    }
+
+    @Test
+    public void testSavingSnapshotEmptiesJournal() throws IOException {
+        PersistenceHandler persistenceHandler = new PersistenceHandler();
+        String username = "testsavingsnapshotemptiesjournal";
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World(country));
+        Visit visit = new Visit(country, LocalDate.of(2000, 1, 1), LocalDate.of(2000, 1, 2));
+
+        FileHandler.saveCountryCollector(persistenceHandler, username, cc);
+        cc.registerVisit(visit);
+        FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, visit), cc.getVersion());
+        // A new collector replacing the old one must not get the old journal replayed on it
+        FileHandler.saveCountryCollector(persistenceHandler, username, new CountryCollector(new World(country)));
+        assertEquals(0, FileHandler.loadCountryCollector(persistenceHandler, username).numberOfVisits());
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+    }
+
+    @Test
+    public void testReplaySkipsRecordsInSnapshot() throws IOException {
+        PersistenceHandler persistenceHandler = new PersistenceHandler();
+        String username = "testreplayskipsrecordsinsnapshot";
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World(country));
+        Visit visit1 = new Visit(country, LocalDate.of(2000, 1, 1), LocalDate.of(2000, 1, 2));
+        Visit visit2 = new Visit(country, LocalDate.of(2001, 1, 1), LocalDate.of(2001, 1, 2));
+
+        // Journal records made before a snapshot including them, as if its save raced with the appends
+        FileHandler.saveCountryCollector(persistenceHandler, username, cc);
+        cc.registerVisit(visit1);
+        cc.removeVisit(visit1);
+        FileHandler.saveCountryCollector(persistenceHandler, username, cc);
+        Path journal = FileHandler.snapshotPath(username).resolveSibling(username + ".journal");
+        Files.writeString(journal,
+                "+1 {\"countryCode\":\"NO\",\"arrival\":\"2000-01-01\",\"departure\":\"2000-01-02\"}\n");
+        cc.registerVisit(visit2);
+        assertTrue(FileHandler.appendVisitEvent(persistenceHandler, username,
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, visit2), cc.getVersion()));
+
+        // The stale addition of visit1 is skipped, as its removal is already in the snapshot
+        CountryCollector loaded = FileHandler.loadCountryCollector(persistenceHandler, username);
+        assertEquals(Set.of(visit2), loaded.getVisits());
+        assertEquals(cc.getVersion(), loaded.getVersion());
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+    }
+
+    @Test
+    public void testExistsAndListUsernames() throws IOException {
+        PersistenceHandler persistenceHandler = new PersistenceHandler();
+        String username = "testexistsandlistusernames";
+        FileHandler.saveCountryCollector(persistenceHandler, username, new CountryCollector(new World()));
+        assertTrue(FileHandler.countryCollectorExists(username));
+        assertTrue(FileHandler.listUsernames().contains(username));
+
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+        assertFalse(FileHandler.countryCollectorExists(username));
+        assertFalse(FileHandler.listUsernames().contains(username));
+    }
+
+    @Test
+    public void testLoadCompressedSnapshot() throws IOException {
+        PersistenceHandler persistenceHandler = new PersistenceHandler();
+        String username = "testloadcompressedsnapshot";
+        World world = persistenceHandler.getPredominantDefaultWorld();
+        CountryCollector cc = new CountryCollector(world);
+        cc.registerVisit(world.getCountryFromCode("NO"), LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+        // Saved once to create the folders, then replaced by a compressed snapshot
+        FileHandler.saveCountryCollector(persistenceHandler, username, cc);
+        Files.write(FileHandler.snapshotPath(username), Compression.compress(
+                persistenceHandler.writeCountryCollector(cc),
+                Compression.getDictionary(PersistenceHandler.StorageFormat.JSON)));
+
+        CountryCollector loaded = FileHandler.loadCountryCollector(persistenceHandler, username);
+        assertSame(world, loaded.getWorld());
+        assertTrue(loaded.isVisited(world.getCountryFromCode("NO")));
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+    }
+
+    @Test
+    public void testSnapshotsAreSharded() throws IOException {
+        Path path = FileHandler.snapshotPath("testsnapshotsaresharded");
+        assertEquals(FileHandler.SHARD_DEPTH, FileHandler.DATA_FOLDER.relativize(path).getNameCount() - 1);
+        // Spread over different folders
+        assertNotEquals(path.getParent(), FileHandler.snapshotPath("testsnapshotsaresharded2").getParent());
+    }
+
+    @Test
+    public void testMigrateFlatLayout() throws IOException {
+        Path folder = Files.createTempDirectory("migratelayout");
+        try {
+            Files.writeString(folder.resolve("flatuser.json"), "{}");
+            Files.writeString(folder.resolve("flatuser.journal"), "");
+            Files.writeString(folder.resolve("notes.txt"), "");
+
+            assertEquals(2, FileHandler.migrateLayout(folder));
+            List<Path> files = listFiles(folder);
+            assertTrue(Files.exists(folder.resolve("notes.txt")));
+            assertFalse(Files.exists(folder.resolve("flatuser.json")));
+            Path snapshot = files.stream().filter(path -> path.endsWith("flatuser.json")).findAny().orElseThrow();
+            assertEquals(FileHandler.SHARD_DEPTH, folder.relativize(snapshot).getNameCount() - 1);
+            assertTrue(Files.exists(snapshot.resolveSibling("flatuser.journal")));
+
+            // Only migrated once
+            Files.writeString(folder.resolve("later.json"), "{}");
+            assertEquals(0, FileHandler.migrateLayout(folder));
+        } finally {
+            try (Stream<Path> walk = Files.walk(folder)) {
+                // Delete the deepest first
+                for (Path path : walk.sorted((a, b) -> b.getNameCount() - a.getNameCount())
+                        .collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static List<Path> listFiles(final Path folder) throws IOException {
+        try (Stream<Path> walk = Files.walk(folder)) {
+            return walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
 }
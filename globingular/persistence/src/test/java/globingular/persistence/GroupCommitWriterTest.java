@@ -0,0 +1,135 @@
+package globingular.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link GroupCommitWriter}.
+ */
+public class GroupCommitWriterTest {
+    private Path folder;
+    private GroupCommitWriter writer;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        folder = Files.createTempDirectory("groupcommit");
+        writer = new GroupCommitWriter();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        for (File file : folder.toFile().listFiles()) {
+            file.delete();
+        }
+        folder.toFile().delete();
+    }
+
+    @Test
+    public void testReplaceAndDelete() throws IOException {
+        Path target = folder.resolve("user.json");
+        writer.replace(target, "first".getBytes(StandardCharsets.UTF_8));
+        writer.replace(target, "second".getBytes(StandardCharsets.UTF_8));
+        assertEquals("second", Files.readString(target));
+        // The temporary file is renamed, not left behind
+        assertEquals(1, folder.toFile().listFiles().length);
+
+        writer.delete(target);
+        assertFalse(Files.exists(target));
+        // Deleting a missing file is fine
+        writer.delete(target);
+    }
+
+    @Test
+    public void testConcurrentWritesAreBatched() throws Exception {
+        int threads = 16;
+        int appends = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                // Half of the threads share a file
+                Path target = folder.resolve(t % 2 == 0 ? "shared.journal" : "user" + t + ".journal");
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < appends; i++) {
+                        writer.append(target, "+record\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(threads / 2 * appends, Files.readAllLines(folder.resolve("shared.journal")).size());
+        assertEquals(appends, Files.readAllLines(folder.resolve("user1.journal")).size());
+        assertEquals(threads * appends, writer.getWriteCount());
+        // Callers writing at the same time share batches
+        assertTrue(writer.getBatchCount() <= writer.getWriteCount());
+    }
+
+    @Test
+    public void testFailedWriteIsReported() {
+        Path target = folder.resolve("missing").resolve("user.json");
+        try {
+            writer.replace(target, new byte[0]);
+            throw new AssertionError("Was allowed to write to a missing folder");
+        } catch (IOException e) {
+            // Success
+        }
+    }
+
+    @Test
+    public void testFailedAppendOnlyFailsLaterAppendsToItsFile() throws Exception {
+        // A folder can't be appended to
+        Path broken = Files.createDirectory(folder.resolve("broken.journal"));
+        Path other = folder.resolve("other.journal");
+        Path replaced = folder.resolve("user.json");
+        Files.writeString(folder.resolve("user.json.tmp"), "snapshot");
+        GroupCommitWriter.PendingWrite failed = append(broken, "+first\n");
+        GroupCommitWriter.PendingWrite later = append(broken, "+second\n");
+        GroupCommitWriter.PendingWrite unaffected = append(other, "+other\n");
+        GroupCommitWriter.PendingWrite rename =
+                new GroupCommitWriter.PendingWrite(GroupCommitWriter.Operation.REPLACE, replaced, null);
+        // Renaming a temporary file that's missing fails, but not the delete of the same file after it
+        GroupCommitWriter.PendingWrite missingRename =
+                new GroupCommitWriter.PendingWrite(GroupCommitWriter.Operation.REPLACE, replaced, null);
+        GroupCommitWriter.PendingWrite delete =
+                new GroupCommitWriter.PendingWrite(GroupCommitWriter.Operation.DELETE, replaced, null);
+
+        writer.commit(List.of(failed, later, unaffected, rename, missingRename, delete));
+
+        assertTrue(failed.getDone().isCompletedExceptionally());
+        assertTrue(later.getDone().isCompletedExceptionally());
+        assertTrue(missingRename.getDone().isCompletedExceptionally());
+        unaffected.getDone().get();
+        rename.getDone().get();
+        delete.getDone().get();
+        assertEquals("+other\n", Files.readString(other));
+        assertFalse(Files.exists(replaced));
+        Files.delete(broken);
+    }
+
+    private static GroupCommitWriter.PendingWrite append(final Path target, final String content) {
+        return new GroupCommitWriter.PendingWrite(GroupCommitWriter.Operation.APPEND, target,
+                content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,60 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link InMemoryCollectorStore}, and the default methods of {@link CollectorStore}.
+ */
+public class InMemoryCollectorStoreTest {
+    private final Country country = new Country("NO", "Norway");
+
+    @Test
+    public void testSaveLoadAndDelete() throws IOException {
+        try (InMemoryCollectorStore store = new InMemoryCollectorStore(new PersistenceHandler())) {
+            CountryCollector cc = new CountryCollector(new World(country));
+            cc.registerVisit(country);
+            assertFalse(store.exists("user"));
+            assertTrue(store.save("User", cc));
+            assertTrue(store.exists("USER"));
+
+            // Loading returns a copy
+            CountryCollector loaded = store.load("user");
+            assertNotSame(cc, loaded);
+            assertEquals(cc.getVisits(), loaded.getVisits());
+
+            assertTrue(store.delete("user"));
+            assertFalse(store.delete("user"));
+            assertNull(store.load("user"));
+            assertThrows(IllegalArgumentException.class, () -> store.exists("h i"));
+        }
+    }
+
+    @Test
+    public void testRenameAndList() throws IOException {
+        try (InMemoryCollectorStore store = new InMemoryCollectorStore(new PersistenceHandler())) {
+            store.save("first", new CountryCollector(new World(country)));
+            store.save("second", new CountryCollector(new World(country)));
+            assertEquals(Set.of("first", "second"), store.list());
+
+            assertTrue(store.rename("first", "third"));
+            assertEquals(Set.of("second", "third"), store.list());
+            assertFalse(store.rename("first", "fourth"));
+            // Renaming to a taken username fails, without losing either
+            assertThrows(IllegalArgumentException.class, () -> store.rename("second", "third"));
+            assertEquals(Set.of("second", "third"), store.list());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+import globingular.core.World;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link PersistenceHandler}.
+ */
+public class PersistenceHandlerTest {
+    static PersistenceHandler persistenceHandler;
+
+    @BeforeAll
+    public static void start() {
+        persistenceHandler = new PersistenceHandler();
+    }
+
+    @Test
+    public void testSerializeDefaultWorldCollectorAsReference() {
+        World world = persistenceHandler.getPredominantDefaultWorld();
+        CountryCollector cc = new CountryCollector(world);
+        cc.registerVisit(world.getCountryFromCode("NO"), LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+
+        String serialized = persistenceHandler.serialize(cc);
+        assertTrue(serialized.contains("WorldReference"));
+        assertFalse(serialized.contains("Countries"));
+
+        // Parse using another PersistenceHandler, to make sure the reference is resolved by content
+        PersistenceHandler otherPersistenceHandler = new PersistenceHandler();
+        CountryCollector parsed = otherPersistenceHandler.parse(serialized, CountryCollector.class);
+        assertSame(otherPersistenceHandler.getPredominantDefaultWorld(), parsed.getWorld());
+        assertTrue(parsed.isVisited(parsed.getWorld().getCountryFromCode("NO")));
+    }
+
+    @Test
+    public void testSerializeCustomWorldCollectorInFull() {
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World("testWorld", country));
+        cc.registerVisit(new Visit(country, null, null));
+
+        String serialized = persistenceHandler.serialize(cc);
+        assertFalse(serialized.contains("WorldReference"));
+
+        CountryCollector parsed = persistenceHandler.parse(serialized, CountryCollector.class);
+        assertEquals("testWorld", parsed.getWorld().getWorldName());
+        assertEquals(1, parsed.numberOfVisits());
+    }
+
+    @Test
+    public void testParseUnknownWorldReferenceFails() {
+        String serialized = "{\"WorldReference\":{\"WorldName\":\"Middle Earth\",\"WorldHash\":\"abc\"},"
+                + "\"Visits\":[]}";
+        assertNull(persistenceHandler.parse(serialized, CountryCollector.class));
+    }
+
+    @Test
+    public void testParseVisitsBeforeWorld() {
+        String serialized = "{\"Visits\":[{\"countryCode\":\"NO\","
+                + "\"arrival\":\"2020-01-01\",\"departure\":\"2020-01-02\"}],"
+                + "\"World\":{\"WorldName\":\"testWorld\",\"Countries\":[{\"countryCode\":\"NO\","
+                + "\"shortName\":\"Norway\",\"longName\":\"Norway\",\"sovereignty\":\"UN\",\"region\":\"EU\","
+                + "\"population\":5,\"provinces\":[{\"shortName\":\"Oslo\"}]}]}}";
+        CountryCollector parsed = persistenceHandler.parse(serialized, CountryCollector.class);
+        Country country = parsed.getWorld().getCountryFromCode("NO");
+        assertEquals(5, country.getPopulation());
+        assertEquals(1, parsed.numberOfVisits());
+        assertEquals(LocalDate.of(2020, 1, 1), parsed.getVisitsToCountry(country).iterator().next().getArrival());
+    }
+
+    @Test
+    public void testParseInlinedDefaultWorldIsNotParsedAgain() {
+        // The countries would fail to parse, so they must be skipped
+        String serialized = "{\"World\":{\"WorldName\":\"Earth\",\"Countries\":[{\"broken\":[1,{}]}]},"
+                + "\"Visits\":[{\"countryCode\":\"NO\",\"arrival\":null,\"departure\":null}]}";
+        CountryCollector parsed = persistenceHandler.parse(serialized, CountryCollector.class);
+        assertSame(persistenceHandler.getDefaultWorld("Earth"), parsed.getWorld());
+        assertEquals(1, parsed.numberOfVisits());
+    }
+
+    @Test
+    public void testParseUnknownCountryCodeFails() {
+        String serialized = "{\"World\":{\"WorldName\":\"testWorld\",\"Countries\":[]},"
+                + "\"Visits\":[{\"countryCode\":\"NO\",\"arrival\":null,\"departure\":null}]}";
+        assertNull(persistenceHandler.parse(serialized, CountryCollector.class));
+    }
+
+    @Test
+    public void testSerializeVisitEvents() {
+        Visit visit = new Visit(new Country("NO", "Norway"), LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+        String serialized = persistenceHandler.serialize(List.of(new ChangeEvent<>(ChangeEvent.Status.ADDED, visit),
+                new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit)));
+
+        ChangeEvent<?>[] parsed = persistenceHandler.parse(serialized, ChangeEvent[].class);
+        assertEquals(2, parsed.length);
+        assertTrue(parsed[0].wasAdded());
+        assertTrue(parsed[1].wasRemoved());
+        assertEquals("NO", ((Visit) parsed[1].getElement()).getCountry().getCountryCode());
+        assertEquals(visit.getArrival(), ((Visit) parsed[1].getElement()).getArrival());
+
+        assertNull(persistenceHandler.parse("[{\"status\":\"MOVED\",\"visit\":{\"countryCode\":\"NO\"}}]",
+                ChangeEvent[].class));
+        assertNull(persistenceHandler.parse("[{\"status\":\"ADDED\"}]", ChangeEvent[].class));
+    }
+
+    @Test
+    public void testSharedObjectMapperKeepsWorldPerCall() throws Exception {
+        assertSame(persistenceHandler.getObjectMapper(), persistenceHandler.getObjectMapper());
+
+        // Parse collectors of different worlds at the same time, using the same mapper
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Country country = new Country("NO", "Norway " + i);
+            CountryCollector cc = new CountryCollector(new World("world" + i, country));
+            cc.registerVisit(country, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+            String serialized = persistenceHandler.serialize(cc);
+            tasks.add(() -> {
+                for (int j = 0; j < 50; j++) {
+                    CountryCollector parsed = persistenceHandler.parse(serialized, CountryCollector.class);
+                    Country parsedCountry = parsed.getWorld().getCountryFromCode("NO");
+                    if (!parsed.isVisited(parsedCountry)
+                            || !parsedCountry.getShortName().equals(country.getShortName())) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGetDefaultWorldFromReferenceFallsBackToName() {
+        World world = persistenceHandler.getPredominantDefaultWorld();
+        assertSame(world, persistenceHandler.getDefaultWorldFromReference(world.getWorldName(), "outdated"));
+    }
+
+    @Test
+    public void testComputeWorldHash() {
+        Country country0 = new Country("NO", "Norway");
+        Country country1 = new Country("SE", "Sweden");
+        assertEquals(PersistenceHandler.computeWorldHash(new World("w", country0, country1)),
+                PersistenceHandler.computeWorldHash(new World("w", country1, country0)));
+        assertNotEquals(PersistenceHandler.computeWorldHash(new World("w", country0, country1)),
+                PersistenceHandler.computeWorldHash(new World("w", country0)));
+        assertNull(persistenceHandler.getDefaultWorldHash(new World("w", country0)));
+    }
+}
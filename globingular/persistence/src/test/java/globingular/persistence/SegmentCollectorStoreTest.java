@@ -0,0 +1,173 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+import globingular.core.World;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link SegmentCollectorStore}.
+ */
+public class SegmentCollectorStoreTest {
+    private final PersistenceHandler persistenceHandler =
+            new PersistenceHandler(PersistenceHandler.StorageFormat.BINARY);
+    private final Country country = new Country("NO", "Norway");
+    private Path folder;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        folder = Files.createTempDirectory("segments");
+    }
+
+    @AfterEach
+    public void afterEach() {
+        for (File file : folder.toFile().listFiles()) {
+            file.delete();
+        }
+        folder.toFile().delete();
+    }
+
+    private CountryCollector collectorWithVisits(final int visits) {
+        CountryCollector cc = new CountryCollector(new World(country));
+        for (int i = 0; i < visits; i++) {
+            LocalDate arrival = LocalDate.of(2000, 1, 1).plusDays(i);
+            cc.registerVisit(country, arrival, arrival);
+        }
+        return cc;
+    }
+
+    @Test
+    public void testSaveLoadAndDelete() throws IOException {
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder)) {
+            assertNull(store.load("user1"));
+            assertTrue(store.save("User1", collectorWithVisits(1)));
+            assertTrue(store.save("user1", collectorWithVisits(2)));
+            assertEquals(2, store.load("USER1").numberOfVisits());
+
+            assertTrue(store.save("user1", null));
+            assertNull(store.load("user1"));
+            assertFalse(store.save("user1", null));
+            assertThrows(IllegalArgumentException.class, () -> store.load("h i"));
+            // Single visits are saved along with the whole collector
+            assertFalse(store.appendVisitEvent("user1",
+                    new ChangeEvent<>(ChangeEvent.Status.ADDED, new Visit(country, null, null)), 1));
+        }
+    }
+
+    @Test
+    public void testReopenRebuildsIndex() throws IOException {
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder, 1024)) {
+            for (int i = 0; i < 20; i++) {
+                store.save("user" + i, collectorWithVisits(i));
+            }
+            store.save("user3", null);
+            assertTrue(store.getSegmentCount() > 1);
+        }
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder, 1024)) {
+            assertEquals(19, store.size());
+            assertNull(store.load("user3"));
+            assertEquals(19, store.load("user19").numberOfVisits());
+        }
+    }
+
+    @Test
+    public void testRecordCutOffByCrashIsIgnored() throws IOException {
+        Path segment;
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder)) {
+            store.save("user1", collectorWithVisits(1));
+            store.save("user1", collectorWithVisits(2));
+            segment = folder.toFile().listFiles()[0].toPath();
+        }
+        // Corrupt the last byte of the second record
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int end = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+            for (int i = 0; i < 2; i++) {
+                buffer.clear();
+                channel.read(buffer, end);
+                end += 2 * Integer.BYTES + buffer.getInt(0);
+            }
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xff}), end - 1);
+        }
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder)) {
+            assertEquals(1, store.load("user1").numberOfVisits());
+            // Appending continues after the last complete record
+            store.save("user1", collectorWithVisits(3));
+        }
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder)) {
+            assertEquals(3, store.load("user1").numberOfVisits());
+        }
+    }
+
+    @Test
+    public void testCompactionDropsReplacedRecords() throws IOException {
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder, 1024)) {
+            store.save("kept", collectorWithVisits(5));
+            store.save("deleted", collectorWithVisits(5));
+            for (int i = 0; i < 50; i++) {
+                store.save("replaced", collectorWithVisits(i % 5));
+            }
+            store.save("deleted", null);
+            int segments = store.getSegmentCount();
+            assertTrue(store.compact() > 0);
+            assertTrue(store.getSegmentCount() < segments);
+            assertEquals(5, store.load("kept").numberOfVisits());
+            assertNull(store.load("deleted"));
+            assertEquals(4, store.load("replaced").numberOfVisits());
+        }
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder, 1024)) {
+            assertEquals(5, store.load("kept").numberOfVisits());
+            assertNull(store.load("deleted"));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void testCompactionOfNewerSegmentKeepsDeletions() throws IOException {
+        int live = 0;
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder, 1024)) {
+            // The oldest segment is mostly live, so it isn't compacted
+            store.save("deleted", collectorWithVisits(5));
+            while (store.getSegmentCount() == 1) {
+                store.save("live" + live++, collectorWithVisits(5));
+            }
+            // The next one holds little but the deletion and replaced records
+            store.save("deleted", null);
+            while (store.getSegmentCount() == 2) {
+                store.save("replaced", collectorWithVisits(5));
+            }
+
+            assertEquals(1, store.compact());
+            assertEquals(2, store.getSegmentCount());
+            // The compacted segment's file is deleted, as nothing reads from it
+            assertEquals(2, folder.toFile().listFiles().length);
+            assertNull(store.load("deleted"));
+        }
+        try (SegmentCollectorStore store = new SegmentCollectorStore(persistenceHandler, folder, 1024)) {
+            // The deletion was copied forward, as the oldest segment still holds what it deleted
+            assertNull(store.load("deleted"));
+            assertEquals(live + 1, store.size());
+            assertEquals(5, store.load("live0").numberOfVisits());
+            assertEquals(5, store.load("replaced").numberOfVisits());
+        }
+    }
+}
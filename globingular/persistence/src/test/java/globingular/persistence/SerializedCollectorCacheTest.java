@@ -0,0 +1,77 @@
+package globingular.persistence;
+
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests for {@link SerializedCollectorCache}.
+ */
+public class SerializedCollectorCacheTest {
+    private final PersistenceHandler persistenceHandler = new PersistenceHandler();
+    private final Country country = new Country("NO", "Norway");
+    private final World world = new World("testWorld", country, new Country("SE", "Sweden"));
+
+    @Test
+    public void testServedUntilChanged() throws IOException {
+        SerializedCollectorCache cache = new SerializedCollectorCache(persistenceHandler);
+        CountryCollector cc = new CountryCollector(world);
+
+        byte[] first = cache.getSerialized("user", cc, cc.getVersion());
+        assertArrayEquals(persistenceHandler.getObjectMapper().writeValueAsBytes(cc), first);
+        assertSame(first, cache.getSerialized("user", cc, cc.getVersion()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // A change increases the version, so it's serialized again
+        cc.registerVisit(country);
+        byte[] changed = cache.getSerialized("user", cc, cc.getVersion());
+        assertEquals(1, persistenceHandler.getObjectMapper().readValue(changed, CountryCollector.class)
+                .numberOfVisits());
+        assertEquals(changed.length, cache.getTotalBytes());
+
+        // So does a replacement at the same version
+        CountryCollector replacement = new CountryCollector(world);
+        replacement.restoreVersion(cc.getVersion());
+        assertNotSame(changed, cache.getSerialized("user", replacement, replacement.getVersion()));
+        assertEquals(3, cache.getMissCount());
+
+        cache.invalidate("user");
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedWithinBudget() throws IOException {
+        CountryCollector cc = new CountryCollector(world);
+        int size = persistenceHandler.getObjectMapper().writeValueAsBytes(cc).length;
+        SerializedCollectorCache cache = new SerializedCollectorCache(persistenceHandler, 2L * size);
+
+        cache.getSerialized("first", cc, 0);
+        cache.getSerialized("second", cc, 0);
+        // Using the first makes the second the least recently used
+        cache.getSerialized("first", cc, 0);
+        cache.getSerialized("third", cc, 0);
+        assertEquals(2L * size, cache.getTotalBytes());
+        assertEquals(1, cache.getHitCount());
+
+        cache.getSerialized("first", cc, 0);
+        assertEquals(2, cache.getHitCount());
+        cache.getSerialized("second", cc, 0);
+        assertEquals(2, cache.getHitCount());
+
+        // Nothing is cached without a budget
+        SerializedCollectorCache disabled = new SerializedCollectorCache(persistenceHandler, 0);
+        disabled.getSerialized("first", cc, 0);
+        assertEquals(0, disabled.getTotalBytes());
+        assertThrows(IllegalArgumentException.class, () -> new SerializedCollectorCache(persistenceHandler, -1));
+    }
+}
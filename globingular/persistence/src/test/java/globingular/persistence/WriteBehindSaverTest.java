@@ -0,0 +1,201 @@
+package globingular.persistence;
+
+import globingular.core.ChangeEvent;
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+import globingular.core.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link WriteBehindSaver}.
+ */
+public class WriteBehindSaverTest {
+    private final PersistenceHandler persistenceHandler = new PersistenceHandler();
+    private final Country country = new Country("NO", "Norway");
+
+    @Test
+    public void testSavesAreCoalescedUntilFlushed() throws IOException {
+        String username = "testwritebehindcoalesced";
+        CountryCollector cc = new CountryCollector(new World(country));
+        // Long delay, so that nothing is written in the background during the test
+        try (WriteBehindSaver saver = new WriteBehindSaver(persistenceHandler, 60_000)) {
+            FileHandler.saveCountryCollector(persistenceHandler, username, null);
+            for (int i = 0; i < 10; i++) {
+                cc.registerVisit(country, LocalDate.of(2000, 1, 1).plusDays(i), LocalDate.of(2000, 1, 1).plusDays(i));
+                saver.saveCountryCollector(username, cc);
+            }
+            assertTrue(saver.hasPendingSave(username));
+            assertNull(FileHandler.loadCountryCollector(persistenceHandler, username));
+
+            saver.flush(username);
+            assertFalse(saver.hasPendingSave(username));
+            assertEquals(10, FileHandler.loadCountryCollector(persistenceHandler, username).numberOfVisits());
+        }
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+    }
+
+    @Test
+    public void testSavesAreWrittenInBackground() throws Exception {
+        String username = "testwritebehindbackground";
+        try (WriteBehindSaver saver = new WriteBehindSaver(persistenceHandler, 10)) {
+            saver.saveCountryCollector(username, new CountryCollector(new World(country)));
+            for (int i = 0; i < 100 && saver.hasPendingSave(username); i++) {
+                Thread.sleep(50);
+            }
+            assertFalse(saver.hasPendingSave(username));
+            assertTrue(FileHandler.loadCountryCollector(persistenceHandler, username) != null);
+
+            // Deleting is written in the background too
+            saver.saveCountryCollector(username, null);
+            saver.flushAll();
+            assertNull(FileHandler.loadCountryCollector(persistenceHandler, username));
+        }
+    }
+
+    @Test
+    public void testFlushDoesNotWaitForOtherUsers() throws Exception {
+        // A store where saving slowuser blocks until released
+        InMemoryCollectorStore memory = new InMemoryCollectorStore(persistenceHandler);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CollectorStore store = (CollectorStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {CollectorStore.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("save") && "slowuser".equals(args[0])) {
+                        started.countDown();
+                        release.await();
+                    }
+                    try {
+                        return method.invoke(memory, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (WriteBehindSaver saver = new WriteBehindSaver(store, 60_000, false)) {
+            saver.saveCountryCollector("slowuser", new CountryCollector(new World(country)));
+            saver.saveCountryCollector("fastuser", new CountryCollector(new World(country)));
+            Future<?> slow = executor.submit(() -> {
+                saver.flush("slowuser");
+                return null;
+            });
+            started.await();
+
+            // Written while slowuser's write is still in progress
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> saver.flush("fastuser"));
+            assertTrue(memory.exists("fastuser"));
+            assertFalse(memory.exists("slowuser"));
+
+            release.countDown();
+            slow.get();
+            assertTrue(memory.exists("slowuser"));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCloseWritesPendingSaves() throws IOException {
+        String username = "testwritebehindclose";
+        WriteBehindSaver saver = new WriteBehindSaver(persistenceHandler, 60_000);
+        saver.saveCountryCollector(username, new CountryCollector(new World(country)));
+        saver.close();
+        assertTrue(FileHandler.loadCountryCollector(persistenceHandler, username) != null);
+        assertThrows(IllegalStateException.class, () -> saver.saveCountryCollector(username, null));
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+    }
+
+    @Test
+    public void testCloseRewritesSavesOfFailedBackgroundWrites() throws Exception {
+        // A store where the first save blocks until released, and then fails
+        InMemoryCollectorStore memory = new InMemoryCollectorStore(persistenceHandler);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CollectorStore store = (CollectorStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {CollectorStore.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("save") && started.getCount() > 0) {
+                        started.countDown();
+                        release.await();
+                        throw new IOException("Failing first save");
+                    }
+                    try {
+                        return method.invoke(memory, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            WriteBehindSaver saver = new WriteBehindSaver(store, 0, false);
+            saver.saveCountryCollector("failinguser", new CountryCollector(new World(country)));
+            started.await();
+
+            // Closing while the background write is in progress, which fails once closing has begun
+            Future<?> close = executor.submit(() -> {
+                saver.close();
+                return null;
+            });
+            Thread.sleep(100);
+            release.countDown();
+            close.get();
+            assertTrue(memory.exists("failinguser"));
+            assertFalse(saver.hasPendingSave("failinguser"));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidUsernameFailsAtOnce() {
+        try (WriteBehindSaver saver = new WriteBehindSaver(persistenceHandler)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> saver.saveCountryCollector("h i", new CountryCollector(new World(country))));
+            assertFalse(saver.hasPendingSave("h i"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testJournaledVisitEventsAreAppended() throws IOException {
+        String username = "testwritebehindjournaled";
+        CountryCollector cc = new CountryCollector(new World(country));
+        Visit visit = new Visit(country, LocalDate.of(2000, 1, 1), LocalDate.of(2000, 1, 2));
+        try (WriteBehindSaver saver = new WriteBehindSaver(persistenceHandler, 60_000, true)) {
+            FileHandler.saveCountryCollector(persistenceHandler, username, null);
+            // Not saved yet, so the whole collector is saved instead
+            cc.registerVisit(visit);
+            saver.saveVisitEvent(username, cc, new ChangeEvent<>(ChangeEvent.Status.ADDED, visit));
+            assertTrue(saver.hasPendingSave(username));
+            saver.flush(username);
+
+            // Saved, so the change is appended right away
+            cc.removeVisit(visit);
+            saver.saveVisitEvent(username, cc, new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit));
+            assertFalse(saver.hasPendingSave(username));
+            assertTrue(Files.exists(FileHandler.snapshotPath(username).resolveSibling(username + ".journal")));
+            assertEquals(0, FileHandler.loadCountryCollector(persistenceHandler, username).numberOfVisits());
+        }
+        FileHandler.saveCountryCollector(persistenceHandler, username, null);
+    }
+}
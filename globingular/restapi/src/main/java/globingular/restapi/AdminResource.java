@@ -0,0 +1,133 @@
+package globingular.restapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import globingular.core.GlobingularModule;
+import globingular.persistence.CollectorArchive;
+import globingular.persistence.CollectorStore;
+import globingular.persistence.PersistenceHandler;
+import globingular.persistence.WriteBehindSaver;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/**
+ * Resource for operating the server, exporting and importing every user as a single archive,
+ * see {@link CollectorArchive}. Only available if enabled by system property {@value #ENABLED_PROPERTY},
+ * see {@link GlobingularService#getAdmin()}, as it's not protected by any authentication.
+ */
+public class AdminResource {
+
+    /**
+     * System property enabling this resource, if set to {@code true}.
+     */
+    public static final String ENABLED_PROPERTY = "globingular.admin";
+
+    /**
+     * Logger-instance used to log in terminal.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(AdminResource.class);
+
+    /**
+     * The {@link GlobingularModule} users imported are stored in.
+     */
+    private final GlobingularModule globingularModule;
+    /**
+     * The {@link PersistenceHandler} providing default worlds for encoding and decoding archives.
+     */
+    private final PersistenceHandler persistenceHandler;
+    /**
+     * The {@link CollectorStore} users are exported from, and imported to.
+     */
+    private final CollectorStore collectorStore;
+    /**
+     * The {@link WriteBehindSaver} whose pending saves are written before exporting or importing, or null.
+     */
+    private final WriteBehindSaver writeBehindSaver;
+
+    /**
+     * Initialize an AdminResource with context.
+     *
+     * @param globingularModule  The {@link GlobingularModule} to store users imported in
+     * @param persistenceHandler The {@link PersistenceHandler} providing default worlds
+     * @param collectorStore     The {@link CollectorStore} to export from and import to
+     * @param writeBehindSaver   The {@link WriteBehindSaver} saving in the background, or null
+     */
+    public AdminResource(final GlobingularModule globingularModule, final PersistenceHandler persistenceHandler,
+            final CollectorStore collectorStore, final WriteBehindSaver writeBehindSaver) {
+        this.globingularModule = globingularModule;
+        this.persistenceHandler = persistenceHandler;
+        this.collectorStore = collectorStore;
+        this.writeBehindSaver = writeBehindSaver;
+    }
+
+    /**
+     * Export every user saved as a single archive, streamed while it's written.
+     * Every pending save is written first, so that the archive includes every change made before the request.
+     *
+     * @return The archive
+     *
+     * @throws IOException If writing pending saves fails
+     */
+    @GET
+    @Path("{export : (?i)export}")
+    @Produces(MediaType.APPLICATION_OCTET_STREAM)
+    public StreamingOutput exportArchive() throws IOException {
+        LOG.info("exportArchive()");
+        if (this.writeBehindSaver != null) {
+            this.writeBehindSaver.flushAll();
+        }
+        return out -> {
+            int count = CollectorArchive.exportArchive(this.persistenceHandler, this.collectorStore, out);
+            LOG.info("Exported {} users", count);
+        };
+    }
+
+    /**
+     * Import every user in an archive, replacing users with the same username.
+     * The users are decoded and saved on a thread per processor, and stored in the {@link GlobingularModule}.
+     * Meant to be run while users aren't changed by other requests, as those changes may be replaced.
+     * Imported users start at a new version, see {@link CollectorVersions}, so that clients holding a version
+     * from before don't mistake them for what they hold.
+     *
+     * @param in The archive
+     * @return The number of users imported
+     *
+     * @throws IOException If reading the archive or saving a user fails. Users imported before then stay imported.
+     */
+    @POST
+    @Path("{import : (?i)import}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public int importArchive(final InputStream in) throws IOException {
+        LOG.info("importArchive()");
+        int count = CollectorArchive.importArchive(this.persistenceHandler, in, (username, countryCollector) -> {
+            // Hold the user's lock, so that a change in progress isn't saved after the imported user
+            Lock lock = this.globingularModule.getLock(username);
+            lock.lock();
+            try {
+                if (this.writeBehindSaver != null) {
+                    // Make sure an older pending save isn't written after the imported user
+                    this.writeBehindSaver.flush(username);
+                }
+                // Start at a new base, as the username may have had versions of another CountryCollector here
+                countryCollector.restoreVersion(CollectorVersions.newBase());
+                this.collectorStore.save(username, countryCollector);
+                this.globingularModule.putCountryCollector(username, countryCollector);
+            } finally {
+                lock.unlock();
+            }
+        }, Runtime.getRuntime().availableProcessors());
+        LOG.info("Imported {} users", count);
+        return count;
+    }
+}
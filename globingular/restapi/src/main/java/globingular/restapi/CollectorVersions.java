@@ -0,0 +1,65 @@
+package globingular.restapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * <p>Picks the versions {@link globingular.core.CountryCollector}s start at, so that a version, and so an entity tag,
+ * is never used twice for the same username, even after deleting the user and creating it again.</p>
+ *
+ * <p>A CountryCollector created where none exists, renamed or imported starts at a new base: the current time
+ * in milliseconds, shifted left by {@link #EPOCH_SHIFT} bits, and always later than the previous base handed out.
+ * Every change increases the version by one from there, so unless a CountryCollector has been changed more than
+ * {@code 2^EPOCH_SHIFT} times per millisecond since it started, every version it reaches is below every base
+ * handed out later. The base is saved along with the version, so a restart continues from the clock, which only
+ * needs to never go back further than the time the server was down.</p>
+ *
+ * <p>This also bounds the versions a client may send: one at or above the next base can't have been handed out,
+ * and is rejected before it could grow past {@link Long#MAX_VALUE}.</p>
+ */
+final class CollectorVersions {
+
+    /**
+     * Number of bits below the time in a base, limiting the changes a CountryCollector can have per millisecond.
+     */
+    static final int EPOCH_SHIFT = 20;
+
+    /**
+     * The time in milliseconds of the last base handed out.
+     */
+    private static final AtomicLong LAST_EPOCH = new AtomicLong();
+
+    /**
+     * Not to be instantiated.
+     */
+    private CollectorVersions() {
+    }
+
+    /**
+     * Get a new base to start a CountryCollector's versions at, later than every version handed out before.
+     *
+     * @return The new base
+     */
+    static long newBase() {
+        long now = System.currentTimeMillis();
+        return LAST_EPOCH.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time)) << EPOCH_SHIFT;
+    }
+
+    /**
+     * Check a version sent by a client, e.g. the version of a CountryCollector replacing another.
+     *
+     * @param version The version sent
+     *
+     * @throws WebApplicationException If the version is negative, or at or above the next base,
+     *                                 so it can't have been handed out (400)
+     */
+    static void checkClientVersion(final long version) throws WebApplicationException {
+        long ceiling = (Math.max(LAST_EPOCH.get(), System.currentTimeMillis()) + 1) << EPOCH_SHIFT;
+        if (version < 0 || version >= ceiling) {
+            throw new WebApplicationException("Version can't have been handed out: " + version,
+                    Response.Status.BAD_REQUEST);
+        }
+    }
+}
@@ -1,24 +1,38 @@
 package globingular.restapi;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import globingular.core.ChangeEvent;
 import globingular.core.CountryCollector;
 import globingular.core.GlobingularModule;
-import globingular.persistence.FileHandler;
-import globingular.persistence.PersistenceHandler;
+import globingular.core.Visit;
+import globingular.persistence.CollectorStore;
+import globingular.persistence.SerializedCollectorCache;
+import globingular.persistence.WriteBehindSaver;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 
 /**
@@ -46,69 +60,241 @@ public class CountryCollectorResource {
      */
     private final CountryCollector countryCollector;
     /**
-     * The {@link PersistenceHandler} to use to save app-state.
+     * The {@link CollectorStore} to save app-state to.
      */
-    private final PersistenceHandler persistenceHandler;
+    private final CollectorStore collectorStore;
+    /**
+     * The {@link WriteBehindSaver} to use to save app-state in the background.
+     * If null, app-state is saved before responding instead.
+     */
+    private final WriteBehindSaver writeBehindSaver;
+    /**
+     * The {@link SerializedCollectorCache} to retrieve the {@link #countryCollector} serialized from.
+     * If null, it's serialized on every retrieval instead.
+     */
+    private final SerializedCollectorCache serializedCollectorCache;
+    /**
+     * The {@link StorageExecutor} changes are made and saved on, so that saving doesn't block HTTP worker threads.
+     * If null, they're made on the thread handling the request instead.
+     */
+    private final StorageExecutor storageExecutor;
 
     /**
      * Initialize a CountryCollectorResource with context.
+     *
+     * @param globingularModule        The {@link GlobingularModule} to store changes in
+     * @param username                 The username to store changes for
+     * @param countryCollector         The {@link CountryCollector} to change
+     * @param collectorStore           The {@link CollectorStore} used to save app-state
+     * @param writeBehindSaver         The {@link WriteBehindSaver} used to save app-state in the background, or null
+     * @param serializedCollectorCache The {@link SerializedCollectorCache} holding serialized CountryCollectors,
+     *                                 or null
+     * @param storageExecutor          The {@link StorageExecutor} to make and save changes on, or null
+     */
+    public CountryCollectorResource(final GlobingularModule globingularModule,
+            final String username, final CountryCollector countryCollector,
+            final CollectorStore collectorStore, final WriteBehindSaver writeBehindSaver,
+            final SerializedCollectorCache serializedCollectorCache, final StorageExecutor storageExecutor) {
+        this.globingularModule = globingularModule;
+        this.username = username.toLowerCase();
+        this.countryCollector = countryCollector;
+        this.collectorStore = collectorStore;
+        this.writeBehindSaver = writeBehindSaver;
+        this.serializedCollectorCache = serializedCollectorCache;
+        this.storageExecutor = storageExecutor;
+    }
+
+    /**
+     * Initialize a CountryCollectorResource with context.
+     * Serializing the CountryCollector on every retrieval, and making changes on the thread handling the request,
+     * as neither a {@link SerializedCollectorCache} nor a {@link StorageExecutor} was given.
      * 
      * @param globingularModule  The {@link GlobingularModule} to store changes in
      * @param username           The username to store changes for
      * @param countryCollector   The {@link CountryCollector} to change
-     * @param persistenceHandler The {@link PersistenceHandler} used to save app-state
+     * @param collectorStore     The {@link CollectorStore} used to save app-state
+     * @param writeBehindSaver   The {@link WriteBehindSaver} used to save app-state in the background, or null
      */
     public CountryCollectorResource(final GlobingularModule globingularModule,
             final String username, final CountryCollector countryCollector,
-            final PersistenceHandler persistenceHandler) {
-        this.globingularModule = globingularModule;
-        this.username = username.toLowerCase();
-        this.countryCollector = countryCollector;
-        this.persistenceHandler = persistenceHandler;
+            final CollectorStore collectorStore, final WriteBehindSaver writeBehindSaver) {
+        this(globingularModule, username, countryCollector, collectorStore, writeBehindSaver, null, null);
+    }
+
+    /**
+     * Initialize a CountryCollectorResource with context.
+     * Saving app-state before responding, as no {@link WriteBehindSaver} was given.
+     * 
+     * @param globingularModule  The {@link GlobingularModule} to store changes in
+     * @param username           The username to store changes for
+     * @param countryCollector   The {@link CountryCollector} to change
+     * @param collectorStore     The {@link CollectorStore} used to save app-state
+     */
+    public CountryCollectorResource(final GlobingularModule globingularModule,
+            final String username, final CountryCollector countryCollector,
+            final CollectorStore collectorStore) {
+        this(globingularModule, username, countryCollector, collectorStore, null);
     }
 
     /**
      * Retrieve {@link CountryCollector} saved using the current {@link #username}.
+     * The response is tagged with the current version, see {@link #versionTag(CountryCollector)},
+     * so that a client already holding that version is answered {@code 304 Not Modified} by sending it in
+     * {@code If-None-Match}, without serializing the CountryCollector at all.
+     * Otherwise the CountryCollector is written as retrieved from the {@link #serializedCollectorCache}, if given,
+     * so that it's only serialized again once changed.
+     *
+     * @param request The request, used to evaluate its preconditions
+     * @return The response, with the CountryCollector for the requested username.
+     *         Returns no content if there's no CountryCollector for this username
      *
-     * @return CountryCollector for the requested username.
-     *         Returns null if there's no CountryCollector for this username
+     * @throws IOException If serializing fails
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public CountryCollector getCountryCollector() {
+    public Response getCountryCollector(@Context final Request request) throws IOException {
         LOG.debug("getCountryCollector({})", username);
         try {
-            return this.countryCollector;
+            if (this.countryCollector == null) {
+                return Response.noContent().build();
+            }
+            // Tag the version before serializing, so that the body is never older than its tag
+            long version = this.countryCollector.getVersion();
+            EntityTag tag = new EntityTag(Long.toString(version));
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                return notModified.cacheControl(collectorCacheControl()).build();
+            }
+            Object entity = this.countryCollector;
+            if (this.serializedCollectorCache != null) {
+                entity = this.serializedCollectorCache.getSerialized(username, this.countryCollector, version);
+            }
+            return Response.ok(entity).tag(tag).cacheControl(collectorCacheControl()).build();
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
         }
     }
 
+    /**
+     * Retrieve the changes made to this {@link #countryCollector} since the given version, in the order they
+     * were made, so that a copy of it at that version can be brought up to date without retrieving it in full.
+     * Every change increases the version by one, so the copy is at version {@code since} plus the number of
+     * changes after replaying them.
+     * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
+     *
+     * @param since The version of the copy, see {@link CountryCollector#getVersion()}
+     * @return      The changes since that version, empty if it's current
+     *
+     * @throws WebApplicationException If username doesn't exist, or since is missing or negative (400),
+     *                                 or if the changes since that version are no longer kept (410),
+     *                                 in which case the CountryCollector must be retrieved in full instead
+     */
+    @GET
+    @Path("{changes : (?i)changes}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<ChangeEvent<Visit>> getChanges(@QueryParam("since") final Long since)
+            throws WebApplicationException {
+        LOG.debug("getChanges({}, {})", username, since);
+        if (this.countryCollector == null) {
+            throw new WebApplicationException("Username doesn't exist: " + username, Response.Status.BAD_REQUEST);
+        }
+        if (since == null || since < 0) {
+            throw new WebApplicationException("A version to get changes since must be given",
+                    Response.Status.BAD_REQUEST);
+        }
+        List<ChangeEvent<Visit>> changes = this.countryCollector.getChangesSince(since);
+        if (changes == null) {
+            throw new WebApplicationException("Changes since version " + since + " are no longer kept",
+                    Response.Status.GONE);
+        }
+        return changes;
+    }
+
+    /**
+     * Retrieve a {@link CountryCollector} from the request and save using the current {@link #username},
+     * on the {@link #storageExecutor}, see {@link #putCountryCollector(String, String, CountryCollector)}.
+     * The response is tagged with the version the CountryCollector was stored at, so that the sender can hold it.
+     *
+     * @param asyncResponse       The suspended request, resumed with the result
+     * @param ifMatch             The versions this may replace
+     * @param ifNoneMatch         The versions this may not replace, or {@code *} to only create
+     * @param newCountryCollector The {@link CountryCollector} to save at this username.
+     */
+    @PUT
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void putCountryCollector(@Suspended final AsyncResponse asyncResponse,
+            @HeaderParam(HttpHeaders.IF_MATCH) final String ifMatch,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch,
+            final CountryCollector newCountryCollector) {
+        StorageExecutor.handle(this.storageExecutor, asyncResponse, () -> {
+            if (newCountryCollector == null) {
+                return this.putCountryCollector(ifMatch, ifNoneMatch, null);
+            }
+            // Keep changes to the new CountryCollector out until tagged, so that the tag is the version stored
+            synchronized (newCountryCollector) {
+                boolean result = this.putCountryCollector(ifMatch, ifNoneMatch, newCountryCollector);
+                return Response.ok(result).tag(new EntityTag(Long.toString(newCountryCollector.getVersion())))
+                        .build();
+            }
+        });
+    }
+
     /**
      * Retrieve a {@link CountryCollector} from the request
      * and save using the current {@link #username}.
-     * NB: Overwrites if there's already a value
+     * NB: Overwrites if there's already a value, unless an {@code If-Match} header names another version
+     * than the current one, see {@link #checkVersion(String, CountryCollector)},
+     * or an {@code If-None-Match} header names the current one, see {@link #checkNoneMatch(String, CountryCollector)}.
+     * The headers are checked against the CountryCollector currently stored, and it's replaced, while holding the
+     * user's lock, see {@link GlobingularModule#getLock(String)}, so that of several requests naming the same
+     * version, or only creating one, only the first succeeds.
+     * If replacing a CountryCollector, the new one keeps its own version if newer than the one replaced,
+     * so that the sender's copy can later be brought up to date with changes. Otherwise it continues from the
+     * version after the one replaced, and copies of either must be retrieved in full. If none is replaced,
+     * it starts at a new base instead, see {@link CollectorVersions}, so that tags of a deleted CountryCollector
+     * never match it.
      *
+     * @param ifMatch             The versions this may replace, see {@link #checkVersion(String, CountryCollector)}
+     * @param ifNoneMatch         The versions this may not replace, or {@code *} to only create,
+     *                            see {@link #checkNoneMatch(String, CountryCollector)}
      * @param newCountryCollector The {@link CountryCollector} to save at this username.
      * @return                    True if successfully saved, false otherwise
      *
-     * @throws WebApplicationException If CountryCollector is null
+     * @throws WebApplicationException If CountryCollector is null, or its version can't have been handed out (400),
+     *                                 or if the current version doesn't match {@code If-Match},
+     *                                 or matches {@code If-None-Match} (412)
      * @throws IOException             If saving fails
      */
-    @PUT
-    @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
-    public boolean putCountryCollector(final CountryCollector newCountryCollector)
-            throws WebApplicationException, IOException {
+    public boolean putCountryCollector(final String ifMatch, final String ifNoneMatch,
+            final CountryCollector newCountryCollector) throws WebApplicationException, IOException {
         LOG.debug("putCountryCollector({}, {})", username, newCountryCollector);
         try {
             if (newCountryCollector == null) {
                 throw new WebApplicationException("CountryCollector can't be null", Response.Status.BAD_REQUEST);
             }
-            boolean result = this.globingularModule.putCountryCollector(username, newCountryCollector);
-            this.saveCountryCollector(username, newCountryCollector);
-            return result;
+            Lock lock = this.globingularModule.getLock(username);
+            lock.lock();
+            try {
+                // Check against the one currently stored, as another request may have replaced this one
+                CountryCollector current = GlobingularService.resolveCountryCollector(this.globingularModule,
+                        this.collectorStore, this.writeBehindSaver, username);
+                if (current == null) {
+                    checkVersion(ifMatch, null);
+                    return this.putAndSave(newCountryCollector, CollectorVersions.newBase());
+                }
+                // Keep other changes out until replaced, so that the version checked is the one replaced
+                synchronized (current) {
+                    checkVersion(ifMatch, current);
+                    checkNoneMatch(ifNoneMatch, current);
+                    CollectorVersions.checkClientVersion(newCountryCollector.getVersion());
+                    return this.putAndSave(newCountryCollector,
+                            Math.max(current.getVersion() + 1, newCountryCollector.getVersion()));
+                }
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
@@ -116,31 +302,100 @@ public class CountryCollectorResource {
     }
 
     /**
-     * Delete a {@link CountryCollector} saved for the current {@link #username}.
+     * Retrieve a {@link CountryCollector} from the request
+     * and save using the current {@link #username}, without an {@code If-None-Match} header,
+     * see {@link #putCountryCollector(String, String, CountryCollector)}.
      *
-     * @return True if successfully deleted, or if there was nothing saved using that username in the first place
+     * @param ifMatch             The versions this may replace, see {@link #checkVersion(String, CountryCollector)}
+     * @param newCountryCollector The {@link CountryCollector} to save at this username.
+     * @return                    True if successfully saved, false otherwise
+     *
+     * @throws WebApplicationException If CountryCollector is null, or its version can't have been handed out (400),
+     *                                 or if the current version doesn't match {@code If-Match} (412)
+     * @throws IOException             If saving fails
+     */
+    public boolean putCountryCollector(final String ifMatch, final CountryCollector newCountryCollector)
+            throws WebApplicationException, IOException {
+        return this.putCountryCollector(ifMatch, null, newCountryCollector);
+    }
+
+    /**
+     * Store and save the given {@link CountryCollector} at the current {@link #username}, at the given version.
+     *
+     * @param newCountryCollector The {@link CountryCollector} to save at this username
+     * @param version             The version to store it at
+     * @return                    True if successfully stored, false otherwise
      *
      * @throws IOException If saving fails
      */
+    private boolean putAndSave(final CountryCollector newCountryCollector, final long version)
+            throws IOException {
+        newCountryCollector.restoreVersion(version);
+        boolean result = this.globingularModule.putCountryCollector(username, newCountryCollector);
+        this.saveCountryCollector(username, newCountryCollector);
+        return result;
+    }
+
+    /**
+     * Delete a {@link CountryCollector} saved for the current {@link #username}, on the {@link #storageExecutor},
+     * see {@link #deleteCountryCollector()}.
+     *
+     * @param asyncResponse The suspended request, resumed with the result
+     */
     @DELETE
     @Produces(MediaType.APPLICATION_JSON)
+    public void deleteCountryCollector(@Suspended final AsyncResponse asyncResponse) {
+        StorageExecutor.handle(this.storageExecutor, asyncResponse, this::deleteCountryCollector);
+    }
+
+    /**
+     * Delete a {@link CountryCollector} saved for the current {@link #username}.
+     *
+     * @return True if successfully deleted, or if there was nothing saved using that username in the first place
+     *
+     * @throws IOException If saving fails
+     */
     public boolean deleteCountryCollector() throws IOException {
         LOG.debug("deleteContryCollecto({})", username);
+        // Hold the user's lock, so that a change in progress isn't saved after the deletion
+        Lock lock = this.globingularModule.getLock(username);
+        lock.lock();
         try {
             boolean result = this.globingularModule.removeCountryCollector(username);
             this.saveCountryCollector(username, null);
+            this.invalidateSerialized(username);
             return result;
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Rename this {@link #username} to the given {@code newName}, on the {@link #storageExecutor},
+     * see {@link #renameCountryCollector(String)}.
+     * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
+     *
+     * @param asyncResponse The suspended request, resumed with the result
+     * @param newName       The new name to rename {@link #username} to
+     */
+    @POST
+    @Path("{rename : (?i)rename}/{newName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void renameCountryCollector(@Suspended final AsyncResponse asyncResponse,
+            @PathParam("newName") final String newName) {
+        StorageExecutor.handle(this.storageExecutor, asyncResponse, () -> this.renameCountryCollector(newName));
+    }
+
     /**
      * Rename this {@link #username} from to the given {@code newName}.
      * After this operation the old username will be available,
-     * and the {@link #countryCollector} can be retrieved using the new username.
-     * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
+     * and the CountryCollector currently stored for it can be retrieved using the new username.
+     * It continues from a new version, see {@link CollectorVersions}, so copies of it must be retrieved in full.
+     * Both users are checked and changed while holding both their locks, see {@link GlobingularModule#getLock(String)},
+     * after writing their pending saves, so that a user saved but not held in memory is seen too.
      *
      * @param newName The new name to rename {@link #username} to
      * @return        True if successful, false if {@link #username} doesn't exist (no content to move)
@@ -148,10 +403,7 @@ public class CountryCollectorResource {
      * @throws WebApplicationException If the new username is already taken
      * @throws IOException             If saving fails
      */
-    @POST
-    @Path("{rename : (?i)rename}/{newName}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public boolean renameCountryCollector(@PathParam("newName") final String newName)
+    public boolean renameCountryCollector(final String newName)
             throws WebApplicationException, IOException {
         LOG.debug("renameCountryCollector({}, {})", username, newName);
         try {
@@ -161,29 +413,73 @@ public class CountryCollectorResource {
             }
             final String newNameLowercase = newName.toLowerCase();
 
-            if (this.globingularModule.isUsernameAvailable(username)) {
-                // If there's no user with that username, return false
-                return false;
-            }
-            if (!this.globingularModule.isUsernameAvailable(newNameLowercase)) {
-                // If newName is taken, throw exception
-                throw new WebApplicationException("The new username is already taken: " + newNameLowercase,
-                        Response.Status.BAD_REQUEST);
-            }
+            Lock lock = this.globingularModule.getLock(username);
+            Lock newNameLock = this.globingularModule.getLock(newNameLowercase);
+            lockBoth(lock, newNameLock);
+            try {
+                // Make sure pending saves are seen, and not written after renaming
+                if (this.writeBehindSaver != null) {
+                    this.writeBehindSaver.flush(username);
+                    this.writeBehindSaver.flush(newNameLowercase);
+                }
+                CountryCollector current = GlobingularService.resolveCountryCollector(this.globingularModule,
+                        this.collectorStore, this.writeBehindSaver, username);
+                if (current == null) {
+                    // If there's no user with that username, return false
+                    return false;
+                }
+                if (!this.globingularModule.isUsernameAvailable(newNameLowercase)
+                        || (this.collectorStore != null && this.collectorStore.exists(newNameLowercase))) {
+                    // If newName is taken, in memory or only saved, throw exception
+                    throw new WebApplicationException("The new username is already taken: " + newNameLowercase,
+                            Response.Status.BAD_REQUEST);
+                }
 
-            boolean resultPut = this.globingularModule.putCountryCollector(newNameLowercase, countryCollector);
-            boolean resultRemove = this.globingularModule.removeCountryCollector(username);
+                // Start at a new base, as the new username may have had versions of a deleted CountryCollector
+                synchronized (current) {
+                    current.restoreVersion(CollectorVersions.newBase());
+                }
+                boolean resultPut = this.globingularModule.putCountryCollector(newNameLowercase, current);
+                boolean resultRemove = this.globingularModule.removeCountryCollector(username);
 
-            this.saveCountryCollector(username, null);
-            this.saveCountryCollector(newNameLowercase, countryCollector);
+                this.saveCountryCollector(username, null);
+                this.saveCountryCollector(newNameLowercase, current);
+                this.invalidateSerialized(username);
 
-            return resultPut && resultRemove;
+                return resultPut && resultRemove;
+            } finally {
+                newNameLock.unlock();
+                lock.unlock();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
         }
     }
 
+    /**
+     * Take both the given locks, without waiting for one while holding the other, so that two requests taking
+     * the locks of the same users in opposite order never wait for each other. Both must be unlocked after.
+     *
+     * @param first  The lock to take first
+     * @param second The lock to take second
+     */
+    private static void lockBoth(final Lock first, final Lock second) {
+        Lock waitFor = first;
+        Lock other = second;
+        while (true) {
+            waitFor.lock();
+            if (other.tryLock()) {
+                return;
+            }
+            waitFor.unlock();
+            // Wait for the one held by another request next, instead of spinning
+            Lock held = other;
+            other = waitFor;
+            waitFor = held;
+        }
+    }
+
     /**
      * Retrieve a {@link VisitResource} to handle requests regarding visits.
      * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
@@ -201,7 +497,8 @@ public class CountryCollectorResource {
                 throw new WebApplicationException("Username doesn't exist: " + username, Response.Status.BAD_REQUEST);
             }
             // Return a VisitResource to handle requests
-            VisitResource resource = new VisitResource(username, countryCollector, persistenceHandler);
+            VisitResource resource = new VisitResource(globingularModule, username, countryCollector,
+                    collectorStore, writeBehindSaver, storageExecutor);
             LOG.debug("VisitResouce for {} : {}", username, resource);
             return resource;
         } catch (Exception e) {
@@ -210,9 +507,99 @@ public class CountryCollectorResource {
         }
     }
 
+    /**
+     * Get the caching allowed for CountryCollectors: only by the user's own client, and only after asking
+     * whether it's changed, as it may change at any time.
+     *
+     * @return The caching allowed
+     */
+    private static CacheControl collectorCacheControl() {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setPrivate(true);
+        cacheControl.setNoCache(true);
+        return cacheControl;
+    }
+
+    /**
+     * Get the entity tag identifying the current version of the given {@link CountryCollector},
+     * as sent in {@code ETag} headers, and used in {@code If-Match} headers to make a change only if nothing else
+     * has changed it since.
+     *
+     * @param collector The CountryCollector
+     * @return          The entity tag of its current version, quoted
+     */
+    static String versionTag(final CountryCollector collector) {
+        return "\"" + collector.getVersion() + "\"";
+    }
+
+    /**
+     * Check the given {@code If-Match} header against the current version of the given {@link CountryCollector}.
+     * Must be called while holding the lock of the CountryCollector, and before changing it,
+     * so that the version doesn't change in between.
+     *
+     * @param ifMatch   The value of the {@code If-Match} header, a list of entity tags or {@code *}, or null if none
+     * @param collector The CountryCollector to be changed, or null if none exists
+     *
+     * @throws WebApplicationException If the header is given, and matches neither the current version,
+     *                                 nor any existing CountryCollector if {@code *} (412)
+     */
+    static void checkVersion(final String ifMatch, final CountryCollector collector) throws WebApplicationException {
+        if (ifMatch == null) {
+            return;
+        }
+        for (String tag : ifMatch.split(",")) {
+            // Weak entity tags (W/"...") never match, as If-Match compares strongly
+            if (collector != null && ("*".equals(tag.trim()) || versionTag(collector).equals(tag.trim()))) {
+                return;
+            }
+        }
+        throw new WebApplicationException("Version doesn't match " + ifMatch, Response.Status.PRECONDITION_FAILED);
+    }
+
+    /**
+     * Check the given {@code If-None-Match} header of a change against the current version of the given
+     * {@link CountryCollector}, e.g. {@code *} to only create one if none exists.
+     * Must be called while holding the lock of the CountryCollector, and before changing it,
+     * so that the version doesn't change in between.
+     *
+     * @param ifNoneMatch The value of the {@code If-None-Match} header, a list of entity tags or {@code *},
+     *                    or null if none
+     * @param collector   The CountryCollector to be changed, or null if none exists
+     *
+     * @throws WebApplicationException If the header is given, and matches the current version,
+     *                                 or any existing CountryCollector if {@code *} (412)
+     */
+    static void checkNoneMatch(final String ifNoneMatch, final CountryCollector collector)
+            throws WebApplicationException {
+        if (ifNoneMatch == null || collector == null) {
+            return;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            // Weak entity tags match too, as If-None-Match compares weakly
+            String opaque = tag.trim().startsWith("W/") ? tag.trim().substring(2) : tag.trim();
+            if ("*".equals(opaque) || versionTag(collector).equals(opaque)) {
+                throw new WebApplicationException("Version matches " + ifNoneMatch,
+                        Response.Status.PRECONDITION_FAILED);
+            }
+        }
+    }
+
+    /**
+     * Forget the serialized CountryCollector of the given username, if {@link #serializedCollectorCache} is
+     * defined, so that it doesn't take up the cache's budget after the user is deleted or renamed.
+     *
+     * @param usernameToInvalidate The username to forget
+     */
+    private void invalidateSerialized(final String usernameToInvalidate) {
+        if (this.serializedCollectorCache != null) {
+            this.serializedCollectorCache.invalidate(usernameToInvalidate);
+        }
+    }
+
     /**
      * Helper method to save the given CountryCollector at the given username,
-     * if {@link #persistenceHandler} is defined.
+     * in the background if {@link #writeBehindSaver} is defined,
+     * otherwise before returning if {@link #collectorStore} is defined.
      *
      * @param usernameToSaveAt The username to save at.
      * @param countryCollectorToSave The CountryCollector to save.
@@ -221,8 +608,10 @@ public class CountryCollectorResource {
      */
     private void saveCountryCollector(final String usernameToSaveAt, final CountryCollector countryCollectorToSave)
             throws IOException {
-        if (this.persistenceHandler != null) {
-            FileHandler.saveCountryCollector(persistenceHandler, usernameToSaveAt, countryCollectorToSave);
+        if (this.writeBehindSaver != null) {
+            this.writeBehindSaver.saveCountryCollector(usernameToSaveAt, countryCollectorToSave);
+        } else if (this.collectorStore != null) {
+            this.collectorStore.save(usernameToSaveAt, countryCollectorToSave);
         }
     }
 }
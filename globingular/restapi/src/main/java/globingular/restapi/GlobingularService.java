@@ -1,13 +1,19 @@
 package globingular.restapi;
 
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import globingular.core.CountryCollector;
-import globingular.persistence.FileHandler;
+import globingular.persistence.CollectorStore;
 import globingular.persistence.PersistenceHandler;
+import globingular.persistence.SerializedCollectorCache;
+import globingular.persistence.WriteBehindSaver;
 import globingular.core.GlobingularModule;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 
@@ -30,20 +36,52 @@ public class GlobingularService {
     private final GlobingularModule globingularModule;
 
     /**
-     * The service's {@link PersistenceHandler} instance, used for saving app-state.
+     * The service's {@link PersistenceHandler} instance, used for retrieving default worlds.
      */
     private final PersistenceHandler persistenceHandler;
 
+    /**
+     * The service's {@link WriteBehindSaver} instance, used for saving app-state in the background.
+     */
+    private final WriteBehindSaver writeBehindSaver;
+
+    /**
+     * The service's {@link CollectorStore} instance, app-state is saved to and loaded from.
+     */
+    private final CollectorStore collectorStore;
+
+    /**
+     * The service's {@link SerializedCollectorCache} instance, CountryCollectors are retrieved serialized from.
+     */
+    private final SerializedCollectorCache serializedCollectorCache;
+
+    /**
+     * The service's {@link StorageExecutor} instance, changes are made and saved on.
+     */
+    private final StorageExecutor storageExecutor;
+
     /**
      * Construct a new GlobingularService using the given {@link GlobingularModule} as app-state.
      *
-     * @param globingularModule App-state. Injected if not given.
-     * @param persistenceHandler For saving app-state. Injected if not given.
+     * @param globingularModule  App-state. Injected if not given.
+     * @param persistenceHandler For retrieving default worlds. Injected if not given.
+     * @param writeBehindSaver   For saving app-state in the background. Injected if not given.
+     * @param collectorStore     For saving and loading app-state. Injected if not given.
+     * @param serializedCollectorCache For retrieving CountryCollectors without serializing them again.
+     *                                 Injected if not given.
+     * @param storageExecutor    For making and saving changes without blocking HTTP worker threads.
+     *                           Injected if not given.
      */
     @Inject
-    public GlobingularService(final GlobingularModule globingularModule, final PersistenceHandler persistenceHandler) {
+    public GlobingularService(final GlobingularModule globingularModule, final PersistenceHandler persistenceHandler,
+            final WriteBehindSaver writeBehindSaver, final CollectorStore collectorStore,
+            final SerializedCollectorCache serializedCollectorCache, final StorageExecutor storageExecutor) {
         this.globingularModule = globingularModule;
         this.persistenceHandler = persistenceHandler;
+        this.writeBehindSaver = writeBehindSaver;
+        this.collectorStore = collectorStore;
+        this.serializedCollectorCache = serializedCollectorCache;
+        this.storageExecutor = storageExecutor;
     }
 
     /**
@@ -63,14 +101,15 @@ public class GlobingularService {
             throw new IllegalArgumentException("Username not valid: " + usernameLowercase);
         }
 
-        // Get from cache if available
+        // Get from cache if available, otherwise try to load from persistence
         CountryCollector countryCollector = this.globingularModule.getCountryCollector(usernameLowercase);
-        // If not in cache, try to load from persistence
-        if (countryCollector == null && persistenceHandler != null) {
-            countryCollector = FileHandler.loadCountryCollector(persistenceHandler, usernameLowercase);
+        if (countryCollector == null) {
+            countryCollector = resolveCountryCollector(this.globingularModule, this.collectorStore,
+                    this.writeBehindSaver, usernameLowercase);
         }
         CountryCollectorResource resource = new CountryCollectorResource(this.globingularModule, usernameLowercase,
-                countryCollector, this.persistenceHandler);
+                countryCollector, this.collectorStore, this.writeBehindSaver, this.serializedCollectorCache,
+                this.storageExecutor);
         LOG.debug("CountryCollectorResource for {} : {}", username, resource);
         return resource;
     }
@@ -89,4 +128,96 @@ public class GlobingularService {
         LOG.debug("WorldResource: {}", resource);
         return resource;
     }
+
+    /**
+     * Retrieve an {@link AdminResource} to handle requests for operating the server.
+     * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
+     *
+     * @return An {@link AdminResource}-instance to handle these requests
+     *
+     * @throws NotFoundException If not enabled by system property {@value AdminResource#ENABLED_PROPERTY}
+     */
+    @Path("{admin : (?i)admin}")
+    public AdminResource getAdmin() throws NotFoundException {
+        LOG.debug("->AdminResource()");
+        if (!Boolean.getBoolean(AdminResource.ENABLED_PROPERTY)) {
+            throw new NotFoundException();
+        }
+        return new AdminResource(this.globingularModule, this.persistenceHandler, this.collectorStore,
+                this.writeBehindSaver);
+    }
+
+    /**
+     * Retrieve the {@link CountryCollector} currently stored for the given user in the {@link GlobingularModule},
+     * loading and storing it if not held, while holding the user's lock, see {@link GlobingularModule#getLock(String)}.
+     * Resources changing a user call this again while holding the lock, so that they change the CountryCollector
+     * currently stored, and not one evicted since the resource was created, while another request loaded a newer one.
+     * A save still waiting to be written is written before loading, so that it isn't missed.
+     *
+     * @param globingularModule The {@link GlobingularModule} holding users
+     * @param collectorStore    The {@link CollectorStore} to load from, or null if none
+     * @param writeBehindSaver  The {@link WriteBehindSaver} with pending saves, or null if none
+     * @param username          The username to retrieve, in lowercase
+     * @return The user's CountryCollector, or null if neither held nor saved
+     */
+    static CountryCollector resolveCountryCollector(final GlobingularModule globingularModule,
+            final CollectorStore collectorStore, final WriteBehindSaver writeBehindSaver, final String username) {
+        Lock lock = globingularModule.getLock(username);
+        lock.lock();
+        try {
+            CountryCollector countryCollector = globingularModule.getCountryCollector(username);
+            if (countryCollector != null || collectorStore == null) {
+                return countryCollector;
+            }
+            // Make sure a save still waiting to be written isn't missed
+            flushPendingSave(writeBehindSaver, username);
+            countryCollector = loadCountryCollector(collectorStore, username);
+            // Store in cache for later requests
+            if (countryCollector != null) {
+                countryCollector = globingularModule.putCountryCollectorIfAbsent(username, countryCollector);
+            }
+            LOG.debug("Cache miss for {}. Hits: {}, misses: {}, evictions: {}", username,
+                    globingularModule.getHitCount(), globingularModule.getMissCount(),
+                    globingularModule.getEvictionCount());
+            return countryCollector;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Load the given user from the given {@link CollectorStore}.
+     * Failing to load is logged, and treated as not saved.
+     *
+     * @param collectorStore The {@link CollectorStore} to load from
+     * @param username       The username to load
+     * @return The user's CountryCollector, or null if not saved
+     */
+    private static CountryCollector loadCountryCollector(final CollectorStore collectorStore,
+            final String username) {
+        try {
+            return collectorStore.load(username);
+        } catch (IOException e) {
+            LOG.error("Failed loading {}", username, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the pending save for the given user, if a {@link WriteBehindSaver} is given.
+     * Failing to write is logged, as the user may then still be loaded from an older save.
+     *
+     * @param writeBehindSaver The {@link WriteBehindSaver} with pending saves, or null if none
+     * @param username         The username to write the pending save for
+     */
+    private static void flushPendingSave(final WriteBehindSaver writeBehindSaver, final String username) {
+        if (writeBehindSaver == null) {
+            return;
+        }
+        try {
+            writeBehindSaver.flush(username);
+        } catch (IOException e) {
+            LOG.error("Failed writing pending save for {}", username, e);
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package globingular.restapi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.container.AsyncResponse;
+
+/**
+ * <p>Bounded pool of threads handling requests that may block on storage, e.g. saving a user,
+ * so that a slow disk holds up these threads instead of the server's HTTP worker threads.
+ * Resources suspend such requests with an {@link AsyncResponse}, and resume them from here when done.</p>
+ *
+ * <p>By default there are twice as many threads as processors: each thread mostly waits for its write to be
+ * durable, so there should be more threads than processors, but more than the disk serves at once would only
+ * queue for it. Idle threads are stopped, and started again when needed.</p>
+ *
+ * <p>At most {@code queueCapacity} requests wait for a thread. Requests beyond that are answered
+ * {@code 503 Service Unavailable} with a {@code Retry-After} header right away, instead of waiting for ever
+ * longer, so that clients back off while storage catches up.</p>
+ */
+public final class StorageExecutor implements AutoCloseable {
+
+    /**
+     * Default number of threads handling requests, twice the number of processors.
+     */
+    public static final int DEFAULT_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default number of requests waiting for a thread, before further requests are rejected.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * Number of seconds rejected clients are asked to wait before retrying.
+     */
+    public static final long RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * Number of seconds an idle thread is kept.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Logger-instance used to log in terminal.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(StorageExecutor.class);
+
+    /**
+     * The threads handling requests, and the queue of requests waiting for them.
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * Number of requests rejected, as too many were waiting.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Initialize an executor with the given number of threads and waiting requests.
+     *
+     * @param threads       Number of threads handling requests
+     * @param queueCapacity Number of requests waiting for a thread, before further requests are rejected
+     *
+     * @throws IllegalArgumentException If threads or queueCapacity isn't positive
+     */
+    public StorageExecutor(final int threads, final int queueCapacity) throws IllegalArgumentException {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Threads and queue capacity must be positive: "
+                    + threads + ", " + queueCapacity);
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "globingular-storage-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Initialize an executor with {@link #DEFAULT_THREADS} threads and {@link #DEFAULT_QUEUE_CAPACITY}
+     * waiting requests.
+     */
+    public StorageExecutor() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Handle a suspended request on one of this executor's threads, resuming it with the result of the task,
+     * or with the exception thrown by it. If too many requests are already waiting, or this is closed,
+     * it's resumed with {@code 503 Service Unavailable} right away instead.
+     *
+     * @param asyncResponse The suspended request
+     * @param task          The work to do for the request, returning the response entity
+     */
+    public void submit(final AsyncResponse asyncResponse, final Callable<?> task) {
+        try {
+            this.executor.execute(() -> run(asyncResponse, task));
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Rejected request, {} already waiting for storage", this.executor.getQueue().size());
+            this.rejectedCount.incrementAndGet();
+            asyncResponse.resume(new ServiceUnavailableException("Too many requests waiting for storage",
+                    RETRY_AFTER_SECONDS));
+        }
+    }
+
+    /**
+     * Handle a suspended request on the given executor, or on the calling thread if it's null.
+     *
+     * @param storageExecutor The executor to handle it on, or null
+     * @param asyncResponse   The suspended request
+     * @param task            The work to do for the request, returning the response entity
+     */
+    static void handle(final StorageExecutor storageExecutor, final AsyncResponse asyncResponse,
+            final Callable<?> task) {
+        if (storageExecutor != null) {
+            storageExecutor.submit(asyncResponse, task);
+        } else {
+            run(asyncResponse, task);
+        }
+    }
+
+    /**
+     * Get the number of requests rejected, as too many were waiting.
+     *
+     * @return The number of requests rejected
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Stop accepting requests, and wait for those accepted to be handled.
+     * Closing more than once has no further effect.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Do the given task, and resume the suspended request with its result, or with anything thrown,
+     * so that the request is never left suspended. Errors are thrown again once the request is resumed.
+     *
+     * @param asyncResponse The suspended request
+     * @param task          The work to do for the request, returning the response entity
+     */
+    private static void run(final AsyncResponse asyncResponse, final Callable<?> task) {
+        try {
+            asyncResponse.resume(task.call());
+        } catch (Exception e) {
+            asyncResponse.resume(e);
+        } catch (Error e) {
+            asyncResponse.resume(e);
+            throw e;
+        }
+    }
+}
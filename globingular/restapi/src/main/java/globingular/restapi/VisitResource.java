@@ -1,19 +1,34 @@
 package globingular.restapi;
 
 import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import globingular.core.ChangeEvent;
 import globingular.core.CountryCollector;
+import globingular.core.GlobingularModule;
 import globingular.core.Visit;
-import globingular.persistence.FileHandler;
-import globingular.persistence.PersistenceHandler;
+import globingular.persistence.CollectorStore;
+import globingular.persistence.WriteBehindSaver;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 
 /**
  * {@link Visit} resource, handling requests regarding visits.
@@ -26,55 +41,129 @@ public class VisitResource {
      */
     private static final Logger LOG = LoggerFactory.getLogger(VisitResource.class);
 
+    /**
+     * This instance's {@link GlobingularModule}, the CountryCollector currently stored is changed in.
+     */
+    private final GlobingularModule globingularModule;
     /**
      * The username this instance is for.
      */
     private final String username;
     /**
-     * The {@link CountryCollector} this instance works on.
+     * The {@link CountryCollector} this instance works on, as stored when this instance was created.
+     * Changes are made to the one currently stored instead, see {@link #currentCountryCollector()}.
      */
     private final CountryCollector countryCollector;
     /**
-     * The {@link PersistenceHandler} to use to save app-state.
+     * The {@link CollectorStore} to save app-state to.
+     */
+    private final CollectorStore collectorStore;
+    /**
+     * The {@link WriteBehindSaver} to use to save app-state in the background.
+     * If null, app-state is saved before responding instead.
+     */
+    private final WriteBehindSaver writeBehindSaver;
+    /**
+     * The {@link StorageExecutor} changes are made and saved on, so that saving doesn't block HTTP worker threads.
+     * If null, they're made on the thread handling the request instead.
      */
-    private final PersistenceHandler persistenceHandler;
+    private final StorageExecutor storageExecutor;
 
     /**
-     * Initialize a CountryCollectorResource with context.
-     * 
+     * Initialize a VisitResource with context.
+     *
+     * @param globingularModule  The {@link GlobingularModule} the CountryCollector is stored in
      * @param username           The username to store changes for
      * @param countryCollector   The {@link CountryCollector} to change
-     * @param persistenceHandler The {@link PersistenceHandler} used to save app-state
+     * @param collectorStore     The {@link CollectorStore} used to save app-state
+     * @param writeBehindSaver   The {@link WriteBehindSaver} used to save app-state in the background, or null
+     * @param storageExecutor    The {@link StorageExecutor} to make and save changes on, or null
      */
-    public VisitResource(final String username, final CountryCollector countryCollector,
-            final PersistenceHandler persistenceHandler) {
+    public VisitResource(final GlobingularModule globingularModule, final String username,
+            final CountryCollector countryCollector, final CollectorStore collectorStore,
+            final WriteBehindSaver writeBehindSaver, final StorageExecutor storageExecutor) {
+        this.globingularModule = globingularModule;
         this.username = username;
         this.countryCollector = countryCollector;
-        this.persistenceHandler = persistenceHandler;
+        this.collectorStore = collectorStore;
+        this.writeBehindSaver = writeBehindSaver;
+        this.storageExecutor = storageExecutor;
     }
 
     /**
-     * Register a single Visit-instance for this {@link #countryCollector}.
+     * Initialize a VisitResource with context.
+     * Making changes on the thread handling the request, as no {@link StorageExecutor} was given.
+     * 
+     * @param globingularModule  The {@link GlobingularModule} the CountryCollector is stored in
+     * @param username           The username to store changes for
+     * @param countryCollector   The {@link CountryCollector} to change
+     * @param collectorStore     The {@link CollectorStore} used to save app-state
+     * @param writeBehindSaver   The {@link WriteBehindSaver} used to save app-state in the background, or null
+     */
+    public VisitResource(final GlobingularModule globingularModule, final String username,
+            final CountryCollector countryCollector, final CollectorStore collectorStore,
+            final WriteBehindSaver writeBehindSaver) {
+        this(globingularModule, username, countryCollector, collectorStore, writeBehindSaver, null);
+    }
+
+    /**
+     * Initialize a VisitResource with context.
+     * Saving app-state before responding, as no {@link WriteBehindSaver} was given.
+     * 
+     * @param globingularModule  The {@link GlobingularModule} the CountryCollector is stored in
+     * @param username           The username to store changes for
+     * @param countryCollector   The {@link CountryCollector} to change
+     * @param collectorStore     The {@link CollectorStore} used to save app-state
+     */
+    public VisitResource(final GlobingularModule globingularModule, final String username,
+            final CountryCollector countryCollector, final CollectorStore collectorStore) {
+        this(globingularModule, username, countryCollector, collectorStore, null);
+    }
+
+    /**
+     * Register a single Visit-instance for this {@link #countryCollector} on the {@link #storageExecutor},
+     * see {@link #registerVisit(Visit)}.
      * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
      * Using {@link POST} instead of {@link jakarta.ws.rs.PUT} because multiple
      * requests after each other may all perform actions on the server.
+     *
+     * @param asyncResponse The suspended request, resumed with the result
+     * @param visit         The visit to register
+     */
+    @POST
+    @Path("{register : (?i)register}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void registerVisit(@Suspended final AsyncResponse asyncResponse, final Visit visit) {
+        StorageExecutor.handle(this.storageExecutor, asyncResponse, () -> this.registerVisit(visit));
+    }
+
+    /**
+     * Register a single Visit-instance for this {@link #countryCollector}.
      * 
      * @param visit The visit to register
      * @return      True if successfully registered, otherwise false
      * 
      * @throws IOException If saving fails
      */
-    @POST
-    @Path("{register : (?i)register}")
-    @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_JSON)
     public boolean registerVisit(final Visit visit) throws IOException {
         LOG.debug("registerVisit({}, {})", username, visit);
         try {
-            // Validate visit, register it, save app-state and return
-            boolean result = this.countryCollector.registerVisit(validateAndReturnVisit(visit));
-            saveAppState(username, countryCollector);
-            return result;
+            Lock lock = this.globingularModule.getLock(username);
+            lock.lock();
+            try {
+                // Validate visit, register it, save app-state and return
+                CountryCollector current = this.currentCountryCollector();
+                Visit validVisit = validateAndReturnVisit(visit, current);
+                // Save while holding the lock, so that changes are journaled in the order they're made
+                synchronized (current) {
+                    boolean result = current.registerVisit(validVisit);
+                    saveAppState(username, current, new ChangeEvent<>(ChangeEvent.Status.ADDED, validVisit));
+                    return result;
+                }
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
@@ -82,12 +171,27 @@ public class VisitResource {
     }
 
     /**
-     * Remove a single {@link Visit}-instance from this {@link #countryCollector}.
+     * Remove a single {@link Visit}-instance from this {@link #countryCollector} on the {@link #storageExecutor},
+     * see {@link #removeVisit(Visit)}.
      * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
      * Using {@link POST} instead of {@link jakarta.ws.rs.DELETE},
      * as DELETE doesn't support sending message body required to remove the correct instance.
      * Using {@link POST} instead of {@link jakarta.ws.rs.PUT} because multiple
      * requests after each other may all perform actions on the server.
+     *
+     * @param asyncResponse The suspended request, resumed with the result
+     * @param visit         The visit to remove
+     */
+    @POST
+    @Path("{remove : (?i)remove}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void removeVisit(@Suspended final AsyncResponse asyncResponse, final Visit visit) {
+        StorageExecutor.handle(this.storageExecutor, asyncResponse, () -> this.removeVisit(visit));
+    }
+
+    /**
+     * Remove a single {@link Visit}-instance from this {@link #countryCollector}.
      * 
      * @param visit The visit to remove
      * @return      True if removed or non-existent
@@ -95,34 +199,172 @@ public class VisitResource {
      * @throws IllegalArgumentException If username doesn't exist
      * @throws IOException              If saving fails
      */
+    public boolean removeVisit(final Visit visit) throws IOException {
+        LOG.debug("removeVisit({}, {})", username, visit);
+        try {
+            Lock lock = this.globingularModule.getLock(username);
+            lock.lock();
+            try {
+                // Validate visit, remove it, save app-state and return
+                CountryCollector current = this.currentCountryCollector();
+                Visit validVisit = validateAndReturnVisit(visit, current);
+                // Save while holding the lock, so that changes are journaled in the order they're made
+                synchronized (current) {
+                    boolean result = current.removeVisit(validVisit);
+                    saveAppState(username, current, new ChangeEvent<>(ChangeEvent.Status.REMOVED, validVisit));
+                    return result;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Register and remove several visits for this {@link #countryCollector} at once on the {@link #storageExecutor},
+     * see {@link #applyVisitEvents(String, List)}.
+     * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
+     * Using {@link POST} instead of {@link jakarta.ws.rs.PUT} because multiple
+     * requests after each other may all perform actions on the server.
+     *
+     * @param asyncResponse The suspended request, resumed with the results
+     * @param ifMatch       The versions to apply the operations to
+     * @param operations    The visits to register or remove, each as an added or removed {@link ChangeEvent}
+     */
     @POST
-    @Path("{remove : (?i)remove}")
+    @Path("{batch : (?i)batch}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public boolean removeVisit(final Visit visit) throws IOException {
-        LOG.debug("removeVisit({}, {})", username, visit);
+    public void applyVisitEvents(@Suspended final AsyncResponse asyncResponse,
+            @HeaderParam(HttpHeaders.IF_MATCH) final String ifMatch, final List<ChangeEvent<Visit>> operations) {
+        StorageExecutor.handle(this.storageExecutor, asyncResponse, () -> this.applyVisitEvents(ifMatch, operations));
+    }
+
+    /**
+     * Register and remove several visits for this {@link #countryCollector} at once, in the given order.
+     * Every operation is validated before any is applied, so either all are applied or none are.
+     * They're applied without other changes to the countryCollector in between, and saved once.
+     * Like a PATCH of the whole countryCollector, they're only applied if the current version matches the
+     * {@code If-Match} header, when given, see {@link CountryCollectorResource#versionTag(CountryCollector)}.
+     *
+     * @param ifMatch    The versions to apply the operations to, see
+     *                   {@link CountryCollectorResource#checkVersion(String, CountryCollector)}
+     * @param operations The visits to register or remove, each as an added or removed {@link ChangeEvent}
+     * @return           The result of each operation, in the same order, like {@link #registerVisit(Visit)}
+     *                   and {@link #removeVisit(Visit)}
+     *
+     * @throws WebApplicationException If operations is missing, or any operation isn't an addition or removal,
+     *                                 or contains an invalid Country for this World (400),
+     *                                 or if the current version doesn't match {@code If-Match} (412).
+     *                                 Nothing is applied then.
+     * @throws IOException             If saving fails
+     */
+    public List<Boolean> applyVisitEvents(final String ifMatch,
+            final List<ChangeEvent<Visit>> operations) throws IOException {
+        LOG.debug("applyVisitEvents({}, {})", username, operations == null ? null : operations.size());
+        if (operations == null) {
+            throw new WebApplicationException("Operations must be given", Response.Status.BAD_REQUEST);
+        }
+        Lock lock = this.globingularModule.getLock(username);
+        lock.lock();
         try {
-            // Validate visit, remove it, save app-state and return
-            boolean result = this.countryCollector.removeVisit(validateAndReturnVisit(visit));
-            saveAppState(username, countryCollector);
-            return result;
+            CountryCollector current = this.currentCountryCollector();
+            // Validate every operation before applying any of them
+            List<ChangeEvent<Visit>> validOperations = new ArrayList<>(operations.size());
+            for (ChangeEvent<Visit> operation : operations) {
+                if (operation == null || !(operation.wasAdded() || operation.wasRemoved())) {
+                    throw new IllegalArgumentException("Only additions and removals can be applied");
+                }
+                validOperations.add(new ChangeEvent<>(operation.getStatus(),
+                        validateAndReturnVisit(operation.getElement(), current)));
+            }
+            // Apply every operation while holding the countryCollector's lock, then save app-state once,
+            // still holding it, so that a single change made after isn't journaled before this save is planned
+            List<Boolean> results = new ArrayList<>(validOperations.size());
+            synchronized (current) {
+                CountryCollectorResource.checkVersion(ifMatch, current);
+                for (ChangeEvent<Visit> operation : validOperations) {
+                    results.add(operation.wasAdded() ? current.registerVisit(operation.getElement())
+                            : current.removeVisit(operation.getElement()));
+                }
+                if (!validOperations.isEmpty()) {
+                    saveAppState(username, current);
+                }
+            }
+            return results;
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Make sure that the given Visit-instance is valid for this world,
+     * Retrieve all visits in this {@link #countryCollector} overlapping the given date range.
+     * Using {@code : (?i)} in {@code @Path} to enable case-insensitivity.
+     *
+     * @param from The first date of the range, inclusive, formatted as ISO-8601 (e.g. 2020-01-31)
+     * @param to   The last date of the range, inclusive, formatted as ISO-8601 (e.g. 2020-01-31)
+     * @return     The visits overlapping the date range, ordered by arrival
+     *
+     * @throws WebApplicationException If either date is missing or malformed, or if to comes before from
+     */
+    @GET
+    @Path("{overlapping : (?i)overlapping}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Visit> getVisitsOverlapping(@QueryParam("from") final String from, @QueryParam("to") final String to)
+            throws WebApplicationException {
+        LOG.debug("getVisitsOverlapping({}, {}, {})", username, from, to);
+        if (from == null || to == null) {
+            throw new WebApplicationException("Both from and to must be given", Response.Status.BAD_REQUEST);
+        }
+        try {
+            return this.countryCollector.getVisitsOverlapping(LocalDate.parse(from), LocalDate.parse(to));
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            throw new WebApplicationException("Invalid date range: " + from + " - " + to,
+                    Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Retrieve the {@link CountryCollector} currently stored for this {@link #username}, loading it again if evicted
+     * since this instance was created, see
+     * {@link GlobingularService#resolveCountryCollector(GlobingularModule, CollectorStore, WriteBehindSaver, String)}.
+     * Must be called while holding the user's lock, see {@link GlobingularModule#getLock(String)},
+     * so that it stays the one stored while changed.
+     *
+     * @return The CountryCollector currently stored
+     *
+     * @throws WebApplicationException If the user no longer exists
+     */
+    private CountryCollector currentCountryCollector() throws WebApplicationException {
+        CountryCollector current = GlobingularService.resolveCountryCollector(this.globingularModule,
+                this.collectorStore, this.writeBehindSaver, this.username);
+        if (current == null) {
+            throw new WebApplicationException("Username doesn't exist: " + username, Response.Status.BAD_REQUEST);
+        }
+        return current;
+    }
+
+    /**
+     * Make sure that the given Visit-instance is valid for the world of the given {@link CountryCollector},
      * and return a new Visit with the correct Country-instance instead.
      * 
-     * @param visit The visit-instance to validate and convert
-     * @return      The validated and converted visit-instance
+     * @param visit     The visit-instance to validate and convert
+     * @param collector The CountryCollector the visit is for
+     * @return          The validated and converted visit-instance
      * 
      * @throws IllegalArgumentException If the given Visit-instance contains an invalid Country for this World
      */
-    private Visit validateAndReturnVisit(final Visit visit) throws IllegalArgumentException {
-        Visit newVisit = Visit.newVisitFromWorld(visit, this.countryCollector.getWorld());
+    private static Visit validateAndReturnVisit(final Visit visit, final CountryCollector collector)
+            throws IllegalArgumentException {
+        Visit newVisit = Visit.newVisitFromWorld(visit, collector.getWorld());
         if (newVisit == null) {
             // If null is returned, it means the countryCode was invalid for this World
             throw new IllegalArgumentException("Unknown country " + visit.getCountry().getShortName()
@@ -132,17 +374,45 @@ public class VisitResource {
     }
 
     /**
-     * Saves the app-state for the active user, if {@link #persistenceHandler} is defined.
+     * Saves the app-state for the active user after several changes, as a whole, in the background
+     * if {@link #writeBehindSaver} is defined, otherwise before returning if {@link #collectorStore} is defined.
+     *
+     * @param user         The username to save as
+     * @param collector    The countryCollector to save
+     * @return             True if successfully saved or planned, or collectorStore is null.
+     *
+     * @throws IOException If saving fails
+     */
+    private boolean saveAppState(final String user, final CountryCollector collector) throws IOException {
+        if (this.writeBehindSaver != null) {
+            this.writeBehindSaver.saveCountryCollector(user, collector);
+            return true;
+        }
+        if (this.collectorStore != null) {
+            return this.collectorStore.save(user, collector);
+        }
+        return true;
+    }
+
+    /**
+     * Saves the app-state for the active user after the given change, in the background or as a journal record
+     * if {@link #writeBehindSaver} is defined, otherwise before returning if {@link #collectorStore} is defined.
      * 
      * @param user         The username to save as
      * @param collector    The countryCollector to save
-     * @return             True if successfully saved, or persistenceHandler is null.
+     * @param event        The change made to the countryCollector
+     * @return             True if successfully saved or planned, or collectorStore is null.
      * 
      * @throws IOException If saving fails
      */
-    private boolean saveAppState(final String user, final CountryCollector collector) throws IOException {
-        if (this.persistenceHandler != null) {
-            return FileHandler.saveCountryCollector(persistenceHandler, user, collector);
+    private boolean saveAppState(final String user, final CountryCollector collector, final ChangeEvent<Visit> event)
+            throws IOException {
+        if (this.writeBehindSaver != null) {
+            this.writeBehindSaver.saveVisitEvent(user, collector, event);
+            return true;
+        }
+        if (this.collectorStore != null) {
+            return this.collectorStore.save(user, collector);
         }
         return true;
     }
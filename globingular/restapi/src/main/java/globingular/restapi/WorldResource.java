@@ -9,7 +9,12 @@ import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
 
 /**
  * {@link World} resource, handling requests regarding Worlds.
@@ -22,6 +27,12 @@ public class WorldResource {
      */
     private static final Logger LOG = LoggerFactory.getLogger(WorldResource.class);
 
+    /**
+     * Number of seconds clients may reuse a World without asking whether it's changed.
+     * Kept to a day, as the worlds may change when the server is upgraded, but found by the same name.
+     */
+    public static final int MAX_AGE = 24 * 60 * 60;
+
     /**
      * The {@link PersistenceHandler} used to store World data.
      */
@@ -38,22 +49,36 @@ public class WorldResource {
 
     /**
      * Retrieve a default {@link World} from {@link #persistenceHandler}.
-     * Returns null if {@link #persistenceHandler} is null or if the
+     * Returns no content if {@link #persistenceHandler} is null or if the
      * worldName isn't defined as a default world.
+     * The response is tagged with the content hash of the World, see
+     * {@link PersistenceHandler#getDefaultWorldHash(World)}, so that a client already holding it is answered
+     * {@code 304 Not Modified} by sending it in {@code If-None-Match}, without serializing the World at all.
+     * Default worlds don't change while the server runs, so clients may reuse them for
+     * {@value #MAX_AGE} seconds without asking.
      * 
+     * @param request   The request, used to evaluate its preconditions
      * @param worldName the worldName to retrieve
-     * @return          the requested World if it exists, otherwise null
+     * @return          the response, with the requested World if it exists
      */
     @GET
     @Path("{worldName}")
     @Produces(MediaType.APPLICATION_JSON)
-    public World getWorld(@PathParam("worldName") final String worldName) {
+    public Response getWorld(@Context final Request request, @PathParam("worldName") final String worldName) {
         LOG.debug("getWorld({})", worldName);
         try {
-            if (persistenceHandler != null) {
-                return persistenceHandler.getDefaultWorld(worldName);
+            World world = persistenceHandler == null ? null : persistenceHandler.getDefaultWorld(worldName);
+            if (world == null) {
+                return Response.noContent().build();
+            }
+            EntityTag tag = new EntityTag(persistenceHandler.getDefaultWorldHash(world));
+            CacheControl cacheControl = new CacheControl();
+            cacheControl.setMaxAge(MAX_AGE);
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                return notModified.cacheControl(cacheControl).build();
             }
-            return null;
+            return Response.ok(world).tag(tag).cacheControl(cacheControl).build();
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
@@ -4,23 +4,23 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.endsWith;
 import static org.mockito.Mockito.*;
 
-import globingular.persistence.FileHandler;
-import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.MockedStatic;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import globingular.core.CountryCollector;
 import globingular.core.GlobingularModule;
-import globingular.persistence.PersistenceHandler;
+import globingular.persistence.CollectorStore;
+import globingular.persistence.WriteBehindSaver;
 
 public class CountryCollectorResourceApiTest {
 
@@ -34,14 +34,14 @@ public class CountryCollectorResourceApiTest {
     private static String usernameOldRenamed = usernameOldLower + "Renamed";
     private static String usernameOldRenamedLower = usernameOldRenamed.toLowerCase();
     private static String usernameTaken = username + "Taken";
+    private static String usernameSaved = username + "Saved";
 
     private GlobingularModule gModule;
     private CountryCollector cCollector1;
     private CountryCollector cCollector2;
-    private PersistenceHandler pHandler;
+    private CollectorStore cStore;
     private CountryCollectorResource ccrNewUser;
     private CountryCollectorResource ccrOldUser;
-    private MockedStatic<FileHandler> fHandler;
 
     @BeforeEach
     public void beforeEach() throws IllegalArgumentException, IOException {
@@ -49,80 +49,87 @@ public class CountryCollectorResourceApiTest {
         gModule = mock(GlobingularModule.class, new RuntimeExceptionAnswer());
         cCollector1 = mock(CountryCollector.class, new RuntimeExceptionAnswer());
         cCollector2 = mock(CountryCollector.class, new RuntimeExceptionAnswer());
-        pHandler = mock(PersistenceHandler.class, new RuntimeExceptionAnswer());
-        fHandler = mockStatic(FileHandler.class, new RuntimeExceptionAnswer());
+        cStore = mock(CollectorStore.class, new RuntimeExceptionAnswer());
 
         // Mock define
         // Using doReturn in order to use RuntimeExceptionAnswer() to report stubs not mocked
-        doReturn(cCollector1).when(gModule).getCountryCollector(usernameNewLower);
-        doReturn(null).when(gModule).getCountryCollector(usernameOldLower);
+        doReturn(null).when(gModule).getCountryCollector(usernameNewLower);
+        doReturn(cCollector1).when(gModule).getCountryCollector(usernameOldLower);
+        doReturn(0L).when(gModule).getHitCount();
+        doReturn(0L).when(gModule).getMissCount();
+        doReturn(0L).when(gModule).getEvictionCount();
 
         // Using any() as all put and remove operations should complete
         doReturn(true).when(gModule).putCountryCollector(anyString(), any());
         doReturn(true).when(gModule).removeCountryCollector(any());
 
+        // Changes are made holding a lock per user
+        doAnswer(invocation -> new ReentrantLock()).when(gModule).getLock(anyString());
+
         // Configure return for all possible usernames
         doReturn(true).when(gModule).isUsernameAvailable(endsWith("new"));
         doReturn(true).when(gModule).isUsernameAvailable(endsWith("renamed"));
         doReturn(false).when(gModule).isUsernameAvailable(endsWith("old"));
         doReturn(false).when(gModule).isUsernameAvailable(endsWith("taken"));
+        doReturn(true).when(gModule).isUsernameAvailable(endsWith("saved"));
+
+        // Always accept saving, while nothing is saved to load
+        doReturn(true).when(cStore).save(any(), any());
+        doReturn(null).when(cStore).load(any());
+        doReturn(false).when(cStore).exists(any());
+        doReturn(true).when(cStore).exists(endsWith("saved"));
+
+        // Versions are restored when replacing
+        for (CountryCollector cCollector : new CountryCollector[] {cCollector1, cCollector2}) {
+            doReturn(0L).when(cCollector).getVersion();
+            doNothing().when(cCollector).restoreVersion(anyLong());
+        }
 
-        // Always accept saving
-        fHandler.when(() -> FileHandler.saveCountryCollector(any(), any(), any())).thenReturn(true);
-
-        ccrNewUser =  new CountryCollectorResource(gModule, usernameNew, null, pHandler);
-        ccrOldUser =  new CountryCollectorResource(gModule, usernameOld, cCollector1, pHandler);
+        ccrNewUser =  new CountryCollectorResource(gModule, usernameNew, null, cStore);
+        ccrOldUser =  new CountryCollectorResource(gModule, usernameOld, cCollector1, cStore);
 
         // Verify that interaction-counter starts at 0, so that we don't need to check for 0 at start of each test
         verifyNoInteractions(gModule);
         verifyNoInteractions(cCollector1);
         verifyNoInteractions(cCollector2);
-        verifyNoInteractions(pHandler);
-        fHandler.verify(times(0), () -> FileHandler.saveCountryCollector(any(PersistenceHandler.class), anyString(), any(CountryCollector.class)));
-    }
-
-    @AfterEach
-    public void afterEach() {
-        if (fHandler != null && !fHandler.isClosed()) {
-            fHandler.close();
-        }
+        verifyNoInteractions(cStore);
     }
 
     /**
      * Helper method to avoid duplicating code too much.
-     * Verifies that {@link FileHandler#saveCountryCollector(PersistenceHandler, String, CountryCollector)} has been called
+     * Verifies that {@link CollectorStore#save(String, CountryCollector)} has been called
      * the given amount of times for the parameters username and countryCollector.
      * 
-     * @param persistenceHandler        The PersistenceHandler to count for
+     * @param collectorStore            The CollectorStore to count for
      * @param username                  The username to count for
      * @param countryCollector          The countryCollector to count for
      * @param times                     The amount of times to check, usually 1
      * @throws IllegalArgumentException If username is invalid: {@link GlobingularModule#isUsernameValid(String)}
      * @throws IOException              If saving fails (not really gonna happen, as it's a mocked instance)
      */
-    private void internalTestSaveAppState(final PersistenceHandler persistenceHandler, final String username, final CountryCollector countryCollector,
+    private void internalTestSaveAppState(final CollectorStore collectorStore, final String username, final CountryCollector countryCollector,
             final int times) throws IllegalArgumentException, IOException {
-        fHandler.verify(times(times), () -> FileHandler.saveCountryCollector(eq(persistenceHandler), eq(username), eq(countryCollector)));
+        verify(collectorStore, times(times)).save(eq(username), eq(countryCollector));
     }
 
     @Test
     public void testPutCountryCollectorForNewUser() throws IllegalArgumentException, IOException {
-        assertEquals(true, ccrNewUser.putCountryCollector(cCollector1));
+        assertEquals(true, ccrNewUser.putCountryCollector(null, cCollector1));
         verify(gModule).putCountryCollector(usernameNewLower, cCollector1);
-        internalTestSaveAppState(pHandler, usernameNewLower, cCollector1, 1);
+        internalTestSaveAppState(cStore, usernameNewLower, cCollector1, 1);
     }
 
     @Test
     public void testPutCountryCollectorForOldUser() throws IllegalArgumentException, IOException {
-        assertEquals(true, ccrOldUser.putCountryCollector(cCollector2));
+        assertEquals(true, ccrOldUser.putCountryCollector(null, cCollector2));
         verify(gModule).putCountryCollector(usernameOldLower, cCollector2);
-        internalTestSaveAppState(pHandler, usernameOldLower, cCollector2, 1);
+        internalTestSaveAppState(cStore, usernameOldLower, cCollector2, 1);
     }
 
     @Test
     public void testExceptionOnPutCountryCollectorWithNullForNewUser() throws IOException {
         try {
-            ccrNewUser.putCountryCollector(null);
+            ccrNewUser.putCountryCollector(null, null);
             fail("Should have thrown WebApplicationException");
         } catch (RuntimeException e) {
             // Success - we catch RuntimeException as WebApplicationException fails when not run as server
@@ -132,7 +139,7 @@ public class CountryCollectorResourceApiTest {
     @Test
     public void testExceptionOnPutCountryCollectorWithNullForOldUser() throws IOException {
         try {
-            ccrOldUser.putCountryCollector(null);
+            ccrOldUser.putCountryCollector(null, null);
             fail("Should have thrown WebApplicationException");
         } catch (RuntimeException e) {
             // Success - we catch RuntimeException as WebApplicationException fails when not run as server
@@ -143,20 +150,21 @@ public class CountryCollectorResourceApiTest {
     public void testDeleteCountryCollectorForNewUser() throws IllegalArgumentException, IOException {
         assertEquals(true, ccrNewUser.deleteCountryCollector());
         verify(gModule).removeCountryCollector(usernameNewLower);
-        internalTestSaveAppState(pHandler, usernameNewLower, null, 1);
+        internalTestSaveAppState(cStore, usernameNewLower, null, 1);
     }
 
     @Test
     public void testDeleteCountryCollectorForOldUser() throws IOException {
         assertEquals(true, ccrOldUser.deleteCountryCollector());
         verify(gModule).removeCountryCollector(usernameOldLower);
-        internalTestSaveAppState(pHandler, usernameOldLower, null, 1);
+        internalTestSaveAppState(cStore, usernameOldLower, null, 1);
     }
 
     @Test
     public void testRenameCountryCollectorForNewUser() throws IllegalArgumentException, IOException {
         assertEquals(false, ccrNewUser.renameCountryCollector(usernameNewRenamed));
-        verify(gModule).isUsernameAvailable(usernameNewLower);
+        verify(gModule).getCountryCollector(usernameNewLower);
+        verify(cStore).load(usernameNewLower);
     }
 
     @Test
@@ -164,8 +172,8 @@ public class CountryCollectorResourceApiTest {
         assertEquals(true, ccrOldUser.renameCountryCollector(usernameOldRenamed));
         verify(gModule).putCountryCollector(usernameOldRenamedLower, cCollector1);
         verify(gModule).removeCountryCollector(usernameOldLower);
-        internalTestSaveAppState(pHandler, usernameOldLower, null, 1);
-        internalTestSaveAppState(pHandler, usernameOldRenamedLower, cCollector1, 1);
+        internalTestSaveAppState(cStore, usernameOldLower, null, 1);
+        internalTestSaveAppState(cStore, usernameOldRenamedLower, cCollector1, 1);
     }
 
     @Test
@@ -178,6 +186,34 @@ public class CountryCollectorResourceApiTest {
         }
     }
 
+    @Test
+    public void testExceptionOnRenameCountryCollectorToUsernameOnlySaved() throws IOException {
+        try {
+            ccrOldUser.renameCountryCollector(usernameSaved);
+            fail("Should have thrown WebApplicationException");
+        } catch (RuntimeException e) {
+            // Success - we catch RuntimeException as WebApplicationException fails when not run as server
+        }
+        // Taken even though not in memory, as it's saved
+        verify(cStore).exists(usernameSaved.toLowerCase());
+        verify(gModule, never()).putCountryCollector(anyString(), any());
+        internalTestSaveAppState(cStore, usernameOldLower, null, 0);
+    }
+
+    @Test
+    public void testPutCountryCollectorWithWriteBehindSaver() throws IllegalArgumentException, IOException {
+        WriteBehindSaver saver = mock(WriteBehindSaver.class, new RuntimeExceptionAnswer());
+        doNothing().when(saver).saveCountryCollector(anyString(), any());
+        CountryCollectorResource ccr = new CountryCollectorResource(gModule, usernameOld, cCollector1, cStore,
+                saver);
+
+        assertEquals(true, ccr.putCountryCollector(null, cCollector2));
+        verify(gModule).putCountryCollector(usernameOldLower, cCollector2);
+        // Saved in the background instead of directly to file
+        verify(saver).saveCountryCollector(usernameOldLower, cCollector2);
+        internalTestSaveAppState(cStore, usernameOldLower, cCollector2, 0);
+    }
+
     /**
      * Custom error message for when a method is called on a Mocked instance, that is not stubbed (aka. not handled).
      */
@@ -0,0 +1,66 @@
+package globingular.restapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.container.AsyncResponse;
+
+/**
+ * Tests for {@link StorageExecutor}. Rejected requests are tested by {@code StorageExecutorServerTest},
+ * as answering them needs a JAX-RS implementation.
+ */
+public class StorageExecutorTest {
+
+    @Test
+    public void testResumesWithResultOnItsOwnThread() {
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        StorageExecutor storageExecutor = new StorageExecutor(1, 1);
+
+        StorageExecutor.handle(storageExecutor, asyncResponse, () -> {
+            thread.set(Thread.currentThread());
+            return true;
+        });
+        verify(asyncResponse, timeout(1000)).resume(true);
+        assertNotEquals(Thread.currentThread(), thread.get());
+
+        // Exceptions thrown are resumed with, to be answered like thrown by a synchronous resource
+        IOException exception = new IOException("Disk full");
+        storageExecutor.submit(asyncResponse, () -> {
+            throw exception;
+        });
+        verify(asyncResponse, timeout(1000)).resume(exception);
+
+        // So are errors, so that the request isn't left suspended
+        StackOverflowError error = new StackOverflowError();
+        storageExecutor.submit(asyncResponse, () -> {
+            throw error;
+        });
+        verify(asyncResponse, timeout(1000)).resume(error);
+        storageExecutor.close();
+        assertEquals(0, storageExecutor.getRejectedCount());
+    }
+
+    @Test
+    public void testWithoutExecutorResumesOnCallingThread() {
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+        AtomicReference<Thread> thread = new AtomicReference<>();
+
+        StorageExecutor.handle(null, asyncResponse, () -> {
+            thread.set(Thread.currentThread());
+            return "done";
+        });
+        verify(asyncResponse).resume("done");
+        assertEquals(Thread.currentThread(), thread.get());
+        assertThrows(IllegalArgumentException.class, () -> new StorageExecutor(0, 1));
+    }
+}
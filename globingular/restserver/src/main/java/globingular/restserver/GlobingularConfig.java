@@ -3,16 +3,77 @@ package globingular.restserver;
 import org.glassfish.jersey.internal.inject.AbstractBinder;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.AbstractContainerLifecycleListener;
+
+import java.io.IOException;
 
 import globingular.core.GlobingularModule;
+import globingular.persistence.CollectorStore;
+import globingular.persistence.FileCollectorStore;
+import globingular.persistence.FileHandler;
+import globingular.persistence.InMemoryCollectorStore;
 import globingular.persistence.PersistenceHandler;
+import globingular.persistence.SegmentCollectorStore;
+import globingular.persistence.SerializedCollectorCache;
+import globingular.persistence.WriteBehindSaver;
 import globingular.restapi.GlobingularService;
+import globingular.restapi.StorageExecutor;
 
 /**
  * Jersey-configuration for the Globingular REST server.
  */
 public class GlobingularConfig extends ResourceConfig {
 
+    /**
+     * Default maximum number of appstates held in memory by the server's {@link GlobingularModule}.
+     * Can be overridden using system property {@code globingular.cachesize}.
+     * Every appstate is also saved to file, so evicted appstates are loaded again when requested.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    /**
+     * System property overriding the maximum number of milliseconds between a change and saving it to file.
+     */
+    public static final String SAVE_DELAY_PROPERTY = "globingular.savedelay";
+
+    /**
+     * System property choosing whether single visits added or removed are appended to journals,
+     * instead of saving the whole appstate. Journaled unless set to {@code false}.
+     */
+    public static final String JOURNAL_PROPERTY = "globingular.journal";
+
+    /**
+     * System property choosing the format appstates are saved in, {@code json} or {@code binary}.
+     * Saved as {@code binary} unless set. Appstates saved in either format are loaded.
+     */
+    public static final String STORAGE_FORMAT_PROPERTY = "globingular.storageformat";
+
+    /**
+     * System property choosing where appstates are saved: {@code files}, a snapshot and journal file per user,
+     * {@code segments}, every user in a few memory-mapped segment files, or {@code memory}, nowhere but in memory,
+     * e.g. for benchmarks. Saved as {@code files} unless set.
+     */
+    public static final String STORE_PROPERTY = "globingular.store";
+
+    /**
+     * System property overriding the budget in bytes for CountryCollectors held serialized in memory,
+     * {@link SerializedCollectorCache#DEFAULT_MAXIMUM_BYTES} unless set. {@code 0} turns it off.
+     */
+    public static final String SERIALIZED_CACHE_PROPERTY = "globingular.serializedcache";
+
+    /**
+     * System property overriding the number of threads changes are made and saved on,
+     * {@link StorageExecutor#DEFAULT_THREADS} unless set.
+     */
+    public static final String STORAGE_THREADS_PROPERTY = "globingular.storagethreads";
+
+    /**
+     * System property overriding the number of changes waiting for those threads before further changes are
+     * answered {@code 503 Service Unavailable}, {@link StorageExecutor#DEFAULT_QUEUE_CAPACITY} unless set.
+     */
+    public static final String STORAGE_QUEUE_PROPERTY = "globingular.storagequeue";
+
     /**
      * The servers {@link GlobingularModule} instance, holding app-state.
      */
@@ -23,8 +84,39 @@ public class GlobingularConfig extends ResourceConfig {
      */
     private PersistenceHandler persistenceHandler;
 
+    /**
+     * The {@link CollectorStore} app-state is saved to, and loaded from.
+     */
+    private CollectorStore collectorStore;
+
+    /**
+     * The {@link WriteBehindSaver} to use for saving app-state in the background.
+     */
+    private WriteBehindSaver writeBehindSaver;
+
+    /**
+     * The {@link SerializedCollectorCache} CountryCollectors are retrieved serialized from.
+     */
+    private SerializedCollectorCache serializedCollectorCache;
+
+    /**
+     * The {@link StorageExecutor} changes are made and saved on, instead of on HTTP worker threads.
+     */
+    private StorageExecutor storageExecutor;
+
     /**
      * Initialize config with REST API package.
+     * Changes are saved to file in the background, at most {@link WriteBehindSaver#DEFAULT_MAXIMUM_DELAY}
+     * milliseconds later unless overridden by system property {@value #SAVE_DELAY_PROPERTY}.
+     * Pending saves are written when the server shuts down.
+     * Single visits added or removed are appended to journals, unless turned off by system property
+     * {@value #JOURNAL_PROPERTY}.
+     * Saved to a file per user, unless another {@link CollectorStore} is chosen by system property
+     * {@value #STORE_PROPERTY}.
+     * Retrieved CountryCollectors are held serialized, within a budget overridden by system property
+     * {@value #SERIALIZED_CACHE_PROPERTY}.
+     * Changes are made and saved on a {@link StorageExecutor}, sized by system properties
+     * {@value #STORAGE_THREADS_PROPERTY} and {@value #STORAGE_QUEUE_PROPERTY}.
      * 
      * @param globingularModule  The {@link GlobingularModule} to use for the server-instance.
      * @param persistenceHandler The {@link PersistenceHandler} to use for saving app-state.
@@ -32,35 +124,57 @@ public class GlobingularConfig extends ResourceConfig {
     public GlobingularConfig(final GlobingularModule globingularModule, final PersistenceHandler persistenceHandler) {
         this.globingularModule = globingularModule;
         this.persistenceHandler = persistenceHandler;
+        this.collectorStore = createCollectorStore(persistenceHandler);
+        this.writeBehindSaver = new WriteBehindSaver(this.collectorStore,
+                Long.getLong(SAVE_DELAY_PROPERTY, WriteBehindSaver.DEFAULT_MAXIMUM_DELAY),
+                Boolean.parseBoolean(System.getProperty(JOURNAL_PROPERTY, "true")));
+        this.serializedCollectorCache = new SerializedCollectorCache(persistenceHandler,
+                Long.getLong(SERIALIZED_CACHE_PROPERTY, SerializedCollectorCache.DEFAULT_MAXIMUM_BYTES));
+        this.storageExecutor = new StorageExecutor(
+                Integer.getInteger(STORAGE_THREADS_PROPERTY, StorageExecutor.DEFAULT_THREADS),
+                Integer.getInteger(STORAGE_QUEUE_PROPERTY, StorageExecutor.DEFAULT_QUEUE_CAPACITY));
         register(GlobingularService.class);
-        register(GlobingularObjectMapperProvider.class);
+        register(new GlobingularObjectMapperProvider(persistenceHandler));
         register(JacksonFeature.class);
         register(new AbstractBinder() {
             @Override
             protected void configure() {
                 bind(GlobingularConfig.this.globingularModule);
                 bind(GlobingularConfig.this.persistenceHandler);
+                bind(GlobingularConfig.this.writeBehindSaver);
+                bind(GlobingularConfig.this.collectorStore).to(CollectorStore.class);
+                bind(GlobingularConfig.this.serializedCollectorCache);
+                bind(GlobingularConfig.this.storageExecutor);
+            }
+          });
+        register(new AbstractContainerLifecycleListener() {
+            @Override
+            public void onShutdown(final Container container) {
+                GlobingularConfig.this.flushPendingSaves();
             }
           });
     }
 
     /**
      * Initialize config with REST API package.
-     * Using a new {@link PersistenceHandler} as none was given.
+     * Using a new {@link PersistenceHandler} as none was given, saving in the binary format
+     * unless overridden by system property {@value #STORAGE_FORMAT_PROPERTY}.
      * 
      * @param globingularModule The {@link GlobingularModule} to use for the server-instance.
      */
     public GlobingularConfig(final GlobingularModule globingularModule) {
-        this(globingularModule, new PersistenceHandler());
+        this(globingularModule, new PersistenceHandler(PersistenceHandler.StorageFormat.valueOf(
+                System.getProperty(STORAGE_FORMAT_PROPERTY, "binary").toUpperCase())));
     }
 
     /**
      * Initialize config with REST API package.
-     * Using a new {@link GlobingularModule} as none was given.
+     * Using a new {@link GlobingularModule} as none was given, bounded to {@link #DEFAULT_CACHE_SIZE} appstates
+     * unless overridden by system property {@code globingular.cachesize}.
      * Using a new {@link PersistenceHandler} as none was given.
      */
     public GlobingularConfig() {
-        this(new GlobingularModule());
+        this(new GlobingularModule(Integer.getInteger("globingular.cachesize", DEFAULT_CACHE_SIZE)));
     }
 
     /**
@@ -71,4 +185,80 @@ public class GlobingularConfig extends ResourceConfig {
     public GlobingularModule getGlobingularModule() {
         return this.globingularModule;
     }
+
+    /**
+     * Get this instance's {@link WriteBehindSaver}.
+     * 
+     * @return This instance's {@link WriteBehindSaver}
+     */
+    public WriteBehindSaver getWriteBehindSaver() {
+        return this.writeBehindSaver;
+    }
+
+    /**
+     * Get this instance's {@link SerializedCollectorCache}.
+     *
+     * @return This instance's {@link SerializedCollectorCache}
+     */
+    public SerializedCollectorCache getSerializedCollectorCache() {
+        return this.serializedCollectorCache;
+    }
+
+    /**
+     * Get this instance's {@link StorageExecutor}.
+     *
+     * @return This instance's {@link StorageExecutor}
+     */
+    public StorageExecutor getStorageExecutor() {
+        return this.storageExecutor;
+    }
+
+    /**
+     * Get this instance's {@link CollectorStore}.
+     *
+     * @return This instance's {@link CollectorStore}
+     */
+    public CollectorStore getCollectorStore() {
+        return this.collectorStore;
+    }
+
+    /**
+     * Finish the changes accepted by the {@link StorageExecutor}, stop saving in the background,
+     * write every pending save, and close the {@link CollectorStore}.
+     * Safe to call more than once.
+     */
+    public void flushPendingSaves() {
+        try {
+            this.storageExecutor.close();
+            this.writeBehindSaver.close();
+            this.collectorStore.close();
+        } catch (IOException e) {
+            // Catch and print if exception
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Create the {@link CollectorStore} chosen by system property {@value #STORE_PROPERTY}.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} the store should use for (de)serialization
+     * @return The store
+     *
+     * @throws IllegalStateException If opening the store fails
+     */
+    private static CollectorStore createCollectorStore(final PersistenceHandler persistenceHandler)
+            throws IllegalStateException {
+        switch (System.getProperty(STORE_PROPERTY, "files").toLowerCase()) {
+            case "segments":
+                try {
+                    return new SegmentCollectorStore(persistenceHandler, FileHandler.DATA_FOLDER.resolve("segments"));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed opening segments in " + FileHandler.DATA_FOLDER, e);
+                }
+            case "memory":
+                return new InMemoryCollectorStore(persistenceHandler);
+            default:
+                return new FileCollectorStore(persistenceHandler);
+        }
+    }
 }
@@ -7,12 +7,29 @@ import jakarta.ws.rs.ext.ContextResolver;
 
 /**
  * Provides custom {@link ObjectMapper} for use in (de)serialization of Globingular classes.
+ * The same thread-safe {@link ObjectMapper} is provided for every request.
  */
 public class GlobingularObjectMapperProvider implements ContextResolver<ObjectMapper> {
     /**
      * {@link PersistenceHandler} used to retrieving {@link ObjectMapper}-instance used by server.
      */
-    private final PersistenceHandler persistenceHandler = new PersistenceHandler();
+    private final PersistenceHandler persistenceHandler;
+
+    /**
+     * Initialize a provider sharing the {@link ObjectMapper} of the given {@link PersistenceHandler}.
+     *
+     * @param persistenceHandler The {@link PersistenceHandler} providing the {@link ObjectMapper}
+     */
+    public GlobingularObjectMapperProvider(final PersistenceHandler persistenceHandler) {
+        this.persistenceHandler = persistenceHandler;
+    }
+
+    /**
+     * Initialize a provider using a new {@link PersistenceHandler}, as none was given.
+     */
+    public GlobingularObjectMapperProvider() {
+        this(new PersistenceHandler());
+    }
 
     /**
      * Custom {@link ObjectMapper} for use in (de)serialization of Globingular classes.
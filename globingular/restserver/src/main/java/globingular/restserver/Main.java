@@ -28,8 +28,16 @@ public final class Main {
     public static HttpServer startServer() {
         // create a resource config that scans for JAX-RS resources and providers
         // in REST API package
-        final ResourceConfig rc = new GlobingularConfig();
+        return startServer(new GlobingularConfig());
+    }
 
+    /**
+     * Starts Grizzly HTTP server exposing JAX-RS resources defined in the given config.
+     *
+     * @param rc The config defining the resources to expose
+     * @return Grizzly HTTP server.
+     */
+    public static HttpServer startServer(final ResourceConfig rc) {
         // create and start a new instance of grizzly http server
         // exposing the Jersey application at BASE_URI
         return GrizzlyHttpServerFactory.createHttpServer(URI.create(BASE_URI), rc);
@@ -42,12 +50,18 @@ public final class Main {
      * @throws IOException On failure to read from System.in
      */
     public static void main(final String[] args) throws IOException {
-        final HttpServer server = startServer();
-        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+        final GlobingularConfig config = new GlobingularConfig();
+        final HttpServer server = startServer(config);
+        // Write changes still waiting to be saved, also when stopped by e.g. Ctrl+C
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdownNow();
+            config.flushPendingSaves();
+        }));
         System.out.printf("Jersey app started with WADL available at "
                 + "%sapplication.wadl%nHit enter to stop it...%n", BASE_URI);
         System.in.read();
         server.shutdownNow();
+        config.flushPendingSaves();
     }
 }
 
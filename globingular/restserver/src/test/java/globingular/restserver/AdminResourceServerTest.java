@@ -0,0 +1,88 @@
+package globingular.restserver;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.World;
+import globingular.restapi.AdminResource;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdminResourceServerTest {
+
+    private static HttpServer server;
+    private static GlobingularConfig config;
+    private static WebTarget target;
+    private ObjectMapper objectMapper = new GlobingularObjectMapperProvider().getContext(getClass());
+
+    @BeforeAll
+    public static void setUp() {
+        // Keep users in memory only, so that the archive only holds the users of this test
+        System.setProperty(GlobingularConfig.STORE_PROPERTY, "memory");
+        config = new GlobingularConfig();
+        System.clearProperty(GlobingularConfig.STORE_PROPERTY);
+        server = Main.startServer(config);
+        Client c = ClientBuilder.newClient();
+        target = c.target(Main.BASE_URI).path("globingular");
+    }
+
+    @AfterEach
+    public void afterEach() {
+        System.clearProperty(AdminResource.ENABLED_PROPERTY);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        server.shutdownNow();
+        config.flushPendingSaves();
+    }
+
+    private void putCountryCollector(final String username, final CountryCollector cc) throws Exception {
+        Response response = target.path("countryCollector").path(username).request()
+                .put(Entity.entity(objectMapper.writeValueAsString(cc), MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+    }
+
+    @Test
+    public void testAdminIsDisabledByDefault() {
+        assertEquals(404, target.path("admin").path("export").request().get().getStatus());
+    }
+
+    @Test
+    public void testExportAndImport() throws Exception {
+        System.setProperty(AdminResource.ENABLED_PROPERTY, "true");
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World("testWorld", country));
+        cc.registerVisit(country);
+        putCountryCollector("adminuser1", cc);
+        putCountryCollector("adminuser2", new CountryCollector(new World("testWorld", country)));
+
+        Response response = target.path("admin").path("export").request(MediaType.APPLICATION_OCTET_STREAM).get();
+        assertEquals(200, response.getStatus());
+        byte[] archive = response.readEntity(byte[].class);
+
+        assertEquals(200, target.path("countryCollector").path("adminuser1").request().delete().getStatus());
+        assertEquals(204, target.path("countryCollector").path("adminuser1").request().get().getStatus());
+
+        response = target.path("admin").path("import").request()
+                .post(Entity.entity(archive, MediaType.APPLICATION_OCTET_STREAM));
+        assertEquals(200, response.getStatus());
+        assertEquals("2", response.readEntity(String.class));
+        response = target.path("countryCollector").path("adminuser1").request().get();
+        assertEquals(200, response.getStatus());
+        assertEquals(1, objectMapper.readValue(response.readEntity(String.class), CountryCollector.class)
+                .numberOfVisits());
+    }
+}
@@ -2,14 +2,18 @@ package globingular.restserver;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import globingular.core.ChangeEvent;
 import globingular.core.Country;
 import globingular.core.CountryCollector;
+import globingular.core.Visit;
 import globingular.core.World;
 import globingular.persistence.FileHandler;
+import globingular.persistence.PersistenceHandler;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 
@@ -20,8 +24,17 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class CountryCollectorResourceServerTest {
 
@@ -62,11 +75,18 @@ public class CountryCollectorResourceServerTest {
     public static void tearDown() {
         server.shutdownNow();
 
-        File folder = FileHandler.DATA_FOLDER.toFile();
-        for (File f : folder.listFiles()) {
-                f.delete();
+        deleteRecursively(FileHandler.DATA_FOLDER.toFile());
+    }
+
+    private static void deleteRecursively(final File file) {
+        // Users' files are kept in subfolders of the data folder
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
         }
-        folder.delete();
+        file.delete();
     }
 
     /**
@@ -83,6 +103,26 @@ public class CountryCollectorResourceServerTest {
         assertEquals(204, response.getStatus());
     }
 
+    /**
+     * Test that a {@link CountryCollector} only saved to file is loaded, and kept for later requests.
+     */
+    @Test
+    public void testGetCountryCollectorSavedToFile() throws Exception {
+        FileHandler.saveCountryCollector(new PersistenceHandler(), username, cc);
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().get();
+        assertEquals(200, response.getStatus());
+        CountryCollector ccTemp = objectMapper.readValue(response.readEntity(String.class), CountryCollector.class);
+        assertEquals("testWorld", ccTemp.getWorld().getWorldName());
+
+        // Visits are only available for known users, which now includes the one loaded from file
+        request = objectMapper.writeValueAsString(new Visit(c1, null, null));
+        response = target.path("globingular").path("countryCollector").path(username).path("visit")
+                .path("register").request().post(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+    }
+
     @Test
     public void testPutCountryCollector() throws JsonProcessingException {
 
@@ -241,4 +281,201 @@ public class CountryCollectorResourceServerTest {
         // 400 means Bad request - Correct as username is already taken
         assertEquals(400, response.getStatus());
     }
+
+    @Test
+    public void testGetChangesAndPutIfMatch() throws JsonProcessingException {
+
+        request = objectMapper.writeValueAsString(cc);
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+        EntityTag stored = response.getEntityTag();
+
+        // The collector stored is at the version it was tagged with when put
+        response = target.path("globingular").path("countryCollector").path(username).request().get();
+        CountryCollector copy = objectMapper.readValue(response.readEntity(String.class), CountryCollector.class);
+        assertEquals(new EntityTag(Long.toString(copy.getVersion())), stored);
+        long version = copy.getVersion();
+
+        Visit v1 = new Visit(c1, null, null);
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("register").request()
+                .post(Entity.entity(objectMapper.writeValueAsString(v1), MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        // Only the change since the copy is returned
+        response = target.path("globingular").path("countryCollector").path(username).path("changes")
+                .queryParam("since", copy.getVersion()).request().get();
+        assertEquals(200, response.getStatus());
+        ChangeEvent<?>[] changes = objectMapper.readValue(response.readEntity(String.class), ChangeEvent[].class);
+        assertEquals(1, changes.length);
+        assertTrue(changes[0].wasAdded());
+        assertEquals("NO", ((Visit) changes[0].getElement()).getCountry().getCountryCode());
+
+        // A version newer than the current one needs a full retrieval
+        response = target.path("globingular").path("countryCollector").path(username).path("changes")
+                .queryParam("since", version + 2).request().get();
+        assertEquals(410, response.getStatus());
+
+        // Replacing the copy fails, as it's outdated
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-Match", "\"" + version + "\"").put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(412, response.getStatus());
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-Match", "\"" + (version + 1) + "\"")
+                .put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+        assertEquals(new EntityTag(Long.toString(version + 2)), response.getEntityTag());
+
+        // Changes made before replacing are gone, so copies from before need a full retrieval
+        response = target.path("globingular").path("countryCollector").path(username).path("changes")
+                .queryParam("since", version + 1).request().get();
+        assertEquals(410, response.getStatus());
+    }
+
+    @Test
+    public void testConcurrentConditionalPutsReplaceOnce() throws Exception {
+        request = objectMapper.writeValueAsString(cc);
+
+        // Only one of several creations succeeds
+        assertEquals(1, countSuccesses(() -> target.path("globingular").path("countryCollector").path(username)
+                .request().header("If-None-Match", "*").put(Entity.entity(request, MediaType.APPLICATION_JSON))));
+        response = target.path("globingular").path("countryCollector").path(username).request().get();
+        String etag = response.getHeaderString("ETag");
+
+        // Only one of several replacements of the same version succeeds
+        assertEquals(1, countSuccesses(() -> target.path("globingular").path("countryCollector").path(username)
+                .request().header("If-Match", etag).put(Entity.entity(request, MediaType.APPLICATION_JSON))));
+    }
+
+    /**
+     * Send the given request from several threads at once, and count the responses that succeeded.
+     * The others must have failed their preconditions.
+     *
+     * @param put The request to send
+     * @return The number of successful responses
+     */
+    private int countSuccesses(final Callable<Response> put) throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                responses.add(executor.submit(() -> {
+                    start.await();
+                    return put.call();
+                }));
+            }
+            start.countDown();
+            int successes = 0;
+            for (Future<Response> result : responses) {
+                int status = result.get().getStatus();
+                assertTrue(status == 200 || status == 412, "Unexpected status " + status);
+                successes += status == 200 ? 1 : 0;
+            }
+            return successes;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testVersionsNotReusedAfterDelete() throws JsonProcessingException {
+
+        request = objectMapper.writeValueAsString(cc);
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+        String etag = response.getHeaderString("ETag");
+
+        // Only created if none exists
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-None-Match", "*").put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(412, response.getStatus());
+
+        // A version that can't have been handed out is rejected, rather than continued from
+        cc.restoreVersion(Long.MAX_VALUE);
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .put(Entity.entity(objectMapper.writeValueAsString(cc), MediaType.APPLICATION_JSON));
+        assertEquals(400, response.getStatus());
+
+        // Created again after deleting, a tag held from before matches neither a retrieval nor a change
+        assertEquals(200, target.path("globingular").path("countryCollector").path(username).request()
+                .delete().getStatus());
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-None-Match", "*").put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+        assertFalse(etag.equals(response.getHeaderString("ETag")));
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-None-Match", etag).get();
+        assertEquals(200, response.getStatus());
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-Match", etag).put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(412, response.getStatus());
+    }
+
+    @Test
+    public void testGetCountryCollectorNotModified() throws JsonProcessingException {
+
+        request = objectMapper.writeValueAsString(cc);
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+        EntityTag stored = response.getEntityTag();
+
+        response = target.path("globingular").path("countryCollector").path(username).request().get();
+        assertEquals(200, response.getStatus());
+        EntityTag tag = response.getEntityTag();
+        String etag = response.getHeaderString("ETag");
+        assertEquals(stored, tag);
+
+        // Unchanged, so it's not sent again
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-None-Match", etag).get();
+        assertEquals(304, response.getStatus());
+        assertFalse(response.hasEntity());
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("register").request()
+                .post(Entity.entity(objectMapper.writeValueAsString(new Visit(c1, null, null)),
+                        MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        // Changed, so it's sent with the new version
+        response = target.path("globingular").path("countryCollector").path(username).request()
+                .header("If-None-Match", etag).get();
+        assertEquals(200, response.getStatus());
+        assertEquals(new EntityTag(Long.toString(Long.parseLong(tag.getValue()) + 1)), response.getEntityTag());
+        assertEquals(1, objectMapper.readValue(response.readEntity(String.class), CountryCollector.class)
+                .numberOfVisits());
+    }
+
+    @Test
+    public void testGetCountryCollectorServedFromCache() throws JsonProcessingException {
+        cc.registerVisit(c1);
+        request = objectMapper.writeValueAsString(cc);
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        // Retrieved again unchanged, it's written from the same serialized bytes
+        String first = target.path("globingular").path("countryCollector").path(username).request()
+                .get(String.class);
+        String second = target.path("globingular").path("countryCollector").path(username).request()
+                .get(String.class);
+        assertEquals(first, second);
+        assertEquals(cc.getVisits(), objectMapper.readValue(second, CountryCollector.class).getVisits());
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("register").request()
+                .post(Entity.entity(objectMapper.writeValueAsString(new Visit(c2, null, null)),
+                        MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        // Changed, so it's serialized again
+        String changed = target.path("globingular").path("countryCollector").path(username).request()
+                .get(String.class);
+        assertEquals(2, objectMapper.readValue(changed, CountryCollector.class).numberOfVisits());
+    }
 }
@@ -0,0 +1,95 @@
+package globingular.restserver;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import globingular.core.Country;
+import globingular.core.CountryCollector;
+import globingular.core.Visit;
+import globingular.core.World;
+import globingular.restapi.StorageExecutor;
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+
+public class StorageExecutorServerTest {
+
+    private static HttpServer server;
+    private static GlobingularConfig config;
+    private static WebTarget target;
+    private ObjectMapper objectMapper = new GlobingularObjectMapperProvider().getContext(getClass());
+
+    @BeforeAll
+    public static void setUp() {
+        // A single thread, and room for a single change waiting for it
+        System.setProperty(GlobingularConfig.STORE_PROPERTY, "memory");
+        System.setProperty(GlobingularConfig.STORAGE_THREADS_PROPERTY, "1");
+        System.setProperty(GlobingularConfig.STORAGE_QUEUE_PROPERTY, "1");
+        config = new GlobingularConfig();
+        System.clearProperty(GlobingularConfig.STORE_PROPERTY);
+        System.clearProperty(GlobingularConfig.STORAGE_THREADS_PROPERTY);
+        System.clearProperty(GlobingularConfig.STORAGE_QUEUE_PROPERTY);
+        server = Main.startServer(config);
+        Client c = ClientBuilder.newClient();
+        target = c.target(Main.BASE_URI).path("globingular").path("countryCollector").path("storageuser");
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        server.shutdownNow();
+        config.flushPendingSaves();
+    }
+
+    @Test
+    public void testRejectedWhenSaturated() throws Exception {
+        Country country = new Country("NO", "Norway");
+        CountryCollector cc = new CountryCollector(new World("testWorld", country));
+        assertEquals(200, target.request()
+                .put(Entity.entity(objectMapper.writeValueAsString(cc), MediaType.APPLICATION_JSON)).getStatus());
+
+        // Occupy the only thread, and the only place in the queue
+        StorageExecutor storageExecutor = config.getStorageExecutor();
+        AsyncResponse ignored = (AsyncResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {AsyncResponse.class}, (proxy, method, args) -> false);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch dequeued = new CountDownLatch(1);
+        storageExecutor.submit(ignored, () -> {
+            started.countDown();
+            release.await();
+            return true;
+        });
+        // Only fill the queue once the thread has taken the first task from it
+        started.await();
+        storageExecutor.submit(ignored, () -> {
+            dequeued.countDown();
+            return true;
+        });
+
+        Entity<String> visit = Entity.entity(objectMapper.writeValueAsString(new Visit(country, null, null)),
+                MediaType.APPLICATION_JSON);
+        Response response = target.path("visit").path("register").request().post(visit);
+        assertEquals(503, response.getStatus());
+        assertEquals(Long.toString(StorageExecutor.RETRY_AFTER_SECONDS), response.getHeaderString("Retry-After"));
+        assertEquals(1, storageExecutor.getRejectedCount());
+
+        // Accepted again once the waiting changes are made
+        release.countDown();
+        dequeued.await();
+        response = target.path("visit").path("register").request().post(visit);
+        assertEquals(200, response.getStatus());
+        assertEquals("true", response.readEntity(String.class));
+    }
+}
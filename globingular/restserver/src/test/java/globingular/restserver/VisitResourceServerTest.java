@@ -2,11 +2,17 @@ package globingular.restserver;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import globingular.core.ChangeEvent;
 import globingular.core.Country;
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
 import globingular.core.World;
+import globingular.core.GlobingularModule;
 import globingular.persistence.FileHandler;
+import globingular.persistence.InMemoryCollectorStore;
+import globingular.persistence.PersistenceHandler;
+import globingular.restapi.GlobingularService;
+import globingular.restapi.VisitResource;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
@@ -23,7 +29,9 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.File;
+import java.io.IOException;
 import java.time.LocalDate;
+import java.util.List;
 
 public class VisitResourceServerTest {
 
@@ -63,11 +71,18 @@ public class VisitResourceServerTest {
     public static void tearDown() {
         server.shutdownNow();
 
-        File folder = FileHandler.DATA_FOLDER.toFile();
-        for (File f : folder.listFiles()) {
-                f.delete();
+        deleteRecursively(FileHandler.DATA_FOLDER.toFile());
+    }
+
+    private static void deleteRecursively(final File file) {
+        // Users' files are kept in subfolders of the data folder
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
         }
-        folder.delete();
+        file.delete();
     }
 
     @Test
@@ -158,4 +173,114 @@ public class VisitResourceServerTest {
         responseMsg = response.readEntity(String.class);
         assertEquals("true", responseMsg);
     }
+
+    @Test
+    public void testApplyVisitEvents() throws JsonProcessingException {
+
+        request = objectMapper.writeValueAsString(cc);
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        Visit v1 = new Visit(c1, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 31));
+        Visit v2 = new Visit(c2, LocalDate.of(2020, 2, 1), LocalDate.of(2020, 2, 28));
+        request = objectMapper.writeValueAsString(List.of(new ChangeEvent<>(ChangeEvent.Status.ADDED, v1),
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, v2), new ChangeEvent<>(ChangeEvent.Status.REMOVED, v1)));
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("batch").request()
+                .post(Entity.entity(request, MediaType.APPLICATION_JSON));
+
+        // Success, with a result per operation
+        assertEquals(200, response.getStatus());
+        responseMsg = response.readEntity(String.class);
+        assertEquals(3, objectMapper.readValue(responseMsg, Boolean[].class).length);
+
+        // Only v2 remains
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().get();
+        assertEquals(200, response.getStatus());
+        CountryCollector saved = objectMapper.readValue(response.readEntity(String.class), CountryCollector.class);
+        assertEquals(1, saved.numberOfVisits());
+        assertEquals(1, saved.getVisitsToCountry(saved.getWorld().getCountryFromCode("SE")).size());
+
+        // An unknown country fails the whole batch, so v1 isn't added
+        Visit unknown = new Visit(new Country("DK", "Denmark"), null, null);
+        request = objectMapper.writeValueAsString(List.of(new ChangeEvent<>(ChangeEvent.Status.ADDED, v1),
+                new ChangeEvent<>(ChangeEvent.Status.ADDED, unknown)));
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("batch").request()
+                .post(Entity.entity(request, MediaType.APPLICATION_JSON));
+
+        // 400 means Bad request
+        assertEquals(400, response.getStatus());
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().get();
+        saved = objectMapper.readValue(response.readEntity(String.class), CountryCollector.class);
+        assertEquals(1, saved.numberOfVisits());
+    }
+
+    @Test
+    public void testGetVisitsOverlapping() throws JsonProcessingException {
+
+        request = objectMapper.writeValueAsString(cc);
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).request().put(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        Visit v1 = new Visit(c1, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 31));
+        request = objectMapper.writeValueAsString(v1);
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("register").request()
+                .post(Entity.entity(request, MediaType.APPLICATION_JSON));
+        assertEquals(200, response.getStatus());
+
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("overlapping")
+                .queryParam("from", "2020-01-15").queryParam("to", "2020-02-15").request().get();
+
+        // Success
+        assertEquals(200, response.getStatus());
+
+        // Check that the registered visit is returned
+        responseMsg = response.readEntity(String.class);
+        Visit[] visits = objectMapper.readValue(responseMsg, Visit[].class);
+        assertEquals(1, visits.length);
+        assertEquals(v1.getArrival(), visits[0].getArrival());
+
+        // Date range ending before it starts
+        response = target.path("globingular").path("countryCollector")
+                .path(username).path("visit").path("overlapping")
+                .queryParam("from", "2020-02-15").queryParam("to", "2020-01-15").request().get();
+
+        // 400 means Bad request
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void testRegisterVisitAfterEvictionChangesCurrent() throws IOException {
+        // A module holding a single user, so that retrieving another one evicts it
+        PersistenceHandler persistenceHandler = new PersistenceHandler();
+        GlobingularModule module = new GlobingularModule(1);
+        InMemoryCollectorStore store = new InMemoryCollectorStore(persistenceHandler);
+        GlobingularService service = new GlobingularService(module, persistenceHandler, null, store, null, null);
+        store.save(username, cc);
+        store.save(username + "other", new CountryCollector(world));
+
+        VisitResource resource = service.getCountryCollector(username).getVisit();
+        service.getCountryCollector(username + "other");
+        // Loaded again by another request, while the first one still holds the evicted CountryCollector
+        service.getCountryCollector(username);
+        CountryCollector current = module.getCountryCollector(username);
+
+        resource.registerVisit(new Visit(c1, LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2)));
+        // Made to the CountryCollector currently stored, and saved from it
+        assertEquals(1, current.numberOfVisits());
+        assertEquals(1, store.load(username).numberOfVisits());
+    }
 }
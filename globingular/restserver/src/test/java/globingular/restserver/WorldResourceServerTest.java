@@ -1,6 +1,9 @@
 package globingular.restserver;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -12,9 +15,11 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import globingular.core.World;
+import globingular.restapi.WorldResource;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.Response;
 
 public class WorldResourceServerTest {
@@ -49,4 +54,21 @@ public class WorldResourceServerTest {
 
         assertEquals("Earth", w.getWorldName());
     }
+
+    @Test
+    public void testGetWorldNotModified() {
+        Response response = target.path("globingular").path("world").path("Earth").request().get();
+        assertEquals(200, response.getStatus());
+        EntityTag tag = response.getEntityTag();
+        String etag = response.getHeaderString("ETag");
+        assertNotNull(tag);
+        assertTrue(response.getHeaderString("Cache-Control").contains("max-age=" + WorldResource.MAX_AGE));
+
+        // The world is unchanged, so it's not sent again
+        response = target.path("globingular").path("world").path("Earth").request()
+                .header("If-None-Match", etag).get();
+        assertEquals(304, response.getStatus());
+        assertEquals(tag, response.getEntityTag());
+        assertFalse(response.hasEntity());
+    }
 }
@@ -1,6 +1,7 @@
 package globingular.ui;
 
 
+import globingular.core.ChangeEvent;
 import globingular.core.Country;
 import globingular.core.CountryCollector;
 import globingular.core.CountryStatistics;
@@ -46,6 +47,7 @@ import org.controlsfx.control.textfield.TextFields;
 import java.net.URL;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.ResourceBundle;
@@ -705,6 +707,16 @@ public class AppController implements Initializable {
      * @param toCountryCollector The new CountryCollector.
      */
     private void preInitConfigureState(final CountryCollector toCountryCollector) {
+        // CountryStatistics and Badges listen to the CountryCollector they're created for,
+        // so the previous ones are removed, keeping them from being updated for a user no longer shown
+        if (this.countryCollector != null) {
+            if (countryStatistics != null) {
+                this.countryCollector.removeListener(countryStatistics);
+            }
+            if (badges != null) {
+                this.countryCollector.removeListener(badges);
+            }
+        }
         this.countryCollector = toCountryCollector;
         toCountryCollector.addListener(countryCollectorListenerForSaving);
         countryStatistics = new CountryStatistics(toCountryCollector);
@@ -831,9 +843,19 @@ public class AppController implements Initializable {
             arrivalDatePicker.getEditor().clear();
             departureDatePicker.getEditor().clear();
         } else {
-            // Remove all selected visits
-            for (Visit visit : visitsPopupListView.getSelectionModel().getSelectedItems().toArray(Visit[]::new)) {
-                countryCollector.removeVisit(visit);
+            // Remove all selected visits, saving them as a single batch instead of one at a time
+            List<ChangeEvent<Visit>> events = new ArrayList<>();
+            countryCollector.removeListener(countryCollectorListenerForSaving);
+            try {
+                for (Visit visit : visitsPopupListView.getSelectionModel().getSelectedItems().toArray(Visit[]::new)) {
+                    countryCollector.removeVisit(visit);
+                    events.add(new ChangeEvent<>(ChangeEvent.Status.REMOVED, visit));
+                }
+            } finally {
+                countryCollector.addListener(countryCollectorListenerForSaving);
+            }
+            if (!events.isEmpty()) {
+                dataAccess.saveVisitEvents(countryCollector, events);
             }
         }
     }
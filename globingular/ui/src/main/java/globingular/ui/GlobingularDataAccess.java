@@ -1,8 +1,11 @@
 package globingular.ui;
 
+import globingular.core.ChangeEvent;
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
 
+import java.util.List;
+
 /**
  * Abstraction for a data access layer for the application.
  */
@@ -59,4 +62,13 @@ public interface GlobingularDataAccess {
      * @return          True if the element doesn't exist in the storage after the operation.
      */
     boolean deleteVisit(CountryCollector collector, Visit visit);
+
+    /**
+     * Save several {@link Visit}s added or removed at once to storage with this instance's context.
+     *
+     * @param collector The {@link CountryCollector} to save for.
+     * @param events    The {@link Visit}s added or removed, in the order they were changed.
+     * @return          True if every change is reflected in the storage after the operation.
+     */
+    boolean saveVisitEvents(CountryCollector collector, List<ChangeEvent<Visit>> events);
 }
@@ -1,21 +1,23 @@
 package globingular.ui;
 
+import globingular.core.ChangeEvent;
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
-import globingular.persistence.FileHandler;
+import globingular.persistence.CollectorStore;
+import globingular.persistence.FileCollectorStore;
 import globingular.persistence.PersistenceHandler;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
- * Local file-based implementation of {@link GlobingularDataAccess}.
+ * Local implementation of {@link GlobingularDataAccess}, using a {@link CollectorStore}, files on disk by default.
  */
 public class LocalGlobingularDataAccess implements GlobingularDataAccess {
     /**
-     * The provider of {@link com.fasterxml.jackson.databind.ObjectMapper}s and
-     * injected values to use for (de)serialization.
+     * The {@link CollectorStore} to save to and load from.
      */
-    private final PersistenceHandler persistenceHandler;
+    private final CollectorStore collectorStore;
     /**
      * The username whose storage to use.
      */
@@ -30,28 +32,41 @@ public class LocalGlobingularDataAccess implements GlobingularDataAccess {
      *                           and injected values to use for (de)serialization.
      */
     public LocalGlobingularDataAccess(final String username, final PersistenceHandler persistenceHandler) {
+        this(username, new FileCollectorStore(persistenceHandler));
+    }
+
+    /**
+     * Construct a new instance which will use the given {@link CollectorStore} for persistence.
+     *
+     * @param username       The username whose storage to use.
+     * @param collectorStore The {@link CollectorStore} to save to and load from.
+     */
+    public LocalGlobingularDataAccess(final String username, final CollectorStore collectorStore) {
         this.username = username;
-        this.persistenceHandler = persistenceHandler;
+        this.collectorStore = collectorStore;
     }
 
     /**
-     * {@inheritDoc} Loads from the local file system.
+     * {@inheritDoc} Loads from the local store.
      */
     @Override
     public CountryCollector getCountryCollector() {
-        final CountryCollector locallyStoredCountryCollector = FileHandler.loadCountryCollector(persistenceHandler,
-                username);
-        // If locallyStoredCountryCollector is null, the caller has to create a new one and save.
-        return locallyStoredCountryCollector;
+        try {
+            // If null is returned, the caller has to create a new one and save.
+            return collectorStore.load(username);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
-     * {@inheritDoc} Saves to the local file system.
+     * {@inheritDoc} Saves to the local store.
      */
     @Override
     public boolean saveCountryCollector(final CountryCollector collector) {
         try {
-            return FileHandler.saveCountryCollector(persistenceHandler, username, collector);
+            return collectorStore.save(username, collector);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -59,10 +74,10 @@ public class LocalGlobingularDataAccess implements GlobingularDataAccess {
     }
 
     /**
-     * {@inheritDoc} Saves to the local file system.
+     * {@inheritDoc} Saves to the local store.
      */
     public boolean renameCountryCollector(final String newUsername, final CountryCollector collector) {
-        boolean saveResult = (new LocalGlobingularDataAccess(newUsername, persistenceHandler))
+        boolean saveResult = (new LocalGlobingularDataAccess(newUsername, collectorStore))
                 .saveCountryCollector(collector);
         if (saveResult) {
             return this.deleteCountryCollector();
@@ -71,12 +86,12 @@ public class LocalGlobingularDataAccess implements GlobingularDataAccess {
     }
 
     /**
-     * {@inheritDoc} Deletes from the local file system.
+     * {@inheritDoc} Deletes from the local store.
      */
     @Override
     public boolean deleteCountryCollector() {
         try {
-            return FileHandler.saveCountryCollector(persistenceHandler, username, null);
+            return collectorStore.delete(username);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -84,7 +99,7 @@ public class LocalGlobingularDataAccess implements GlobingularDataAccess {
     }
 
     /**
-     * {@inheritDoc} Saves to the local file system.
+     * {@inheritDoc} Saves to the local store.
      */
     @Override
     public boolean saveVisit(final CountryCollector collector, final Visit visit) {
@@ -92,10 +107,18 @@ public class LocalGlobingularDataAccess implements GlobingularDataAccess {
     }
 
     /**
-     * {@inheritDoc} Deletes from the local file system.
+     * {@inheritDoc} Deletes from the local store.
      */
     @Override
     public boolean deleteVisit(final CountryCollector collector, final Visit visit) {
         return this.saveCountryCollector(collector);
     }
+
+    /**
+     * {@inheritDoc} Saves to the local store.
+     */
+    @Override
+    public boolean saveVisitEvents(final CountryCollector collector, final List<ChangeEvent<Visit>> events) {
+        return this.saveCountryCollector(collector);
+    }
 }
@@ -1,5 +1,6 @@
 package globingular.ui;
 
+import globingular.core.ChangeEvent;
 import globingular.core.CountryCollector;
 import globingular.core.Visit;
 import globingular.persistence.PersistenceHandler;
@@ -10,6 +11,9 @@ import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * {@link GlobingularDataAccess}-implementation using a REST-server.
@@ -24,6 +28,19 @@ public class RestGlobingularDataAccess implements GlobingularDataAccess {
      * The name of the HTTP header defining request body content-type.
      */
     public static final String CONTENT_TYPE_HEADER_NAME = "Content-Type";
+    /**
+     * The name of the HTTP header making a change only if the resource is at one of the given versions.
+     */
+    public static final String IF_MATCH_HEADER_NAME = "If-Match";
+    /**
+     * The name of the HTTP header making a change only if the resource is at none of the given versions,
+     * or doesn't exist if {@code *}.
+     */
+    public static final String IF_NONE_MATCH_HEADER_NAME = "If-None-Match";
+    /**
+     * The name of the HTTP header holding the version of a resource.
+     */
+    public static final String ETAG_HEADER_NAME = "ETag";
     /**
      * The MIME-type for JavaScript Object Notation (JSON).
      */
@@ -70,6 +87,11 @@ public class RestGlobingularDataAccess implements GlobingularDataAccess {
      * Includes a preceeding slash, as there will be a username inserted after CountryCollector-resource.
      */
     private static final String COUNTRY_COLLECTOR_RESOURCE_ACTION_RENAME = "/rename/";
+    /**
+     * The endpoint for retrieving the changes made to a CountryCollector-resource since a version.
+     * Must be appended AFTER username, and followed by the version.
+     */
+    private static final String COUNTRY_COLLECTOR_RESOURCE_ACTION_CHANGES = "/changes?since=";
     /**
      * The path to the Visit-resource, relative to the CountryCollector-resource (including username).
      * Includes a preceeding slash, as there will be a username inserted after CountryCollector-resource.
@@ -83,6 +105,10 @@ public class RestGlobingularDataAccess implements GlobingularDataAccess {
      * The endpoint for removing a {@link Visit}.
      */
     private static final String VISIT_RESOURCE_PATH_ACTION_REMOVE = VISIT_RESOURCE_PATH + "remove";
+    /**
+     * The endpoint for registering and removing several {@link Visit}s at once.
+     */
+    private static final String VISIT_RESOURCE_PATH_ACTION_BATCH = VISIT_RESOURCE_PATH + "batch";
 
     /**
      * The user to access the world-map data for.
@@ -125,12 +151,98 @@ public class RestGlobingularDataAccess implements GlobingularDataAccess {
     }
 
     /**
-     * {@inheritDoc} Saves to a REST-API.
+     * Get the changes made to the {@link CountryCollector} on the server since the given version,
+     * in the order they were made. Transfers only the changes, rather than the whole CountryCollector.
+     *
+     * @param version The version to get changes since, see {@link CountryCollector#getVersion()}
+     * @return        The changes, empty if the version is current, or {@code null} if the server no longer keeps
+     *                them, or the request fails. The CountryCollector must be retrieved in full then.
+     */
+    public List<ChangeEvent<Visit>> getChangesSince(final long version) {
+        final String uri = baseUri + GLOBINGULAR_SERVICE_PATH + COUNTRY_COLLECTOR_RESOURCE_PATH
+                + username + COUNTRY_COLLECTOR_RESOURCE_ACTION_CHANGES + version;
+        @SuppressWarnings("unchecked")
+        final ChangeEvent<Visit>[] changes = executeRequest(HTTP_METHOD_GET, uri, null, ChangeEvent[].class, null,
+                HTTP_STATUS_CODE_SUCCESS);
+        return changes == null ? null : Arrays.asList(changes);
+    }
+
+    /**
+     * Bring the given copy of the {@link CountryCollector} on the server up to date, by replaying only the changes
+     * made since its version. Its listeners are notified of each change, so listeners saving changes
+     * should be removed first, to avoid sending the changes back to the server.
+     *
+     * @param collector The copy to bring up to date, previously retrieved from the server
+     * @return          True if brought up to date, false if it must be retrieved in full instead
+     */
+    public boolean refreshCountryCollector(final CountryCollector collector) {
+        final List<ChangeEvent<Visit>> changes = getChangesSince(collector.getVersion());
+        if (changes == null) {
+            return false;
+        }
+        // Resolve every visit in the copy's world before replaying any of them
+        final List<Visit> visits = new ArrayList<>(changes.size());
+        for (ChangeEvent<Visit> change : changes) {
+            final Visit visit = Visit.newVisitFromWorld(change.getElement(), collector.getWorld());
+            if (visit == null) {
+                return false;
+            }
+            visits.add(visit);
+        }
+        // Replay without other changes in between, so that the copy ends up at the server's version
+        synchronized (collector) {
+            for (int i = 0; i < visits.size(); i++) {
+                if (changes.get(i).wasAdded()) {
+                    collector.registerVisit(visits.get(i));
+                } else {
+                    collector.removeVisit(visits.get(i));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc} Saves to a REST-API, only replacing the version of the {@link CountryCollector} on the server
+     * that the given one was retrieved at, or only creating one if it wasn't retrieved from the server
+     * (version 0), so that changes made by others in the meantime aren't overwritten.
+     * The given CountryCollector then holds the version the server stored it at.
      */
     @Override
     public boolean saveCountryCollector(final CountryCollector collector) {
         final String uri = baseUri + GLOBINGULAR_SERVICE_PATH + COUNTRY_COLLECTOR_RESOURCE_PATH + username;
-        return executeRequest(HTTP_METHOD_PUT, uri, collector);
+        final long version;
+        final String serialized;
+        // Read the version and visits without other changes in between, so that the version is the one sent
+        synchronized (collector) {
+            version = collector.getVersion();
+            serialized = persistenceHandler.serialize(collector);
+        }
+        try {
+            final HttpRequest request = HttpRequest.newBuilder(new URI(uri))
+                    .header(CONTENT_TYPE_HEADER_NAME, MEDIA_TYPE_JSON).header(ACCEPT_HEADER_NAME, MEDIA_TYPE_JSON)
+                    .header(version != 0 ? IF_MATCH_HEADER_NAME : IF_NONE_MATCH_HEADER_NAME,
+                            version != 0 ? "\"" + version + "\"" : "*")
+                    .PUT(HttpRequest.BodyPublishers.ofString(serialized)).build();
+            final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != HTTP_STATUS_CODE_SUCCESS) {
+                System.err.println("Network " + HTTP_METHOD_PUT + " request failed, received HTTP status code: "
+                        + response.statusCode() + " from " + response.uri().toString() + ".");
+                return false;
+            }
+            // Hold the version stored, so that the copy can be brought up to date with later changes,
+            // unless changed meanwhile, as the copy then holds changes the version stored doesn't
+            final String tag = response.headers().firstValue(ETAG_HEADER_NAME).orElse(null);
+            synchronized (collector) {
+                if (tag != null && collector.getVersion() == version) {
+                    collector.restoreVersion(Long.parseLong(tag.replace("\"", "")));
+                }
+            }
+            return Boolean.TRUE.equals(persistenceHandler.parse(response.body(), Boolean.class));
+        } catch (IOException | InterruptedException | URISyntaxException | NumberFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     /**
@@ -171,6 +283,17 @@ public class RestGlobingularDataAccess implements GlobingularDataAccess {
         return executeRequest(HTTP_METHOD_POST, uri, visit);
     }
 
+    /**
+     * {@inheritDoc} Saves to a REST-API, in a single request.
+     */
+    @Override
+    public boolean saveVisitEvents(final CountryCollector collector, final List<ChangeEvent<Visit>> events) {
+        final String uri = baseUri + GLOBINGULAR_SERVICE_PATH + COUNTRY_COLLECTOR_RESOURCE_PATH
+                + username + VISIT_RESOURCE_PATH_ACTION_BATCH;
+        final Boolean[] results = executeRequest(HTTP_METHOD_POST, uri, events, Boolean[].class, null,
+                HTTP_STATUS_CODE_SUCCESS);
+        return results != null && Arrays.stream(results).allMatch(Boolean.TRUE::equals);
+    }
 
     /**
      * Performs a network-request with the given parameters.